@@ -0,0 +1,73 @@
+package edu.oswego.cs.rest;
+
+import edu.oswego.cs.rest.JsonClasses.Actor;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.*;
+
+/**
+ * Read-through LRU cache of actors by id. Actor documents are written once when the actor is created and rarely after,
+ * so casts and graph results are mostly answered from memory, and whatever is missing is read with a single $in query.
+ * Entries expire after <code>ACTOR_CACHE_TTL_MS</code> (default 300000) so changes made by other services show up
+ * eventually. <code>ACTOR_CACHE_SIZE</code> (default 10000) bounds the number of actors kept.
+ *
+ * <p>The cached Actor objects are shared between requests and must not be modified.</p>
+ */
+@ApplicationScoped
+public class ActorCache {
+
+  private static final int SIZE = Integer.parseInt(getEnvOrDefault("ACTOR_CACHE_SIZE", "10000"));
+  private static final long TTL_MS = Long.parseLong(getEnvOrDefault("ACTOR_CACHE_TTL_MS", "300000"));
+
+  private static class Entry {
+    final Actor actor;
+    final long loadedAt;
+
+    Entry(Actor actor, long loadedAt) {
+      this.actor = actor;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > SIZE;
+    }
+  };
+
+  /**
+   * @param actorIds MongoDB hexIds of the actors to return
+   * @return the actors in the order of the ids, skipping ids that have no actor
+   */
+  public List<Actor> getActors(List<String> actorIds) {
+    long now = System.currentTimeMillis();
+    Map<String, Actor> found = new HashMap<>();
+    Set<String> missing = new LinkedHashSet<>();
+    synchronized (entries) {
+      for (String actorId : actorIds) {
+        Entry entry = entries.get(actorId);
+        if (entry != null && now - entry.loadedAt < TTL_MS) { found.put(actorId, entry.actor); }
+        else { missing.add(actorId); }
+      }
+    }
+    if (!missing.isEmpty()) {
+      Map<String, Actor> loaded = new DatabaseController().getActorsWithActorIds(missing);
+      found.putAll(loaded);
+      synchronized (entries) {
+        for (Actor actor : loaded.values()) { entries.put(actor.getId(), new Entry(actor, now)); }
+      }
+    }
+    List<Actor> actors = new ArrayList<>(actorIds.size());
+    for (String actorId : actorIds) {
+      Actor actor = found.get(actorId);
+      if (actor != null) { actors.add(actor); }
+    }
+    return actors;
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
@@ -3,8 +3,14 @@ package edu.oswego.cs.rest;
 import com.ibm.websphere.security.jwt.JwtConsumer;
 
 import edu.oswego.cs.rest.JsonClasses.Actor;
+import edu.oswego.cs.rest.JsonClasses.ActorNeighbour;
+import edu.oswego.cs.rest.JsonClasses.ActorPath;
+import edu.oswego.cs.rest.JsonClasses.CastCredit;
+import edu.oswego.cs.rest.JsonClasses.CastImport;
+import edu.oswego.cs.rest.JsonClasses.CastImportResult;
 import edu.oswego.cs.rest.JsonClasses.JSession;
 import jakarta.enterprise.context.RequestScoped;
+import jakarta.inject.Inject;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.client.Client;
@@ -14,7 +20,10 @@ import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Path("/")
 @RequestScoped
@@ -22,6 +31,20 @@ public class ActorDataService {
   
   String AuthServiceUrl = System.getenv("AUTH_SERVICE_URL");
 
+  // most co-stars returned for one actor
+  private static final int COSTAR_LIMIT = 50;
+  // farthest and most actors a neighbourhood goes, past three hops it is most of the graph
+  private static final int MAX_HOPS = 3;
+  private static final int NEIGHBOURHOOD_LIMIT = 200;
+  // most credits in one import, a bigger catalogue is sent in several
+  private static final int MAX_IMPORT_CREDITS = 50000;
+
+  @Inject
+  ActorGraph actorGraph;
+
+  @Inject
+  ActorCache actorCache;
+
   /**
    * gets the username of the client request. Also authenticates the client using a JWT.
    * TODO double check if the above is correct
@@ -50,6 +73,7 @@ public class ActorDataService {
    * Actor Create Endpoints
    *
    * createActor
+   * importCast
    */
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
@@ -60,9 +84,26 @@ public class ActorDataService {
     if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
     DatabaseController db = new DatabaseController();
     db.createActor(actor.getName(), actor.getDateOfBirth(), movieId);
+    actorGraph.invalidate();
     return Response.ok().build();
   }
 
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/actor/importCast")
+  public Response importCast(@Context HttpServletRequest request, CastImport castImport) throws Exception {
+    String sessionId = castImport.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    List<CastCredit> credits = castImport.getCredits();
+    if (credits == null || credits.size() > MAX_IMPORT_CREDITS) { return Response.status(Response.Status.BAD_REQUEST).build(); }
+    DatabaseController db = new DatabaseController();
+    List<CastImportResult> results = db.importCast(credits);
+    actorGraph.invalidate();
+    return Response.ok(results).build();
+  }
+
   /*
    * Actor Get Endpoints
    *
@@ -91,7 +132,96 @@ public class ActorDataService {
     String requesterUsername = getUsername(sessionId);
     if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
     DatabaseController dbc = new DatabaseController();
-    List<Actor> actors = dbc.getActorWithMovieId(movieId);
+    List<String> actorIds = dbc.getPrincipalCast(movieId);
+    // null if movie doesn't exist by ID, as before
+    List<Actor> actors = actorIds == null ? null : actorCache.getActors(actorIds);
     return Response.ok(actors).build();
   }
+
+  /*
+   * Actor Graph Endpoints
+   *
+   * getCoStars
+   * getShortestPath
+   * getNeighbourhood
+   */
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/actor/getCoStars/{actorId}")
+  public Response getCoStars(@Context HttpServletRequest request, @PathParam("actorId") String actorId, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    List<ActorGraph.Neighbour> costars = actorGraph.getCoStars(actorId, COSTAR_LIMIT);
+    if (costars == null) { return Response.status(Response.Status.NOT_FOUND).build(); }
+    return Response.ok(toActorNeighbours(costars)).build();
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/actor/getShortestPath/{fromActorId}/{toActorId}")
+  public Response getShortestPath(@Context HttpServletRequest request, @PathParam("fromActorId") String fromActorId, @PathParam("toActorId") String toActorId, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    ActorGraph.Chain path = actorGraph.getShortestPath(fromActorId, toActorId);
+    if (path == null) { return Response.status(Response.Status.NOT_FOUND).build(); }
+    Map<String, Actor> actors = getActors(path.actorIds());
+    ActorPath actorPath = new ActorPath();
+    List<Actor> pathActors = new ArrayList<>();
+    for (String actorId : path.actorIds()) { pathActors.add(actors.getOrDefault(actorId, idOnly(actorId))); }
+    actorPath.setActors(pathActors);
+    actorPath.setMovieIds(path.movieIds());
+    actorPath.setDegrees(path.movieIds().size());
+    return Response.ok(actorPath).build();
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/actor/getNeighbourhood/{actorId}/{hops}")
+  public Response getNeighbourhood(@Context HttpServletRequest request, @PathParam("actorId") String actorId, @PathParam("hops") int hops, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    if (hops < 1 || hops > MAX_HOPS) { return Response.status(Response.Status.BAD_REQUEST).build(); }
+    List<ActorGraph.Neighbour> neighbours = actorGraph.getNeighbourhood(actorId, hops, NEIGHBOURHOOD_LIMIT);
+    if (neighbours == null) { return Response.status(Response.Status.NOT_FOUND).build(); }
+    return Response.ok(toActorNeighbours(neighbours)).build();
+  }
+
+  /**
+   * Fills in the actors found in the graph from the cache, with one query for any it doesn't have.
+   */
+  private List<ActorNeighbour> toActorNeighbours(List<ActorGraph.Neighbour> neighbours) {
+    List<String> actorIds = new ArrayList<>();
+    for (ActorGraph.Neighbour neighbour : neighbours) { actorIds.add(neighbour.actorId()); }
+    Map<String, Actor> actors = getActors(actorIds);
+    List<ActorNeighbour> result = new ArrayList<>();
+    for (ActorGraph.Neighbour neighbour : neighbours) {
+      ActorNeighbour actorNeighbour = new ActorNeighbour();
+      actorNeighbour.setActor(actors.getOrDefault(neighbour.actorId(), idOnly(neighbour.actorId())));
+      actorNeighbour.setDistance(neighbour.distance());
+      actorNeighbour.setSharedMovies(neighbour.sharedMovies());
+      result.add(actorNeighbour);
+    }
+    return result;
+  }
+
+  private Map<String, Actor> getActors(List<String> actorIds) {
+    Map<String, Actor> actors = new HashMap<>();
+    for (Actor actor : actorCache.getActors(actorIds)) { actors.put(actor.getId(), actor); }
+    return actors;
+  }
+
+  /**
+   * An actor still listed in a cast whose document is gone.
+   */
+  private static Actor idOnly(String actorId) {
+    Actor actor = new Actor();
+    actor.setId(actorId);
+    return actor;
+  }
 }
@@ -0,0 +1,355 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Projections;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory bipartite graph of actors and the movies they appear in, built from the principalCast of every movie.
+ * Actors and movies are numbered densely and the edges are kept in compressed sparse row form, one offsets array and
+ * one targets array per side, so a traversal is array reads with no Mongo round trips and the whole graph costs a few
+ * ints per cast credit.
+ *
+ * <p>The graph is immutable once built. It is rebuilt in the background every <code>ACTOR_GRAPH_REFRESH_MS</code>
+ * (default 60000) and right after this service adds an actor, and queries keep using the previous graph until the new
+ * one is swapped in. Changes made while a rebuild is waiting to start share it, so a cast import of many actors costs
+ * one rebuild rather than one per actor.</p>
+ */
+@ApplicationScoped
+public class ActorGraph {
+
+  private static final long REFRESH_MS = Long.parseLong(getEnvOrDefault("ACTOR_GRAPH_REFRESH_MS", "60000"));
+
+  private volatile Graph graph;
+  private ScheduledExecutorService builder;
+  // set while a rebuild asked for by invalidate is queued and hasn't started reading yet
+  private final AtomicBoolean rebuildPending = new AtomicBoolean();
+
+  /**
+   * One actor reachable from another, with how it was reached.
+   * @param actorId actor hex id
+   * @param distance hops from the starting actor, one hop being a shared movie
+   * @param sharedMovies for co-stars, the number of movies shared with the starting actor
+   */
+  public record Neighbour(String actorId, int distance, int sharedMovies) {}
+
+  /**
+   * A shortest chain between two actors.
+   * @param actorIds actor hex ids from the first actor to the last
+   * @param movieIds hex ids of the movies linking each actor to the next, one fewer than the actors
+   */
+  public record Chain(List<String> actorIds, List<String> movieIds) {}
+
+  /**
+   * Builds the graph in the background as soon as the application is up and keeps it current.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    builder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "actor-graph-builder");
+      thread.setDaemon(true);
+      return thread;
+    });
+    builder.scheduleWithFixedDelay(this::rebuild, 0, REFRESH_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  void stop() {
+    if (builder != null) { builder.shutdownNow(); }
+  }
+
+  /**
+   * Asks for a rebuild soon, after this service changed a cast.
+   */
+  public void invalidate() {
+    if (builder != null && rebuildPending.compareAndSet(false, true)) {
+      builder.execute(() -> {
+        // cleared before reading, so a change made during this rebuild queues another one
+        rebuildPending.set(false);
+        rebuild();
+      });
+    }
+  }
+
+  /**
+   * @param actorId actor hex id
+   * @param limit most co-stars to return
+   * @return the actors sharing a movie with the actor, most shared movies first, or null if the actor isn't in any cast
+   */
+  public List<Neighbour> getCoStars(String actorId, int limit) {
+    Graph g = getGraph();
+    Integer actor = g.actorIndex.get(actorId);
+    if (actor == null) { return null; }
+    int[] shared = new int[g.actorIds.length];
+    List<Integer> found = new ArrayList<>();
+    for (int m = g.actorOffsets[actor]; m < g.actorOffsets[actor + 1]; m++) {
+      int movie = g.actorMovies[m];
+      for (int a = g.movieOffsets[movie]; a < g.movieOffsets[movie + 1]; a++) {
+        int costar = g.movieActors[a];
+        if (costar == actor) { continue; }
+        if (shared[costar]++ == 0) { found.add(costar); }
+      }
+    }
+    found.sort((a, b) -> shared[a] != shared[b] ? Integer.compare(shared[b], shared[a])
+            : g.actorIds[a].compareTo(g.actorIds[b]));
+    List<Neighbour> costars = new ArrayList<>();
+    for (int costar : found.subList(0, Math.min(limit, found.size()))) {
+      costars.add(new Neighbour(g.actorIds[costar], 1, shared[costar]));
+    }
+    return costars;
+  }
+
+  /**
+   * Finds a shortest chain of shared movies between two actors with a breadth first search from both ends, always
+   * growing the smaller frontier, so only the actors near the shorter half of the path are visited.
+   * @param fromActorId actor hex id to start at
+   * @param toActorId actor hex id to end at
+   * @return the chain, or null if either actor isn't in any cast or they aren't connected
+   */
+  public Chain getShortestPath(String fromActorId, String toActorId) {
+    Graph g = getGraph();
+    Integer from = g.actorIndex.get(fromActorId);
+    Integer to = g.actorIndex.get(toActorId);
+    if (from == null || to == null) { return null; }
+    if (from.equals(to)) { return new Chain(List.of(fromActorId), List.of()); }
+
+    Search forward = new Search(g, from);
+    Search backward = new Search(g, to);
+    while (!forward.frontier.isEmpty() && !backward.frontier.isEmpty()) {
+      Search grow = forward.frontier.size() <= backward.frontier.size() ? forward : backward;
+      Search other = grow == forward ? backward : forward;
+      int meeting = grow.expand(other);
+      if (meeting >= 0) { return join(g, forward, backward, meeting); }
+    }
+    return null;
+  }
+
+  /**
+   * @param actorId actor hex id
+   * @param hops how far to look, one hop being a shared movie
+   * @param limit most actors to return
+   * @return the actors within the given hops, nearest first, or null if the actor isn't in any cast
+   */
+  public List<Neighbour> getNeighbourhood(String actorId, int hops, int limit) {
+    Graph g = getGraph();
+    Integer actor = g.actorIndex.get(actorId);
+    if (actor == null) { return null; }
+    Search search = new Search(g, actor);
+    List<Neighbour> neighbours = new ArrayList<>();
+    for (int hop = 1; hop <= hops && !search.frontier.isEmpty() && neighbours.size() < limit; hop++) {
+      search.expand(null);
+      for (int reached : search.frontier) {
+        if (neighbours.size() == limit) { break; }
+        neighbours.add(new Neighbour(g.actorIds[reached], hop, 0));
+      }
+    }
+    return neighbours;
+  }
+
+  /**
+   * @return the current graph, building it here if the background build hasn't finished yet
+   */
+  private Graph getGraph() {
+    Graph current = graph;
+    if (current != null) { return current; }
+    synchronized (this) {
+      if (graph == null) { graph = Graph.build(); }
+      return graph;
+    }
+  }
+
+  /**
+   * Replaces the graph with one built from the given movies rather than the movies collection.
+   * @param movies movies with their _id and principalCast
+   */
+  void setMovies(Iterable<Document> movies) {
+    Graph built = Graph.build(movies);
+    synchronized (this) { graph = built; }
+  }
+
+  private void rebuild() {
+    try {
+      Graph built = Graph.build();
+      synchronized (this) { graph = built; }
+    } catch (RuntimeException e) {
+      // keep answering from the previous graph, the next refresh tries again
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Stitches the two halves of a bidirectional search together at the actor where they met.
+   */
+  private static Chain join(Graph g, Search forward, Search backward, int actor) {
+    LinkedList<String> actorIds = new LinkedList<>();
+    LinkedList<String> movieIds = new LinkedList<>();
+    for (int a = actor; a != forward.start; a = forward.parentActor[a]) {
+      actorIds.addFirst(g.actorIds[a]);
+      movieIds.addFirst(g.movieIds[forward.parentMovie[a]]);
+    }
+    actorIds.addFirst(g.actorIds[forward.start]);
+    for (int a = actor; a != backward.start; a = backward.parentActor[a]) {
+      movieIds.addLast(g.movieIds[backward.parentMovie[a]]);
+      actorIds.addLast(g.actorIds[backward.parentActor[a]]);
+    }
+    return new Chain(new ArrayList<>(actorIds), new ArrayList<>(movieIds));
+  }
+
+  /**
+   * One side of a breadth first search over actors, remembering how each actor was reached.
+   */
+  private static class Search {
+    final Graph g;
+    final int start;
+    // actor and movie each actor was first reached through, -1 while unreached
+    final int[] parentActor;
+    final int[] parentMovie;
+    // a movie's cast only has to be read once per search
+    final boolean[] movieSeen;
+    List<Integer> frontier = new ArrayList<>();
+
+    Search(Graph g, int start) {
+      this.g = g;
+      this.start = start;
+      parentActor = new int[g.actorIds.length];
+      parentMovie = new int[g.actorIds.length];
+      movieSeen = new boolean[g.movieIds.length];
+      Arrays.fill(parentActor, -1);
+      parentActor[start] = start;
+      frontier.add(start);
+    }
+
+    boolean reached(int actor) {
+      return parentActor[actor] >= 0;
+    }
+
+    /**
+     * Moves the frontier out one hop.
+     * @param other the search coming from the other end, or null if there is none
+     * @return the first actor reached that the other search has also reached, or -1 if none was. The frontier is left
+     * half grown when one was
+     */
+    int expand(Search other) {
+      List<Integer> next = new ArrayList<>();
+      for (int actor : frontier) {
+        for (int m = g.actorOffsets[actor]; m < g.actorOffsets[actor + 1]; m++) {
+          int movie = g.actorMovies[m];
+          if (movieSeen[movie]) { continue; }
+          movieSeen[movie] = true;
+          for (int a = g.movieOffsets[movie]; a < g.movieOffsets[movie + 1]; a++) {
+            int costar = g.movieActors[a];
+            if (reached(costar)) { continue; }
+            parentActor[costar] = actor;
+            parentMovie[costar] = movie;
+            // every actor the other side has reached is at its frontier or closer, and this level is the first to
+            // reach this one, so no shorter path can still turn up
+            if (other != null && other.reached(costar)) { return costar; }
+            next.add(costar);
+          }
+        }
+      }
+      frontier = next;
+      return -1;
+    }
+  }
+
+  /**
+   * The graph in compressed sparse row form. The movies of actor a are actorMovies[actorOffsets[a]] up to
+   * actorMovies[actorOffsets[a + 1]], and the cast of movie m is laid out the same way in movieActors.
+   */
+  private static class Graph {
+    final String[] actorIds;
+    final String[] movieIds;
+    final Map<String, Integer> actorIndex;
+    final int[] actorOffsets;
+    final int[] actorMovies;
+    final int[] movieOffsets;
+    final int[] movieActors;
+
+    private Graph(String[] actorIds, String[] movieIds, Map<String, Integer> actorIndex, int[] actorOffsets,
+                  int[] actorMovies, int[] movieOffsets, int[] movieActors) {
+      this.actorIds = actorIds;
+      this.movieIds = movieIds;
+      this.actorIndex = actorIndex;
+      this.actorOffsets = actorOffsets;
+      this.actorMovies = actorMovies;
+      this.movieOffsets = movieOffsets;
+      this.movieActors = movieActors;
+    }
+
+    /**
+     * Reads every movie's cast once and lays the edges out in both directions.
+     */
+    static Graph build() {
+      return build(new DatabaseController().getMovieCollection().find()
+              .projection(Projections.include("principalCast")));
+    }
+
+    /**
+     * @param movies movies with their _id and principalCast
+     */
+    static Graph build(Iterable<Document> movies) {
+      Map<String, Integer> actorIndex = new HashMap<>();
+      List<String> actorIds = new ArrayList<>();
+      List<String> movieIds = new ArrayList<>();
+      // cast of each movie as actor numbers, end to end, with where each movie's cast ends
+      int[] cast = new int[1024];
+      int[] castEnds = new int[64];
+      int credits = 0;
+      for (Document movie : movies) {
+        List<String> principalCast = movie.getList("principalCast", String.class);
+        if (principalCast == null || principalCast.isEmpty()) { continue; }
+        // the same actor can be pushed onto a cast more than once
+        Set<Integer> members = new LinkedHashSet<>();
+        for (String actorId : principalCast) {
+          if (actorId == null) { continue; }
+          members.add(actorIndex.computeIfAbsent(actorId, id -> {
+            actorIds.add(id);
+            return actorIds.size() - 1;
+          }));
+        }
+        if (members.isEmpty()) { continue; }
+        if (credits + members.size() > cast.length) {
+          cast = Arrays.copyOf(cast, Math.max(cast.length * 2, credits + members.size()));
+        }
+        for (int member : members) { cast[credits++] = member; }
+        if (movieIds.size() == castEnds.length) { castEnds = Arrays.copyOf(castEnds, castEnds.length * 2); }
+        castEnds[movieIds.size()] = credits;
+        movieIds.add(movie.getObjectId("_id").toHexString());
+      }
+
+      int movieCount = movieIds.size();
+      int actorCount = actorIds.size();
+      int[] movieOffsets = new int[movieCount + 1];
+      System.arraycopy(castEnds, 0, movieOffsets, 1, movieCount);
+      int[] movieActors = Arrays.copyOf(cast, credits);
+
+      // count each actor's credits, turn the counts into offsets, then fill the slots in movie order
+      int[] actorOffsets = new int[actorCount + 1];
+      for (int i = 0; i < credits; i++) { actorOffsets[movieActors[i] + 1]++; }
+      for (int a = 0; a < actorCount; a++) { actorOffsets[a + 1] += actorOffsets[a]; }
+      int[] actorMovies = new int[credits];
+      int[] filled = Arrays.copyOf(actorOffsets, actorCount);
+      for (int movie = 0; movie < movieCount; movie++) {
+        for (int i = movieOffsets[movie]; i < movieOffsets[movie + 1]; i++) {
+          actorMovies[filled[movieActors[i]]++] = movie;
+        }
+      }
+      return new Graph(actorIds.toArray(new String[0]), movieIds.toArray(new String[0]), actorIndex, actorOffsets,
+              actorMovies, movieOffsets, movieActors);
+    }
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
@@ -0,0 +1,79 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import org.bson.Document;
+
+import java.util.ArrayList;
+
+/**
+ * Creates the indexes the actor queries depend on when the application starts, so requests never send a
+ * createIndexes command themselves. Creating an index that already exists is a no-op.
+ *
+ * <p>The name and date of birth index is unique, so two requests can't both create the same actor. Actors that were
+ * duplicated before it existed are merged first. If that or the index build fails, for example because Mongo can't be
+ * reached or a duplicate was inserted between the merge and the build, both are tried again with a growing delay.</p>
+ */
+@ApplicationScoped
+public class ActorIndexManager {
+
+  /**
+   * Case-insensitive collation used by the name and date of birth index. A query only uses the index if it asks for
+   * the same collation.
+   */
+  public static final Collation NAME_COLLATION = Collation.builder()
+          .locale("en").collationStrength(CollationStrength.SECONDARY).build();
+
+  private static final String NAME_INDEX = "name_1_dob_1_ci";
+  private static final long FIRST_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60000;
+
+  /**
+   * Starts creating the indexes in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    Thread builder = new Thread(this::createIndexes, "actor-index-builder");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  void createIndexes() {
+    long retryMs = FIRST_RETRY_MS;
+    while (true) {
+      try {
+        DatabaseController dbc = new DatabaseController();
+        dbc.mergeDuplicateActors();
+        createNameIndex(dbc.getActorCollection());
+        return;
+      } catch (MongoException e) {
+        e.printStackTrace();
+        try {
+          Thread.sleep(retryMs);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+      }
+    }
+  }
+
+  private static void createNameIndex(MongoCollection<Document> actors) {
+    // the index used to allow duplicates, and an index can't be changed to unique in place
+    for (Document index : actors.listIndexes().into(new ArrayList<>())) {
+      if (NAME_INDEX.equals(index.getString("name")) && !index.getBoolean("unique", false)) {
+        actors.dropIndex(NAME_INDEX);
+      }
+    }
+    // name first so name lookups use it too, dob for matching actors during a cast import
+    actors.createIndex(Indexes.ascending("name", "dob"),
+            new IndexOptions().name(NAME_INDEX).collation(NAME_COLLATION).unique(true).background(true));
+  }
+}
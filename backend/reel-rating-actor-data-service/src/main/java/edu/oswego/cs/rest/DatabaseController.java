@@ -1,21 +1,38 @@
 package edu.oswego.cs.rest;
 
 import edu.oswego.cs.rest.JsonClasses.Actor;
+import edu.oswego.cs.rest.JsonClasses.CastCredit;
+import edu.oswego.cs.rest.JsonClasses.CastImportResult;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 public class DatabaseController {
+  private static final Bson ACTOR_FIELDS = Projections.include("name", "dob", "movies");
   private static String mongoDatabaseName = System.getenv("MONGO_MOVIE_DATABASE_NAME");
   private static String mongoURL = System.getenv("MONGO_MOVIE_URL");
   private static MongoClient mongoClient = MongoClients.create(mongoURL);
@@ -42,11 +59,13 @@ public class DatabaseController {
    * Actor Create functions
    *
    * createActor
+   * importCast
+   * mergeDuplicateActors
    */
 
   /**
-   * Creates and adds an actor to the database. Users cannot create an actor if the actor already exists by name.
-   * This may need to be reconfigured to allow for two actors with the same name.
+   * Creates and adds an actor to the database. If an actor with the same name, ignoring case, and date of birth
+   * already exists, the movie is added to that actor instead.
    *
    * @param actorName actor's name
    * @param dob the date of birth of the actor
@@ -58,24 +77,289 @@ public class DatabaseController {
     MongoCollection<Document> movieCollection = getMovieCollection();
 
     ObjectId movieIdObject = new ObjectId(movieId);
-    // get the movie object to make sure it exists
-    Document movie = movieCollection.find(Filters.eq("_id", movieIdObject)).first();
-    // if the movie exists
-    if(null != movie) {
-      // create a new actor
-      Document newActor = new Document().append("name", actorName)
-                .append("dob", dob);
+    // create the actor already listing the movie, one insert
+    Document newActor = new Document().append("name", actorName)
+              .append("dob", dob)
+              .append("movies", List.of(movieId));
+    ObjectId actorObjectId;
+    boolean existing = false;
+    boolean addedToExisting = false;
+    try {
       actorCollection.insertOne(newActor);
-      Bson actorMovieUpdateOperation = Updates.push("movies", movieId);
-      actorCollection.updateOne(newActor, actorMovieUpdateOperation);
+      actorObjectId = newActor.getObjectId("_id");
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) { throw e; }
+      // the unique name and date of birth index already has this actor, so add the movie to it
+      Document existingActor = findActor(actorName, dob);
+      if (existingActor == null) { throw e; }
+      actorObjectId = existingActor.getObjectId("_id");
+      existing = true;
+      addedToExisting = actorCollection.updateOne(Filters.eq("_id", actorObjectId),
+              Updates.addToSet("movies", movieId)).getModifiedCount() > 0;
+    }
+
+    String actorId = actorObjectId.toHexString();
+    // add actor to movie cast, this also tells us whether the movie exists
+    Bson movieUpdateOperation = Updates.addToSet("principalCast", actorId);
+    UpdateResult result = movieCollection.updateOne(Filters.eq("_id", movieIdObject), movieUpdateOperation);
+    // if the movie doesn't exist the actor isn't kept, or an existing actor loses the movie again
+    if (result.getMatchedCount() == 0) {
+      if (!existing) {
+        actorCollection.deleteOne(Filters.eq("_id", actorObjectId));
+      } else if (addedToExisting) {
+        actorCollection.updateOne(Filters.eq("_id", actorObjectId), Updates.pull("movies", movieId));
+      }
+    }
+  }
+
+  /**
+   * @return the actor with the name, ignoring case, and date of birth, or null if there is none. Uses the name index.
+   */
+  private Document findActor(String name, String dob) {
+    return getActorCollection().find(Filters.and(Filters.eq("name", name), Filters.eq("dob", dob)))
+            .collation(ActorIndexManager.NAME_COLLATION).projection(Projections.include("movies")).first();
+  }
+
+  /**
+   * An actor named in a cast import along with everything the import does to it.
+   */
+  private static class ImportedActor {
+    ObjectId id;
+    boolean existing;
+    String name;
+    String dob;
+    final Set<String> movieIds = new LinkedHashSet<>();
+    // the movies the actor didn't list before the import, the ones to take back if their cast can't be updated
+    final Set<String> newMovieIds = new HashSet<>();
+    final List<Integer> rows = new ArrayList<>();
 
-      String actorId = newActor.getObjectId("_id").toHexString();
-      // add actor to movie cast
-      Bson movieUpdateOperation = Updates.push("principalCast", actorId);
-      movieCollection.updateOne(movie, movieUpdateOperation);
+    void setExisting(Document document) {
+      id = document.getObjectId("_id");
+      existing = true;
+      newMovieIds.addAll(movieIds);
+      newMovieIds.removeAll(document.getList("movies", String.class, List.of()));
     }
   }
 
+  /**
+   * Adds many cast credits at once, possibly across many movies. Actors are matched by name, ignoring case, and date
+   * of birth against existing actors and against each other, so an actor named twice is only created once. New actors
+   * are inserted and existing ones get the movies added in one unordered bulk write, then every movie gets its new
+   * cast members in a second one. Actors are written first, so a cast never names an actor that doesn't exist.
+   *
+   * <p>An insert the unique name index turns away because another request created the same actor meanwhile is
+   * retried as an update of that actor. If a movie's cast can't be updated, the movie is taken back off the actors that
+   * only listed it because of this import, and actors created for it alone are deleted again.</p>
+   *
+   * @param credits the credits to add, each a movie id with the actor's name and date of birth
+   * @return one result per credit in the same order. The status is CREATED or EXISTING along with the actor's id, or
+   * INVALID, MOVIE_NOT_FOUND, or FAILED if that credit wasn't added
+   */
+  public List<CastImportResult> importCast(List<CastCredit> credits) {
+    MongoCollection<Document> actorCollection = getActorCollection();
+    MongoCollection<Document> movieCollection = getMovieCollection();
+    List<CastImportResult> results = new ArrayList<>();
+
+    // which of the movies exist, in one query
+    Set<ObjectId> movieIds = new HashSet<>();
+    for (CastCredit credit : credits) {
+      if (isValidCredit(credit)) { movieIds.add(new ObjectId(credit.getMovieId())); }
+    }
+    Set<String> existingMovies = new HashSet<>();
+    if (!movieIds.isEmpty()) {
+      for (Document movie : movieCollection.find(Filters.in("_id", movieIds)).projection(Projections.include("_id"))) {
+        existingMovies.add(movie.getObjectId("_id").toHexString());
+      }
+    }
+
+    // group the credits by actor
+    Map<String, ImportedActor> actors = new LinkedHashMap<>();
+    for (int row = 0; row < credits.size(); row++) {
+      CastCredit credit = credits.get(row);
+      results.add(new CastImportResult(row, null));
+      if (!isValidCredit(credit)) {
+        results.get(row).setStatus("INVALID");
+        continue;
+      }
+      if (!existingMovies.contains(credit.getMovieId())) {
+        results.get(row).setStatus("MOVIE_NOT_FOUND");
+        continue;
+      }
+      String name = credit.getName().trim();
+      ImportedActor actor = actors.computeIfAbsent(getImportKey(name, credit.getDateOfBirth()), key -> {
+        ImportedActor newActor = new ImportedActor();
+        newActor.name = name;
+        newActor.dob = credit.getDateOfBirth();
+        return newActor;
+      });
+      actor.movieIds.add(credit.getMovieId());
+      actor.rows.add(row);
+    }
+    if (actors.isEmpty()) { return results; }
+
+    // match against the actors already in the database, uses the name index
+    Set<String> names = new LinkedHashSet<>();
+    for (ImportedActor actor : actors.values()) { names.add(actor.name); }
+    for (Document document : actorCollection.find(Filters.in("name", names))
+            .collation(ActorIndexManager.NAME_COLLATION).projection(Projections.include("name", "dob", "movies"))) {
+      ImportedActor actor = actors.get(getImportKey(document.getString("name"), document.getString("dob")));
+      if (actor != null && actor.id == null) { actor.setExisting(document); }
+    }
+
+    List<WriteModel<Document>> actorWrites = new ArrayList<>();
+    List<ImportedActor> written = new ArrayList<>();
+    for (ImportedActor actor : actors.values()) {
+      List<String> actorMovies = new ArrayList<>(actor.movieIds);
+      if (actor.existing) {
+        actorWrites.add(new UpdateOneModel<>(Filters.eq("_id", actor.id), Updates.addEachToSet("movies", actorMovies)));
+      } else {
+        actor.id = new ObjectId();
+        actor.newMovieIds.addAll(actor.movieIds);
+        actorWrites.add(new InsertOneModel<>(new Document("_id", actor.id).append("name", actor.name)
+                .append("dob", actor.dob).append("movies", actorMovies)));
+      }
+      written.add(actor);
+    }
+    Set<ImportedActor> failed = new HashSet<>();
+    List<WriteModel<Document>> retryWrites = new ArrayList<>();
+    List<ImportedActor> retried = new ArrayList<>();
+    for (BulkWriteError error : bulkWrite(actorCollection, actorWrites)) {
+      ImportedActor actor = written.get(error.getIndex());
+      Document existing = null;
+      if (!actor.existing && ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+        // someone created the same actor after the match above, so add the movies to theirs
+        existing = findActor(actor.name, actor.dob);
+      }
+      if (existing == null) {
+        failed.add(actor);
+        continue;
+      }
+      actor.setExisting(existing);
+      retryWrites.add(new UpdateOneModel<>(Filters.eq("_id", actor.id),
+              Updates.addEachToSet("movies", new ArrayList<>(actor.movieIds))));
+      retried.add(actor);
+    }
+    for (BulkWriteError error : bulkWrite(actorCollection, retryWrites)) { failed.add(retried.get(error.getIndex())); }
+
+    // each movie's new cast members, only actors that were written
+    Map<String, List<ImportedActor>> castAdditions = new LinkedHashMap<>();
+    Map<String, List<Integer>> movieRows = new HashMap<>();
+    for (ImportedActor actor : written) {
+      String status = failed.contains(actor) ? "FAILED" : actor.existing ? "EXISTING" : "CREATED";
+      for (int row : actor.rows) {
+        results.get(row).setStatus(status);
+        if (failed.contains(actor)) { continue; }
+        results.get(row).setActorId(actor.id.toHexString());
+        String movieId = credits.get(row).getMovieId();
+        List<ImportedActor> cast = castAdditions.computeIfAbsent(movieId, id -> new ArrayList<>());
+        if (!cast.contains(actor)) { cast.add(actor); }
+        movieRows.computeIfAbsent(movieId, id -> new ArrayList<>()).add(row);
+      }
+    }
+    List<WriteModel<Document>> movieWrites = new ArrayList<>();
+    List<String> writtenMovies = new ArrayList<>(castAdditions.keySet());
+    for (String movieId : writtenMovies) {
+      List<String> cast = new ArrayList<>();
+      for (ImportedActor actor : castAdditions.get(movieId)) { cast.add(actor.id.toHexString()); }
+      movieWrites.add(new UpdateOneModel<>(Filters.eq("_id", new ObjectId(movieId)),
+              Updates.addEachToSet("principalCast", cast)));
+    }
+    Map<ImportedActor, List<String>> undoMovies = new LinkedHashMap<>();
+    for (BulkWriteError error : bulkWrite(movieCollection, movieWrites)) {
+      String movieId = writtenMovies.get(error.getIndex());
+      for (int row : movieRows.get(movieId)) {
+        results.get(row).setStatus("FAILED");
+        results.get(row).setActorId(null);
+      }
+      for (ImportedActor actor : castAdditions.get(movieId)) {
+        if (actor.newMovieIds.contains(movieId)) {
+          undoMovies.computeIfAbsent(actor, a -> new ArrayList<>()).add(movieId);
+        }
+      }
+    }
+
+    // take the movies whose cast wasn't updated back off the actors, so neither side names the other
+    List<WriteModel<Document>> undoWrites = new ArrayList<>();
+    for (Map.Entry<ImportedActor, List<String>> undo : undoMovies.entrySet()) {
+      ImportedActor actor = undo.getKey();
+      if (!actor.existing && undo.getValue().size() == actor.movieIds.size()) {
+        undoWrites.add(new DeleteOneModel<>(Filters.eq("_id", actor.id)));
+      } else {
+        undoWrites.add(new UpdateOneModel<>(Filters.eq("_id", actor.id), Updates.pullAll("movies", undo.getValue())));
+      }
+    }
+    // a write that fails here is printed by bulkWrite, that actor then lists a movie whose cast doesn't name it
+    bulkWrite(actorCollection, undoWrites);
+    return results;
+  }
+
+  /**
+   * Merges actors that share a name, ignoring case, and a date of birth into the oldest of them, so the unique name
+   * index can be built. The others' movies are added to it, the casts naming them name it instead, and they are
+   * deleted. Each step can safely run again, so an interrupted merge is finished by the next one.
+   *
+   * @return how many actors were merged away
+   */
+  public int mergeDuplicateActors() {
+    MongoCollection<Document> actorCollection = getActorCollection();
+    MongoCollection<Document> movieCollection = getMovieCollection();
+    List<Document> duplicates = actorCollection.aggregate(List.of(
+            Aggregates.sort(Sorts.ascending("_id")),
+            Aggregates.group(new Document("name", "$name").append("dob", "$dob"),
+                    Accumulators.push("ids", "$_id"), Accumulators.sum("count", 1)),
+            Aggregates.match(Filters.gt("count", 1))))
+            .collation(ActorIndexManager.NAME_COLLATION).allowDiskUse(true).into(new ArrayList<>());
+    int merged = 0;
+    for (Document group : duplicates) {
+      List<ObjectId> ids = group.getList("ids", ObjectId.class);
+      ObjectId keep = ids.get(0);
+      List<ObjectId> others = ids.subList(1, ids.size());
+      List<String> otherIds = new ArrayList<>();
+      for (ObjectId other : others) { otherIds.add(other.toHexString()); }
+
+      Set<String> movies = new LinkedHashSet<>();
+      for (Document other : actorCollection.find(Filters.in("_id", others)).projection(Projections.include("movies"))) {
+        movies.addAll(other.getList("movies", String.class, List.of()));
+      }
+      if (!movies.isEmpty()) {
+        actorCollection.updateOne(Filters.eq("_id", keep), Updates.addEachToSet("movies", new ArrayList<>(movies)));
+      }
+      movieCollection.updateMany(Filters.in("principalCast", otherIds),
+              Updates.addToSet("principalCast", keep.toHexString()));
+      movieCollection.updateMany(Filters.in("principalCast", otherIds), Updates.pullAll("principalCast", otherIds));
+      merged += (int) actorCollection.deleteMany(Filters.in("_id", others)).getDeletedCount();
+    }
+    return merged;
+  }
+
+  /**
+   * Runs an unordered bulk write, so one failing write doesn't stop the rest.
+   * @return the writes that failed, by their index in writes
+   */
+  private static List<BulkWriteError> bulkWrite(MongoCollection<Document> collection,
+                                                List<WriteModel<Document>> writes) {
+    if (writes.isEmpty()) { return new ArrayList<>(); }
+    try {
+      collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      e.printStackTrace();
+      return e.getWriteErrors();
+    }
+    return new ArrayList<>();
+  }
+
+  private static boolean isValidCredit(CastCredit credit) {
+    return credit != null && credit.getName() != null && !credit.getName().isBlank()
+            && credit.getMovieId() != null && ObjectId.isValid(credit.getMovieId());
+  }
+
+  /**
+   * Actors are the same if their names match ignoring case and their dates of birth match exactly.
+   */
+  private static String getImportKey(String name, String dob) {
+    return name.trim().toLowerCase(Locale.ROOT) + "\u0000" + (dob == null ? "" : dob);
+  }
+
   /*
    * Actor get functions
    *
@@ -83,7 +367,9 @@ public class DatabaseController {
    *
    * getActorByName
    * getActorWithMovieId
+   * getPrincipalCast
    * getActorWithActorId
+   * getActorsWithActorIds
    *
    */
 
@@ -94,7 +380,17 @@ public class DatabaseController {
    * @return ArrayList of actors that fit the filter
    */
   private static ArrayList<Actor> getActorsWithFilter(MongoCollection<Document> actorsCollection, Bson filter) {
-    var actors = actorsCollection.find(filter).map(document -> {
+    return getActorsWithFilter(actorsCollection.find(filter));
+  }
+
+  /**
+   * Creates and returns a list of actors from a query that has already been set up.
+   * @param query find on the actors collection
+   * @return ArrayList of actors the query returns
+   */
+  private static ArrayList<Actor> getActorsWithFilter(FindIterable<Document> query) {
+    // only the fields an Actor has
+    var actors = query.projection(ACTOR_FIELDS).map(document -> {
       var a = new Actor();
       a.setName(document.getString("name"));
       a.setDateOfBirth(document.getString("dob"));
@@ -108,14 +404,14 @@ public class DatabaseController {
   }
 
   /**
-   * Returns all actors of the given name.
+   * Returns all actors of the given name, ignoring case. Uses the case-insensitive name index.
    * @param name Name of the actor to find
    * @return ArrayList of Actors whose name matches the <code>name</code> parameter
    */
   public List<Actor> getActorWithName(String name) {
     var actorsCollection = getActorCollection();
     var filter = Filters.eq("name", name);
-    return getActorsWithFilter(actorsCollection, filter);
+    return getActorsWithFilter(actorsCollection.find(filter).collation(ActorIndexManager.NAME_COLLATION));
   }
 
   /**
@@ -124,27 +420,36 @@ public class DatabaseController {
    * @return ArrayList of Actors from the movie
    */
   public List<Actor> getActorWithMovieId(String movieId) {
-    //getting the movie by ID
-    var movie = getMovieDocumentWithHexId(movieId);
-    if (movie != null) {
-      //Looking at actors in movie
-      var actorIds = movie.getList("principalCast", String.class);
-      var actors = new ArrayList<Actor>();
-      if (actorIds == null) {
-        return new ArrayList<>();
-      }
-      //Putting actors into a list
-      for (var actorId : actorIds) {
-        var actorQuery = getActorWithActorId(actorId);
-        if (actorQuery != null) {
-          actors.add(actorQuery);
-        }
+    var actorIds = getPrincipalCast(movieId);
+    //return null if movie doesn't exist by ID.
+    if (actorIds == null) {
+      return null;
+    }
+    //one query for the whole cast, then back into cast order
+    var found = getActorsWithActorIds(actorIds);
+    var actors = new ArrayList<Actor>();
+    for (var actorId : actorIds) {
+      var actor = found.get(actorId);
+      if (actor != null) {
+        actors.add(actor);
       }
-      //return actor list
-      return actors;
     }
-    //return null if movie doesn't exist by ID.
-    return null;
+    return actors;
+  }
+
+  /**
+   * Returns the ids in a movie's principal cast, in cast order, reading nothing else of the movie.
+   * @param movieId MongoDB hexId of the movie
+   * @return list of actor hexIds, empty if the movie has no cast, or null if the movie doesn't exist
+   */
+  public List<String> getPrincipalCast(String movieId) {
+    var movie = getMovieCollection().find(Filters.eq("_id", new ObjectId(movieId)))
+            .projection(Projections.include("principalCast")).first();
+    if (movie == null) {
+      return null;
+    }
+    var actorIds = movie.getList("principalCast", String.class);
+    return actorIds == null ? new ArrayList<>() : actorIds;
   }
 
   /**
@@ -156,7 +461,7 @@ public class DatabaseController {
     var actorsCollection = getActorCollection();
     ObjectId actorObjectId = new ObjectId(actorId);
     var filter = Filters.eq("_id", actorObjectId);
-    var actorDocument = actorsCollection.find(filter).first();
+    var actorDocument = actorsCollection.find(filter).projection(ACTOR_FIELDS).first();
     if (actorDocument != null) {
       Actor actor = new Actor();
       actor.setName(actorDocument.getString("name"));
@@ -167,6 +472,25 @@ public class DatabaseController {
     }
     return null;
   }
+
+  /**
+   * Returns the actors with the given ids in one query.
+   * @param actorIds MongoDB hexIds of the actors to find, invalid ones are skipped
+   * @return map of hexId to Actor, without the ids that have no actor
+   */
+  public Map<String, Actor> getActorsWithActorIds(Collection<String> actorIds) {
+    List<ObjectId> objectIds = new ArrayList<>();
+    for (String actorId : actorIds) {
+      if (ObjectId.isValid(actorId)) { objectIds.add(new ObjectId(actorId)); }
+    }
+    Map<String, Actor> actors = new HashMap<>();
+    if (objectIds.isEmpty()) { return actors; }
+    for (Actor actor : getActorsWithFilter(getActorCollection(), Filters.in("_id", objectIds))) {
+      actors.put(actor.getId(), actor);
+    }
+    return actors;
+  }
+
   /*
    * Actor Update functions
    */
@@ -0,0 +1,33 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+public class ActorNeighbour {
+  private Actor actor;
+  private int distance;
+  private int sharedMovies;
+
+  public ActorNeighbour() {}
+
+  public Actor getActor() {
+    return actor;
+  }
+
+  public void setActor(Actor actor) {
+    this.actor = actor;
+  }
+
+  public int getDistance() {
+    return distance;
+  }
+
+  public void setDistance(int distance) {
+    this.distance = distance;
+  }
+
+  public int getSharedMovies() {
+    return sharedMovies;
+  }
+
+  public void setSharedMovies(int sharedMovies) {
+    this.sharedMovies = sharedMovies;
+  }
+}
@@ -0,0 +1,35 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+public class ActorPath {
+  private List<Actor> actors;
+  private List<String> movieIds;
+  private int degrees;
+
+  public ActorPath() {}
+
+  public List<Actor> getActors() {
+    return actors;
+  }
+
+  public void setActors(List<Actor> actors) {
+    this.actors = actors;
+  }
+
+  public List<String> getMovieIds() {
+    return movieIds;
+  }
+
+  public void setMovieIds(List<String> movieIds) {
+    this.movieIds = movieIds;
+  }
+
+  public int getDegrees() {
+    return degrees;
+  }
+
+  public void setDegrees(int degrees) {
+    this.degrees = degrees;
+  }
+}
@@ -0,0 +1,33 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+public class CastCredit {
+  private String movieId;
+  private String name;
+  private String dateOfBirth;
+
+  public CastCredit() {}
+
+  public String getMovieId() {
+    return movieId;
+  }
+
+  public void setMovieId(String movieId) {
+    this.movieId = movieId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getDateOfBirth() {
+    return dateOfBirth;
+  }
+
+  public void setDateOfBirth(String dateOfBirth) {
+    this.dateOfBirth = dateOfBirth;
+  }
+}
@@ -0,0 +1,17 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+public class CastImport extends JSession {
+  private List<CastCredit> credits;
+
+  public CastImport() {}
+
+  public List<CastCredit> getCredits() {
+    return credits;
+  }
+
+  public void setCredits(List<CastCredit> credits) {
+    this.credits = credits;
+  }
+}
@@ -0,0 +1,38 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+public class CastImportResult {
+  private int row;
+  private String status;
+  private String actorId;
+
+  public CastImportResult() {}
+
+  public CastImportResult(int row, String status) {
+    this.row = row;
+    this.status = status;
+  }
+
+  public int getRow() {
+    return row;
+  }
+
+  public void setRow(int row) {
+    this.row = row;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public String getActorId() {
+    return actorId;
+  }
+
+  public void setActorId(String actorId) {
+    this.actorId = actorId;
+  }
+}
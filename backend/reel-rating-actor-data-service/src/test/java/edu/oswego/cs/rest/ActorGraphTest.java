@@ -0,0 +1,122 @@
+package edu.oswego.cs.rest;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActorGraphTest {
+
+  private final Map<String, List<String>> casts = new LinkedHashMap<>();
+  private final List<Document> movies = new ArrayList<>();
+
+  private String movie(String... cast) {
+    ObjectId id = new ObjectId();
+    movies.add(new Document("_id", id).append("principalCast", Arrays.asList(cast)));
+    casts.put(id.toHexString(), Arrays.asList(cast));
+    return id.toHexString();
+  }
+
+  private ActorGraph build() {
+    ActorGraph graph = new ActorGraph();
+    graph.setMovies(movies);
+    return graph;
+  }
+
+  @Test
+  void countsSharedMoviesOncePerMovie() {
+    movie("a", "b", "c");
+    movie("a", "b", "b");
+    movie("a", "d", null);
+    movie();
+    movies.add(new Document("_id", new ObjectId()));
+    ActorGraph graph = build();
+    assertEquals(List.of(new ActorGraph.Neighbour("b", 1, 2), new ActorGraph.Neighbour("c", 1, 1),
+            new ActorGraph.Neighbour("d", 1, 1)), graph.getCoStars("a", 10));
+    assertEquals(List.of(new ActorGraph.Neighbour("b", 1, 2)), graph.getCoStars("a", 1));
+    assertEquals(List.of(new ActorGraph.Neighbour("a", 1, 2), new ActorGraph.Neighbour("c", 1, 1)),
+            graph.getCoStars("b", 10));
+    assertNull(graph.getCoStars("nobody", 10));
+  }
+
+  @Test
+  void findsAChainThroughSharedMovies() {
+    String m1 = movie("a", "b");
+    String m2 = movie("b", "c");
+    String m3 = movie("c", "d");
+    movie("x", "y");
+    ActorGraph graph = build();
+    assertEquals(new ActorGraph.Chain(List.of("a", "b", "c", "d"), List.of(m1, m2, m3)),
+            graph.getShortestPath("a", "d"));
+    assertEquals(new ActorGraph.Chain(List.of("d", "c", "b", "a"), List.of(m3, m2, m1)),
+            graph.getShortestPath("d", "a"));
+    assertEquals(new ActorGraph.Chain(List.of("a"), List.of()), graph.getShortestPath("a", "a"));
+    assertNull(graph.getShortestPath("a", "x"));
+    assertNull(graph.getShortestPath("a", "nobody"));
+  }
+
+  @Test
+  void pathsAndNeighbourhoodsMatchAPlainBreadthFirstSearch() {
+    Random random = new Random(5);
+    for (int m = 0; m < 600; m++) {
+      String[] cast = new String[1 + random.nextInt(5)];
+      for (int i = 0; i < cast.length; i++) { cast[i] = "actor" + random.nextInt(1000); }
+      movie(cast);
+    }
+    ActorGraph graph = build();
+    Map<String, Set<String>> costars = new HashMap<>();
+    for (List<String> cast : casts.values()) {
+      for (String actor : cast) {
+        costars.computeIfAbsent(actor, a -> new HashSet<>()).addAll(cast);
+        costars.get(actor).remove(actor);
+      }
+    }
+    List<String> actors = new ArrayList<>(costars.keySet());
+    for (int round = 0; round < 200; round++) {
+      String from = actors.get(random.nextInt(actors.size()));
+      String to = actors.get(random.nextInt(actors.size()));
+      Map<String, Integer> distances = distancesFrom(from, costars);
+      ActorGraph.Chain chain = graph.getShortestPath(from, to);
+      if (!distances.containsKey(to)) {
+        assertNull(chain);
+        continue;
+      }
+      assertEquals(distances.get(to) + 1, chain.actorIds().size());
+      assertEquals(chain.actorIds().size() - 1, chain.movieIds().size());
+      assertEquals(from, chain.actorIds().get(0));
+      assertEquals(to, chain.actorIds().get(chain.actorIds().size() - 1));
+      for (int i = 0; i < chain.movieIds().size(); i++) {
+        List<String> cast = casts.get(chain.movieIds().get(i));
+        assertTrue(cast.contains(chain.actorIds().get(i)) && cast.contains(chain.actorIds().get(i + 1)));
+      }
+
+      List<ActorGraph.Neighbour> neighbours = graph.getNeighbourhood(from, 3, Integer.MAX_VALUE);
+      Set<String> seen = new HashSet<>();
+      int last = 1;
+      for (ActorGraph.Neighbour neighbour : neighbours) {
+        assertEquals(distances.get(neighbour.actorId()), neighbour.distance());
+        assertTrue(neighbour.distance() >= last);
+        assertTrue(seen.add(neighbour.actorId()));
+        last = neighbour.distance();
+      }
+      long within = distances.values().stream().filter(d -> d >= 1 && d <= 3).count();
+      assertEquals(within, neighbours.size());
+    }
+  }
+
+  private static Map<String, Integer> distancesFrom(String start, Map<String, Set<String>> costars) {
+    Map<String, Integer> distances = new HashMap<>();
+    distances.put(start, 0);
+    ArrayDeque<String> queue = new ArrayDeque<>(List.of(start));
+    while (!queue.isEmpty()) {
+      String actor = queue.poll();
+      for (String costar : costars.getOrDefault(actor, Set.of())) {
+        if (distances.putIfAbsent(costar, distances.get(actor) + 1) == null) { queue.add(costar); }
+      }
+    }
+    return distances;
+  }
+}
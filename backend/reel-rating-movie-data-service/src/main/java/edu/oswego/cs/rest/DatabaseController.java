@@ -26,8 +26,12 @@ import com.mongodb.client.gridfs.GridFSDownloadStream;
 import com.mongodb.client.model.Accumulators;
 import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
 
 public class DatabaseController {
   private static String mongoDatabaseName = System.getenv("MONGO_MOVIE_DATABASE_NAME");
@@ -46,6 +50,10 @@ public class DatabaseController {
     return getMovieDatabase().getCollection("tags");
   }
 
+  public MongoCollection<Document> getTagScoreCollection() {
+    return getMovieDatabase().getCollection("tagScores");
+  }
+
   public MongoCollection<Document> getMovieCollection() {
     return getMovieDatabase().getCollection("movies");
   }
@@ -63,6 +71,10 @@ public class DatabaseController {
     return getMovieDatabase().getCollection("reviews");
   }
 
+  public MongoCollection<Document> getReviewBodyCollection() {
+    return getMovieDatabase().getCollection("reviewBodies");
+  }
+
   /*
    * Image methods
    *
@@ -175,46 +187,32 @@ public class DatabaseController {
     MongoCollection<Document> tagCollection = getTagCollection();
     MongoCollection<Document> movieCollection = getMovieCollection();
 
-    // attempt to grab the movie using its unique MongoDB id
+    // attach the tag name to the movie, this also tells us if the movie exists
     ObjectId movieId = new ObjectId(movieIdHexString);
-    Document movie = movieCollection.find(Filters.eq("_id", movieId)).first();
+    Document movie = movieCollection.findOneAndUpdate(Filters.eq("_id", movieId), Updates.addToSet("tagNames", tagName),
+            new FindOneAndUpdateOptions().projection(Projections.include("title")));
 
     // if the movie does not exist move on
     if (movie == null) { return; }
 
-    // attempt to grab the tag in a few different types
-    Bson movieTitleFilter = Filters.eq("movieTitle", movie.get("title"));
-    Bson usernameFilter = Filters.eq("username", username.toLowerCase());
-    Bson tagNameFilter = Filters.eq("tagName", tagName);
-
-    Document taggedWithMovieByUser = tagCollection.find(Filters.and(movieTitleFilter,usernameFilter, tagNameFilter)).first();
-
-    // if you have already tagged this movie this tag
-    if(taggedWithMovieByUser != null){
-
-    } // else the tag does not exist
-    else{
-      // create and add the tag
-      Document newTag = new Document("username", username.toLowerCase())
-              .append("tagName", tagName)
-              .append("movieTitle", movie.get("title"))
-              .append("movieId", movieIdHexString)
-              .append("dateTimeCreated", new BsonDateTime(System.currentTimeMillis()))
-              .append("privacy", privacy)
-              .append("state", "upvote");
-      // add to the database
-      tagCollection.insertOne(newTag);
-
-      Bson tagMovieFilter = Filters.eq("tagNames", tagName);
-      Bson movieIdFilter = Filters.eq("_id", movieId);
-      Document movieWithTag = movieCollection.find(Filters.and(tagMovieFilter, movieIdFilter)).first();
-      // check to see if movie category needs to be pushed
-      if (movieWithTag == null) {
-        Bson movieRatingCategoryUpdateOperation = Updates.push("tagNames", tagName);
-        movieCollection.updateOne(movie, movieRatingCategoryUpdateOperation);
-      }
+    // create the tag only if you have not already tagged this movie with it. The rating service keeps a unique index
+    // on (movieId, tagName, username) so this can't create duplicates.
+    Bson tagFilter = Filters.and(
+            Filters.eq("username", username.toLowerCase()),
+            Filters.eq("tagName", tagName),
+            Filters.eq("movieId", movieIdHexString));
+    Bson newTag = Updates.combine(
+            Updates.setOnInsert("movieTitle", movie.get("title")),
+            Updates.setOnInsert("dateTimeCreated", new BsonDateTime(System.currentTimeMillis())),
+            Updates.setOnInsert("privacy", privacy),
+            Updates.setOnInsert("state", "upvote"));
+    UpdateResult result = tagCollection.updateOne(tagFilter, newTag, new UpdateOptions().upsert(true));
+
+    // a newly created tag counts as an upvote towards the tag's score on the movie
+    if (result.getUpsertedId() != null) {
+      Bson tagScoreFilter = Filters.and(Filters.eq("movieId", movieIdHexString), Filters.eq("tagName", tagName));
+      getTagScoreCollection().updateOne(tagScoreFilter, Updates.inc("score", 1), new UpdateOptions().upsert(true));
     }
-
   }
 
   /**
@@ -280,9 +278,9 @@ public class DatabaseController {
   /**
    * Creates and stores a review in the database. Reviews are the freeform text user generated data. Users are not
    * allowed to add a review for a movie that does not exist. Users are currently allowed to make multiple reviews
-   * for the same movie.
+   * for the same movie. Stored the same way the review service stores them, see ReviewText.
    *
-   * @param reviewDescription freeform text from the user. No limits in size.
+   * @param reviewDescription freeform text from the user. Anything past the excerpt goes in reviewBodies.
    * @param username the user who created the review
    */
   public void createReview(String movieIdString, String reviewDescription, String username, String privacy){
@@ -291,18 +289,28 @@ public class DatabaseController {
     MongoCollection<Document> movieCollection = getMovieCollection();
 
     ObjectId movieId = new ObjectId(movieIdString);
-    // get the movie object to make sure it exists
-    Document movie = movieCollection.find(Filters.eq("_id", movieId)).first();
-
-    // if the movie exists
-    if(null != movie) {
-      // get the current date time to attach to the new review
-      BsonDateTime dateTimeCreated = new BsonDateTime(System.currentTimeMillis());
-      // create a new review
-      Document newReview = new Document("movieId", movieIdString).append("reviewDescription", reviewDescription)
-              .append("username", username.toLowerCase()).append("dateTimeCreated", dateTimeCreated)
-              .append("privacy", privacy);
-      reviewCollection.insertOne(newReview);
+    ObjectId reviewId = new ObjectId();
+    boolean hasBody = ReviewText.needsBody(reviewDescription);
+    // the full text goes in first, so a review never points at a body that isn't there
+    if (hasBody) {
+      getReviewBodyCollection().insertOne(new Document("_id", reviewId).append("encoding", "deflate")
+              .append("body", ReviewText.compress(reviewDescription)));
+    }
+    // get the current date time to attach to the new review
+    BsonDateTime dateTimeCreated = new BsonDateTime(System.currentTimeMillis());
+    // create a new review
+    Document newReview = new Document("_id", reviewId).append("movieId", movieIdString)
+            .append("reviewDescription", ReviewText.excerpt(reviewDescription)).append("hasBody", hasBody)
+            .append("username", username.toLowerCase()).append("dateTimeCreated", dateTimeCreated)
+            .append("privacy", privacy);
+    reviewCollection.insertOne(newReview);
+
+    // count it on the movie, this also tells us whether the movie exists
+    UpdateResult result = movieCollection.updateOne(Filters.eq("_id", movieId), Updates.inc("reviewCount", 1));
+    // if the movie doesn't exist the review isn't kept
+    if (result.getMatchedCount() == 0) {
+      reviewCollection.deleteOne(Filters.eq("_id", reviewId));
+      if (hasBody) { getReviewBodyCollection().deleteOne(Filters.eq("_id", reviewId)); }
     }
   }
 
@@ -320,21 +328,19 @@ public class DatabaseController {
     MongoCollection<Document> movieCollection = getMovieCollection();
 
     ObjectId movieIdObject = new ObjectId(movieId);
-    // get the movie object to make sure it exists
-    Document movie = movieCollection.find(Filters.eq("_id", movieIdObject)).first();
-    // if the movie exists
-    if(null != movie) {
-      // create a new actor
-      Document newActor = new Document().append("name", actorName)
-                .append("dob", dob);
-      actorCollection.insertOne(newActor);
-      Bson actorMovieUpdateOperation = Updates.push("movies", movieId);
-      actorCollection.updateOne(newActor, actorMovieUpdateOperation);
-
-      String actorId = newActor.getObjectId("_id").toHexString();
-      // add actor to movie cast
-      Bson movieUpdateOperation = Updates.push("principalCast", actorId);
-      movieCollection.updateOne(movie, movieUpdateOperation);
+    // create the actor already listing the movie, one insert
+    Document newActor = new Document().append("name", actorName)
+              .append("dob", dob)
+              .append("movies", List.of(movieId));
+    actorCollection.insertOne(newActor);
+
+    String actorId = newActor.getObjectId("_id").toHexString();
+    // add actor to movie cast, this also tells us whether the movie exists
+    Bson movieUpdateOperation = Updates.addToSet("principalCast", actorId);
+    UpdateResult result = movieCollection.updateOne(Filters.eq("_id", movieIdObject), movieUpdateOperation);
+    // if the movie doesn't exist the actor isn't kept
+    if (result.getMatchedCount() == 0) {
+      actorCollection.deleteOne(Filters.eq("_id", newActor.getObjectId("_id")));
     }
   }
 
@@ -375,8 +381,11 @@ public class DatabaseController {
    * getMovieDocumentWithHexId
    *
    * getMoviesWithMostReviews
+   * getMoviesWithIds
+   * enrichMoviePreviews
    * getRecentReleaseMovies
    * getMostPopularAggregatedRatingForMovie
+   * getMostPopularAggregatedRatingsForMovies
    *
    * getThreeTags
    * getTagsByMovieId
@@ -538,27 +547,81 @@ public class DatabaseController {
    * @return A list of movies in descending order of most reviewed.
    */
   public List<Movie> getMoviesWithMostReviews(int numMovies) {
-    MongoCollection<Document> reviews = getReviewCollection();
     MongoCollection<Document> movieCollection = getMovieCollection();
-    MongoIterable<Movie> reviewsAggregated = reviews.aggregate(
-      Arrays.asList(
-        Aggregates.group("$movieId", Accumulators.sum("count", 1)),
-        Aggregates.sort(Sorts.descending("count")),
-        Aggregates.limit(numMovies)
-      )
-    ).map(doc -> {
+    // reviewCount is kept by createReview and ReviewCountReconciler, the top movies are the start of its index
+    MongoIterable<Movie> mostReviewed = movieCollection.find(Filters.gt("reviewCount", 0))
+      .sort(Sorts.descending("reviewCount"))
+      .limit(numMovies)
+      .projection(Projections.include("title", "plotSummary"))
+      .map(doc -> {
+        Movie movie = new Movie();
+        movie.setId(doc.getObjectId("_id").toHexString());
+        // set the needed information from movie
+        movie.setTitle(doc.getString("title"));
+        movie.setSummary(doc.getString("plotSummary"));
+        return movie;
+      });
+    List<Movie> movies = new ArrayList<>();
+    mostReviewed.forEach(movies::add);
+    return movies;
+  }
+
+  /**
+   * Gets the title and summary of the movies with the given ids in one query.
+   * @param movieIds MongoDB hexIds of the movies, invalid ones are skipped
+   * @return the movies in the order of the ids, skipping ids that have no movie
+   */
+  public List<Movie> getMoviesWithIds(List<String> movieIds) {
+    List<ObjectId> ids = new ArrayList<>();
+    for (String movieId : movieIds) {
+      if (ObjectId.isValid(movieId)) { ids.add(new ObjectId(movieId)); }
+    }
+    Map<String, Movie> found = new HashMap<>();
+    for (Document doc : getMovieCollection().find(Filters.in("_id", ids))
+            .projection(Projections.include("title", "plotSummary"))) {
       Movie movie = new Movie();
-      movie.setId(doc.getString("_id"));
-      ObjectId id = new ObjectId(movie.getId());
-      // get the movie that matches the movie id
-      Document movieDoc = movieCollection.find(Filters.eq("_id", id)).first();
-      // set the needed information from movie
-      movie.setTitle(movieDoc.getString("title"));
-      movie.setSummary(movieDoc.getString("plotSummary"));
-      return movie;
-    });
+      movie.setId(doc.getObjectId("_id").toHexString());
+      movie.setTitle(doc.getString("title"));
+      movie.setSummary(doc.getString("plotSummary"));
+      found.put(movie.getId(), movie);
+    }
     List<Movie> movies = new ArrayList<>();
-    reviewsAggregated.forEach(movies::add);
+    for (String movieId : movieIds) {
+      if (found.containsKey(movieId)) { movies.add(found.get(movieId)); }
+    }
+    return movies;
+  }
+
+  /**
+   * Fills in the three tags and most popular rating of movie previews, costing one query on the tags and one on the
+   * ratings no matter how many movies are given.
+   * @param movies movie previews to enrich
+   * @return the same list
+   */
+  public List<Movie> enrichMoviePreviews(List<Movie> movies) {
+    if (movies.isEmpty()) { return movies; }
+    Set<String> movieIds = new HashSet<>();
+    movies.forEach(movie -> movieIds.add(movie.getId()));
+
+    // the first three tags of each movie, like getThreeTags
+    Map<String, List<String>> tagNames = new HashMap<>();
+    getTagCollection().aggregate(Arrays.asList(
+            Aggregates.match(Filters.in("movieId", movieIds)),
+            Aggregates.group("$movieId", Accumulators.push("tagNames", "$tagName")),
+            Aggregates.project(Projections.computed("tagNames", new Document("$slice", Arrays.asList("$tagNames", 3))))
+    )).forEach(doc -> tagNames.put(doc.getString("_id"), doc.getList("tagNames", String.class)));
+
+    Map<String, Rating> ratings = getMostPopularAggregatedRatingsForMovies(movieIds);
+
+    for (Movie m : movies) {
+      m.setAttachedTags(new ArrayList<>(tagNames.getOrDefault(m.getId(), Collections.emptyList())));
+      Rating r = ratings.get(m.getId());
+      if (r != null) {
+        m.setMostPopularRatingCategory(r.getRatingName());
+        m.setMostPopRatingUpperBound(r.getUpperbound());
+        m.setMostPopRatingAvg(r.getUserRating());
+      }
+    }
     return movies;
   }
 
@@ -615,6 +678,59 @@ public class DatabaseController {
     return rating;
   }
 
+  /**
+   * Same as getMostPopularAggregatedRatingForMovie for many movies at once, with a single aggregation that counts and
+   * sums the ratings per movie, category, and upperbound.
+   * @param movieIds movies to get ratings for
+   * @return the most popular rating of every movie that has one, keyed by movie id
+   */
+  public Map<String, Rating> getMostPopularAggregatedRatingsForMovies(Collection<String> movieIds) {
+    // movie id -> rating name -> upperbound -> {count, sum}
+    Map<String, Map<String, Map<String, long[]>>> counts = new HashMap<>();
+    getRatingCollection().aggregate(Arrays.asList(
+            Aggregates.match(Filters.in("movieId", movieIds)),
+            Aggregates.group(new Document("movieId", "$movieId").append("ratingName", "$ratingName")
+                            .append("upperbound", "$upperbound"),
+                    Accumulators.sum("count", 1),
+                    Accumulators.sum("sum", new Document("$toInt", "$userRating")))
+    )).forEach(doc -> {
+      Document id = doc.get("_id", Document.class);
+      counts.computeIfAbsent(id.getString("movieId"), k -> new HashMap<>())
+              .computeIfAbsent(id.getString("ratingName"), k -> new HashMap<>())
+              .put(id.getString("upperbound"), new long[] {((Number) doc.get("count")).longValue(),
+                      ((Number) doc.get("sum")).longValue()});
+    });
+
+    Map<String, Rating> ratings = new HashMap<>();
+    counts.forEach((movieId, byName) -> {
+      // the most popular rating category name for the movie
+      String mostPopularCategoryName = null;
+      long mostPopularCategoryCount = -1;
+      for (Map.Entry<String, Map<String, long[]>> entry : byName.entrySet()) {
+        long count = entry.getValue().values().stream().mapToLong(countAndSum -> countAndSum[0]).sum();
+        if (count > mostPopularCategoryCount) {
+          mostPopularCategoryName = entry.getKey();
+          mostPopularCategoryCount = count;
+        }
+      }
+      // the most popular upperbound for the category
+      String mostPopularCategoryUpperbound = null;
+      long[] mostPopular = null;
+      for (Map.Entry<String, long[]> entry : byName.get(mostPopularCategoryName).entrySet()) {
+        if (mostPopular == null || entry.getValue()[0] > mostPopular[0]) {
+          mostPopularCategoryUpperbound = entry.getKey();
+          mostPopular = entry.getValue();
+        }
+      }
+      Rating rating = new Rating();
+      rating.setRatingName(mostPopularCategoryName);
+      rating.setUpperbound(mostPopularCategoryUpperbound);
+      rating.setUserRating(Double.toString(((double) mostPopular[1]) / mostPopular[0]));
+      ratings.put(movieId, rating);
+    });
+    return ratings;
+  }
+
   /**
    * Grabs three tags from the specified movie. Used in the getRecentReleaseMovies and in a larger sense for getting
    * the information needed to display the movie preview (movie title, movie summary, name of three tags, and
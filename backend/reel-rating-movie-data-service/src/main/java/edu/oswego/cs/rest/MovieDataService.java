@@ -5,6 +5,7 @@ import edu.oswego.cs.rest.JsonClasses.Movie;
 import edu.oswego.cs.rest.JsonClasses.Rating;
 import edu.oswego.cs.rest.JsonClasses.JSession;
 import jakarta.enterprise.context.RequestScoped;
+import jakarta.inject.Inject;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
@@ -22,6 +23,7 @@ import jakarta.ws.rs.core.Response.Status;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import com.ibm.websphere.security.jwt.JwtConsumer;
@@ -32,6 +34,9 @@ public class MovieDataService {
   
   String AuthServiceUrl = System.getenv("AUTH_SERVICE_URL");
 
+  @Inject
+  TrendingMovies trendingMovies;
+
   /**
    * gets the username of the client request. Also authenticates the client using a JWT.
    * TODO double check if the above is correct
@@ -86,6 +91,7 @@ public class MovieDataService {
    *
    * getMoviesWithMostReviews
    * getRecentReleaseMovies
+   * getTrendingMovies
    *
    */
   @POST
@@ -220,6 +226,35 @@ public class MovieDataService {
     return Response.ok(movies).build();
   }
 
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/movie/getTrendingMovies")
+  public Response getTrendingMovies(@Context HttpServletRequest request, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    int numMovies = 12;
+    // the ranking is kept in memory, only the movies without fresh cached details are read, in one batch
+    List<String> movieIds = trendingMovies.getTrendingMovieIds(numMovies);
+    Map<String, Movie> found = trendingMovies.getCachedDetails(movieIds);
+    List<String> missing = new ArrayList<>();
+    for (String movieId : movieIds) {
+      if (!found.containsKey(movieId)) { missing.add(movieId); }
+    }
+    if (!missing.isEmpty()) {
+      DatabaseController dbc = new DatabaseController();
+      List<Movie> read = dbc.enrichMoviePreviews(dbc.getMoviesWithIds(missing));
+      trendingMovies.cacheDetails(read);
+      read.forEach(movie -> found.put(movie.getId(), movie));
+    }
+    List<Movie> movies = new ArrayList<>();
+    for (String movieId : movieIds) {
+      if (found.containsKey(movieId)) { movies.add(found.get(movieId)); }
+    }
+    return Response.ok(movies).build();
+  }
+
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
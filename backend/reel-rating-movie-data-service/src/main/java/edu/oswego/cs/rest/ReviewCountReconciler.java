@@ -0,0 +1,110 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the reviewCount field on movies honest. createReview in the movie and review services increments the count
+ * with the insert, so getMoviesWithMostReviews can read the top movies off the reviewCount index instead of grouping
+ * every review. A crash between the insert and the increment, or a review removed by hand, would leave the count off,
+ * so the counts are recomputed from the reviews collection at startup and every <code>REVIEW_COUNT_RECONCILE_MS</code>
+ * (default 3600000) after.
+ */
+@ApplicationScoped
+public class ReviewCountReconciler {
+
+  private static final long RECONCILE_MS =
+          Long.parseLong(getEnvOrDefault("REVIEW_COUNT_RECONCILE_MS", "3600000"));
+  private static final int BATCH_SIZE = 1000;
+  private static final long FIRST_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60000;
+
+  private ScheduledExecutorService reconciler;
+
+  /**
+   * Creates the reviewCount index and starts reconciling in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "review-count-reconciler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reconciler.execute(() -> createIndex(FIRST_RETRY_MS));
+    reconciler.scheduleWithFixedDelay(this::reconcile, 0, RECONCILE_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  void stop() {
+    if (reconciler != null) { reconciler.shutdownNow(); }
+  }
+
+  /**
+   * Creates the reviewCount index. If Mongo can't be reached or the build fails it is tried again after retryMs, with
+   * the delay doubling up to a minute. The reconciler thread runs in between, so reconciling isn't held up.
+   */
+  void createIndex(long retryMs) {
+    try {
+      new DatabaseController().getMovieCollection().createIndex(Indexes.descending("reviewCount"),
+              new IndexOptions().name("reviewCount_-1").background(true));
+    } catch (MongoException e) {
+      e.printStackTrace();
+      if (!reconciler.isShutdown()) {
+        reconciler.schedule(() -> createIndex(Math.min(retryMs * 2, MAX_RETRY_MS)), retryMs, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Counts every movie's reviews and corrects the movies whose reviewCount differs.
+   */
+  void reconcile() {
+    try {
+      DatabaseController dbc = new DatabaseController();
+      Map<String, Integer> counts = new HashMap<>();
+      for (Document group : dbc.getReviewCollection().aggregate(List.of(
+              Aggregates.group("$movieId", Accumulators.sum("count", 1))))) {
+        if (group.getString("_id") != null) { counts.put(group.getString("_id"), group.getInteger("count")); }
+      }
+
+      MongoCollection<Document> movieCollection = dbc.getMovieCollection();
+      List<WriteModel<Document>> corrections = new ArrayList<>();
+      for (Document movie : movieCollection.find().projection(Projections.include("reviewCount"))) {
+        Integer stored = movie.getInteger("reviewCount");
+        int counted = counts.getOrDefault(movie.getObjectId("_id").toHexString(), 0);
+        if (stored != null && stored == counted) { continue; }
+        // only if the count is still what was read, so an $inc landing in between isn't lost. A review racing the
+        // aggregation can still leave a count one off until the next run
+        corrections.add(new UpdateOneModel<>(
+                Filters.and(Filters.eq("_id", movie.getObjectId("_id")), Filters.eq("reviewCount", stored)),
+                Updates.set("reviewCount", counted)));
+        if (corrections.size() == BATCH_SIZE) {
+          movieCollection.bulkWrite(corrections, new BulkWriteOptions().ordered(false));
+          corrections.clear();
+        }
+      }
+      if (!corrections.isEmpty()) {
+        movieCollection.bulkWrite(corrections, new BulkWriteOptions().ordered(false));
+      }
+    } catch (MongoException e) {
+      // the next run tries again
+      e.printStackTrace();
+    }
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
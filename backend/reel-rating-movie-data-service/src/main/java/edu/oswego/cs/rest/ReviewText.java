@@ -0,0 +1,75 @@
+package edu.oswego.cs.rest;
+
+import org.bson.types.Binary;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How review text is stored. A review up to EXCERPT_LENGTH characters is kept inline in reviewDescription as before.
+ * A longer one keeps only its first EXCERPT_LENGTH characters inline, with hasBody set, and the whole text deflated in
+ * the reviewBodies collection under the review's id. Lists and feeds then never read more than the excerpt, and the
+ * reviews collection's working set stays small however long the reviews get.
+ */
+public final class ReviewText {
+
+  /**
+   * Characters of a long review kept inline, also the most a feed shows before the client asks for the rest.
+   */
+  public static final int EXCERPT_LENGTH = 500;
+
+  private ReviewText() {}
+
+  /**
+   * @return true if the text is too long to be kept inline
+   */
+  public static boolean needsBody(String text) {
+    return text != null && text.codePointCount(0, text.length()) > EXCERPT_LENGTH;
+  }
+
+  /**
+   * @return the first EXCERPT_LENGTH characters of the text, never splitting a surrogate pair
+   */
+  public static String excerpt(String text) {
+    if (!needsBody(text)) { return text; }
+    return text.substring(0, text.offsetByCodePoints(0, EXCERPT_LENGTH));
+  }
+
+  public static Binary compress(String text) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() / 2);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) { out.write(buffer, 0, deflater.deflate(buffer)); }
+      return new Binary(out.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public static String decompress(Binary body) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(body.getData());
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() * 3);
+      byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("truncated review body");
+        }
+        out.write(buffer, 0, length);
+      }
+      return out.toString(StandardCharsets.UTF_8);
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
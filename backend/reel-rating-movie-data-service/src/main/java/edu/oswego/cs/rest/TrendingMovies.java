@@ -0,0 +1,527 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import edu.oswego.cs.rest.JsonClasses.Movie;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Ranks movies by how much is happening on them right now. Every review, rating, and tag vote adds to its movie's
+ * score, and scores decay exponentially with a half life of <code>TRENDING_HALF_LIFE_MS</code> (default 21600000, six
+ * hours), so a movie that was busy yesterday drops off unless it stays busy. The writes are read from a Mongo change
+ * stream over the reviews, ratings, and tags collections, so the review and rating services don't have to report them.
+ * Private reviews, ratings, and tags aren't counted.
+ *
+ * <p>Scores are kept relative to a fixed epoch. An event adds its weight times e^((t - epoch) / tau) instead of every
+ * score being decayed as time passes, so decay never changes the order of two movies. The top
+ * <code>TRENDING_TOP_K</code> (default 100) therefore only change when an event raises a score, and they are kept in a
+ * min-heap over an open addressing table keyed by the movie's ObjectId as three ints. Reading the trending movies sorts
+ * at most K entries and never touches Mongo.</p>
+ *
+ * <p>The scores and the stream's resume token are checkpointed to the trendingMovies collection every
+ * <code>TRENDING_CHECKPOINT_MS</code> (default 60000) if anything changed, so a restart picks up where the last one
+ * left off. Without a checkpoint the scores are seeded from the reviews, ratings, and tags created recently, going by
+ * the time in their ObjectIds.</p>
+ */
+@ApplicationScoped
+public class TrendingMovies {
+
+  private static final long HALF_LIFE_MS = Long.parseLong(getEnvOrDefault("TRENDING_HALF_LIFE_MS", "21600000"));
+  private static final int TOP_K = Integer.parseInt(getEnvOrDefault("TRENDING_TOP_K", "100"));
+  private static final long CHECKPOINT_MS = Long.parseLong(getEnvOrDefault("TRENDING_CHECKPOINT_MS", "60000"));
+  // how long the details of a trending movie are reused before they are read again
+  private static final long DETAILS_TTL_MS = Long.parseLong(getEnvOrDefault("TRENDING_DETAILS_TTL_MS", "30000"));
+  private static final double TAU_MS = HALF_LIFE_MS / Math.log(2);
+  private static final double REVIEW_WEIGHT = 3;
+  private static final double RATING_WEIGHT = 1;
+  private static final double TAG_VOTE_WEIGHT = 0.5;
+  // scores are moved to a new epoch once they have grown by e^30, long before a double runs out
+  private static final double REBASE_AT = 30;
+  // movies whose decayed score is below this are dropped when the scores are moved to a new epoch
+  private static final double MIN_SCORE = 0.01;
+  // how far back the scores are seeded from, an event that old counts for less than 1/256
+  private static final int SEED_HALF_LIVES = 8;
+  // most movies written to a checkpoint, keeps it well under the document size limit
+  private static final int CHECKPOINT_LIMIT = 50000;
+  private static final String CHECKPOINT_ID = "checkpoint";
+  private static final long RETRY_MS = 1000;
+  // the saved token is no longer in the oplog
+  private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+  private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // ObjectId of the movie in each slot as three ints
+  private int[] keys = new int[3 * 1024];
+  // scaled score of the movie in each slot, 0 for an empty slot. Never more than half full
+  private double[] scores = new double[1024];
+  // where the movie in each slot is in the heap, -1 if it isn't
+  private int[] heapPositions = newHeapPositions(1024);
+  private int size = 0;
+  // slots of the top movies, lowest score on top
+  private final int[] heap = new int[TOP_K];
+  private int heapSize = 0;
+  private long epoch = System.currentTimeMillis();
+
+  // only used by the follower thread
+  private BsonDocument resumeToken;
+  private boolean needsSeed = false;
+  private boolean changed = false;
+  private long checkpointedAt = System.currentTimeMillis();
+  private Thread follower;
+
+  // movie id to its details and when they were read
+  private final Map<String, CachedMovie> details = new HashMap<>();
+
+  private static class CachedMovie {
+    final Movie movie;
+    final long readAt;
+
+    CachedMovie(Movie movie, long readAt) {
+      this.movie = movie;
+      this.readAt = readAt;
+    }
+  }
+
+  /**
+   * Starts following the change stream in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    follower = new Thread(this::follow, "trending-movies");
+    follower.setDaemon(true);
+    follower.start();
+  }
+
+  @PreDestroy
+  void stop() {
+    if (follower != null) { follower.interrupt(); }
+  }
+
+  /**
+   * @param numMovies most movies to return, at most TRENDING_TOP_K are kept
+   * @return MongoDB hexIds of the movies with the highest scores, highest first
+   */
+  public List<String> getTrendingMovieIds(int numMovies) {
+    int[] top;
+    double[] topScores;
+    lock.readLock().lock();
+    try {
+      top = Arrays.copyOf(heap, heapSize);
+      topScores = new double[heapSize];
+      for (int i = 0; i < heapSize; i++) { topScores[i] = scores[top[i]]; }
+      Integer[] order = new Integer[heapSize];
+      for (int i = 0; i < order.length; i++) { order[i] = i; }
+      Arrays.sort(order, (a, b) -> Double.compare(topScores[b], topScores[a]));
+      // after a quiet spell the top movies can have decayed to nothing, those aren't trending any more
+      double minScaled = MIN_SCORE * Math.exp((System.currentTimeMillis() - epoch) / TAU_MS);
+      List<String> movieIds = new ArrayList<>(Math.min(numMovies, order.length));
+      for (int i = 0; i < order.length && i < numMovies && topScores[order[i]] >= minScaled; i++) {
+        movieIds.add(getObjectId(top[order[i]]).toHexString());
+      }
+      return movieIds;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param movieIds trending movie ids
+   * @return the movies among them whose details were cached by cacheDetails less than TRENDING_DETAILS_TTL_MS ago,
+   * keyed by id
+   */
+  public Map<String, Movie> getCachedDetails(Collection<String> movieIds) {
+    long now = System.currentTimeMillis();
+    Map<String, Movie> movies = new HashMap<>();
+    synchronized (details) {
+      for (String movieId : movieIds) {
+        CachedMovie cached = details.get(movieId);
+        if (cached != null && now - cached.readAt < DETAILS_TTL_MS) { movies.put(movieId, cached.movie); }
+      }
+    }
+    return movies;
+  }
+
+  /**
+   * Keeps the details read for trending movies, so a movie that moves up or down the list isn't read again. Only
+   * movies that are trending get cached, and expired ones are dropped here, so this stays around TRENDING_TOP_K.
+   */
+  public void cacheDetails(List<Movie> movies) {
+    long now = System.currentTimeMillis();
+    synchronized (details) {
+      details.values().removeIf(cached -> now - cached.readAt >= DETAILS_TTL_MS);
+      for (Movie movie : movies) { details.put(movie.getId(), new CachedMovie(movie, now)); }
+    }
+  }
+
+  private void follow() {
+    boolean checkpointTried = false;
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        if (!checkpointTried) {
+          // a checkpoint that can't be read is only tried once, the scores are seeded instead
+          checkpointTried = true;
+          needsSeed = true;
+          needsSeed = !loadCheckpoint();
+        }
+        followStream();
+      } catch (MongoCommandException e) {
+        if (e.getErrorCode() == CHANGE_STREAM_HISTORY_LOST || e.getErrorCode() == CHANGE_STREAM_FATAL_ERROR) {
+          // the scores are kept, only the activity while the stream was lost goes uncounted
+          resumeToken = null;
+        } else {
+          e.printStackTrace();
+          pause();
+        }
+      } catch (MongoException e) {
+        e.printStackTrace();
+        pause();
+      } catch (RuntimeException e) {
+        // a bug or a malformed checkpoint must not end the thread, the stream is reopened where it left off
+        e.printStackTrace();
+        pause();
+      }
+    }
+  }
+
+  /**
+   * Seeds the scores if there was no checkpoint, then applies events until the stream has to be reopened.
+   */
+  private void followStream() {
+    try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = open()) {
+      if (needsSeed) {
+        // take the position before reading so nothing written during the seed is missed, an event in between is
+        // counted twice which only nudges one score
+        resumeToken = cursor.getResumeToken();
+        seed();
+        needsSeed = false;
+        changed = true;
+      }
+      while (!Thread.currentThread().isInterrupted()) {
+        ChangeStreamDocument<Document> event = cursor.tryNext();
+        if (event == null) {
+          // tryNext waits at most maxAwaitTime, the token still moves forward on an idle stream
+          if (cursor.getResumeToken() != null) { resumeToken = cursor.getResumeToken(); }
+        } else {
+          try {
+            apply(event);
+          } catch (RuntimeException e) {
+            // a malformed document would fail every time it is replayed, so it goes uncounted instead
+            e.printStackTrace();
+          }
+          resumeToken = event.getResumeToken();
+          changed = true;
+        }
+        if (changed && System.currentTimeMillis() - checkpointedAt >= CHECKPOINT_MS) { checkpoint(); }
+      }
+    }
+  }
+
+  private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open() {
+    var stream = new DatabaseController().getMovieDatabase()
+            .watch(List.of(
+                    Aggregates.match(Filters.and(Filters.in("ns.coll", "reviews", "ratings", "tags"),
+                            Filters.in("operationType", "insert", "update", "replace"))),
+                    // only the movie and the privacy of the document are needed, not the review text
+                    Aggregates.project(Projections.include("operationType", "ns", "documentKey", "clusterTime",
+                            "fullDocument.movieId", "fullDocument.privacy"))))
+            .fullDocument(FullDocument.UPDATE_LOOKUP)
+            .maxAwaitTime(500, TimeUnit.MILLISECONDS);
+    if (resumeToken != null) {
+      stream = stream.resumeAfter(resumeToken);
+    }
+    return stream.cursor();
+  }
+
+  private void apply(ChangeStreamDocument<Document> event) {
+    // a missing full document on an update means it was deleted before the lookup ran
+    Document document = event.getFullDocument();
+    if (event.getNamespace() == null || document == null) { return; }
+    long time = event.getClusterTime() == null
+            ? System.currentTimeMillis() : event.getClusterTime().getTime() * 1000L;
+    add(event.getNamespace().getCollectionName(), document, time);
+  }
+
+  /**
+   * Counts the reviews, ratings, and tags created in the last SEED_HALF_LIVES half lives at the time in their ids.
+   * Only used when there is no checkpoint.
+   */
+  private void seed() {
+    DatabaseController dbc = new DatabaseController();
+    ObjectId since = new ObjectId(new Date(System.currentTimeMillis() - SEED_HALF_LIVES * HALF_LIFE_MS));
+    Map<String, MongoCollection<Document>> collections = new LinkedHashMap<>();
+    collections.put("reviews", dbc.getReviewCollection());
+    collections.put("ratings", dbc.getRatingCollection());
+    collections.put("tags", dbc.getTagCollection());
+    for (Map.Entry<String, MongoCollection<Document>> collection : collections.entrySet()) {
+      for (Document document : collection.getValue().find(Filters.gte("_id", since))
+              .projection(Projections.include("movieId", "privacy"))) {
+        add(collection.getKey(), document, document.getObjectId("_id").getDate().getTime());
+      }
+    }
+  }
+
+  private void add(String collection, Document document, long time) {
+    if ("private".equals(document.getString("privacy"))) { return; }
+    double weight;
+    switch (collection) {
+      case "reviews":
+        weight = REVIEW_WEIGHT;
+        break;
+      case "ratings":
+        weight = RATING_WEIGHT;
+        break;
+      case "tags":
+        weight = TAG_VOTE_WEIGHT;
+        break;
+      default:
+        return;
+    }
+    Object movieId = document.get("movieId");
+    if (!(movieId instanceof String) || !ObjectId.isValid((String) movieId)) { return; }
+    add(new ObjectId((String) movieId), weight, time);
+  }
+
+  /**
+   * Adds weight to the movie's score as of the given time.
+   */
+  void add(ObjectId movieId, double weight, long time) {
+    lock.writeLock().lock();
+    try {
+      if ((time - epoch) / TAU_MS > REBASE_AT) { rehash(scores.length, time); }
+      addScaled(movieId.toByteArray(), weight * Math.exp((time - epoch) / TAU_MS));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void addScaled(byte[] id, double scaled) {
+    if ((size + 1) * 2 > scores.length) { rehash(scores.length * 2, epoch); }
+    int a = readInt(id, 0);
+    int b = readInt(id, 4);
+    int c = readInt(id, 8);
+    int slot = findSlot(a, b, c);
+    if (scores[slot] == 0) {
+      keys[slot * 3] = a;
+      keys[slot * 3 + 1] = b;
+      keys[slot * 3 + 2] = c;
+      size++;
+    }
+    scores[slot] += scaled;
+    offer(slot);
+  }
+
+  /**
+   * Moves every movie into a table of the given capacity with its score scaled to the new epoch, dropping the ones
+   * whose score has decayed away, and rebuilds the heap.
+   */
+  private void rehash(int capacity, long newEpoch) {
+    double factor = Math.exp((epoch - newEpoch) / TAU_MS);
+    int[] oldKeys = keys;
+    double[] oldScores = scores;
+    keys = new int[capacity * 3];
+    scores = new double[capacity];
+    heapPositions = newHeapPositions(capacity);
+    size = 0;
+    heapSize = 0;
+    epoch = newEpoch;
+    for (int slot = 0; slot < oldScores.length; slot++) {
+      double scaled = oldScores[slot] * factor;
+      // a plain resize keeps every movie
+      if (oldScores[slot] == 0 || (factor < 1 && scaled < MIN_SCORE)) { continue; }
+      int newSlot = findSlot(oldKeys[slot * 3], oldKeys[slot * 3 + 1], oldKeys[slot * 3 + 2]);
+      keys[newSlot * 3] = oldKeys[slot * 3];
+      keys[newSlot * 3 + 1] = oldKeys[slot * 3 + 1];
+      keys[newSlot * 3 + 2] = oldKeys[slot * 3 + 2];
+      scores[newSlot] = scaled;
+      size++;
+      offer(newSlot);
+    }
+  }
+
+  /**
+   * Puts the slot in the heap, or moves it down the heap if it is already there, after its score went up.
+   */
+  private void offer(int slot) {
+    int position = heapPositions[slot];
+    if (position >= 0) {
+      siftDown(position);
+    } else if (heapSize < TOP_K) {
+      heap[heapSize] = slot;
+      heapPositions[slot] = heapSize;
+      siftUp(heapSize++);
+    } else if (TOP_K > 0 && scores[slot] > scores[heap[0]]) {
+      heapPositions[heap[0]] = -1;
+      heap[0] = slot;
+      heapPositions[slot] = 0;
+      siftDown(0);
+    }
+  }
+
+  private void siftUp(int position) {
+    while (position > 0) {
+      int parent = (position - 1) / 2;
+      if (scores[heap[parent]] <= scores[heap[position]]) { return; }
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    while (true) {
+      int smallest = position;
+      int left = position * 2 + 1;
+      if (left < heapSize && scores[heap[left]] < scores[heap[smallest]]) { smallest = left; }
+      if (left + 1 < heapSize && scores[heap[left + 1]] < scores[heap[smallest]]) { smallest = left + 1; }
+      if (smallest == position) { return; }
+      swap(position, smallest);
+      position = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int slot = heap[i];
+    heap[i] = heap[j];
+    heap[j] = slot;
+    heapPositions[heap[i]] = i;
+    heapPositions[heap[j]] = j;
+  }
+
+  /**
+   * @return the slot holding the movie, or the empty slot it would go in
+   */
+  private int findSlot(int a, int b, int c) {
+    int mask = scores.length - 1;
+    int slot = hash(a, b, c) & mask;
+    while (scores[slot] != 0) {
+      if (keys[slot * 3] == a && keys[slot * 3 + 1] == b && keys[slot * 3 + 2] == c) { return slot; }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private ObjectId getObjectId(int slot) {
+    byte[] id = new byte[12];
+    for (int i = 0; i < 3; i++) {
+      int value = keys[slot * 3 + i];
+      id[i * 4] = (byte) (value >>> 24);
+      id[i * 4 + 1] = (byte) (value >>> 16);
+      id[i * 4 + 2] = (byte) (value >>> 8);
+      id[i * 4 + 3] = (byte) value;
+    }
+    return new ObjectId(id);
+  }
+
+  /**
+   * Saves the highest CHECKPOINT_LIMIT scores with the resume token they are current as of. Runs between events, so
+   * the scores are exactly as of the token.
+   */
+  private void checkpoint() {
+    checkpointedAt = System.currentTimeMillis();
+    if (resumeToken == null) { return; }
+    List<Document> movies = new ArrayList<>();
+    long checkpointEpoch;
+    lock.readLock().lock();
+    try {
+      checkpointEpoch = epoch;
+      List<Integer> slots = new ArrayList<>(size);
+      for (int slot = 0; slot < scores.length; slot++) {
+        if (scores[slot] != 0) { slots.add(slot); }
+      }
+      if (slots.size() > CHECKPOINT_LIMIT) {
+        slots.sort((x, y) -> Double.compare(scores[y], scores[x]));
+        slots = slots.subList(0, CHECKPOINT_LIMIT);
+      }
+      for (int slot : slots) {
+        movies.add(new Document("movieId", getObjectId(slot)).append("score", scores[slot]));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    try {
+      getCheckpointCollection().replaceOne(Filters.eq("_id", CHECKPOINT_ID),
+              new Document("_id", CHECKPOINT_ID).append("epoch", checkpointEpoch)
+                      .append("resumeToken", resumeToken.toJson()).append("movies", movies),
+              new ReplaceOptions().upsert(true));
+      changed = false;
+    } catch (MongoException e) {
+      // tried again after the next interval
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return true if the scores and resume token were read from a checkpoint
+   */
+  private boolean loadCheckpoint() {
+    Document checkpoint = getCheckpointCollection().find(Filters.eq("_id", CHECKPOINT_ID)).first();
+    if (checkpoint == null || checkpoint.getString("resumeToken") == null) { return false; }
+    // everything is read before any of it is applied, so a malformed checkpoint leaves the scores empty
+    BsonDocument token = BsonDocument.parse(checkpoint.getString("resumeToken"));
+    long checkpointEpoch = checkpoint.get("epoch", Number.class).longValue();
+    List<Document> movies = checkpoint.getList("movies", Document.class, List.of());
+    byte[][] ids = new byte[movies.size()][];
+    double[] movieScores = new double[movies.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = movies.get(i).getObjectId("movieId").toByteArray();
+      movieScores[i] = movies.get(i).get("score", Number.class).doubleValue();
+    }
+    lock.writeLock().lock();
+    try {
+      epoch = checkpointEpoch;
+      for (int i = 0; i < ids.length; i++) { addScaled(ids[i], movieScores[i]); }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    resumeToken = token;
+    return true;
+  }
+
+  private static MongoCollection<Document> getCheckpointCollection() {
+    return new DatabaseController().getMovieDatabase().getCollection("trendingMovies");
+  }
+
+  private static int[] newHeapPositions(int capacity) {
+    int[] positions = new int[capacity];
+    Arrays.fill(positions, -1);
+    return positions;
+  }
+
+  private static int hash(int a, int b, int c) {
+    // the first int is a timestamp and the last a counter, mix all three so ids made close together spread out
+    int h = a * 0x9E3779B1 + b * 0x85EBCA77 + c * 0xC2B2AE3D;
+    return h ^ (h >>> 16);
+  }
+
+  private static int readInt(byte[] bytes, int from) {
+    return (bytes[from] & 0xff) << 24 | (bytes[from + 1] & 0xff) << 16 | (bytes[from + 2] & 0xff) << 8
+            | (bytes[from + 3] & 0xff);
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(RETRY_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
@@ -0,0 +1,85 @@
+package edu.oswego.cs.rest;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrendingMoviesTest {
+
+  // the defaults, a six hour half life and the top 100 kept
+  private static final long HALF_LIFE_MS = 21600000;
+  private static final double TAU_MS = HALF_LIFE_MS / Math.log(2);
+  private static final int TOP_K = 100;
+
+  private final TrendingMovies trending = new TrendingMovies();
+  private final Map<ObjectId, Double> scores = new HashMap<>();
+
+  private void add(ObjectId movie, double weight, long time, long reference) {
+    trending.add(movie, weight, time);
+    scores.merge(movie, weight * Math.exp((time - reference) / TAU_MS), Double::sum);
+  }
+
+  private List<String> expectedTop(int n) {
+    return scores.entrySet().stream()
+            .sorted(Map.Entry.<ObjectId, Double>comparingByValue().reversed())
+            .limit(n)
+            .map(entry -> entry.getKey().toHexString())
+            .collect(Collectors.toList());
+  }
+
+  @Test
+  void recentActivityOutweighsOlderActivity() {
+    long now = System.currentTimeMillis();
+    ObjectId older = new ObjectId();
+    ObjectId newer = new ObjectId();
+    // 3 a half life ago is worth 1.5 now
+    trending.add(older, 3, now - HALF_LIFE_MS);
+    trending.add(newer, 2, now);
+    assertEquals(List.of(newer.toHexString(), older.toHexString()), trending.getTrendingMovieIds(10));
+    trending.add(older, 1, now);
+    assertEquals(List.of(older.toHexString(), newer.toHexString()), trending.getTrendingMovieIds(10));
+    assertEquals(List.of(older.toHexString()), trending.getTrendingMovieIds(1));
+  }
+
+  @Test
+  void decayedMoviesAreNotTrending() {
+    trending.add(new ObjectId(), 3, System.currentTimeMillis() - 40 * HALF_LIFE_MS);
+    assertEquals(List.of(), trending.getTrendingMovieIds(10));
+  }
+
+  @Test
+  void keepsTheTopKAsTheTableGrows() {
+    Random random = new Random(9);
+    long now = System.currentTimeMillis();
+    List<ObjectId> movies = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) { movies.add(new ObjectId()); }
+    // enough movies to resize the table a few times, with movies outside the top pushed into it and movies inside it
+    // moving up
+    for (int i = 0; i < 40000; i++) {
+      ObjectId movie = movies.get(random.nextInt(movies.size()));
+      add(movie, random.nextDouble() * 3, now - random.nextInt((int) HALF_LIFE_MS), now);
+    }
+    assertEquals(expectedTop(TOP_K), trending.getTrendingMovieIds(TOP_K));
+    assertEquals(expectedTop(10), trending.getTrendingMovieIds(10));
+  }
+
+  @Test
+  void keepsTheOrderAcrossARebase() {
+    Random random = new Random(4);
+    long now = System.currentTimeMillis();
+    List<ObjectId> movies = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) { movies.add(new ObjectId()); }
+    for (ObjectId movie : movies) { trending.add(movie, random.nextDouble(), now); }
+    // far enough ahead that the scores are moved to a new epoch, which drops everything decayed away
+    long later = now + (long) (40 * TAU_MS);
+    for (int i = 0; i < 2000; i++) {
+      add(movies.get(random.nextInt(500)), random.nextDouble() * 3, later - random.nextInt((int) HALF_LIFE_MS),
+              later);
+    }
+    assertEquals(expectedTop(TOP_K), trending.getTrendingMovieIds(TOP_K));
+  }
+}
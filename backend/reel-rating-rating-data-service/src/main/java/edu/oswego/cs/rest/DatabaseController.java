@@ -1,5 +1,10 @@
 package edu.oswego.cs.rest;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.model.*;
 import edu.oswego.cs.rest.JsonClasses.Rating;
 import edu.oswego.cs.rest.JsonClasses.Tag;
@@ -20,6 +25,13 @@ public class DatabaseController {
   private static String mongoURL = System.getenv("MONGO_MOVIE_URL");
   private static MongoClient mongoClient = MongoClients.create(mongoURL);
 
+  // return the document as it was before the update so vote changes can be diffed
+  private static final FindOneAndUpdateOptions RETURN_PREVIOUS =
+          new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE);
+  private static final FindOneAndUpdateOptions UPSERT_RETURN_PREVIOUS =
+          new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE).upsert(true);
+  private static final int TAG_SCORE_BATCH_SIZE = 1000;
+
   public MongoDatabase getMovieDatabase() {
     return mongoClient.getDatabase(mongoDatabaseName);
   }
@@ -31,6 +43,7 @@ public class DatabaseController {
    * getMovieCollection
    * getRatingCollection
    * getTagCollection
+   * getTagScoreCollection
    */
   public MongoCollection<Document> getMovieCollection() {
     return getMovieDatabase().getCollection("movies");
@@ -44,6 +57,83 @@ public class DatabaseController {
     return getMovieDatabase().getCollection("tags");
   }
 
+  public MongoCollection<Document> getTagScoreCollection() {
+    return getMovieDatabase().getCollection("tagScores");
+  }
+
+  /*
+   * Index functions
+   *
+   * createTagIndexes
+   * rebuildTagScores
+   */
+  /**
+   * Creates the unique indexes the tag votes upsert against. Repeated calls of this method don't do anything. If
+   * there are no tag scores yet they are rebuilt from the existing tags. Called by TagIndexManager at startup.
+   * @throws MongoException if the indexes or the scores could not be created, so the caller can try again
+   */
+  public void createTagIndexes() {
+    getTagCollection().createIndex(Indexes.ascending("movieId", "tagName", "username"),
+            new IndexOptions().unique(true));
+    getTagScoreCollection().createIndex(Indexes.ascending("movieId", "tagName"), new IndexOptions().unique(true));
+    if (getTagScoreCollection().estimatedDocumentCount() == 0 && getTagCollection().estimatedDocumentCount() > 0) {
+      rebuildTagScores();
+    }
+  }
+
+  /**
+   * Recomputes the score of every tag on every movie from the tag votes, where each upvote counts for 1 and each
+   * downvote -1, and corrects the stored scores that differ. A score is only corrected if it is still the value that
+   * was read, so an $inc from a vote landing in between is never overwritten. A vote racing the recount can still
+   * leave its score off by one until the next rebuild.
+   */
+  public void rebuildTagScores() {
+    Map<String, Integer> counted = new HashMap<>();
+    for (Document group : getTagCollection().aggregate(Arrays.asList(
+            Aggregates.group(
+                    new Document("movieId", "$movieId").append("tagName", "$tagName"),
+                    Accumulators.sum("score", new Document("$cond",
+                            Arrays.asList(new Document("$eq", Arrays.asList("$state", "upvote")), 1, -1))))))) {
+      Document id = group.get("_id", Document.class);
+      counted.put(getTagScoreKey(id.getString("movieId"), id.getString("tagName")), group.getInteger("score"));
+    }
+
+    MongoCollection<Document> tagScoreCollection = getTagScoreCollection();
+    List<WriteModel<Document>> corrections = new ArrayList<>();
+    for (Document tagScore : tagScoreCollection.find()) {
+      Integer recount = counted.remove(getTagScoreKey(tagScore.getString("movieId"), tagScore.getString("tagName")));
+      int score = recount == null ? 0 : recount;
+      Object stored = tagScore.get("score");
+      if (stored instanceof Number && ((Number) stored).intValue() == score) { continue; }
+      corrections.add(new UpdateOneModel<>(
+              Filters.and(Filters.eq("_id", tagScore.get("_id")), Filters.eq("score", stored)),
+              Updates.set("score", score)));
+    }
+    // tags without a score yet. If a vote creates the score first its $inc already counts, so it is left alone
+    counted.forEach((key, score) -> {
+      String[] movieAndTag = key.split("\u0000", 2);
+      corrections.add(new UpdateOneModel<>(
+              Filters.and(Filters.eq("movieId", movieAndTag[0]), Filters.eq("tagName", movieAndTag[1])),
+              Updates.setOnInsert("score", score), new UpdateOptions().upsert(true)));
+    });
+
+    for (int i = 0; i < corrections.size(); i += TAG_SCORE_BATCH_SIZE) {
+      try {
+        tagScoreCollection.bulkWrite(corrections.subList(i, Math.min(i + TAG_SCORE_BATCH_SIZE, corrections.size())),
+                new BulkWriteOptions().ordered(false));
+      } catch (MongoBulkWriteException e) {
+        // a vote upserted the same score at the same time, which is fine. Anything else is a real failure
+        for (BulkWriteError error : e.getWriteErrors()) {
+          if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) { throw e; }
+        }
+      }
+    }
+  }
+
+  private static String getTagScoreKey(String movieId, String tagName) {
+    return movieId + "\u0000" + tagName;
+  }
+
   /*
    * Rating Create functions
    *
@@ -344,50 +434,20 @@ public class DatabaseController {
    * @param privacy privacy setting of the tag whether it is private, friends-only, or public
    */
   public void createTag(String tagName, String movieIdHexString, String username, String privacy){
-    // get the collections
-    MongoCollection<Document> tagCollection = getTagCollection();
-    MongoCollection<Document> movieCollection = getMovieCollection();
-
-    // attempt to grab the movie using its unique MongoDB id
-    ObjectId movieId = new ObjectId(movieIdHexString);
-    Document movie = movieCollection.find(Filters.eq("_id", movieId)).first();
+    // attach the tag name to the movie, this also tells us if the movie exists
+    Document movie = attachTagNameToMovie(movieIdHexString, tagName);
 
     // if the movie does not exist move on
     if (movie == null) { return; }
 
-    // attempt to grab the tag in a few different types
-    Bson movieTitleFilter = Filters.eq("movieTitle", movie.get("title"));
-    Bson usernameFilter = Filters.eq("username", username.toLowerCase());
-    Bson tagNameFilter = Filters.eq("tagName", tagName);
-
-    Document taggedWithMovieByUser = tagCollection.find(Filters.and(movieTitleFilter,usernameFilter, tagNameFilter)).first();
-
-    // if you have already tagged this movie this tag
-    if(taggedWithMovieByUser != null){
-
-    } // else the tag does not exist
-    else{
-      // create and add the tag
-      Document newTag = new Document("username", username.toLowerCase())
-              .append("tagName", tagName)
-              .append("movieTitle", movie.get("title"))
-              .append("movieId", movieIdHexString)
-              .append("dateTimeCreated", new BsonDateTime(System.currentTimeMillis()))
-              .append("privacy", privacy)
-              .append("state", "upvote");
-      // add to the database
-      tagCollection.insertOne(newTag);
-
-      Bson tagMovieFilter = Filters.eq("tagNames", tagName);
-      Bson movieIdFilter = Filters.eq("_id", movieId);
-      Document movieWithTag = movieCollection.find(Filters.and(tagMovieFilter, movieIdFilter)).first();
-      // check to see if movie category needs to be pushed
-      if (movieWithTag == null) {
-        Bson movieRatingCategoryUpdateOperation = Updates.push("tagNames", tagName);
-        movieCollection.updateOne(movie, movieRatingCategoryUpdateOperation);
-      }
-    }
+    // only create the tag if you have not already tagged this movie with it
+    Document previousTag = upsertTag(username, tagName, movieIdHexString, movie, privacy,
+            Updates.setOnInsert("state", "upvote"));
 
+    // a newly created tag counts as an upvote
+    if (previousTag == null) {
+      incrementTagScore(movieIdHexString, tagName, 1);
+    }
   }
 
   /*
@@ -502,43 +562,30 @@ public class DatabaseController {
    * @return an ArrayList&lt;Tag&gt; in descending order based on total score
    */
   public List<Tag> getTagScoresForMovieModal(String requesterUsername, String movieId){
-    List<Tag> tags = getTagsWithMovieId(movieId);
-
-    HashMap<String, Integer> totalCount = new HashMap<>();
-    // for each tagName we have: Use a hashmap to count its value
-    for (Tag tag : tags){
-      String tagName = tag.getTagName();
-      // if the tag is already in the map
-      if(totalCount.containsKey(tagName)){
-        // add one to the count
-        if (tag.getState().equals("upvote")) { totalCount.put(tagName, ( totalCount.get(tagName) + 1 ) ); }
-        // subtract one from the count
-        else { totalCount.put(tagName, ( totalCount.get(tagName) - 1 ) ); }
-      }
-      // this tag is a new one
-      else{
-        // start the count at 1
-        if (tag.getState().equals("upvote")) { totalCount.put(tagName, 1); }
-        // start the count at -1
-        else { totalCount.put(tagName, -1); }
-      }
+    // grab what the user thinks of each tag on this movie in one query
+    HashMap<String, String> requesterStates = new HashMap<>();
+    Bson requesterTagFilter = Filters.and(
+            Filters.eq("username", requesterUsername.toLowerCase()),
+            Filters.eq("movieId", movieId));
+    for (Document document : getTagCollection().find(requesterTagFilter).projection(Projections.include("tagName", "state"))) {
+      requesterStates.put(document.getString("tagName"), document.getString("state"));
     }
+
     ArrayList<Tag> uniqueTags = new ArrayList<>();
-    // for each unique named tag create a tag
-    for(String tagName : totalCount.keySet()){
+    // the scores are kept up to date by the vote functions so they come back already ordered
+    for (Document document : getTagScoreCollection().find(Filters.eq("movieId", movieId)).sort(Sorts.descending("score"))) {
       // create a new tag and populate its data
       Tag tag = new Tag();
+      String tagName = document.getString("tagName");
       tag.setTagName(tagName);
-      tag.setTotalCount(totalCount.get(tagName).toString());
+      tag.setTotalCount(Integer.toString(document.getInteger("score", 0)));
       tag.setMovieId(movieId);
       // while we are at it lets assign what the user thinks of it
-      tag.setState(getTagState(requesterUsername, movieId, tagName));
+      tag.setState(requesterStates.getOrDefault(tagName, "noTag"));
 
       // add the tag to the list
       uniqueTags.add(tag);
     }
-    // order the list in reverse order by total value
-    uniqueTags.sort(Collections.reverseOrder());
 
     return uniqueTags;
   }
@@ -552,69 +599,127 @@ public class DatabaseController {
 
   /**
    * Changes the state of an already made Tag from downvote to upvote. If the tag does not exist makes the tag with the
-   * provided username. If the Tag already exists and is upvoted nothing is returned.
+   * provided username. If the Tag already exists and is upvoted nothing is changed.
    * @param requesterUsername username the Tag is associated with
    * @param tagName tagName being changed
    * @param movieId MongoDB hexId of movie the tag is associated with
    */
   public void upvoteTag(String requesterUsername, String tagName, String movieId){
-    // get the collections
-    MongoCollection<Document> tagCollection = getTagCollection();
-
-    // try to get your tag for this movie
-    Bson tagFilter = Filters.and(
-            Filters.eq("username", requesterUsername.toLowerCase()),
-            Filters.eq("tagName", tagName),
-            Filters.eq("movieId", movieId));
-
-    List<Tag> tags = getTagsWithFilter(tagCollection, tagFilter);
-    // if you have not already made this tag for this movie
-    if(tags.isEmpty()) {
-      // make this tag in your name for this movie
-      createTag(tagName, movieId, requesterUsername, "public");
-    } else if (tags.get(0).getState().equals("downvote")){
-      // change to upvote
-      Bson upvoteUpdate = Updates.set("state", "upvote");
-      tagCollection.updateOne(tagFilter, upvoteUpdate);
-    }
-    // otherwise you already have made this tag. Why are you doing this please don't do this return nothing
+    castTagVote(requesterUsername, tagName, movieId, "upvote");
   }
 
   /**
    * Changes the state of an already made Tag from upvote to downvote. If the tag does not exist makes the tag with the
-   * provided username and sets the status to downvote. If the Tag already exists and is downvoted nothing is returned.
+   * provided username and sets the status to downvote. If the Tag already exists and is downvoted nothing is changed.
    * @param requesterUsername username the Tag is associated with
    * @param tagName tagName being changed
    * @param movieId MongoDB hexId of movie the tag is associated with
    */
   public void downvoteTag(String requesterUsername, String tagName, String movieId){
-    // get the collections
-    MongoCollection<Document> tagCollection = getTagCollection();
+    castTagVote(requesterUsername, tagName, movieId, "downvote");
+  }
 
-    Bson tagFilter = Filters.and(
-            Filters.eq("username", requesterUsername.toLowerCase()),
-            Filters.eq("tagName", tagName),
-            Filters.eq("movieId", movieId));
-    // try to get your tag for this movie
-    List<Tag> tags = getTagsWithFilter(tagCollection, tagFilter);
+  /**
+   * Sets the users vote on a tag and moves the tag's score on the movie by the difference between the old and new
+   * vote. Changing an existing vote is a single findOneAndUpdate. A first vote also attaches the tag name to the movie
+   * and upserts the tag, relying on the unique (movieId, tagName, username) index to keep concurrent clicks from
+   * creating duplicates.
+   * @param requesterUsername username the Tag is associated with
+   * @param tagName tagName being voted on
+   * @param movieIdHexString MongoDB hexId of movie the tag is associated with
+   * @param state either "upvote" or "downvote"
+   */
+  private void castTagVote(String requesterUsername, String tagName, String movieIdHexString, String state){
+    Bson stateUpdate = Updates.set("state", state);
 
-    // if the tag exists and is currently set to upvote
-    if(!tags.isEmpty() && tags.get(0).getState().equals("upvote")){
-      // set the state to downvote
-      Bson downvoteUpdate = Updates.set("state", "downvote");
-      tagCollection.updateOne(tagFilter, downvoteUpdate);
+    // try to flip your existing vote for this movie
+    Document previousTag = getTagCollection().findOneAndUpdate(
+            getTagFilter(requesterUsername, tagName, movieIdHexString), stateUpdate, RETURN_PREVIOUS);
+
+    // if you have not already made this tag for this movie
+    if (previousTag == null) {
+      Document movie = attachTagNameToMovie(movieIdHexString, tagName);
+      // can't vote on a tag for a movie that does not exist
+      if (movie == null) { return; }
+      // make this tag in your name for this movie
+      previousTag = upsertTag(requesterUsername, tagName, movieIdHexString, movie, "public", stateUpdate);
     }
-    // otherwise the tag does not exist
-    else {
-      // therefore create a tag for in the users name
-      createTag(tagName, movieId, requesterUsername, "public");
 
-      // set the state to downvote
-      Bson downVoteUpdate = Updates.set("state", "downvote");
-      tagCollection.updateOne(tagFilter, downVoteUpdate);
+    String previousState = previousTag == null ? null : previousTag.getString("state");
+    int delta = getVoteValue(state) - getVoteValue(previousState);
+    if (delta != 0) {
+      incrementTagScore(movieIdHexString, tagName, delta);
     }
   }
 
+  /**
+   * Creates the users tag if it does not exist yet and applies the state update to it.
+   * @param username username the Tag is associated with
+   * @param tagName name of the tag
+   * @param movieIdHexString MongoDB hexId of movie the tag is associated with
+   * @param movie movie Document containing at least the title
+   * @param privacy privacy setting used if the tag has to be created
+   * @param stateUpdate update applied to the state of the tag
+   * @return the tag Document as it was before the update, null if the tag was just created
+   */
+  private Document upsertTag(String username, String tagName, String movieIdHexString, Document movie,
+                             String privacy, Bson stateUpdate){
+    MongoCollection<Document> tagCollection = getTagCollection();
+    Bson tagFilter = getTagFilter(username, tagName, movieIdHexString);
+    // username, tagName, and movieId are copied from the filter when the tag is inserted
+    Bson update = Updates.combine(
+            stateUpdate,
+            Updates.setOnInsert("movieTitle", movie.get("title")),
+            Updates.setOnInsert("dateTimeCreated", new BsonDateTime(System.currentTimeMillis())),
+            Updates.setOnInsert("privacy", privacy));
+    try {
+      return tagCollection.findOneAndUpdate(tagFilter, update, UPSERT_RETURN_PREVIOUS);
+    } catch (MongoCommandException e) {
+      if (ErrorCategory.fromErrorCode(e.getErrorCode()) != ErrorCategory.DUPLICATE_KEY) { throw e; }
+      // someone created the same tag at the same time, so apply the update to theirs
+      return tagCollection.findOneAndUpdate(tagFilter, stateUpdate, RETURN_PREVIOUS);
+    }
+  }
+
+  /**
+   * Adds the tag score change to the running total kept for the movie.
+   * @param movieIdHexString MongoDB hexId of movie the tag is associated with
+   * @param tagName name of the tag
+   * @param delta amount to change the score by
+   */
+  private void incrementTagScore(String movieIdHexString, String tagName, int delta){
+    Bson tagScoreFilter = Filters.and(Filters.eq("movieId", movieIdHexString), Filters.eq("tagName", tagName));
+    getTagScoreCollection().updateOne(tagScoreFilter, Updates.inc("score", delta), new UpdateOptions().upsert(true));
+  }
+
+  /**
+   * Adds the tag name to the movie's list of tag names if it is not already there.
+   * @param movieIdHexString MongoDB hexId of the movie
+   * @param tagName name of the tag
+   * @return the movie Document with only its title, null if the movie does not exist
+   */
+  private Document attachTagNameToMovie(String movieIdHexString, String tagName){
+    ObjectId movieId = new ObjectId(movieIdHexString);
+    return getMovieCollection().findOneAndUpdate(Filters.eq("_id", movieId), Updates.addToSet("tagNames", tagName),
+            new FindOneAndUpdateOptions().projection(Projections.include("title")));
+  }
+
+  private static Bson getTagFilter(String username, String tagName, String movieId){
+    return Filters.and(
+            Filters.eq("username", username.toLowerCase()),
+            Filters.eq("tagName", tagName),
+            Filters.eq("movieId", movieId));
+  }
+
+  /**
+   * @param state state of a tag vote
+   * @return 1 for an upvote, -1 for a downvote, and 0 if there is no vote
+   */
+  static int getVoteValue(String state){
+    if (state == null) { return 0; }
+    return state.equals("upvote") ? 1 : -1;
+  }
+
   /*
    * Tag Delete Functions
    */
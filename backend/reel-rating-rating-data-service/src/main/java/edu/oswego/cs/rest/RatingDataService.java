@@ -2,10 +2,12 @@ package edu.oswego.cs.rest;
 
 import com.ibm.websphere.security.jwt.JwtConsumer;
 
+import com.mongodb.MongoException;
 import edu.oswego.cs.rest.JsonClasses.JSession;
 import edu.oswego.cs.rest.JsonClasses.Rating;
 import edu.oswego.cs.rest.JsonClasses.Tag;
 import jakarta.enterprise.context.RequestScoped;
+import jakarta.inject.Inject;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.client.Client;
@@ -16,6 +18,7 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
 import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 @Path("/")
 @RequestScoped
@@ -23,6 +26,9 @@ public class RatingDataService {
   
   String AuthServiceUrl = System.getenv("AUTH_SERVICE_URL");
 
+  @Inject
+  WriteBehindBuffer writeBehindBuffer;
+
   /**
    * gets the username of the client request. Also authenticates the client using a JWT.
    *
@@ -58,6 +64,15 @@ public class RatingDataService {
     String sessionId = rating.getJSESSIONID();
     String requesterUsername = getUsername(sessionId);
     if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    if (writeBehindBuffer.isEnabled()) {
+      try {
+        writeBehindBuffer.enqueueRating(rating.getRatingName(), rating.getUserRating(), rating.getUpperbound(), rating.getSubtype(), requesterUsername, rating.getMovieId(), rating.getPrivacy());
+      } catch (TimeoutException | MongoException e) {
+        // the write timed out or failed to commit, the client can try again
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+      }
+      return Response.ok().build();
+    }
     DatabaseController dbc = new DatabaseController();
     dbc.createRating(rating.getRatingName(), rating.getUserRating(), rating.getUpperbound(), rating.getSubtype(), requesterUsername, rating.getMovieId(), rating.getPrivacy());
     return Response.ok().build();
@@ -265,8 +280,17 @@ public class RatingDataService {
       return Response.status(Response.Status.UNAUTHORIZED).build();
     }
 
+    if (writeBehindBuffer.isEnabled()) {
+      try {
+        writeBehindBuffer.enqueueTagVote(requesterUsername, tag.getTagName(), tag.getMovieId(), "upvote");
+      } catch (TimeoutException | MongoException e) {
+        // the write timed out or failed to commit, the client can try again
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+      }
+      return Response.ok().build();
+    }
     DatabaseController dbc = new DatabaseController();
-    dbc.upvoteTag(getUsername(sessionId), tag.getTagName(), tag.getMovieId());
+    dbc.upvoteTag(requesterUsername, tag.getTagName(), tag.getMovieId());
     return Response.ok().build();
   }
 
@@ -281,8 +305,17 @@ public class RatingDataService {
       return Response.status(Response.Status.UNAUTHORIZED).build();
     }
 
+    if (writeBehindBuffer.isEnabled()) {
+      try {
+        writeBehindBuffer.enqueueTagVote(requesterUsername, tag.getTagName(), tag.getMovieId(), "downvote");
+      } catch (TimeoutException | MongoException e) {
+        // the write timed out or failed to commit, the client can try again
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+      }
+      return Response.ok().build();
+    }
     DatabaseController dbc = new DatabaseController();
-    dbc.downvoteTag(getUsername(sessionId), tag.getTagName(), tag.getMovieId());
+    dbc.downvoteTag(requesterUsername, tag.getTagName(), tag.getMovieId());
     return Response.ok().build();
   }
 }
@@ -0,0 +1,23 @@
+package edu.oswego.cs.rest;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+/**
+ * Keeps the rating service out of rotation until the unique tag indexes the tag votes upsert against exist.
+ */
+@Readiness
+@ApplicationScoped
+public class RatingReadinessCheck implements HealthCheck {
+
+  @Inject
+  TagIndexManager tagIndexManager;
+
+  @Override
+  public HealthCheckResponse call() {
+    return HealthCheckResponse.named("tag-indexes").status(tagIndexManager.isReady()).build();
+  }
+}
@@ -0,0 +1,57 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoException;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+
+/**
+ * Creates the unique tag indexes the tag votes upsert against when the application starts, and the tag scores if
+ * there are none yet, so requests never send a createIndexes command or a rebuild themselves. If Mongo can't be
+ * reached it tries again with a growing delay, and RatingReadinessCheck keeps the service out of rotation until the
+ * indexes exist.
+ */
+@ApplicationScoped
+public class TagIndexManager {
+
+  private static final long FIRST_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60000;
+
+  private volatile boolean ready = false;
+
+  /**
+   * Starts creating the indexes in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    Thread builder = new Thread(this::createIndexes, "tag-index-builder");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  /**
+   * @return true once the tag indexes exist
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  void createIndexes() {
+    long retryMs = FIRST_RETRY_MS;
+    while (!ready) {
+      try {
+        new DatabaseController().createTagIndexes();
+        ready = true;
+      } catch (MongoException e) {
+        // the service stays unready until this succeeds, so the failure shows up in its health as well as here
+        e.printStackTrace();
+        try {
+          Thread.sleep(retryMs);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+      }
+    }
+  }
+}
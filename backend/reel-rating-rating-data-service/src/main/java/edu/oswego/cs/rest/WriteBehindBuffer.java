@@ -0,0 +1,654 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.BsonDateTime;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Timer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional write-behind mode for tag votes and rating edits. Instead of every vote being its own round trip to Mongo,
+ * mutations are put in a bounded in-memory queue and flushed in unordered bulkWrite batches once the queue reaches
+ * the batch size or the flush interval passes, whichever comes first.
+ *
+ * <p>Mutations are coalesced by (kind, user, movie, key) so if a user clicks upvote, downvote, upvote before a flush
+ * only the last write reaches the database. When the queue is full callers wait for a flush to make room, and if
+ * there is still no room they write through to the database themselves. Writes for the same key never overlap, so a
+ * write-through waits for a batch still committing an older write of its key, and the next batch leaves a newer write
+ * queued until the write-through is done.</p>
+ *
+ * <p>Writes that fail to commit go back to the front of the queue, unless a newer write for the same key has been
+ * queued since, and the flusher backs off before trying again. A write that fails
+ * <code>WRITE_BEHIND_MAX_ATTEMPTS</code> times is dropped and counted in writeBehind.droppedWrites.</p>
+ *
+ * <p>Configured with the following environment variables:</p>
+ * <ul>
+ *   <li><code>WRITE_BEHIND_ENABLED</code> true to turn the mode on. Defaults to false.</li>
+ *   <li><code>WRITE_BEHIND_DURABILITY</code> <code>none</code> acknowledges as soon as the write is queued,
+ *   <code>flush</code> waits until the batch holding the write is committed, and <code>journal</code> also waits
+ *   for the batch to reach Mongo's journal. Defaults to flush.</li>
+ *   <li><code>WRITE_BEHIND_MAX_QUEUE</code> most pending writes held in memory. Defaults to 10000.</li>
+ *   <li><code>WRITE_BEHIND_BATCH_SIZE</code> pending writes that trigger an early flush. Defaults to 500.</li>
+ *   <li><code>WRITE_BEHIND_FLUSH_MS</code> longest a write waits in the queue. Defaults to 50.</li>
+ *   <li><code>WRITE_BEHIND_OFFER_TIMEOUT_MS</code> how long a caller waits for room in a full queue. Defaults
+ *   to 200.</li>
+ *   <li><code>WRITE_BEHIND_COMMIT_TIMEOUT_MS</code> how long a caller waits for its write to be committed under
+ *   flush or journal durability before giving up with a TimeoutException. The write stays queued and may still be
+ *   committed later. Defaults to 5000.</li>
+ *   <li><code>WRITE_BEHIND_MAX_ATTEMPTS</code> how many failed flushes a write survives before it is dropped. The
+ *   delay between flushes starts at a second and doubles up to a minute, so the default of 10 rides out about four
+ *   minutes of Mongo being unreachable.</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class WriteBehindBuffer {
+
+  public enum Durability { NONE, FLUSH, JOURNAL }
+
+  private static final long FIRST_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60000;
+  private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+  private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+  private final boolean enabled = Boolean.parseBoolean(getEnvOrDefault("WRITE_BEHIND_ENABLED", "false"));
+  private final Durability durability =
+          Durability.valueOf(getEnvOrDefault("WRITE_BEHIND_DURABILITY", "flush").toUpperCase());
+  private final int maxQueue = Integer.parseInt(getEnvOrDefault("WRITE_BEHIND_MAX_QUEUE", "10000"));
+  private final int batchSize = Integer.parseInt(getEnvOrDefault("WRITE_BEHIND_BATCH_SIZE", "500"));
+  private final long flushMillis = Long.parseLong(getEnvOrDefault("WRITE_BEHIND_FLUSH_MS", "50"));
+  private final long offerTimeoutMillis = Long.parseLong(getEnvOrDefault("WRITE_BEHIND_OFFER_TIMEOUT_MS", "200"));
+  private final long commitTimeoutMillis = Long.parseLong(getEnvOrDefault("WRITE_BEHIND_COMMIT_TIMEOUT_MS", "5000"));
+  private final int maxAttempts = Integer.parseInt(getEnvOrDefault("WRITE_BEHIND_MAX_ATTEMPTS", "10"));
+
+  // pending writes in the order they were first queued, keyed so later writes replace earlier ones
+  private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+  // keys of the writes being committed by the flusher or written through by a caller
+  private final Set<String> inFlight = new HashSet<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  // signalled whenever the queue shrinks or an in flight write settles
+  private final Condition notFull = lock.newCondition();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  // only touched by the flusher thread
+  private long retryMillis = 0;
+  private long retryAtNanos;
+
+  private ScheduledExecutorService flusher;
+
+  @Inject
+  MetricRegistry metricRegistry;
+
+  private Timer flushTimer;
+  private Counter flushedWrites;
+  private Counter coalescedWrites;
+  private Counter writeThroughs;
+  private Counter droppedWrites;
+
+  @PostConstruct
+  void start() {
+    metricRegistry.gauge("writeBehind.queueDepth", this, WriteBehindBuffer::getQueueDepth);
+    flushTimer = metricRegistry.timer("writeBehind.flushLatency");
+    flushedWrites = metricRegistry.counter("writeBehind.flushedWrites");
+    coalescedWrites = metricRegistry.counter("writeBehind.coalescedWrites");
+    writeThroughs = metricRegistry.counter("writeBehind.writeThroughs");
+    droppedWrites = metricRegistry.counter("writeBehind.droppedWrites");
+    if (!enabled) { return; }
+    // a single thread so flushes never overlap
+    flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "rating-write-behind");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flusher.scheduleWithFixedDelay(this::flushAll, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  void stop() {
+    if (flusher == null) { return; }
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // anything still queued gets one last try before the server goes away
+    retryMillis = 0;
+    flushAll();
+  }
+
+  public boolean isEnabled() { return enabled; }
+
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return pending.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Enqueue functions
+   *
+   * enqueueTagVote
+   * enqueueRating
+   */
+
+  /**
+   * Queues a tag vote. Mirrors DatabaseController.upvoteTag and downvoteTag.
+   * @param requesterUsername username the Tag is associated with
+   * @param tagName name of the tag being voted on
+   * @param movieId MongoDB hexId of movie the tag is associated with
+   * @param state either "upvote" or "downvote"
+   * @throws TimeoutException if the write wasn't committed within WRITE_BEHIND_COMMIT_TIMEOUT_MS
+   * @throws MongoException if the write failed to commit
+   */
+  public void enqueueTagVote(String requesterUsername, String tagName, String movieId, String state) throws Exception {
+    String username = requesterUsername.toLowerCase();
+    Bson filter = Filters.and(
+            Filters.eq("username", username),
+            Filters.eq("tagName", tagName),
+            Filters.eq("movieId", movieId));
+    PendingWrite write = new PendingWrite(getTagKey(username, movieId, tagName), PendingWrite.Kind.TAG, username,
+            movieId, tagName, filter,
+            new Document("state", state),
+            new Document("privacy", "public"));
+    offer(write, () -> {
+      DatabaseController dbc = new DatabaseController();
+      if (state.equals("upvote")) { dbc.upvoteTag(requesterUsername, tagName, movieId); }
+      else { dbc.downvoteTag(requesterUsername, tagName, movieId); }
+    });
+  }
+
+  /**
+   * Queues a rating. Mirrors DatabaseController.createRating, including ignoring ratings outside of the scale.
+   * @throws TimeoutException if the write wasn't committed within WRITE_BEHIND_COMMIT_TIMEOUT_MS
+   * @throws MongoException if the write failed to commit
+   */
+  public void enqueueRating(String ratingName, String userRating, String upperbound, String subtype, String username,
+                            String movieId, String privacy) throws Exception {
+    // check if the user rating is between 1 and the upperbound
+    if (!(Integer.valueOf(userRating) <= Integer.valueOf(upperbound) && Integer.valueOf(userRating) >= 1))
+      return;
+
+    Bson filter = Filters.and(
+            Filters.eq("upperbound", upperbound),
+            Filters.eq("ratingName", ratingName),
+            Filters.eq("username", username),
+            Filters.eq("movieId", movieId));
+    String key = "rating\u0000" + username + "\u0000" + movieId + "\u0000" + ratingName + "\u0000" + upperbound;
+    PendingWrite write = new PendingWrite(key, PendingWrite.Kind.RATING, username, movieId, ratingName, filter,
+            new Document("userRating", userRating),
+            new Document("privacy", privacy).append("subtype", subtype));
+    offer(write, () ->
+            new DatabaseController().createRating(ratingName, userRating, upperbound, subtype, username, movieId,
+                    privacy));
+  }
+
+  /**
+   * Puts the write in the queue, replacing any pending write with the same key, and waits for it to be committed if
+   * the durability setting asks for it. If the queue stays full the write is written through instead, once no older
+   * write for the same key is still being committed.
+   * @param writeThrough writes the same change synchronously
+   * @throws TimeoutException if the write wasn't committed within WRITE_BEHIND_COMMIT_TIMEOUT_MS
+   * @throws MongoException if the write failed to commit
+   */
+  private void offer(PendingWrite write, Runnable writeThrough) throws Exception {
+    CompletableFuture<Void> committed = null;
+    boolean writingThrough = false;
+    lock.lock();
+    try {
+      long remainingNanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+      long inFlightNanos = TimeUnit.MILLISECONDS.toNanos(commitTimeoutMillis);
+      // back pressure: wait for a flush to make room unless this write replaces one already queued
+      while (!writingThrough && pending.size() >= maxQueue && !pending.containsKey(write.key)) {
+        if (remainingNanos > 0) {
+          requestFlush();
+          remainingNanos = notFull.awaitNanos(remainingNanos);
+        } else if (inFlight.contains(write.key)) {
+          // an older write for this key is being committed and would overwrite this one if it landed last. If it
+          // fails it goes back in the queue and this write replaces it on the next pass
+          if (inFlightNanos <= 0) { throw new TimeoutException("An earlier write for the same key is still running"); }
+          inFlightNanos = notFull.awaitNanos(inFlightNanos);
+        } else {
+          writeThroughs.inc();
+          inFlight.add(write.key);
+          writingThrough = true;
+        }
+      }
+      if (!writingThrough) {
+        if (durability != Durability.NONE) {
+          committed = new CompletableFuture<>();
+          write.waiters.add(committed);
+        }
+        PendingWrite replaced = pending.put(write.key, write);
+        if (replaced != null) {
+          // the older write never reaches the database but its caller is waiting on the same commit
+          write.absorb(replaced);
+          coalescedWrites.inc();
+        }
+        if (pending.size() >= batchSize) {
+          requestFlush();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (writingThrough) {
+      try {
+        writeThrough.run();
+      } finally {
+        settle(Collections.singletonList(write.key));
+      }
+    } else if (committed != null) {
+      // a stalled flusher or an unreachable database must not hold the request thread forever
+      try {
+        committed.get(commitTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof MongoException) { throw (MongoException) e.getCause(); }
+        throw e;
+      }
+    }
+  }
+
+  private void requestFlush() {
+    if (flusher != null && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(this::flushAll);
+    }
+  }
+
+  /**
+   * Marks the keys as no longer in flight and wakes up callers waiting on them.
+   */
+  private void settle(Collection<String> keys) {
+    lock.lock();
+    try {
+      inFlight.removeAll(keys);
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Flush functions
+   *
+   * flushAll
+   * flushBatch
+   * requeue
+   */
+
+  /**
+   * Flushes batches until the queue is empty or a batch fails. After a failure nothing is flushed until the retry
+   * delay has passed.
+   */
+  void flushAll() {
+    flushRequested.set(false);
+    if (retryMillis > 0 && System.nanoTime() - retryAtNanos < 0) { return; }
+    try {
+      while (flushBatch()) { }
+    } catch (RuntimeException e) {
+      // never let an exception cancel the scheduled flushes
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Takes up to one batch of writes off the queue and commits them. Writes that could not be committed go back in
+   * the queue and the retry delay grows.
+   * @return true if a whole batch was committed
+   */
+  private boolean flushBatch() {
+    List<PendingWrite> batch = new ArrayList<>();
+    lock.lock();
+    try {
+      Iterator<Map.Entry<String, PendingWrite>> iterator = pending.entrySet().iterator();
+      while (iterator.hasNext() && batch.size() < batchSize) {
+        Map.Entry<String, PendingWrite> entry = iterator.next();
+        // a caller is writing this key through, so its newer write has to wait until that is done
+        if (inFlight.contains(entry.getKey())) { continue; }
+        batch.add(entry.getValue());
+        inFlight.add(entry.getKey());
+        iterator.remove();
+      }
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (batch.isEmpty()) { return false; }
+
+    long start = System.nanoTime();
+    RuntimeException failure = null;
+    try {
+      commit(batch);
+    } catch (RuntimeException e) {
+      failure = e;
+      e.printStackTrace();
+    } finally {
+      flushTimer.update(Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    List<PendingWrite> unfinished = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    for (PendingWrite write : batch) {
+      keys.add(write.key);
+      if (write.isCommitted()) {
+        flushedWrites.inc();
+        write.waiters.forEach(waiter -> waiter.complete(null));
+      } else {
+        unfinished.add(write);
+      }
+    }
+    lock.lock();
+    try {
+      requeue(unfinished, failure);
+    } finally {
+      lock.unlock();
+    }
+    settle(keys);
+
+    if (unfinished.isEmpty()) {
+      retryMillis = 0;
+      return true;
+    }
+    retryMillis = retryMillis == 0 ? FIRST_RETRY_MS : Math.min(retryMillis * 2, MAX_RETRY_MS);
+    retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMillis);
+    return false;
+  }
+
+  /**
+   * Puts writes that failed to commit back at the front of the queue. If a newer write for the same key was queued
+   * in the meantime it takes the failed one's place. Writes that have failed too many times are dropped. Must be
+   * called holding the lock.
+   * @param failure why the batch failed, null if only some of its writes were rejected
+   */
+  private void requeue(List<PendingWrite> unfinished, RuntimeException failure) {
+    if (unfinished.isEmpty()) { return; }
+    LinkedHashMap<String, PendingWrite> requeued = new LinkedHashMap<>();
+    for (PendingWrite write : unfinished) {
+      PendingWrite newer = pending.remove(write.key);
+      if (newer != null) {
+        newer.absorb(write);
+        coalescedWrites.inc();
+        requeued.put(write.key, newer);
+      } else if (++write.failures >= maxAttempts) {
+        MongoException dropped = new MongoException("Dropped write-behind " + write.kind + " " + write.name
+                + " by " + write.username + " on movie " + write.movieId + " after " + write.failures
+                + " failed attempts", failure);
+        dropped.printStackTrace();
+        droppedWrites.inc();
+        write.waiters.forEach(waiter -> waiter.completeExceptionally(dropped));
+      } else {
+        requeued.put(write.key, write);
+      }
+    }
+    requeued.putAll(pending);
+    pending.clear();
+    pending.putAll(requeued);
+  }
+
+  /*
+   * Commit functions
+   *
+   * commit
+   * commitTagVotes
+   * bulkWrite
+   */
+
+  /**
+   * Writes a batch with one query for the movies involved and one unordered bulkWrite per collection. Writes for
+   * movies that don't exist are dropped, the same as the synchronous create functions. Each write remembers which of
+   * its steps landed, so a write that is tried again only repeats the steps that didn't.
+   * @throws MongoException if a whole step failed. Writes that were rejected one by one are left uncommitted instead
+   */
+  private void commit(List<PendingWrite> batch) {
+    DatabaseController dbc = new DatabaseController();
+    WriteConcern writeConcern = durability == Durability.JOURNAL ? WriteConcern.JOURNALED : WriteConcern.W1;
+
+    // grab the titles of every movie in the batch at once, this also tells us which movies exist
+    Set<ObjectId> movieIds = new HashSet<>();
+    for (PendingWrite write : batch) {
+      if (ObjectId.isValid(write.movieId)) { movieIds.add(new ObjectId(write.movieId)); }
+    }
+    Map<String, Object> movieTitles = new HashMap<>();
+    dbc.getMovieCollection().find(Filters.in("_id", movieIds)).projection(Projections.include("title"))
+            .forEach(movie -> movieTitles.put(movie.getObjectId("_id").toHexString(), movie.get("title")));
+
+    List<PendingWrite> live = new ArrayList<>();
+    for (PendingWrite write : batch) {
+      if (movieTitles.containsKey(write.movieId)) { live.add(write); }
+      else { write.skipped = true; }
+    }
+
+    // attach each tag and rating name to its movie once, however many writes in the batch use it
+    List<WriteModel<Document>> movieWrites = new ArrayList<>();
+    List<List<PendingWrite>> movieWriters = new ArrayList<>();
+    Map<String, Integer> attachedNames = new HashMap<>();
+    for (PendingWrite write : live) {
+      if (write.nameAttached) { continue; }
+      String movieField = write.kind == PendingWrite.Kind.TAG ? "tagNames" : "ratingCategoryNames";
+      int index = attachedNames.computeIfAbsent(movieField + "\u0000" + write.movieId + "\u0000" + write.name,
+              name -> {
+                movieWrites.add(new UpdateOneModel<>(Filters.eq("_id", new ObjectId(write.movieId)),
+                        Updates.addToSet(movieField, write.name)));
+                movieWriters.add(new ArrayList<>());
+                return movieWrites.size() - 1;
+              });
+      movieWriters.get(index).add(write);
+    }
+    Map<Integer, BulkWriteError> movieErrors =
+            bulkWrite(dbc.getMovieCollection().withWriteConcern(writeConcern), movieWrites);
+    for (int i = 0; i < movieWriters.size(); i++) {
+      if (movieErrors.containsKey(i)) { continue; }
+      movieWriters.get(i).forEach(write -> write.nameAttached = true);
+    }
+
+    BsonDateTime now = new BsonDateTime(System.currentTimeMillis());
+    List<PendingWrite> ratings = new ArrayList<>();
+    List<WriteModel<Document>> ratingWrites = new ArrayList<>();
+    for (PendingWrite write : live) {
+      if (write.kind != PendingWrite.Kind.RATING || write.valueWritten) { continue; }
+      ratings.add(write);
+      ratingWrites.add(new UpdateOneModel<>(write.filter, write.getUpdate(movieTitles.get(write.movieId), now),
+              UPSERT));
+    }
+    Map<Integer, BulkWriteError> ratingErrors =
+            bulkWrite(dbc.getRatingCollection().withWriteConcern(writeConcern), ratingWrites);
+    for (int i = 0; i < ratings.size(); i++) {
+      if (!ratingErrors.containsKey(i)) { ratings.get(i).valueWritten = true; }
+    }
+
+    commitTagVotes(dbc, writeConcern, live, movieTitles, now);
+  }
+
+  /**
+   * Writes the tag votes and moves each tag's score by the difference between the old and new vote, the same as
+   * castTagVote does for a single vote. The old votes are read in one query and each vote is only written if it still
+   * holds the state that was read. A vote that changed in between trips the unique index and is cast the synchronous
+   * way instead.
+   */
+  private void commitTagVotes(DatabaseController dbc, WriteConcern writeConcern, List<PendingWrite> live,
+                              Map<String, Object> movieTitles, BsonDateTime now) {
+    List<PendingWrite> votes = new ArrayList<>();
+    for (PendingWrite write : live) {
+      if (write.kind == PendingWrite.Kind.TAG && !write.valueWritten) { votes.add(write); }
+    }
+    if (!votes.isEmpty()) {
+      Map<String, String> previousStates = new HashMap<>();
+      dbc.getTagCollection().find(Filters.or(votes.stream().map(write -> write.filter).toList()))
+              .projection(Projections.include("username", "movieId", "tagName", "state"))
+              .forEach(tag -> previousStates.put(
+                      getTagKey(tag.getString("username"), tag.getString("movieId"), tag.getString("tagName")),
+                      tag.getString("state")));
+
+      List<WriteModel<Document>> tagWrites = new ArrayList<>();
+      for (PendingWrite write : votes) {
+        write.previousState = previousStates.get(write.key);
+        Bson unchanged = write.previousState == null
+                ? Filters.exists("state", false) : Filters.eq("state", write.previousState);
+        tagWrites.add(new UpdateOneModel<>(Filters.and(write.filter, unchanged),
+                write.getUpdate(movieTitles.get(write.movieId), now), UPSERT));
+      }
+      Map<Integer, BulkWriteError> tagErrors =
+              bulkWrite(dbc.getTagCollection().withWriteConcern(writeConcern), tagWrites);
+      List<PendingWrite> changed = new ArrayList<>();
+      for (int i = 0; i < votes.size(); i++) {
+        PendingWrite write = votes.get(i);
+        BulkWriteError error = tagErrors.get(i);
+        if (error == null) {
+          write.valueWritten = true;
+          write.scoreDelta += DatabaseController.getVoteValue(write.set.getString("state"))
+                  - DatabaseController.getVoteValue(write.previousState);
+        } else if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+          changed.add(write);
+        }
+      }
+      // the vote changed since it was read, castTagVote reads and writes it atomically and moves the score itself
+      for (PendingWrite write : changed) {
+        if (write.set.getString("state").equals("upvote")) {
+          dbc.upvoteTag(write.username, write.name, write.movieId);
+        } else {
+          dbc.downvoteTag(write.username, write.name, write.movieId);
+        }
+        write.valueWritten = true;
+      }
+    }
+
+    List<PendingWrite> owing = new ArrayList<>();
+    List<WriteModel<Document>> scoreWrites = new ArrayList<>();
+    for (PendingWrite write : live) {
+      if (write.scoreDelta == 0) { continue; }
+      owing.add(write);
+      scoreWrites.add(new UpdateOneModel<>(
+              Filters.and(Filters.eq("movieId", write.movieId), Filters.eq("tagName", write.name)),
+              Updates.inc("score", write.scoreDelta), UPSERT));
+    }
+    Map<Integer, BulkWriteError> scoreErrors =
+            bulkWrite(dbc.getTagScoreCollection().withWriteConcern(writeConcern), scoreWrites);
+    for (int i = 0; i < owing.size(); i++) {
+      if (!scoreErrors.containsKey(i)) { owing.get(i).scoreDelta = 0; }
+    }
+  }
+
+  /**
+   * Runs the writes as one unordered bulkWrite.
+   * @return the writes that were rejected, by their index in the list
+   * @throws MongoException if the bulkWrite failed as a whole
+   */
+  private static Map<Integer, BulkWriteError> bulkWrite(MongoCollection<Document> collection,
+                                                       List<WriteModel<Document>> writes) {
+    if (writes.isEmpty()) { return Collections.emptyMap(); }
+    try {
+      collection.bulkWrite(writes, UNORDERED);
+      return Collections.emptyMap();
+    } catch (MongoBulkWriteException e) {
+      // a write concern error means the writes were applied but not confirmed. Applying the score increments again
+      // would count them twice, so those writes count as committed
+      if (e.getWriteConcernError() != null) { e.printStackTrace(); }
+      Map<Integer, BulkWriteError> errors = new HashMap<>();
+      for (BulkWriteError error : e.getWriteErrors()) { errors.put(error.getIndex(), error); }
+      return errors;
+    }
+  }
+
+  private static String getTagKey(String username, String movieId, String tagName) {
+    return "tag\u0000" + username + "\u0000" + movieId + "\u0000" + tagName;
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+
+  /**
+   * A queued tag vote or rating along with the callers waiting for it to be committed, and how far its commit got.
+   */
+  private static class PendingWrite {
+    enum Kind { TAG, RATING }
+
+    final String key;
+    final Kind kind;
+    final String username;
+    final String movieId;
+    // tag name or rating name, added to the movie's list of names
+    final String name;
+    final Bson filter;
+    final Document set;
+    final Document setOnInsert;
+    final List<CompletableFuture<Void>> waiters = new CopyOnWriteArrayList<>();
+
+    // the rest is only touched by the flusher, or under the lock while the write is queued
+    boolean skipped;
+    boolean nameAttached;
+    boolean valueWritten;
+    // state of the tag vote before this write, read when the write is committed
+    String previousState;
+    // change to the tag's score that was written to the vote but not yet to the score
+    int scoreDelta;
+    int failures;
+
+    PendingWrite(String key, Kind kind, String username, String movieId, String name, Bson filter, Document set,
+                 Document setOnInsert) {
+      this.key = key;
+      this.kind = kind;
+      this.username = username;
+      this.movieId = movieId;
+      this.name = name;
+      this.filter = filter;
+      this.set = set;
+      this.setOnInsert = setOnInsert;
+    }
+
+    /**
+     * @return true once every step of the write has landed, or the movie turned out not to exist
+     */
+    boolean isCommitted() {
+      return skipped || (nameAttached && valueWritten && scoreDelta == 0);
+    }
+
+    /**
+     * Takes over an older write for the same key that this one replaces. A tag vote the older write already wrote
+     * still owes its score change, which this write now carries.
+     */
+    void absorb(PendingWrite older) {
+      waiters.addAll(older.waiters);
+      scoreDelta += older.scoreDelta;
+    }
+
+    Bson getUpdate(Object movieTitle, BsonDateTime now) {
+      List<Bson> updates = new ArrayList<>();
+      set.forEach((field, value) -> updates.add(Updates.set(field, value)));
+      setOnInsert.forEach((field, value) -> updates.add(Updates.setOnInsert(field, value)));
+      updates.add(Updates.setOnInsert("movieTitle", movieTitle));
+      updates.add(Updates.setOnInsert("dateTimeCreated", now));
+      return Updates.combine(updates);
+    }
+  }
+}
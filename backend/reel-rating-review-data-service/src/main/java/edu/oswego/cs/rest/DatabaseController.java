@@ -1,16 +1,23 @@
 package edu.oswego.cs.rest;
 
 import edu.oswego.cs.rest.JsonClasses.Review;
+import edu.oswego.cs.rest.JsonClasses.ReviewPage;
 import org.bson.BsonDateTime;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -29,6 +36,7 @@ public class DatabaseController {
    *
    * getMovieCollection
    * getReviewCollection
+   * getReviewBodyCollection
    */
   public MongoCollection<Document> getMovieCollection() {
     return getMovieDatabase().getCollection("movies");
@@ -38,6 +46,10 @@ public class DatabaseController {
     return getMovieDatabase().getCollection("reviews");
   }
 
+  public MongoCollection<Document> getReviewBodyCollection() {
+    return getMovieDatabase().getCollection("reviewBodies");
+  }
+
   /*
    * Review Create functions
    *
@@ -48,7 +60,8 @@ public class DatabaseController {
    * allowed to add a review for a movie that does not exist. Users are currently allowed to make multiple reviews
    * for the same movie.
    *
-   * @param reviewDescription Freeform text from the user. No limits in size.
+   * @param reviewDescription Freeform text from the user. Limited only by the request size cap, long text is stored
+   *                          compressed as described in ReviewText.
    * @param username the user who created the review
    */
   public void createReview(String movieIdString, String reviewDescription, String username, String privacy){
@@ -57,18 +70,28 @@ public class DatabaseController {
     MongoCollection<Document> movieCollection = getMovieCollection();
 
     ObjectId movieId = new ObjectId(movieIdString);
-    // get the movie object to make sure it exists
-    Document movie = movieCollection.find(Filters.eq("_id", movieId)).first();
-
-    // if the movie exists
-    if(null != movie) {
-      // get the current date time to attach to the new review
-      BsonDateTime dateTimeCreated = new BsonDateTime(System.currentTimeMillis());
-      // create a new review
-      Document newReview = new Document("movieId", movieIdString).append("reviewDescription", reviewDescription)
-              .append("username", username.toLowerCase()).append("dateTimeCreated", dateTimeCreated)
-              .append("privacy", privacy);
-      reviewCollection.insertOne(newReview);
+    ObjectId reviewId = new ObjectId();
+    boolean hasBody = ReviewText.needsBody(reviewDescription);
+    // the full text goes in first, so a review never points at a body that isn't there
+    if (hasBody) {
+      getReviewBodyCollection().insertOne(new Document("_id", reviewId).append("encoding", "deflate")
+              .append("body", ReviewText.compress(reviewDescription)));
+    }
+    // get the current date time to attach to the new review
+    BsonDateTime dateTimeCreated = new BsonDateTime(System.currentTimeMillis());
+    // create a new review
+    Document newReview = new Document("_id", reviewId).append("movieId", movieIdString)
+            .append("reviewDescription", ReviewText.excerpt(reviewDescription)).append("hasBody", hasBody)
+            .append("username", username.toLowerCase()).append("dateTimeCreated", dateTimeCreated)
+            .append("privacy", privacy);
+    reviewCollection.insertOne(newReview);
+
+    // count it on the movie, this also tells us whether the movie exists
+    UpdateResult result = movieCollection.updateOne(Filters.eq("_id", movieId), Updates.inc("reviewCount", 1));
+    // if the movie doesn't exist the review isn't kept
+    if (result.getMatchedCount() == 0) {
+      reviewCollection.deleteOne(Filters.eq("_id", reviewId));
+      if (hasBody) { getReviewBodyCollection().deleteOne(Filters.eq("_id", reviewId)); }
     }
   }
 
@@ -79,11 +102,14 @@ public class DatabaseController {
    *
    * getReviewsWithMovieId
    * getReviewsWithUser
+   *
+   * getReviewFeed
+   * getReviewWithId
    */
 
   /**
    * Creates and returns a list of reviews that match the given filter. This is called by many of the
-   * other get functions.
+   * other get functions. Long reviews come back as their excerpt with truncated set.
    * @param reviewsCollection Mongo collection of all Ratings
    * @param filter Bson filter to perform the find action over the collection
    * @return ArrayList&ltReview&gt containing all Reviews that match the filter
@@ -91,8 +117,10 @@ public class DatabaseController {
   private static ArrayList<Review> getReviewsWithFilter(MongoCollection<Document> reviewsCollection, Bson filter) {
     var reviews = reviewsCollection.find(filter).map(document -> {
       var re = new Review();
+      re.setId(document.getObjectId("_id").toHexString());
       re.setUsername(document.getString("username"));
       re.setReviewDescription(document.getString("reviewDescription"));
+      re.setTruncated(document.getBoolean("hasBody", false));
       re.setMovieId(document.getString("movieId"));
       re.setDateTimeCreated(document.get("dateTimeCreated").toString());
       re.setPrivacy(document.getString("privacy"));
@@ -125,6 +153,88 @@ public class DatabaseController {
     return getReviewsWithFilter(reviews, filter);
   }
 
+  /**
+   * Returns one page of a review feed, newest first. Pages are found by where the last one ended rather than by how
+   * many reviews to skip, so with the movieId and username indexes every page costs the same however deep it is.
+   * Review text is cut to a summary on the database side, the full review is fetched with getReviewWithId.
+   * @param field either "movieId" or "username"
+   * @param value the movie hexId or username whose reviews to return
+   * @param continuationToken token from the previous page, or null for the first page
+   * @param pageSize most reviews to return
+   * @return the page, with a token for the next one if there are more reviews
+   * @throws IllegalArgumentException if the continuation token is malformed
+   */
+  public ReviewPage getReviewFeed(String field, String value, String continuationToken, int pageSize) {
+    Bson filter = Filters.eq(field, value);
+    if (continuationToken != null && !continuationToken.isEmpty()) {
+      filter = Filters.and(filter, ReviewFeedToken.after(continuationToken));
+    }
+    // one extra tells whether there is another page
+    List<Document> documents = getReviewCollection().aggregate(List.of(
+            Aggregates.match(filter),
+            Aggregates.sort(Sorts.descending("dateTimeCreated", "_id")),
+            Aggregates.limit(pageSize + 1),
+            Aggregates.project(getSummaryProjection()))).into(new ArrayList<>());
+
+    ReviewPage page = new ReviewPage();
+    List<Review> reviews = new ArrayList<>();
+    for (Document document : documents.subList(0, Math.min(pageSize, documents.size()))) {
+      var re = new Review();
+      re.setId(document.getObjectId("_id").toHexString());
+      re.setUsername(document.getString("username"));
+      re.setReviewDescription(document.getString("reviewDescription"));
+      re.setTruncated(document.getBoolean("truncated", false));
+      re.setMovieId(document.getString("movieId"));
+      re.setDateTimeCreated(document.get("dateTimeCreated").toString());
+      re.setPrivacy(document.getString("privacy"));
+      reviews.add(re);
+    }
+    page.setReviews(reviews);
+    if (documents.size() > pageSize) {
+      Document last = documents.get(pageSize - 1);
+      page.setContinuationToken(ReviewFeedToken.encode(last.getDate("dateTimeCreated").getTime(),
+              last.getObjectId("_id")));
+    }
+    return page;
+  }
+
+  /**
+   * Returns a single review with its full text.
+   * @param reviewId Mongo review hexId
+   * @return the review, or null if there is none with that id
+   */
+  public Review getReviewWithId(String reviewId) {
+    if (!ObjectId.isValid(reviewId)) { return null; }
+    ObjectId id = new ObjectId(reviewId);
+    List<Review> reviews = getReviewsWithFilter(getReviewCollection(), Filters.eq("_id", id));
+    if (reviews.isEmpty()) { return null; }
+    Review review = reviews.get(0);
+    if (review.isTruncated()) {
+      Document body = getReviewBodyCollection().find(Filters.eq("_id", id)).first();
+      // without its body a review still has its excerpt
+      if (body != null) {
+        review.setReviewDescription(ReviewText.decompress(body.get("body", Binary.class)));
+        review.setTruncated(false);
+      }
+    }
+    return review;
+  }
+
+  /**
+   * The review fields with the text cut to EXCERPT_LENGTH characters, and whether anything was cut. Reviews stored
+   * before long text moved to reviewBodies can still be long inline.
+   */
+  private static Bson getSummaryProjection() {
+    Document text = new Document("$ifNull", List.of("$reviewDescription", ""));
+    int length = ReviewText.EXCERPT_LENGTH;
+    return Projections.fields(
+            Projections.include("movieId", "username", "dateTimeCreated", "privacy"),
+            Projections.computed("reviewDescription", new Document("$substrCP", List.of(text, 0, length))),
+            Projections.computed("truncated", new Document("$or", List.of(
+                    new Document("$eq", List.of("$hasBody", true)),
+                    new Document("$gt", List.of(new Document("$strLenCP", text), length))))));
+  }
+
   /*
    * Review Update functions
    */
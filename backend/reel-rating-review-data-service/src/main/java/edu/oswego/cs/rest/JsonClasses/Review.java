@@ -1,15 +1,25 @@
 package edu.oswego.cs.rest.JsonClasses;
 
 public class Review extends JSession{
+  private String id;
   private String movieTitle;
   private String movieId;
   private String reviewDescription;
   private String dateTimeCreated;
   private String privacy;
   private String username;
+  private boolean truncated;
 
   public Review() {}
 
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
   public String getMovieTitle() {
     return movieTitle;
   }
@@ -51,4 +61,12 @@ public class Review extends JSession{
   public String getUsername() {
     return username;
   }
+
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void setTruncated(boolean truncated) {
+    this.truncated = truncated;
+  }
 }
@@ -0,0 +1,24 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+public class ReviewFeedRequest extends JSession {
+  private String continuationToken;
+  private Integer pageSize;
+
+  public ReviewFeedRequest() {}
+
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  public void setContinuationToken(String continuationToken) {
+    this.continuationToken = continuationToken;
+  }
+
+  public Integer getPageSize() {
+    return pageSize;
+  }
+
+  public void setPageSize(Integer pageSize) {
+    this.pageSize = pageSize;
+  }
+}
@@ -0,0 +1,26 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+public class ReviewPage {
+  private List<Review> reviews;
+  private String continuationToken;
+
+  public ReviewPage() {}
+
+  public List<Review> getReviews() {
+    return reviews;
+  }
+
+  public void setReviews(List<Review> reviews) {
+    this.reviews = reviews;
+  }
+
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  public void setContinuationToken(String continuationToken) {
+    this.continuationToken = continuationToken;
+  }
+}
@@ -0,0 +1,17 @@
+package edu.oswego.cs.rest;
+
+import jakarta.ws.rs.NameBinding;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an endpoint whose request body is cut off at <code>REVIEW_MAX_BODY_BYTES</code>, see LimitedBodyInterceptor.
+ */
+@NameBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface LimitedBody {
+}
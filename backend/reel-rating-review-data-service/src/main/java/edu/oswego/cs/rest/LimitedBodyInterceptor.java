@@ -0,0 +1,91 @@
+package edu.oswego.cs.rest;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.ReaderInterceptor;
+import jakarta.ws.rs.ext.ReaderInterceptorContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Rejects request bodies over <code>REVIEW_MAX_BODY_BYTES</code> (default 65536) on endpoints marked LimitedBody with
+ * 413. A declared Content-Length over the limit is rejected before anything is read, otherwise the stream is counted
+ * as JSON-B reads it and the request fails as soon as it passes the limit, so an oversized review is never held in
+ * memory whole. A Content-Length that isn't a number is rejected with 400.
+ */
+@Provider
+@LimitedBody
+public class LimitedBodyInterceptor implements ReaderInterceptor {
+
+  private static final long MAX_BYTES = Long.parseLong(getEnvOrDefault("REVIEW_MAX_BODY_BYTES", "65536"));
+
+  @Override
+  public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+    String contentLength = context.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH);
+    if (contentLength != null && parseLength(contentLength) > MAX_BYTES) { throw tooLarge(); }
+    LimitedInputStream limited = new LimitedInputStream(context.getInputStream());
+    context.setInputStream(limited);
+    try {
+      return context.proceed();
+    } catch (RuntimeException | IOException e) {
+      // JSON-B wraps whatever the stream threw, so check why reading stopped
+      if (limited.exceeded) { throw tooLarge(); }
+      throw e;
+    }
+  }
+
+  private static long parseLength(String contentLength) {
+    long length;
+    try {
+      length = Long.parseLong(contentLength.trim());
+    } catch (NumberFormatException e) {
+      throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    }
+    if (length < 0) { throw new WebApplicationException(Response.Status.BAD_REQUEST); }
+    return length;
+  }
+
+  private static WebApplicationException tooLarge() {
+    return new WebApplicationException(Response.Status.REQUEST_ENTITY_TOO_LARGE);
+  }
+
+  private static class LimitedInputStream extends FilterInputStream {
+    private long remaining = MAX_BYTES;
+    private boolean exceeded = false;
+
+    LimitedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) { count(1); }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) { count(read); }
+      return read;
+    }
+
+    private void count(int read) throws IOException {
+      remaining -= read;
+      if (remaining < 0) {
+        exceeded = true;
+        throw new IOException("request body over " + MAX_BYTES + " bytes");
+      }
+    }
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
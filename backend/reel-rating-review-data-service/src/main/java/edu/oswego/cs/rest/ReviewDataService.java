@@ -4,6 +4,8 @@ import com.ibm.websphere.security.jwt.JwtConsumer;
 
 import edu.oswego.cs.rest.JsonClasses.JSession;
 import edu.oswego.cs.rest.JsonClasses.Review;
+import edu.oswego.cs.rest.JsonClasses.ReviewFeedRequest;
+import edu.oswego.cs.rest.JsonClasses.ReviewPage;
 import jakarta.enterprise.context.RequestScoped;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.*;
@@ -22,6 +24,9 @@ public class ReviewDataService {
   
   String AuthServiceUrl = System.getenv("AUTH_SERVICE_URL");
 
+  private static final int DEFAULT_PAGE_SIZE = 20;
+  private static final int MAX_PAGE_SIZE = 100;
+
   /**
    * gets the username of the client request. Also authenticates the client using a JWT.
    *
@@ -51,6 +56,7 @@ public class ReviewDataService {
    * createReview
    */
   @POST
+  @LimitedBody
   @Consumes(MediaType.APPLICATION_JSON)
   @Path("/review/create/{movieId}")
   public Response createReview(@Context HttpServletRequest request, Review review, @PathParam("movieId") String movieId) throws Exception {
@@ -67,6 +73,9 @@ public class ReviewDataService {
    *
    * getReviewsWithUsername
    * getReviewsWithMovieId
+   * getReviewFeedWithUsername
+   * getReviewFeedWithMovieId
+   * getReviewWithId
    */
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
@@ -93,4 +102,53 @@ public class ReviewDataService {
     List<Review> reviews = dbc.getReviewsWithMovieId(movieId);
     return Response.ok(reviews).build();
   }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/reviews/getReviewFeedWithUsername/{username}")
+  public Response getReviewFeedWithUsername(@Context HttpServletRequest request, @PathParam("username") String username, ReviewFeedRequest feedRequest) throws Exception {
+    String sessionId = feedRequest.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    return getReviewFeed("username", username.toLowerCase(), feedRequest);
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/reviews/getReviewFeedWithMovieId/{movieId}")
+  public Response getReviewFeedWithMovieId(@Context HttpServletRequest request, @PathParam("movieId") String movieId, ReviewFeedRequest feedRequest) throws Exception {
+    String sessionId = feedRequest.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    return getReviewFeed("movieId", movieId, feedRequest);
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/reviews/getReviewWithId/{reviewId}")
+  public Response getReviewWithId(@Context HttpServletRequest request, @PathParam("reviewId") String reviewId, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    DatabaseController dbc = new DatabaseController();
+    Review review = dbc.getReviewWithId(reviewId);
+    if (review == null) { return Response.status(Response.Status.NOT_FOUND).build(); }
+    return Response.ok(review).build();
+  }
+
+  private Response getReviewFeed(String field, String value, ReviewFeedRequest feedRequest) {
+    int pageSize = feedRequest.getPageSize() == null ? DEFAULT_PAGE_SIZE : feedRequest.getPageSize();
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) { return Response.status(Response.Status.BAD_REQUEST).build(); }
+    DatabaseController dbc = new DatabaseController();
+    try {
+      ReviewPage page = dbc.getReviewFeed(field, value, feedRequest.getContinuationToken(), pageSize);
+      return Response.ok(page).build();
+    } catch (IllegalArgumentException e) {
+      // a token that wasn't handed out by this service
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+  }
 }
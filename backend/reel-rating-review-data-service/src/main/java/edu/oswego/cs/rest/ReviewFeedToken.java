@@ -0,0 +1,45 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDateTime;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Continuation tokens of the review feeds. A token is the dateTimeCreated and id of the last review on a page, URL safe
+ * base64 encoded, and the next page is the reviews after it in the feed's newest first order.
+ */
+public final class ReviewFeedToken {
+
+  private ReviewFeedToken() {}
+
+  /**
+   * @param dateTimeCreated creation time of the last review on the page, in milliseconds
+   * @param id id of the last review on the page
+   * @return the token for the page after it
+   */
+  public static String encode(long dateTimeCreated, ObjectId id) {
+    String position = dateTimeCreated + ":" + id.toHexString();
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param token token handed out with the previous page
+   * @return a filter matching the reviews that come after the token's review, newest first, ties broken by id
+   * @throws IllegalArgumentException if the token is malformed
+   */
+  public static Bson after(String token) {
+    String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+    String[] position = decoded.split(":");
+    if (position.length != 2 || !ObjectId.isValid(position[1])) {
+      throw new IllegalArgumentException(token);
+    }
+    BsonDateTime dateTimeCreated = new BsonDateTime(Long.parseLong(position[0]));
+    ObjectId id = new ObjectId(position[1]);
+    return Filters.or(Filters.lt("dateTimeCreated", dateTimeCreated),
+            Filters.and(Filters.eq("dateTimeCreated", dateTimeCreated), Filters.lt("_id", id)));
+  }
+}
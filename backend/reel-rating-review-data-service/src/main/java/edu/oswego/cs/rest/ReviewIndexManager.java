@@ -0,0 +1,58 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import org.bson.conversions.Bson;
+
+/**
+ * Creates the indexes the review feeds depend on when the application starts, so requests never send a
+ * createIndexes command themselves. Creating an index that already exists is a no-op. If Mongo can't be reached or a
+ * build fails, the indexes are tried again with a growing delay.
+ */
+@ApplicationScoped
+public class ReviewIndexManager {
+
+  private static final long FIRST_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60000;
+
+  /**
+   * Starts creating the indexes in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    Thread builder = new Thread(this::createIndexes, "review-index-builder");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  void createIndexes() {
+    long retryMs = FIRST_RETRY_MS;
+    while (true) {
+      try {
+        DatabaseController dbc = new DatabaseController();
+        // each feed is an equality on its owner then the newest first order, so a page is one index range scan
+        createIndex(dbc, Indexes.compoundIndex(Indexes.ascending("movieId"),
+                Indexes.descending("dateTimeCreated", "_id")), "movieId_1_dateTimeCreated_-1__id_-1");
+        createIndex(dbc, Indexes.compoundIndex(Indexes.ascending("username"),
+                Indexes.descending("dateTimeCreated", "_id")), "username_1_dateTimeCreated_-1__id_-1");
+        return;
+      } catch (MongoException e) {
+        e.printStackTrace();
+        try {
+          Thread.sleep(retryMs);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+      }
+    }
+  }
+
+  private static void createIndex(DatabaseController dbc, Bson keys, String name) {
+    dbc.getReviewCollection().createIndex(keys, new IndexOptions().name(name).background(true));
+  }
+}
@@ -0,0 +1,45 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDateTime;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReviewFeedTokenTest {
+
+  @Test
+  void filtersToTheReviewsAfterTheLastOne() {
+    ObjectId id = new ObjectId();
+    String token = ReviewFeedToken.encode(1700000000123L, id);
+    BsonDateTime time = new BsonDateTime(1700000000123L);
+    assertEquals(Filters.or(Filters.lt("dateTimeCreated", time),
+                    Filters.and(Filters.eq("dateTimeCreated", time), Filters.lt("_id", id))).toBsonDocument(),
+            ReviewFeedToken.after(token).toBsonDocument());
+  }
+
+  @Test
+  void tokensAreUrlSafe() {
+    String token = ReviewFeedToken.encode(Long.MAX_VALUE, new ObjectId());
+    assertTrue(token.matches("[A-Za-z0-9_-]+"), token);
+  }
+
+  @Test
+  void rejectsTokensItDidNotHandOut() {
+    assertThrows(IllegalArgumentException.class, () -> ReviewFeedToken.after("not base64!"));
+    assertThrows(IllegalArgumentException.class, () -> ReviewFeedToken.after(encode("1700000000123")));
+    assertThrows(IllegalArgumentException.class, () -> ReviewFeedToken.after(encode("1700000000123:xyz")));
+    assertThrows(IllegalArgumentException.class,
+            () -> ReviewFeedToken.after(encode("soon:" + new ObjectId().toHexString())));
+    assertThrows(IllegalArgumentException.class,
+            () -> ReviewFeedToken.after(encode("1:2:" + new ObjectId().toHexString())));
+  }
+
+  private static String encode(String position) {
+    return Base64.getUrlEncoder().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,64 @@
+package edu.oswego.cs.rest;
+
+import org.bson.types.Binary;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReviewTextTest {
+
+  @Test
+  void keepsShortReviewsInline() {
+    String text = "x".repeat(ReviewText.EXCERPT_LENGTH);
+    assertFalse(ReviewText.needsBody(text));
+    assertFalse(ReviewText.needsBody(null));
+    assertSame(text, ReviewText.excerpt(text));
+  }
+
+  @Test
+  void cutsLongReviewsToTheExcerpt() {
+    String text = "y".repeat(ReviewText.EXCERPT_LENGTH + 1);
+    assertTrue(ReviewText.needsBody(text));
+    assertEquals("y".repeat(ReviewText.EXCERPT_LENGTH), ReviewText.excerpt(text));
+  }
+
+  @Test
+  void countsCharactersNotSurrogatePairs() {
+    // each of these takes two chars
+    String clapper = new String(Character.toChars(0x1F3AC));
+    String text = clapper.repeat(ReviewText.EXCERPT_LENGTH);
+    assertFalse(ReviewText.needsBody(text));
+    String excerpt = ReviewText.excerpt(text + "!");
+    assertEquals(text, excerpt);
+    assertFalse(Character.isHighSurrogate(excerpt.charAt(excerpt.length() - 1)));
+  }
+
+  @Test
+  void compressesAndRestoresTheFullText() {
+    Random random = new Random(2);
+    for (int length : new int[] {0, 1, 600, 20000, 200000}) {
+      StringBuilder text = new StringBuilder();
+      while (text.length() < length) {
+        text.append(random.nextInt(4) == 0 ? "é " : "a great movie ").appendCodePoint(0x1F3AC);
+      }
+      Binary body = ReviewText.compress(text.toString());
+      assertEquals(text.toString(), ReviewText.decompress(body));
+    }
+  }
+
+  @Test
+  void shrinksRepetitiveText() {
+    String text = "The dragons were very cool. ".repeat(2000);
+    assertTrue(ReviewText.compress(text).length() < text.length() / 20);
+  }
+
+  @Test
+  void rejectsATruncatedBody() {
+    byte[] data = ReviewText.compress("Much music very wow! ".repeat(500)).getData();
+    Binary truncated = new Binary(Arrays.copyOf(data, data.length / 2));
+    assertThrows(IllegalStateException.class, () -> ReviewText.decompress(truncated));
+  }
+}
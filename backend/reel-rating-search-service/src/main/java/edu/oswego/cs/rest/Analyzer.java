@@ -0,0 +1,173 @@
+package edu.oswego.cs.rest;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns text into the form it is indexed and searched under, so every index and the queries against it agree on what
+ * counts as the same word. Text is case folded, accents are dropped, punctuation inside a word is removed ("Spider-Man"
+ * becomes "spiderman"), and runs of whitespace become a single space. TEXT then splits the result into words, drops
+ * common words, and strips plural endings.
+ *
+ * <p>Analyzers are immutable and shared. Nothing is compiled per call and text that is already in normal form is
+ * returned as is, so the autocomplete path doesn't allocate for most keystrokes.</p>
+ */
+public final class Analyzer {
+
+  /**
+   * Names matched by prefix, used by the autocomplete indexes. Words are kept whole so a partly typed word still
+   * matches.
+   */
+  public static final Analyzer NAME = new Analyzer(Set.of(), false);
+
+  /**
+   * Free text matched by whole words, used by the full-text index and the manual searches.
+   */
+  public static final Analyzer TEXT = new Analyzer(Set.of("a", "an", "and", "are", "as", "at", "be", "but", "by",
+          "for", "if", "in", "into", "is", "it", "of", "on", "or", "so", "that", "the", "their", "then", "there", "these",
+          "they", "this", "to", "was", "will", "with"), true);
+
+  private final Set<String> stopWords;
+  private final boolean stem;
+
+  private Analyzer(Set<String> stopWords, boolean stem) {
+    this.stopWords = stopWords;
+    this.stem = stem;
+  }
+
+  /**
+   * Case folds the text, drops accents and punctuation, and collapses whitespace.
+   * @param text text to normalize, may be null
+   * @return the normalized text, words separated by single spaces
+   */
+  public String normalize(String text) {
+    if (text == null) { return ""; }
+    if (isNormalized(text)) { return text; }
+    String decomposed = text;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) >= 0x80) {
+        // split accented letters into the letter and its marks, the marks are dropped below
+        decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        break;
+      }
+    }
+    StringBuilder builder = new StringBuilder(decomposed.length());
+    boolean pendingSpace = false;
+    for (int i = 0; i < decomposed.length(); ) {
+      int c = decomposed.codePointAt(i);
+      i += Character.charCount(c);
+      if (Character.isLetterOrDigit(c)) {
+        if (pendingSpace && builder.length() > 0) { builder.append(' '); }
+        pendingSpace = false;
+        builder.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c)));
+      } else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+        pendingSpace = true;
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Normalizes the text and splits it into words, dropping stop words and stemming if this analyzer does.
+   * @param text text to split, may be null
+   * @return the words in the order they appear, repeats included
+   */
+  public List<String> tokenize(String text) {
+    List<String> terms = new ArrayList<>();
+    String normalized = normalize(text);
+    int start = 0;
+    while (start < normalized.length()) {
+      int end = normalized.indexOf(' ', start);
+      if (end < 0) { end = normalized.length(); }
+      String term = normalized.substring(start, end);
+      if (!stopWords.contains(term)) { terms.add(stem ? stem(term) : term); }
+      start = end + 1;
+    }
+    return terms;
+  }
+
+  /**
+   * Receives the words of a text along with where they were found.
+   */
+  public interface TokenConsumer {
+    /**
+     * @param term the word as tokenize would return it
+     * @param start offset of the first char of the word in the original text
+     * @param end offset just past the last char of the word in the original text
+     */
+    void accept(String term, int start, int end);
+  }
+
+  /**
+   * Splits the text into the same words as tokenize, in the same order, and reports where each one is in the original
+   * text, so a match can be highlighted in the text as it was written. Normalizing never joins words across
+   * whitespace, so each run of text between whitespace is normalized on its own.
+   * @param text text to split, may be null
+   * @param consumer called once per word
+   */
+  public void tokenize(String text, TokenConsumer consumer) {
+    if (text == null) { return; }
+    int i = 0;
+    while (i < text.length()) {
+      int c = text.codePointAt(i);
+      if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+        i += Character.charCount(c);
+        continue;
+      }
+      int start = i;
+      while (i < text.length()) {
+        c = text.codePointAt(i);
+        if (Character.isWhitespace(c) || Character.isSpaceChar(c)) { break; }
+        i += Character.charCount(c);
+      }
+      int end = i;
+      String term = normalize(text.substring(start, end));
+      // a run of punctuation normalizes to nothing
+      if (term.isEmpty() || stopWords.contains(term)) { continue; }
+      // leave punctuation around the word out of its offsets, "(heroes)," is found at "heroes"
+      while (!Character.isLetterOrDigit(text.codePointAt(start))) {
+        start += Character.charCount(text.codePointAt(start));
+      }
+      while (!Character.isLetterOrDigit(text.codePointBefore(end))) {
+        end -= Character.charCount(text.codePointBefore(end));
+      }
+      consumer.accept(stem ? stem(term) : term, start, end);
+    }
+  }
+
+  /**
+   * @return true if the text is lowercase ASCII letters and digits with single spaces between words
+   */
+  private static boolean isNormalized(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == ' ') {
+        if (i == 0 || i == text.length() - 1 || text.charAt(i - 1) == ' ') { return false; }
+      } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Strips English plural endings, "stories" to "story", "heroes" to "hero", "stars" to "star". Words ending in "ss" or
+   * "us" and words of three letters or fewer are left alone. Indexing and querying both stem, so a word only has to
+   * stem the same way as its plural, not to a real word.
+   */
+  static String stem(String term) {
+    int length = term.length();
+    if (length <= 3 || term.charAt(length - 1) != 's') { return term; }
+    if (term.endsWith("ies") && !term.endsWith("eies") && !term.endsWith("aies")) {
+      return term.substring(0, length - 3) + 'y';
+    }
+    if (term.endsWith("oes") || term.endsWith("xes") || term.endsWith("ches") || term.endsWith("shes")
+            || term.endsWith("sses")) {
+      return term.substring(0, length - 2);
+    }
+    if (term.endsWith("ss") || term.endsWith("us")) { return term; }
+    return term.substring(0, length - 1);
+  }
+}
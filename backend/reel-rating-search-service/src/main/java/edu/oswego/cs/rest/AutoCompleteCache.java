@@ -0,0 +1,99 @@
+package edu.oswego.cs.rest;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.util.*;
+
+/**
+ * Caches autocomplete answers at two levels. Each session remembers the keys that matched its last query, so typing
+ * "star", "star ", "star w" filters an ever smaller list instead of searching the index again. Across sessions an LRU
+ * keeps the answers to popular prefixes. Both are tied to the index version, so a change from the change stream is
+ * visible on the next keystroke.
+ */
+@ApplicationScoped
+public class AutoCompleteCache {
+
+  // prefixes matching more keys than this are answered from the index directly instead of being remembered
+  private static final int MAX_CANDIDATES = Integer.parseInt(getEnvOrDefault("AUTOCOMPLETE_MAX_CANDIDATES", "2048"));
+  private static final int SHARED_ENTRIES = Integer.parseInt(getEnvOrDefault("AUTOCOMPLETE_CACHE_SIZE", "1024"));
+
+  /**
+   * What one session remembers between keystrokes.
+   */
+  public static class Session {
+    private final Map<AutoCompleteIndex.Field, LivePrefixIndex.Candidates> candidates =
+            new EnumMap<>(AutoCompleteIndex.Field.class);
+    private final Map<AutoCompleteIndex.Field, Long> versions = new EnumMap<>(AutoCompleteIndex.Field.class);
+  }
+
+  private static class Entry {
+    final long version;
+    final List<String> results;
+
+    Entry(long version, List<String> results) {
+      this.version = version;
+      this.results = results;
+    }
+  }
+
+  @Inject
+  AutoCompleteIndex autoCompleteIndex;
+
+  private final Map<String, Entry> shared = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > SHARED_ENTRIES;
+    }
+  };
+
+  /**
+   * Returns the best k values for the query, reusing what the session or other sessions already found.
+   * @param session the caller's session state, only used from one thread at a time
+   * @param field index to search
+   * @param query text typed so far
+   * @param k most values to return
+   * @return up to k values ordered best first
+   */
+  public List<String> complete(Session session, AutoCompleteIndex.Field field, String query, int k) {
+    long version = autoCompleteIndex.getVersion();
+    String key = field + ":" + k + ":" + Analyzer.NAME.normalize(query);
+    synchronized (shared) {
+      Entry entry = shared.get(key);
+      if (entry != null && entry.version == version) { return entry.results; }
+    }
+
+    List<String> results;
+    synchronized (session) {
+      results = complete(session, field, query, k, version);
+    }
+
+    results = Collections.unmodifiableList(results);
+    synchronized (shared) {
+      shared.put(key, new Entry(version, results));
+    }
+    return results;
+  }
+
+  private List<String> complete(Session session, AutoCompleteIndex.Field field, String query, int k, long version) {
+    LivePrefixIndex.Candidates previous = session.candidates.get(field);
+    if (previous != null && session.versions.get(field) == version && previous.covers(query)) {
+      LivePrefixIndex.Candidates narrowed = previous.narrow(query);
+      session.candidates.put(field, narrowed);
+      return narrowed.complete(k);
+    }
+    LivePrefixIndex.Candidates candidates = autoCompleteIndex.candidates(field, query, MAX_CANDIDATES);
+    if (candidates == null) {
+      session.candidates.remove(field);
+      return autoCompleteIndex.complete(field, query, k);
+    }
+    session.candidates.put(field, candidates);
+    session.versions.put(field, version);
+    return candidates.complete(k);
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
@@ -0,0 +1,389 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Projections;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory prefix indexes over movie titles, director names, actor names, release dates, tag names, and rating
+ * names. They are loaded from Mongo or a SearchSnapshot once and then kept current by SearchChangeStream, which hands
+ * every insert, update, and delete to the apply methods, so autocomplete can answer every keystroke without going to
+ * Mongo. The movie indexes complete to movie titles, the tag and rating indexes complete to the distinct names in use.
+ */
+@ApplicationScoped
+public class AutoCompleteIndex {
+
+  /**
+   * The names each index is built from.
+   */
+  public enum Field { TITLE, DIRECTOR, CAST, RELEASE_DATE, TAG_NAME, RATING_NAME }
+
+  /**
+   * The indexes together with the documents they were built from. Removing a document needs the values it was
+   * indexed under, and delete events only carry the document's id.
+   */
+  private static class Indexes {
+    final LivePrefixIndex titles = new LivePrefixIndex();
+    final LivePrefixIndex directors = new LivePrefixIndex();
+    final LivePrefixIndex actors = new LivePrefixIndex();
+    final LivePrefixIndex releaseDates = new LivePrefixIndex();
+    final LivePrefixIndex tagNames = new LivePrefixIndex();
+    final LivePrefixIndex ratingNames = new LivePrefixIndex();
+    // title to the number of reviews of the movies with that title, the fuzzy indexes rank equal matches by it
+    final Map<String, Integer> popularity = new ConcurrentHashMap<>();
+    // typo tolerant versions of the title, director, and actor indexes
+    final FuzzyIndex fuzzyTitles = new FuzzyIndex(popularity);
+    final FuzzyIndex fuzzyDirectors = new FuzzyIndex(popularity);
+    final FuzzyIndex fuzzyActors = new FuzzyIndex(popularity);
+
+    // movie id to its title, director, release date, and review count
+    final Map<String, Document> movies = new HashMap<>();
+    // actor id to its name and movie ids
+    final Map<String, Document> actorsById = new HashMap<>();
+    // movie id to the actors that list it, so a title change can re-point their entries
+    final Map<String, Set<String>> movieActors = new HashMap<>();
+    // tag and rating id to the name they were indexed under
+    final Map<String, String> tags = new HashMap<>();
+    final Map<String, String> ratings = new HashMap<>();
+
+    LivePrefixIndex get(Field field) {
+      return switch (field) {
+        case TITLE -> titles;
+        case DIRECTOR -> directors;
+        case CAST -> actors;
+        case RELEASE_DATE -> releaseDates;
+        case TAG_NAME -> tagNames;
+        case RATING_NAME -> ratingNames;
+      };
+    }
+
+    FuzzyIndex getFuzzy(Field field) {
+      return switch (field) {
+        case TITLE -> fuzzyTitles;
+        case DIRECTOR -> fuzzyDirectors;
+        case CAST -> fuzzyActors;
+        default -> null;
+      };
+    }
+
+    void add(Field field, String name, String value) {
+      get(field).add(name, value);
+      FuzzyIndex fuzzy = getFuzzy(field);
+      if (fuzzy != null) { fuzzy.add(name, value); }
+    }
+
+    void remove(Field field, String name, String value) {
+      get(field).remove(name, value);
+      FuzzyIndex fuzzy = getFuzzy(field);
+      if (fuzzy != null) { fuzzy.remove(name, value); }
+    }
+
+    void finishLoading() {
+      titles.finishLoading();
+      directors.finishLoading();
+      actors.finishLoading();
+      releaseDates.finishLoading();
+      tagNames.finishLoading();
+      ratingNames.finishLoading();
+    }
+  }
+
+  private volatile Indexes indexes;
+  // bumped on every change so cached completions can tell they are stale
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Reads every movie, actor, tag, and rating once and swaps in freshly built indexes. Only called at startup and when
+   * the change stream can't resume.
+   */
+  public void rebuild() {
+    DatabaseController dbc = new DatabaseController();
+    Indexes fresh = new Indexes();
+    for (Document movie : dbc.getMovieCollection().find()
+            .projection(Projections.include("title", "director", "releaseDate", "reviewCount"))) {
+      applyMovie(fresh, movie.getObjectId("_id").toHexString(), movie);
+    }
+    for (Document actor : dbc.getActorCollection().find().projection(Projections.include("name", "movies"))) {
+      applyActor(fresh, actor.getObjectId("_id").toHexString(), actor);
+    }
+    for (Document tag : dbc.getTagCollection().find().projection(Projections.include("tagName"))) {
+      applyName(fresh.tagNames, fresh.tags, tag.getObjectId("_id").toHexString(), tag.getString("tagName"));
+    }
+    for (Document rating : dbc.getRatingCollection().find().projection(Projections.include("ratingName"))) {
+      applyName(fresh.ratingNames, fresh.ratings, rating.getObjectId("_id").toHexString(),
+              rating.getString("ratingName"));
+    }
+    fresh.finishLoading();
+    synchronized (this) {
+      indexes = fresh;
+      version.incrementAndGet();
+    }
+  }
+
+  /**
+   * Writes the documents the indexes were built from, the indexes themselves are cheap to build again from them.
+   */
+  public void writeSnapshot(SearchSnapshot.Output out) throws IOException {
+    Indexes current = indexes;
+    out.writeInt(current.movies.size());
+    for (Map.Entry<String, Document> movie : current.movies.entrySet()) {
+      out.writeString(movie.getKey());
+      out.writeString(movie.getValue().getString("title"));
+      out.writeString(movie.getValue().getString("director"));
+      out.writeString(movie.getValue().getString("releaseDate"));
+      out.writeInt(movie.getValue().getInteger("reviewCount"));
+    }
+    out.writeInt(current.actorsById.size());
+    for (Map.Entry<String, Document> actor : current.actorsById.entrySet()) {
+      out.writeString(actor.getKey());
+      out.writeString(actor.getValue().getString("name"));
+      List<String> movieIds = actor.getValue().getList("movies", String.class);
+      out.writeInt(movieIds.size());
+      for (String movieId : movieIds) { out.writeString(movieId); }
+    }
+    writeNames(out, current.tags);
+    writeNames(out, current.ratings);
+  }
+
+  /**
+   * Builds the indexes from what writeSnapshot wrote and swaps them in, in place of reading Mongo.
+   */
+  public void readSnapshot(SearchSnapshot.Input in) {
+    Indexes fresh = new Indexes();
+    for (int i = in.readInt(); i > 0; i--) {
+      String id = in.readString();
+      Document movie = new Document("title", in.readString())
+              .append("director", in.readString())
+              .append("releaseDate", in.readString())
+              .append("reviewCount", in.readInt());
+      applyMovie(fresh, id, movie);
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      String id = in.readString();
+      String name = in.readString();
+      List<String> movieIds = new ArrayList<>();
+      for (int j = in.readInt(); j > 0; j--) { movieIds.add(in.readString()); }
+      applyActor(fresh, id, new Document("name", name).append("movies", movieIds));
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      applyName(fresh.tagNames, fresh.tags, in.readString(), in.readString());
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      applyName(fresh.ratingNames, fresh.ratings, in.readString(), in.readString());
+    }
+    fresh.finishLoading();
+    synchronized (this) {
+      indexes = fresh;
+      version.incrementAndGet();
+    }
+  }
+
+  private static void writeNames(SearchSnapshot.Output out, Map<String, String> names) throws IOException {
+    out.writeInt(names.size());
+    for (Map.Entry<String, String> name : names.entrySet()) {
+      out.writeString(name.getKey());
+      out.writeString(name.getValue());
+    }
+  }
+
+  /**
+   * @return true once the indexes have been loaded
+   */
+  public boolean isReady() {
+    return indexes != null;
+  }
+
+  /**
+   * Brings the indexes in line with the current state of a movie.
+   * @param id movie id
+   * @param movie the movie as it is now, or null if it was deleted
+   */
+  public synchronized void applyMovie(String id, Document movie) {
+    // most movie updates are rating, tag, and review bookkeeping that don't touch any indexed field
+    Document old = indexes.movies.get(id);
+    if (old != null && movie != null && Objects.equals(old.getString("title"), movie.getString("title"))
+            && Objects.equals(old.getString("director"), movie.getString("director"))
+            && Objects.equals(old.getString("releaseDate"), movie.getString("releaseDate"))) {
+      // a new review only moves the title's popularity, which completions don't depend on
+      int reviewCount = getReviewCount(movie);
+      addPopularity(indexes, old.getString("title"), reviewCount - old.getInteger("reviewCount"));
+      old.put("reviewCount", reviewCount);
+      return;
+    }
+    applyMovie(indexes, id, movie);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Brings the indexes in line with the current state of an actor.
+   * @param id actor id
+   * @param actor the actor as it is now, or null if it was deleted
+   */
+  public synchronized void applyActor(String id, Document actor) {
+    Document old = indexes.actorsById.get(id);
+    if (old != null && actor != null && Objects.equals(old.getString("name"), actor.getString("name"))
+            && actor.getList("movies", String.class) != null
+            && old.getList("movies", String.class).equals(
+                    new ArrayList<>(new LinkedHashSet<>(actor.getList("movies", String.class))))) { return; }
+    applyActor(indexes, id, actor);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Brings the tag name index in line with the current state of a tag.
+   * @param id tag id
+   * @param tag the tag as it is now, or null if it was deleted
+   */
+  public synchronized void applyTag(String id, Document tag) {
+    // votes update the tag without changing its name
+    if (applyName(indexes.tagNames, indexes.tags, id, tag == null ? null : tag.getString("tagName"))) {
+      version.incrementAndGet();
+    }
+  }
+
+  /**
+   * Brings the rating name index in line with the current state of a rating.
+   * @param id rating id
+   * @param rating the rating as it is now, or null if it was deleted
+   */
+  public synchronized void applyRating(String id, Document rating) {
+    if (applyName(indexes.ratingNames, indexes.ratings, id, rating == null ? null : rating.getString("ratingName"))) {
+      version.incrementAndGet();
+    }
+  }
+
+  private static void applyMovie(Indexes indexes, String id, Document movie) {
+    Set<String> actorIds = indexes.movieActors.getOrDefault(id, Collections.emptySet());
+    Document old = indexes.movies.remove(id);
+    if (old != null) {
+      String title = old.getString("title");
+      addPopularity(indexes, title, -old.getInteger("reviewCount"));
+      indexMovie(indexes, old, false);
+      for (String actorId : actorIds) {
+        indexes.remove(Field.CAST, indexes.actorsById.get(actorId).getString("name"), title);
+      }
+    }
+    if (movie == null || movie.getString("title") == null) { return; }
+    Document kept = new Document("title", movie.getString("title"))
+            .append("director", movie.getString("director"))
+            .append("releaseDate", movie.getString("releaseDate"))
+            .append("reviewCount", getReviewCount(movie));
+    indexes.movies.put(id, kept);
+    addPopularity(indexes, kept.getString("title"), kept.getInteger("reviewCount"));
+    indexMovie(indexes, kept, true);
+    for (String actorId : actorIds) {
+      indexes.add(Field.CAST, indexes.actorsById.get(actorId).getString("name"), kept.getString("title"));
+    }
+  }
+
+  private static void addPopularity(Indexes indexes, String title, int delta) {
+    if (delta == 0) { return; }
+    indexes.popularity.compute(title, (t, count) -> {
+      int updated = (count == null ? 0 : count) + delta;
+      return updated <= 0 ? null : updated;
+    });
+  }
+
+  /**
+   * @return the movie's reviewCount, 0 if it doesn't have one yet
+   */
+  private static int getReviewCount(Document movie) {
+    Object reviewCount = movie.get("reviewCount");
+    return reviewCount instanceof Number ? ((Number) reviewCount).intValue() : 0;
+  }
+
+  private static void indexMovie(Indexes indexes, Document movie, boolean add) {
+    String title = movie.getString("title");
+    List<String> directors = new ArrayList<>();
+    // movies with more than one director list them separated by commas
+    String director = movie.getString("director");
+    if (director != null) {
+      directors.addAll(Arrays.asList(director.split(",")));
+    }
+    if (add) {
+      indexes.add(Field.TITLE, title, title);
+      indexes.add(Field.RELEASE_DATE, movie.getString("releaseDate"), title);
+      for (String name : directors) { indexes.add(Field.DIRECTOR, name, title); }
+    } else {
+      indexes.remove(Field.TITLE, title, title);
+      indexes.remove(Field.RELEASE_DATE, movie.getString("releaseDate"), title);
+      for (String name : directors) { indexes.remove(Field.DIRECTOR, name, title); }
+    }
+  }
+
+  private static void applyActor(Indexes indexes, String id, Document actor) {
+    Document old = indexes.actorsById.remove(id);
+    if (old != null) {
+      for (String movieId : old.getList("movies", String.class)) {
+        Set<String> actorIds = indexes.movieActors.get(movieId);
+        if (actorIds != null && actorIds.remove(id) && actorIds.isEmpty()) {
+          indexes.movieActors.remove(movieId);
+        }
+        Document movie = indexes.movies.get(movieId);
+        if (movie != null) {
+          indexes.remove(Field.CAST, old.getString("name"), movie.getString("title"));
+        }
+      }
+    }
+    if (actor == null || actor.getString("name") == null) { return; }
+    List<String> movieIds = actor.getList("movies", String.class);
+    Document kept = new Document("name", actor.getString("name"))
+            .append("movies", movieIds == null ? new ArrayList<String>() : new ArrayList<>(new LinkedHashSet<>(movieIds)));
+    indexes.actorsById.put(id, kept);
+    for (String movieId : kept.getList("movies", String.class)) {
+      // the actor may be inserted before the movie, in which case applyMovie picks the entry up later
+      indexes.movieActors.computeIfAbsent(movieId, k -> new HashSet<>()).add(id);
+      Document movie = indexes.movies.get(movieId);
+      if (movie != null) {
+        indexes.add(Field.CAST, kept.getString("name"), movie.getString("title"));
+      }
+    }
+  }
+
+  private static boolean applyName(LivePrefixIndex index, Map<String, String> names, String id, String name) {
+    String old = name == null ? names.remove(id) : names.put(id, name);
+    if (Objects.equals(old, name)) { return false; }
+    if (old != null) { index.remove(old, old); }
+    if (name != null) { index.add(name, name); }
+    return true;
+  }
+
+  /**
+   * @return a number that changes whenever the indexes do
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Typo tolerant search over titles, directors, or actors.
+   * @param field TITLE, DIRECTOR, or CAST
+   * @param query text to search for, possibly misspelled
+   * @param k most titles to return
+   * @return up to k movie titles, closest first
+   */
+  public List<String> searchFuzzy(Field field, String query, int k) {
+    FuzzyIndex fuzzy = indexes.getFuzzy(field);
+    if (fuzzy == null) { throw new IllegalArgumentException("no fuzzy index for " + field); }
+    return fuzzy.search(query, k);
+  }
+
+  public List<String> complete(Field field, String query, int k) {
+    return indexes.get(field).complete(query, k);
+  }
+
+  /**
+   * @param field index to read
+   * @param query text typed so far
+   * @param max most keys to collect
+   * @return every key matching the query, or null if there are more than max of them
+   */
+  public LivePrefixIndex.Candidates candidates(Field field, String query, int max) {
+    return indexes.get(field).candidates(query, max);
+  }
+}
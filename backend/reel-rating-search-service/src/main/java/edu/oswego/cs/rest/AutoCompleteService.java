@@ -1,12 +1,15 @@
 package edu.oswego.cs.rest;
 
 import edu.oswego.cs.rest.JsonClasses.Movie;
+import jakarta.inject.Inject;
 import jakarta.json.Json;
 import jakarta.websocket.*;
 import jakarta.websocket.server.ServerEndpoint;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 @ServerEndpoint(value = "/autocomplete", // "/systemLoad"
         decoders = { AutoCompleteDecoder.class },
@@ -15,13 +18,64 @@ import java.util.List;
 
 public class AutoCompleteService {
 
+    // number of titles shown under the search bar
+    private static final int MAX_RESULTS = 5;
+    // keystrokes closer together than this are coalesced into one search
+    private static final long MIN_INTERVAL_MS = Long.parseLong(getEnvOrDefault("AUTOCOMPLETE_MIN_INTERVAL_MS", "75"));
+    private static final int SEARCH_THREADS = Integer.parseInt(getEnvOrDefault("AUTOCOMPLETE_THREADS",
+            Integer.toString(Runtime.getRuntime().availableProcessors())));
+    private static final int SEARCH_QUEUE = Integer.parseInt(getEnvOrDefault("AUTOCOMPLETE_QUEUE", "256"));
+
+    // searches run here instead of on the WebSocket container's threads, shared by every session
+    private static final ThreadPoolExecutor searches = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(SEARCH_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "autocomplete-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // holds keystrokes until the session's minimum interval has passed
+    private static final ScheduledThreadPoolExecutor debouncer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "autocomplete-debouncer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        debouncer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Inject
+    AutoCompleteIndex autoCompleteIndex;
+
+    @Inject
+    AutoCompleteCache autoCompleteCache;
+
+    // the container creates one endpoint instance per connection, so these hold the session's state.
+    // every message bumps the generation, a search only sends its results if it is still the latest one
+    private final AtomicLong generation = new AtomicLong();
+    private volatile long lastSearchAt = 0;
+    private Future<?> scheduled;
+    private Future<?> inFlight;
+    // the keys that matched this session's last query, narrowed as the user keeps typing
+    private final AutoCompleteCache.Session cacheSession = new AutoCompleteCache.Session();
+    // a session can only write one async message at a time, results finishing meanwhile wait here and only the
+    // newest is kept since the ones before it are stale
+    private boolean sending;
+    private Object pendingSend;
+
     @OnOpen
     public void onOpen(Session session) {
-       
+
+    }
+
+    @OnClose
+    public void onClose(Session session) {
+        generation.incrementAndGet();
+        cancelPending();
     }
 
     @OnMessage
-    public void onMessage(String option, Session session) throws IOException {
+    public void onMessage(String option, Session session) {
 
 
         //string option.startswith().substring. if
@@ -34,71 +88,200 @@ public class AutoCompleteService {
         //Cast
         //then: var movies = movieDatabase.manualSearchByMovieCast(option);
 
+        // the newest keystroke wins, anything still waiting or running for this session is stale
+        long current = generation.incrementAndGet();
+        cancelPending();
+        long delay = Math.max(0, lastSearchAt + MIN_INTERVAL_MS - System.currentTimeMillis());
+        synchronized (this) {
+            scheduled = debouncer.schedule(() -> startSearch(option, session, current), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cancelPending() {
+        if (scheduled != null) { scheduled.cancel(false); }
+        // don't interrupt a running search, interrupting the Mongo driver mid-read closes its connection
+        if (inFlight != null) { inFlight.cancel(false); }
+    }
+
+    private void startSearch(String option, Session session, long current) {
+        if (generation.get() != current) { return; }
+        lastSearchAt = System.currentTimeMillis();
+        try {
+            synchronized (this) {
+                inFlight = searches.submit(() -> {
+                    if (generation.get() != current) { return; }
+                    var titles = search(option);
+                    if (generation.get() != current || !session.isOpen()) { return; }
+                    if (titles == null) {
+                        send(session, "Please do title: , cast: , director: etc.");
+                    } else {
+                        sendResults(session, titles);
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // every search thread is busy and the queue is full, the user's next keystroke will try again
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the search a message asks for.
+     * @param option the search type and the text typed so far, separated by a colon
+     * @return up to MAX_RESULTS movie titles, or null if the search type isn't known
+     */
+    private List<String> search(String option) {
         var movieDatabase = new DatabaseController();
 
 
         var split = option.split(":"); // cut at colon.
         var searchCommand = split[0];
-        var inputForSearch = split[1];
+        var inputForSearch = split.length > 1 ? split[1] : "";
+
+        // answer from the in-memory indexes once they are built, Mongo is only used while the service starts
+        if (autoCompleteIndex.isReady()) {
+            switch (searchCommand) {
+                case "title" -> {
+                    return autoCompleteCache.complete(cacheSession, AutoCompleteIndex.Field.TITLE, inputForSearch, MAX_RESULTS);
+                }
+                case "releasedate" -> {
+                    return autoCompleteCache.complete(cacheSession, AutoCompleteIndex.Field.RELEASE_DATE, inputForSearch, MAX_RESULTS);
+                }
+                case "director" -> {
+                    return autoCompleteCache.complete(cacheSession, AutoCompleteIndex.Field.DIRECTOR, inputForSearch, MAX_RESULTS);
+                }
+                case "cast" -> {
+                    return autoCompleteCache.complete(cacheSession, AutoCompleteIndex.Field.CAST, inputForSearch, MAX_RESULTS);
+                }
+                case "tag" -> {
+                    return autoCompleteCache.complete(cacheSession, AutoCompleteIndex.Field.TAG_NAME, inputForSearch, MAX_RESULTS);
+                }
+                case "rating" -> {
+                    return autoCompleteCache.complete(cacheSession, AutoCompleteIndex.Field.RATING_NAME, inputForSearch, MAX_RESULTS);
+                }
+                case "fuzzyTitle" -> {
+                    return autoCompleteIndex.searchFuzzy(AutoCompleteIndex.Field.TITLE, inputForSearch, MAX_RESULTS);
+                }
+                case "fuzzyDirector" -> {
+                    return autoCompleteIndex.searchFuzzy(AutoCompleteIndex.Field.DIRECTOR, inputForSearch, MAX_RESULTS);
+                }
+                case "fuzzyCast" -> {
+                    return autoCompleteIndex.searchFuzzy(AutoCompleteIndex.Field.CAST, inputForSearch, MAX_RESULTS);
+                }
+            }
+        }
 
         switch (searchCommand) {
             case "title" -> {
-                var movies = movieDatabase.manualSearchByMovieName(inputForSearch);
-                sendMovieResults(session, movies);
+                return getTitles(movieDatabase.manualSearchByMovieName(inputForSearch, MAX_RESULTS));
             }
 
             case "releasedate" -> {
-                var movies = movieDatabase.manualSearchByMovieReleaseDate(inputForSearch);
-                sendMovieResults(session, movies);
+                return getTitles(movieDatabase.manualSearchByMovieReleaseDate(inputForSearch, MAX_RESULTS));
             }
 
             case "director" -> {
-                var movies = movieDatabase.manualSearchByMovieDirector(inputForSearch);
-                sendMovieResults(session, movies);
+                return getTitles(movieDatabase.manualSearchByMovieDirector(inputForSearch, MAX_RESULTS));
             }
 
             case "cast" -> {
-                var movies = movieDatabase.manualSearchByMovieCast(inputForSearch);
-                sendMovieResults(session, movies);
+                return getTitles(movieDatabase.manualSearchByMovieCast(inputForSearch, MAX_RESULTS));
             }
 
             case "indexTitle" -> {
-                var movies = movieDatabase.searchByMovieNameIndex(inputForSearch);
-                sendMovieResults(session, movies);
+                return getTitles(movieDatabase.searchByMovieNameIndex(inputForSearch, MAX_RESULTS));
             }
 
             case "indexCast" -> {
-                var movies = movieDatabase.searchByMovieCastIndex(inputForSearch);
-                sendMovieResults(session, movies);
+                return getTitles(movieDatabase.searchByMovieCastIndex(inputForSearch, MAX_RESULTS));
+            }
+
+            // tag and rating names only come from the index, nothing to suggest until it is built
+            case "tag", "rating" -> {
+                return new ArrayList<>();
             }
             default -> {
-                session.getBasicRemote().sendText("Please do title: , cast: , director: etc.");
+                return null;
             }
         }
 
     }
 
-    private static void sendMovieResults(Session session, List<Movie> movies){
-        var builder = Json.createObjectBuilder();
+    private static List<String> getTitles(List<Movie> movies){
         //put first 5 movies found in here
-        var array = Json.createArrayBuilder();
+        var titles = new ArrayList<String>();
         //Picks between size and movies.size. In case less than 5 show up.
-        var maxIndex = Math.min(5, movies.size());
+        var maxIndex = Math.min(MAX_RESULTS, movies.size());
         for (int i = 0; i < maxIndex; i++) {
-            array.add(movies.get(i).getTitle());
+            titles.add(movies.get(i).getTitle());
         }
+        return titles;
+    }
+
+    private void sendResults(Session session, List<String> titles){
+        var builder = Json.createObjectBuilder();
+        var array = Json.createArrayBuilder();
+        titles.forEach(array::add);
         builder.add("results", array);
 
         var jsonResults = builder.build();
-        //Sending the list
+        //Sending the list without holding the search thread until it is written
+        send(session, jsonResults);
+    }
+
+    /**
+     * Sends a message once the previous one on this session has been written. Starting a second async send while
+     * one is in flight throws IllegalStateException.
+     */
+    private void send(Session session, Object message) {
+        synchronized (this) {
+            if (sending) {
+                pendingSend = message;
+                return;
+            }
+            sending = true;
+        }
+        write(session, message);
+    }
+
+    private void write(Session session, Object message) {
+        SendHandler handler = result -> {
+            if (!result.isOK()) {
+                //prints error
+                result.getException().printStackTrace();
+            }
+            Object next;
+            synchronized (this) {
+                next = pendingSend;
+                pendingSend = null;
+                if (next == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            write(session, next);
+        };
         try {
-            session.getBasicRemote().sendObject(jsonResults);
-        } catch (IOException | EncodeException e) {
-            //prints error
+            if (message instanceof String text) {
+                session.getAsyncRemote().sendText(text, handler);
+            } else {
+                session.getAsyncRemote().sendObject(message, handler);
+            }
+        } catch (IllegalStateException e) {
+            // the session closed underneath us, nothing more will be sent on it
             e.printStackTrace();
+            synchronized (this) {
+                sending = false;
+                pendingSend = null;
+            }
         }
     }
 
+    private static String getEnvOrDefault(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
     //Have a single endpoint but the endpoint reads the beginning part.
 
 
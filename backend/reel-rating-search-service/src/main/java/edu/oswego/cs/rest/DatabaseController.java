@@ -1,11 +1,16 @@
 package edu.oswego.cs.rest;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import com.mongodb.client.model.*;
 import edu.oswego.cs.rest.JsonClasses.*;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoClient;
@@ -13,7 +18,6 @@ import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
-import static com.mongodb.client.model.Filters.elemMatch;
 import static com.mongodb.client.model.Filters.eq;
 
 public class DatabaseController {
@@ -27,39 +31,15 @@ public class DatabaseController {
 
 
   /**
-   * Creates text index for the movie title field. Repeated calls of this method don't do anything.
-   */
-  public void createTitleIndex() {
-    var movies = getMovieCollection();
-    movies.createIndex(Indexes.text("title"));
-  }
-
-  /**
-   * Creates text index for actor name field. Repeated calls of this method don't do anything.
-   */
-  public void createActorNameIndex() {
-    var movies = getActorCollection();
-    movies.createIndex(Indexes.text("name"));
-  }
-
-  /**
-   * Creates text index for tag name field. Repeated calls of this method don't do anything.
-   */
-  public void createTagIndex() {
-    var tags = getTagCollection();
-    tags.createIndex(Indexes.text("tagName"));  
-  }
-
-  /**
-   * Creates text index for rating name field. Repeated calls of this method don't do anything.
+   * Get the admin database. Used to watch the progress of index builds.
+   *
+   * @return Admin database.
    */
-  public void createRatingIndex() {
-    var ratings = getRatingCollection();
-    ratings.createIndex(Indexes.text("ratingName"));
+  public static MongoDatabase getAdminDatabase() {
+    return mongoClient.getDatabase("admin");
   }
 
-  // We could have duplicate collections with the same data each of which have a text index for each field. That sounds
-  // like a bad idea since it'd make things harder to update and take up more space.
+  // The text indexes these searches rely on are declared and built by SearchIndexManager when the service starts.
 
   /**
    * Get the movie collection from the database.
@@ -97,6 +77,86 @@ public class DatabaseController {
     return getMovieDatabase().getCollection ("ratings");
   }
 
+  /**
+   * Get the review collection from the database.
+   *
+   * @return Reviews collection.
+   */
+  public MongoCollection<Document> getReviewCollection() {
+    return getMovieDatabase().getCollection("reviews");
+  }
+
+  /**
+   * Get the collection holding the full text of long reviews, deflated, keyed by review id.
+   *
+   * @return Review bodies collection.
+   */
+  public MongoCollection<Document> getReviewBodyCollection() {
+    return getMovieDatabase().getCollection("reviewBodies");
+  }
+
+  /**
+   * The review service keeps only an excerpt of a long review inline and sets hasBody. Replaces the excerpt of each
+   * such review with its full text, reading all of their bodies in one query.
+   *
+   * @param reviews review documents, changed in place.
+   */
+  public void fillReviewBodies(List<Document> reviews) {
+    Map<ObjectId, Document> longReviews = new HashMap<>();
+    for (Document review : reviews) {
+      if (review.getBoolean("hasBody", false)) { longReviews.put(review.getObjectId("_id"), review); }
+    }
+    if (longReviews.isEmpty()) { return; }
+    for (Document body : getReviewBodyCollection().find(Filters.in("_id", longReviews.keySet()))) {
+      longReviews.get(body.getObjectId("_id")).put("reviewDescription", inflate(body.get("body", Binary.class)));
+    }
+  }
+
+  /**
+   * Reads the full text of the given reviews, one query for the reviews and at most one more for the bodies of the
+   * long ones.
+   *
+   * @param reviewIds review hex ids, invalid ones are skipped
+   * @return review id to its text, missing for reviews that don't exist
+   */
+  public Map<String, String> getReviewTexts(List<String> reviewIds) {
+    List<ObjectId> ids = new ArrayList<>();
+    for (String reviewId : reviewIds) {
+      if (ObjectId.isValid(reviewId)) { ids.add(new ObjectId(reviewId)); }
+    }
+    Map<String, String> texts = new HashMap<>();
+    if (ids.isEmpty()) { return texts; }
+    List<Document> reviews = getReviewCollection().find(Filters.in("_id", ids))
+            .projection(Projections.include("reviewDescription", "hasBody")).into(new ArrayList<>());
+    fillReviewBodies(reviews);
+    for (Document review : reviews) {
+      String text = review.getString("reviewDescription");
+      if (text != null) { texts.put(review.getObjectId("_id").toHexString(), text); }
+    }
+    return texts;
+  }
+
+  private static String inflate(Binary body) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(body.getData());
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() * 3);
+      byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("truncated review body");
+        }
+        out.write(buffer, 0, length);
+      }
+      return out.toString(StandardCharsets.UTF_8);
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
   /**
    * Search movies by tag names.
    *
@@ -104,23 +164,12 @@ public class DatabaseController {
    * @return Movies with the tag.
    */
   public List<Movie> searchByTagName(String tagName) {
-    createTagIndex();
-    var moviesToReturn = new ArrayList<Movie>();
-    TextSearchOptions options = new TextSearchOptions().caseSensitive(false);
-    //Return iterable of documents for tag name with search name
-    //Since Tags name only contains one movie but one movie contains multiple tagnames (possibly of the same name), it return the tagNames then compares the attached tags collection in Movies collection
-    Bson filter = Filters.text(tagName, options);
-    var tags = getTagCollection();
-    tags.find(filter).forEach(document -> {
-      String name = document.getString("tagName");
-      var movies = getMovieCollection();
-      Bson filters = elemMatch("AttachedTags", eq("tagName", name));
-      movies.find(filters).forEach(document1 -> {
-        Movie m = documentToMoviePreview(document1);
-        moviesToReturn.add(m);
-      });
-    });
-    return moviesToReturn;
+    //Many tag documents share a name, one per user and movie, so only the distinct names are looked up on movies
+    Set<String> names = new LinkedHashSet<>();
+    getTagCollection().find(Filters.text(tagName, new TextSearchOptions().caseSensitive(false)))
+            .projection(Projections.include("tagName"))
+            .forEach(document -> names.add(document.getString("tagName")));
+    return enrichMoviePreviews(getMoviePreviewsByNames("tagNames", names));
   }
 
   /**
@@ -130,21 +179,28 @@ public class DatabaseController {
    * @return Movies with the rating name.
    */
   public List<Movie> searchbyRatingName(String ratingName) {
-    createRatingIndex();
+    Set<String> names = new LinkedHashSet<>();
+    getRatingCollection().find(Filters.text(ratingName, new TextSearchOptions().caseSensitive(false)))
+            .projection(Projections.include("ratingName"))
+            .forEach(document -> names.add(document.getString("ratingName")));
+    return enrichMoviePreviews(getMoviePreviewsByNames("ratingCategoryNames", names));
+  }
+
+  /**
+   * Reads every movie listing one of the names in the given field with a single query. A movie listing several of
+   * the names is only returned once.
+   *
+   * @param field Movie array field holding the names, tagNames or ratingCategoryNames.
+   * @param names Names to look for.
+   * @return Movie previews, not enriched.
+   */
+  private List<Movie> getMoviePreviewsByNames(String field, Set<String> names) {
     var moviesToReturn = new ArrayList<Movie>();
-    TextSearchOptions options = new TextSearchOptions().caseSensitive(false);
-    //Return iterable of documents for Rating name with search name
-    Bson filter = Filters.text(ratingName, options);
-    var ratings = getRatingCollection();
-    ratings.find(filter).forEach(document -> {
-      String name = document.getString("ratingName");
-      var movies = getMovieCollection();
-      Bson filters = elemMatch("ratings", eq("ratingName", name));
-      movies.find(filters).forEach(document1 -> {
-        Movie m = documentToMoviePreview(document1);
-        moviesToReturn.add(m);
-      });
-    });
+    names.remove(null);
+    if (names.isEmpty()) { return moviesToReturn; }
+    getMovieCollection().find(Filters.in(field, names))
+            .projection(Projections.include("title", "plotSummary"))
+            .forEach(document -> moviesToReturn.add(documentToMoviePreview(document)));
     return moviesToReturn;
   }
 
@@ -166,15 +222,25 @@ public class DatabaseController {
    * @return The movies with similar titles
    */
   public List<Movie> searchByMovieNameIndex(String title){
-    //Must create a text index before running a text search
-    createTitleIndex();
+    return enrichMoviePreviews(searchByMovieNameIndex(title, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Search movies by name with Mongo's text search, keeping only the first matches. The previews are not enriched,
+   * see enrichMoviePreviews.
+   *
+   * @param title The title to search by.
+   * @param limit Most movies to return.
+   * @return Up to limit movies with similar titles.
+   */
+  public List<Movie> searchByMovieNameIndex(String title, int limit){
     var moviesToReturn = new ArrayList<Movie>();
     TextSearchOptions options = new TextSearchOptions().caseSensitive(false);
     //Returns iterable of documents
     Bson filter = Filters.text(title, options);
     var movies = getMovieCollection();
     //turning documents into movie objects
-    movies.find(filter).forEach(document -> {
+    movies.find(filter).limit(limit == Integer.MAX_VALUE ? 0 : limit).forEach(document -> {
       Movie m = documentToMoviePreview(document);
       moviesToReturn.add(m);
     });
@@ -197,36 +263,167 @@ public class DatabaseController {
    * @return Movies with similar titles.
    */
   public List<Movie> manualSearchByMovieName(String title) {
-    var moviesToReturn = new ArrayList<Movie>();
-    var movies = getMovieCollection();
-    //The partial part
-    String[] words = filterString(title);
-    movies.find().forEach(doc -> {
-      var movieTitle = doc.getString("title").toLowerCase();
-      for (String word : words) {
-        if (movieTitle.toLowerCase().contains(word)) {
-          var m = documentToMoviePreview(doc);
-          moviesToReturn.add(m);
-          break; //No duplicates
-        }
+    return enrichMoviePreviews(manualSearchByMovieName(title, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Search movies by name, keeping only the best matches. The previews are not enriched, see enrichMoviePreviews.
+   *
+   * @param title Movie title to search by.
+   * @param limit Most movies to return.
+   * @return Up to limit movies with similar titles, best first.
+   */
+  public List<Movie> manualSearchByMovieName(String title, int limit) {
+    return manualSearchByField("title", title, limit);
+  }
+
+  /**
+   * Scans one field of every movie and ranks the ones containing a word of the query. Only the field is read during
+   * the scan, each candidate is scored once, and a heap holds on to the best limit of them, so the number of matches
+   * only costs a comparison each. The winners are then read in full with a single query.
+   *
+   * @param field Movie field to match against.
+   * @param query Text to search for.
+   * @param limit Most movies to return.
+   * @return Up to limit movies, best first.
+   */
+  private List<Movie> manualSearchByField(String field, String query, int limit) {
+    List<String> words = Analyzer.TEXT.tokenize(query);
+    String normalizedQuery = Analyzer.NAME.normalize(query);
+    TopMatches topMatches = new TopMatches(limit);
+    getMovieCollection().find().projection(Projections.include(field)).forEach(doc -> {
+      String value = doc.getString(field);
+      if (value == null) { return; }
+      if (hasWordStartingWith(value, words)) {
+        topMatches.offer(doc.getObjectId("_id"), stringSimilarity(normalizedQuery, Analyzer.NAME.normalize(value)));
       }
     });
+    return getMoviePreviews(topMatches.getIds());
+  }
 
-    moviesToReturn.sort((o1, o2) -> {
-      int o1Score = stringSimilarity(title, o1.getTitle());
-      int o2Score = stringSimilarity(title, o2.getTitle());
-
-      return Integer.compare(o2Score, o1Score);
+  /**
+   * Reads the given movies with one query and turns them into previews in the same order.
+   *
+   * @param ids Movie ids in the order to return them.
+   * @return Movie previews.
+   */
+  private List<Movie> getMoviePreviews(List<ObjectId> ids) {
+    var moviesToReturn = new ArrayList<Movie>();
+    if (ids.isEmpty()) { return moviesToReturn; }
+    Map<ObjectId, Document> documents = new HashMap<>();
+    getMovieCollection().find(Filters.in("_id", ids)).forEach(doc -> documents.put(doc.getObjectId("_id"), doc));
+    for (ObjectId id : ids) {
+      Document doc = documents.get(id);
+      if (doc != null) {
+        moviesToReturn.add(documentToMoviePreview(doc));
+      }
+    }
+    return moviesToReturn;
+  }
 
-    });
+  /**
+   * Reads the movies with the given hex ids with one query, in the same order. The previews are not enriched, see
+   * enrichMoviePreviews.
+   *
+   * @param movieIds Movie hex ids in the order to return them.
+   * @return Movie previews.
+   */
+  public List<Movie> getMoviePreviewsByIds(List<String> movieIds) {
+    var ids = new ArrayList<ObjectId>();
+    movieIds.forEach(id -> ids.add(new ObjectId(id)));
+    return getMoviePreviews(ids);
+  }
 
+  /**
+   * Reads the movies with the given titles with one query, in the order of the titles. Movies sharing a title are
+   * all returned. The previews are not enriched, see enrichMoviePreviews.
+   *
+   * @param titles Movie titles in the order to return them.
+   * @return Movie previews.
+   */
+  public List<Movie> getMoviePreviewsByTitles(List<String> titles) {
+    var moviesToReturn = new ArrayList<Movie>();
+    if (titles.isEmpty()) { return moviesToReturn; }
+    Map<String, List<Document>> documents = new HashMap<>();
+    getMovieCollection().find(Filters.in("title", titles))
+            .forEach(doc -> documents.computeIfAbsent(doc.getString("title"), k -> new ArrayList<>()).add(doc));
+    for (String title : titles) {
+      for (Document doc : documents.getOrDefault(title, Collections.emptyList())) {
+        moviesToReturn.add(documentToMoviePreview(doc));
+      }
+    }
     return moviesToReturn;
   }
 
-  private static int stringSimilarity(String title, String o1) {
-    //The amount of characters starting from left to right that match the input string.
-    var inputLowerCase = title.toLowerCase();
-    var o1LowerCase = o1.toLowerCase();
+  /**
+   * Keeps the best scoring movie ids offered to it in a bounded min-heap. Ties go to the id offered first, which is
+   * the order a stable sort over every match used to give. Only the ids in the heap are remembered, so memory stays
+   * at the limit however many movies match. An id that was pushed out and is offered again counts as offered then.
+   */
+  private static class TopMatches {
+    private final int limit;
+    // the worst match is at the head
+    private final PriorityQueue<Match> heap;
+    // the match of every id currently in the heap
+    private final Map<ObjectId, Match> matches = new HashMap<>();
+    private long offered = 0;
+
+    TopMatches(int limit) {
+      this.limit = limit;
+      this.heap = new PriorityQueue<>(Math.min(limit, 64) + 1, (a, b) -> a.score != b.score
+              ? Integer.compare(a.score, b.score) : Long.compare(b.order, a.order));
+    }
+
+    /**
+     * Offers an id, or raises its score if it is already in the heap with a lower one.
+     */
+    void offer(ObjectId id, int score) {
+      if (limit <= 0) { return; }
+      Match match = matches.get(id);
+      if (match != null) {
+        if (match.score >= score) { return; }
+        heap.remove(match);
+        Match raised = new Match(id, score, match.order);
+        heap.add(raised);
+        matches.put(id, raised);
+        return;
+      }
+      long order = offered++;
+      if (heap.size() == limit) {
+        if (heap.peek().score >= score) { return; }
+        matches.remove(heap.poll().id);
+      }
+      match = new Match(id, score, order);
+      heap.add(match);
+      matches.put(id, match);
+    }
+
+    List<ObjectId> getIds() {
+      List<Match> best = new ArrayList<>(heap);
+      best.sort((a, b) -> a.score != b.score ? Integer.compare(b.score, a.score) : Long.compare(a.order, b.order));
+      List<ObjectId> ids = new ArrayList<>(best.size());
+      for (Match match : best) {
+        ids.add(match.id);
+      }
+      return ids;
+    }
+
+    private static class Match {
+      final ObjectId id;
+      final int score;
+      // when the id was offered, earlier wins a tie
+      final long order;
+
+      Match(ObjectId id, int score, long order) {
+        this.id = id;
+        this.score = score;
+        this.order = order;
+      }
+    }
+  }
+
+  private static int stringSimilarity(String inputLowerCase, String o1LowerCase) {
+    //The amount of characters starting from left to right that match the input string. Both are already normalized.
     int maxIndex = Math.min(inputLowerCase.length(), o1LowerCase.length());
 
     int score = 0;
@@ -243,27 +440,21 @@ public class DatabaseController {
     return score;
   }
 
-  //Looks to see if it matches by letter.
-
-
-  private static String[] filterString(String input) {
-    String[] notWords = input.toLowerCase().split(" ");
-    //Look for the word "and", "the"
-    //for each word in the string, take out -es, s, and punctuation
-    var suffixes = new String[] {"es", "s"};
-    var words = Arrays.stream(notWords)
-            .filter(word -> !(word.equals("the") || word.equals("and")))
-            .map(str -> str.replaceAll("['.,;:*#&()@!$%^]", "")) // remove punctuation
-            .map(str -> {
-              for (var suff : suffixes) {
-                if (str.endsWith(suff)) {
-                  return str.substring(0, str.length() - suff.length());
-                }
-              }
-              return str;
-            })
-            .toArray(String[]::new);
-    return words;
+  /**
+   * Checks whether a word of the value starts with one of the query words, both analyzed the same way, so a partly
+   * typed last word still matches.
+   *
+   * @param value Text to look in.
+   * @param words Query words from Analyzer.TEXT.
+   * @return True if any word matches.
+   */
+  private static boolean hasWordStartingWith(String value, List<String> words) {
+    for (String term : Analyzer.TEXT.tokenize(value)) {
+      for (String word : words) {
+        if (term.startsWith(word)) { return true; }
+      }
+    }
+    return false;
   }
 
   //enable partial search
@@ -277,31 +468,19 @@ public class DatabaseController {
    * @return Movies with the release date.
    */
   public List<Movie> manualSearchByMovieReleaseDate(String releaseDate) {
-    var moviesToReturn = new ArrayList<Movie>();
-    var movies = getMovieCollection();
-
-    String[] words = filterString(releaseDate);
-
-    movies.find().forEach(doc -> {
-      var movieDate = doc.getString("releaseDate");
-      for (String word : words) {
-        if (movieDate.toLowerCase().contains(word)) {
-          var m = documentToMoviePreview(doc);
-          moviesToReturn.add(m);
-          break; //No duplicates
-        }
-      }
-    });
-
-    moviesToReturn.sort((o1, o2) -> {
-      int o1Score = stringSimilarity(releaseDate, o1.getReleaseDate());
-      int o2Score = stringSimilarity(releaseDate, o2.getReleaseDate());
-
-      return Integer.compare(o2Score, o1Score);
-
-    });
+    return enrichMoviePreviews(manualSearchByMovieReleaseDate(releaseDate, Integer.MAX_VALUE));
+  }
 
-    return moviesToReturn;
+  /**
+   * Search movies by release date, keeping only the best matches. The previews are not enriched, see
+   * enrichMoviePreviews.
+   *
+   * @param releaseDate Release date to search by.
+   * @param limit Most movies to return.
+   * @return Up to limit movies with the release date, best first.
+   */
+  public List<Movie> manualSearchByMovieReleaseDate(String releaseDate, int limit) {
+    return manualSearchByField("releaseDate", releaseDate, limit);
   }
 
   /**
@@ -311,31 +490,19 @@ public class DatabaseController {
    * @return Movies with similar director names.
    */
   public List<Movie> manualSearchByMovieDirector(String director) {
-    var moviesToReturn = new ArrayList<Movie>();
-    var movies = getMovieCollection();
-
-    String[] words = filterString(director);
-
-    movies.find().forEach(doc -> {
-      var movieDirector = doc.getString("director");
-      for (String word : words) {
-        if (movieDirector.toLowerCase().contains(word)) {
-          var m = documentToMoviePreview(doc);
-          moviesToReturn.add(m);
-          break; //No duplicates
-        }
-      }
-    });
-
-    moviesToReturn.sort((o1, o2) -> {
-      int o1Score = stringSimilarity(director, o1.getDirector());
-      int o2Score = stringSimilarity(director, o2.getDirector());
-
-      return Integer.compare(o2Score, o1Score);
-
-    });
+    return enrichMoviePreviews(manualSearchByMovieDirector(director, Integer.MAX_VALUE));
+  }
 
-    return moviesToReturn;
+  /**
+   * Search movies by director, keeping only the best matches. The previews are not enriched, see
+   * enrichMoviePreviews.
+   *
+   * @param director The director to search by.
+   * @param limit Most movies to return.
+   * @return Up to limit movies with similar director names, best first.
+   */
+  public List<Movie> manualSearchByMovieDirector(String director, int limit) {
+    return manualSearchByField("director", director, limit);
   }
 
   //Get actor name ->actorid -> list of movies
@@ -348,42 +515,36 @@ public class DatabaseController {
    * @return Movies with the cast members given.
    */
   public List<Movie> manualSearchByMovieCast(String cast) {
+    return enrichMoviePreviews(manualSearchByMovieCast(cast, Integer.MAX_VALUE));
+  }
 
-    var moviesToReturn = new ArrayList<Movie>();
-    var actorsToSearch = new ArrayList<Actor>();
-    var actorsCollection = getActorCollection();
-    var moviesCollection = getMovieCollection();
-
-    String[] words = filterString(cast);
+  /**
+   * Search movies by cast, keeping only the best matches. A movie is scored by the best matching actor in it. The
+   * previews are not enriched, see enrichMoviePreviews.
+   *
+   * @param cast The cast to search for.
+   * @param limit Most movies to return.
+   * @return Up to limit movies with the cast members given, best first.
+   */
+  public List<Movie> manualSearchByMovieCast(String cast, int limit) {
+    List<String> words = Analyzer.TEXT.tokenize(cast);
+    String normalizedCast = Analyzer.NAME.normalize(cast);
+    TopMatches topMatches = new TopMatches(limit);
 
     //Looking into actor collection
-    actorsCollection.find().forEach(a->{
-      //if the input name has an actor associated with it, get the movieID associated with it.
-      for (String word : words) {
-        if (a.getString("name").toLowerCase().contains(word)){
-          var actorMovies = a.getList("movies", String.class);
-          actorMovies.forEach(id->{
-            var objectId = new ObjectId(id);
-            var filter = eq("_id", objectId);
-            //movieIds to movie objects
-            moviesCollection.find(filter).forEach(m->{
-              var movie = documentToMoviePreview(m);
-              moviesToReturn.add(movie);
-            });
-          });
-        }
+    getActorCollection().find().projection(Projections.include("name", "movies")).forEach(a -> {
+      String name = a.getString("name");
+      List<String> actorMovies = a.getList("movies", String.class);
+      if (name == null || actorMovies == null) { return; }
+      //if the input name has an actor associated with it, score the movies associated with it.
+      if (hasWordStartingWith(name, words)) {
+        int score = stringSimilarity(normalizedCast, Analyzer.NAME.normalize(name));
+        actorMovies.forEach(id -> topMatches.offer(new ObjectId(id), score));
       }
     });
 
-    moviesToReturn.sort((o1, o2) -> {
-      int o1Score = stringSimilarity(cast, o1.getPrincipleCast());
-      int o2Score = stringSimilarity(cast, o2.getPrincipleCast());
-
-      return Integer.compare(o2Score, o1Score);
-
-    });
-
-    return moviesToReturn;
+    //movieIds to movie objects
+    return getMoviePreviews(topMatches.getIds());
   }
 
 
@@ -398,28 +559,35 @@ public class DatabaseController {
    * @return Movies with similar cast members.
    */
   public List<Movie> searchByMovieCastIndex(String cast) {
+    return enrichMoviePreviews(searchByMovieCastIndex(cast, Integer.MAX_VALUE));
+  }
 
-    var moviesToReturn = new ArrayList<Movie>();
+  /**
+   * Search movies by cast with Mongo's text search, keeping only the first matches. The previews are not enriched,
+   * see enrichMoviePreviews.
+   *
+   * @param cast The cast to search for.
+   * @param limit Most movies to return.
+   * @return Up to limit movies with similar cast members.
+   */
+  public List<Movie> searchByMovieCastIndex(String cast, int limit) {
+    var movieIds = new ArrayList<ObjectId>();
     var actorsCollection = getActorCollection();
-    var moviesCollection = getMovieCollection();
 
-    //Must create a text index before running a text search
-    createActorNameIndex();
     var options = new TextSearchOptions().caseSensitive(false);
     Bson filter = Filters.text(cast, options);
-    actorsCollection.find(filter).forEach(a -> {
+    for (Document a : actorsCollection.find(filter).projection(Projections.include("movies"))) {
       var actorMovies = a.getList("movies", String.class);
-      actorMovies.forEach(id -> {
-        var objectId = new ObjectId(id);
-        var eqFilter = eq("_id", objectId);
-        moviesCollection.find(eqFilter).forEach(m -> {
-          var movie = documentToMoviePreview(m);
-          moviesToReturn.add(movie);
-        });
-      });
-    });
+      if (actorMovies == null) { continue; }
+      for (String id : actorMovies) {
+        if (movieIds.size() == limit) { break; }
+        movieIds.add(new ObjectId(id));
+      }
+      if (movieIds.size() == limit) { break; }
+    }
 
-    return moviesToReturn;
+    // one query for every movie instead of one per id
+    return getMoviePreviews(movieIds);
   }
 
 
@@ -453,100 +621,99 @@ public class DatabaseController {
     m.setId(document.getObjectId("_id").toHexString());
     m.setSummary(document.getString("plotSummary"));
     m.setTitle(document.getString("title"));
-    // get tags
-    ArrayList<String> tagNameList = new ArrayList<>();
-    for(Tag tag : getThreeTags(m.getId())) {
-      tagNameList.add(tag.getTagName());
-    }
-    m.setAttachedTags(tagNameList);
-    // mostPopAvgRating
-    // mostPopRatingUpperbound
-    // mostPopularRatingCategoryName
-    // get the most popular rating and average for each movie
-    Rating r = getMostPopularAggregatedRatingForMovie(m.getId());
-
-    // set the appropriate fields for each movie
-    //Do this if not null, do nothing if null.
-    if (r != null) {
-      m.setMostPopularRatingCategory(r.getRatingName());
-      m.setMostPopRatingUpperBound(r.getUpperbound());
-      m.setMostPopRatingAvg(r.getUserRating());
-    }
-
     return m;
   }
 
-  /*
-   * Methods to return those pesky little full movie cards
+  /**
+   * Fills in the tags and most popular rating of movie previews. Only run this on the movies that are actually
+   * returned, it costs one query on the tags and one on the ratings no matter how many movies are given.
+   *
+   * @param movies Movie previews to enrich.
+   * @return The same list.
    */
+  public static List<Movie> enrichMoviePreviews(List<Movie> movies) {
+    if (movies.isEmpty()) { return movies; }
+    Set<String> movieIds = new HashSet<>();
+    movies.forEach(movie -> movieIds.add(movie.getId()));
+
+    // get tags, the first three per movie
+    Map<String, List<String>> tagNames = new HashMap<>();
+    getMovieDatabase().getCollection("tags").aggregate(Arrays.asList(
+            Aggregates.match(Filters.in("movieId", movieIds)),
+            Aggregates.group("$movieId", Accumulators.push("tagNames", "$tagName")),
+            Aggregates.project(Projections.computed("tagNames", new Document("$slice", Arrays.asList("$tagNames", 3))))
+    )).forEach(doc -> tagNames.put(doc.getString("_id"), doc.getList("tagNames", String.class)));
 
-  public static List<Tag> getThreeTags(String movieId) {
-    List<Tag> tags = getTagsByMovieId(movieId);
-    return tags.subList(0, tags.size() < 3 ? tags.size() : 3);
-  }
-
-  public static List<Tag> getTagsByMovieId(String movieId) {
-    var reviews = getMovieDatabase().getCollection("tags");
-    var filter = eq("movieId", movieId);
-    return getTagsWithFilter(reviews, filter);
+    // mostPopAvgRating
+    // mostPopRatingUpperbound
+    // mostPopularRatingCategoryName
+    Map<String, Rating> ratings = getMostPopularAggregatedRatingsForMovies(movieIds);
+
+    for (Movie m : movies) {
+      m.setAttachedTags(new ArrayList<>(tagNames.getOrDefault(m.getId(), Collections.emptyList())));
+      // set the appropriate fields for each movie
+      //Do this if not null, do nothing if null.
+      Rating r = ratings.get(m.getId());
+      if (r != null) {
+        m.setMostPopularRatingCategory(r.getRatingName());
+        m.setMostPopRatingUpperBound(r.getUpperbound());
+        m.setMostPopRatingAvg(r.getUserRating());
+      }
+    }
+    return movies;
   }
 
-  private static ArrayList<Tag> getTagsWithFilter(MongoCollection<Document> tagCollection, Bson filter) {
-    var tags = tagCollection.find(filter).map(document -> {
-      var tag = new Tag();
-      tag.setTagName(document.getString("tagName"));
-      return tag;
+  /**
+   * Finds the most popular rating of many movies at once, with a single aggregation that counts
+   * and sums the ratings per movie, category, and upperbound.
+   *
+   * @param movieIds Movies to get ratings for.
+   * @return The most popular rating of every movie that has one, keyed by movie id.
+   */
+  public static Map<String, Rating> getMostPopularAggregatedRatingsForMovies(Collection<String> movieIds) {
+    // movie id -> rating name -> upperbound -> {count, sum}
+    Map<String, Map<String, Map<String, long[]>>> counts = new HashMap<>();
+    getMovieDatabase().getCollection("ratings").aggregate(Arrays.asList(
+            Aggregates.match(Filters.in("movieId", movieIds)),
+            Aggregates.group(new Document("movieId", "$movieId").append("ratingName", "$ratingName")
+                            .append("upperbound", "$upperbound"),
+                    Accumulators.sum("count", 1),
+                    Accumulators.sum("sum", new Document("$toInt", "$userRating")))
+    )).forEach(doc -> {
+      Document id = doc.get("_id", Document.class);
+      counts.computeIfAbsent(id.getString("movieId"), k -> new HashMap<>())
+              .computeIfAbsent(id.getString("ratingName"), k -> new HashMap<>())
+              .put(id.getString("upperbound"), new long[] {((Number) doc.get("count")).longValue(),
+                      ((Number) doc.get("sum")).longValue()});
     });
-    var list = new ArrayList<Tag>();
-    tags.forEach(list::add);
-    return list;
-  }
-
-  // ratings
-  public static Rating getMostPopularAggregatedRatingForMovie(String movieId) {
-    MongoCollection<Document> ratingCollection = getMovieDatabase().getCollection("ratings");
-    // get the most popular rating category name for the movie
-    Document ratingNameDoc = ratingCollection.aggregate(
-            Arrays.asList(
-                    Aggregates.match(eq("movieId", movieId)),
-                    Aggregates.group("$ratingName", Accumulators.sum("count", 1)),
-                    Aggregates.sort(Sorts.descending("count"))
-            )
-    ).first();
-
-    // return null immediately if ratingNameDoc is null
-    if (ratingNameDoc == null) {
-      return null;
-    }
 
-    // gets the most popular upperbound for the category
-    String mostPopularCategoryName = ratingNameDoc.getString("_id");
-    Document ratingScaleDoc = ratingCollection.aggregate(
-            Arrays.asList(
-                    Aggregates.match(Filters.and(eq("movieId", movieId), eq("ratingName", mostPopularCategoryName))),
-                    Aggregates.group("$upperbound", Accumulators.sum("count", 1)),
-                    Aggregates.sort(Sorts.descending("count"))
-            )
-    ).first();
-
-    String mostPopularCategoryUpperbound = ratingScaleDoc.getString("_id");
-
-    int userRatingSum = 0;
-    // using the most popular name and most popular upperbound go through and collect the sum of all the user ratings
-    // gets the most popular upperbound for the category
-    for (Document doc : ratingCollection.find(Filters.and(eq("movieId", movieId), eq("ratingName", mostPopularCategoryName), eq("upperbound", mostPopularCategoryUpperbound)))) {
-      userRatingSum = userRatingSum + Integer.parseInt(doc.getString("userRating"));
-    }
-    int count = ratingScaleDoc.getInteger("count");
-    double average = ((double) userRatingSum ) / count;
-//
-//    // create a rating object that has the most popular name, upperbound, and a userRating of the average of all
-//    //  the ratings of that name with that upperbound.
-//    //  TODO consider collecting for all ratings of this name which would take some normalizing. Is this worth it?
-    Rating rating = new Rating();
-    rating.setRatingName(mostPopularCategoryName);
-    rating.setUpperbound(mostPopularCategoryUpperbound);
-    rating.setUserRating(Double.toString(average));
-    return rating;
+    Map<String, Rating> ratings = new HashMap<>();
+    counts.forEach((movieId, byName) -> {
+      // the most popular rating category name for the movie
+      String mostPopularCategoryName = null;
+      long mostPopularCategoryCount = -1;
+      for (Map.Entry<String, Map<String, long[]>> entry : byName.entrySet()) {
+        long count = entry.getValue().values().stream().mapToLong(countAndSum -> countAndSum[0]).sum();
+        if (count > mostPopularCategoryCount) {
+          mostPopularCategoryName = entry.getKey();
+          mostPopularCategoryCount = count;
+        }
+      }
+      // the most popular upperbound for the category
+      String mostPopularCategoryUpperbound = null;
+      long[] mostPopular = null;
+      for (Map.Entry<String, long[]> entry : byName.get(mostPopularCategoryName).entrySet()) {
+        if (mostPopular == null || entry.getValue()[0] > mostPopular[0]) {
+          mostPopularCategoryUpperbound = entry.getKey();
+          mostPopular = entry.getValue();
+        }
+      }
+      Rating rating = new Rating();
+      rating.setRatingName(mostPopularCategoryName);
+      rating.setUpperbound(mostPopularCategoryUpperbound);
+      rating.setUserRating(Double.toString(((double) mostPopular[1]) / mostPopular[0]));
+      ratings.put(movieId, rating);
+    });
+    return ratings;
   }
 }
\ No newline at end of file
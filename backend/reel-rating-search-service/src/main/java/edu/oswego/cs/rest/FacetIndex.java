@@ -0,0 +1,275 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Projections;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The set of movies carrying each tag, rating category, and release decade, kept as MovieBitmaps over MovieOrdinals.
+ * A search collects its matches into a bitmap as it runs, after which the count for every facet value is an
+ * intersection count and filtering by several values is an AND or OR of their bitmaps, with no Mongo round trip.
+ *
+ * <p>The values come from the tagNames, ratingCategoryNames, and releaseDate fields of the movies, which the movie and
+ * rating services keep current. It is loaded from Mongo or a SearchSnapshot once and then kept current by
+ * SearchChangeStream.</p>
+ */
+@ApplicationScoped
+public class FacetIndex {
+
+  /**
+   * The ways results can be narrowed down.
+   */
+  public enum Facet { TAG, RATING_CATEGORY, DECADE }
+
+  private static final Pattern YEAR = Pattern.compile("\\b(\\d{4})\\b");
+
+  @Inject
+  MovieOrdinals movieOrdinals;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile boolean ready = false;
+
+  // facet value to the movies that have it, by facet
+  private final List<Map<String, MovieBitmap>> bitmaps = new ArrayList<>();
+  // ordinal to the values the movie is currently under, by facet, needed to undo them on an update
+  private final Map<Integer, String[][]> movieValues = new HashMap<>();
+  private MovieBitmap allMovies = new MovieBitmap();
+
+  public FacetIndex() {
+    for (Facet ignored : Facet.values()) { bitmaps.add(new HashMap<>()); }
+  }
+
+  /**
+   * Reads every movie's tags, rating categories, and release date once. Only called at startup and when the change
+   * stream can't resume.
+   */
+  public void rebuild() {
+    DatabaseController dbc = new DatabaseController();
+    lock.writeLock().lock();
+    try {
+      clear();
+      for (Document movie : dbc.getMovieCollection().find()
+              .projection(Projections.include("tagNames", "ratingCategoryNames", "releaseDate"))) {
+        applyMovieLocked(movie.getObjectId("_id").toHexString(), movie);
+      }
+      ready = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true once the index has been loaded
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Brings the bitmaps in line with the current state of a movie.
+   * @param id movie id
+   * @param movie the movie as it is now, or null if it was deleted
+   */
+  public void applyMovie(String id, Document movie) {
+    // a new movie's ordinal may need a round trip, done before the lock so searches don't wait on it
+    if (movie != null) { movieOrdinals.getOrdinal(id); }
+    lock.writeLock().lock();
+    try {
+      applyMovieLocked(id, movie);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Builds the filter a TextSearchIndex search runs its matches through.
+   * @param allowed movies to keep, or null to keep every movie
+   * @param kept every movie the filter keeps is added here, to count facets over afterwards
+   * @return a filter on movie ordinals
+   */
+  public IntPredicate collect(MovieBitmap allowed, MovieBitmap kept) {
+    return ordinal -> {
+      if (allowed != null && !allowed.contains(ordinal)) { return false; }
+      kept.add(ordinal);
+      return true;
+    };
+  }
+
+  /**
+   * Narrows a set of movies down to the ones with the wanted values. Facets are combined with AND. Within a facet a
+   * movie needs every wanted value if matchAll is set, otherwise any one of them.
+   * @param movies movies to narrow, or null for every movie
+   * @param wanted facet values to keep, facets without values don't narrow anything
+   * @param matchAll whether a movie needs every wanted value of a facet or just one
+   * @return the movies left
+   */
+  public MovieBitmap filter(MovieBitmap movies, Map<Facet, Collection<String>> wanted, boolean matchAll) {
+    lock.readLock().lock();
+    try {
+      // or-ing with nothing copies, the caller mustn't end up holding the live bitmap
+      MovieBitmap result = movies == null ? allMovies.or(new MovieBitmap()) : movies;
+      for (Map.Entry<Facet, Collection<String>> facet : wanted.entrySet()) {
+        if (facet.getValue() == null || facet.getValue().isEmpty()) { continue; }
+        MovieBitmap matching = null;
+        for (String value : facet.getValue()) {
+          MovieBitmap bitmap = bitmaps.get(facet.getKey().ordinal()).getOrDefault(value, new MovieBitmap());
+          if (matching == null) { matching = bitmap; }
+          else { matching = matchAll ? matching.and(bitmap) : matching.or(bitmap); }
+        }
+        result = result.and(matching);
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Counts how many of the movies carry each value of a facet.
+   * @param movies the movies to count over, usually a search's results
+   * @param facet facet to count
+   * @param max most values to return
+   * @return up to max values with a count above zero, highest count first, ties by name
+   */
+  public LinkedHashMap<String, Integer> count(MovieBitmap movies, Facet facet, int max) {
+    List<Map.Entry<String, Integer>> counts = new ArrayList<>();
+    // most values are on a few movies, against a dense copy those are a lookup per movie
+    MovieBitmap dense = movies.toDense();
+    lock.readLock().lock();
+    try {
+      for (Map.Entry<String, MovieBitmap> value : bitmaps.get(facet.ordinal()).entrySet()) {
+        int count = dense.andCardinality(value.getValue());
+        if (count > 0) { counts.add(new AbstractMap.SimpleEntry<>(value.getKey(), count)); }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    counts.sort((a, b) -> !a.getValue().equals(b.getValue())
+            ? Integer.compare(b.getValue(), a.getValue()) : a.getKey().compareTo(b.getKey()));
+    LinkedHashMap<String, Integer> top = new LinkedHashMap<>();
+    for (Map.Entry<String, Integer> entry : counts.subList(0, Math.min(max, counts.size()))) {
+      top.put(entry.getKey(), entry.getValue());
+    }
+    return top;
+  }
+
+  /**
+   * Writes each movie's facet values, the bitmaps are rebuilt from them.
+   */
+  public void writeSnapshot(SearchSnapshot.Output out) throws IOException {
+    lock.readLock().lock();
+    try {
+      out.writeInt(movieValues.size());
+      for (Map.Entry<Integer, String[][]> movie : movieValues.entrySet()) {
+        out.writeString(movieOrdinals.getMovieId(movie.getKey()));
+        for (String[] facetValues : movie.getValue()) {
+          out.writeInt(facetValues.length);
+          for (String value : facetValues) { out.writeString(value); }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the index with what writeSnapshot wrote.
+   */
+  public void readSnapshot(SearchSnapshot.Input in) {
+    lock.writeLock().lock();
+    try {
+      clear();
+      for (int i = in.readInt(); i > 0; i--) {
+        String movieId = in.readString();
+        int ordinal = movieOrdinals.find(movieId);
+        if (ordinal < 0) { throw new IllegalStateException("movie ordinals changed since the snapshot, " + movieId); }
+        String[][] values = new String[Facet.values().length][];
+        for (int f = 0; f < values.length; f++) {
+          values[f] = new String[in.readInt()];
+          for (int j = 0; j < values[f].length; j++) { values[f][j] = in.readString(); }
+        }
+        setValues(ordinal, values);
+      }
+      ready = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void clear() {
+    bitmaps.forEach(Map::clear);
+    movieValues.clear();
+    allMovies = new MovieBitmap();
+  }
+
+  /**
+   * Only looks the ordinal up, a movie that wasn't handed one is left out until its next change.
+   */
+  private void applyMovieLocked(String id, Document movie) {
+    int ordinal = movieOrdinals.find(id);
+    if (ordinal < 0) { return; }
+    setValues(ordinal, null);
+    if (movie == null) { return; }
+    String[][] values = new String[Facet.values().length][];
+    values[Facet.TAG.ordinal()] = distinctValues(movie.getList("tagNames", String.class));
+    values[Facet.RATING_CATEGORY.ordinal()] = distinctValues(movie.getList("ratingCategoryNames", String.class));
+    String decade = getDecade(movie.getString("releaseDate"));
+    values[Facet.DECADE.ordinal()] = decade == null ? new String[0] : new String[] {decade};
+    setValues(ordinal, values);
+  }
+
+  /**
+   * Moves a movie from the bitmaps of its old values to those of the new ones.
+   */
+  private void setValues(int ordinal, String[][] values) {
+    String[][] old = values == null ? movieValues.remove(ordinal) : movieValues.put(ordinal, values);
+    if (old != null) {
+      for (Facet facet : Facet.values()) {
+        Map<String, MovieBitmap> facetBitmaps = bitmaps.get(facet.ordinal());
+        for (String value : old[facet.ordinal()]) {
+          MovieBitmap bitmap = facetBitmaps.get(value);
+          if (bitmap != null && bitmap.remove(ordinal) && bitmap.isEmpty()) { facetBitmaps.remove(value); }
+        }
+      }
+      allMovies.remove(ordinal);
+    }
+    if (values != null) {
+      for (Facet facet : Facet.values()) {
+        for (String value : values[facet.ordinal()]) {
+          bitmaps.get(facet.ordinal()).computeIfAbsent(value, v -> new MovieBitmap()).add(ordinal);
+        }
+      }
+      allMovies.add(ordinal);
+    }
+  }
+
+  /**
+   * The rating service appends a category name every time it is used, so the same name can appear many times.
+   */
+  private static String[] distinctValues(List<String> values) {
+    if (values == null) { return new String[0]; }
+    Set<String> distinct = new LinkedHashSet<>(values);
+    distinct.remove(null);
+    return distinct.toArray(new String[0]);
+  }
+
+  /**
+   * @param releaseDate release date in whatever format it was entered, for example "1999" or "1999-03-31"
+   * @return the decade of the first year in it, for example "1990s", or null if there is none
+   */
+  static String getDecade(String releaseDate) {
+    if (releaseDate == null) { return null; }
+    Matcher matcher = YEAR.matcher(releaseDate);
+    if (!matcher.find()) { return null; }
+    return (Integer.parseInt(matcher.group(1)) / 10 * 10) + "s";
+  }
+}
@@ -0,0 +1,393 @@
+package edu.oswego.cs.rest;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Typo tolerant index over names. Like PrefixIndex, every name is indexed once per word starting at that word, and a
+ * query matches a key when it is within a few edits of the start of the key, so "star wors" and "matirx" find
+ * "Star Wars" and "The Matrix".
+ *
+ * <p>Keys are found through a trigram posting index. A query within d edits of a key shares all but at most 4d of its
+ * distinct trigrams with it, so only the shortest few posting lists of the query's trigrams have to be read to find
+ * every candidate. Each candidate is then checked with a Levenshtein distance that gives up as soon as it goes over
+ * d. Matches are ranked by edit distance, then matches at the start of the name, then by the popularity of the value,
+ * then shorter values first. Popularity is whatever the owner puts in the map it hands over, AutoCompleteIndex uses
+ * the number of reviews of the movies with that title.</p>
+ *
+ * <p>Names are reference counted the same way as LivePrefixIndex. A key that loses its last value is taken out of its
+ * posting lists and its id is reused by the next new key, so churn from the change stream doesn't grow the index.
+ * Reads share a lock and writes take it alone.</p>
+ */
+public class FuzzyIndex {
+
+  // only the start of each key is broken into trigrams, a query can only match that far into a key anyway
+  private static final int INDEXED_CHARS = 32;
+  // marks the start of a key so the first letters count as trigrams too
+  private static final char PAD = '\u0001';
+  // an insert, delete, or substitution changes at most 3 trigrams, swapping two letters at most 4
+  private static final int GRAMS_PER_EDIT = 4;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // every key with at least one value, by id. Freed ids hold null until a new key takes them
+  private final List<String> keys = new ArrayList<>();
+  private final Map<String, Integer> keyIds = new HashMap<>();
+  // for each key id, the values it completes to and whether the key starts at the beginning of that name
+  private final List<Map<String, KeyValue>> keyValues = new ArrayList<>();
+  // trigram to the ids of keys that contain it near their start
+  private final Map<String, IntList> postings = new HashMap<>();
+  // ids of keys that lost all their values, handed out again before new ids
+  private final IntList freeKeyIds = new IntList();
+  // (normalized name, value) pairs and how many times they were added
+  private final Map<String, Integer> references = new HashMap<>();
+  // value to its popularity, higher ranks first among otherwise equal matches. Owned and written by the caller
+  private final Map<String, Integer> popularity;
+
+  /**
+   * Creates an index that ranks equal matches by length alone.
+   */
+  public FuzzyIndex() {
+    this(Collections.emptyMap());
+  }
+
+  /**
+   * @param popularity value to its popularity. Read during searches without taking the index's lock, so it has to be
+   *                   safe for that, a ConcurrentHashMap for example
+   */
+  public FuzzyIndex(Map<String, Integer> popularity) {
+    this.popularity = popularity;
+  }
+
+  /**
+   * Adds a name that completes to the given value.
+   * @param name name to index
+   * @param value value returned when the name matches
+   */
+  public void add(String name, String value) {
+    String normalized = Analyzer.NAME.normalize(name);
+    if (normalized.isEmpty() || value == null) { return; }
+    lock.writeLock().lock();
+    try {
+      if (references.merge(normalized + '\u0000' + value, 1, Integer::sum) > 1) { return; }
+      for (String key : PrefixIndex.getKeys(normalized)) {
+        int keyId = getKeyId(key);
+        boolean fromStart = key.length() == normalized.length();
+        KeyValue keyValue = keyValues.get(keyId).computeIfAbsent(value, v -> new KeyValue());
+        if (fromStart) { keyValue.fromStart++; } else { keyValue.fromMiddle++; }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes one reference to a name that completes to the given value.
+   * @param name name that was indexed
+   * @param value value it completed to
+   */
+  public void remove(String name, String value) {
+    String normalized = Analyzer.NAME.normalize(name);
+    if (normalized.isEmpty() || value == null) { return; }
+    lock.writeLock().lock();
+    try {
+      String pair = normalized + '\u0000' + value;
+      Integer count = references.get(pair);
+      if (count == null) { return; }
+      if (count > 1) {
+        references.put(pair, count - 1);
+        return;
+      }
+      references.remove(pair);
+      for (String key : PrefixIndex.getKeys(normalized)) {
+        Integer keyId = keyIds.get(key);
+        if (keyId == null) { continue; }
+        Map<String, KeyValue> values = keyValues.get(keyId);
+        KeyValue keyValue = values.get(value);
+        if (keyValue == null) { continue; }
+        if (key.length() == normalized.length()) { keyValue.fromStart--; } else { keyValue.fromMiddle--; }
+        if (keyValue.fromStart <= 0 && keyValue.fromMiddle <= 0) { values.remove(value); }
+        if (values.isEmpty()) { releaseKeyId(key, keyId); }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the best k distinct values with a key close to the query.
+   * @param query text typed so far, possibly misspelled
+   * @param k most values to return
+   * @return up to k values, closest first
+   */
+  public List<String> search(String query, int k) {
+    String normalized = Analyzer.NAME.normalize(query);
+    if (normalized.isEmpty() || k <= 0) { return new ArrayList<>(); }
+    int maxDistance = getMaxDistance(normalized.length());
+    // the start of the query is enough to find candidates, the rest is checked by the edit distance
+    Set<String> grams = getTrigrams(normalized.substring(0, Math.min(normalized.length(),
+            INDEXED_CHARS - maxDistance)));
+    // repeated letters give fewer distinct trigrams, keep at least one trigram a match must share
+    maxDistance = Math.min(maxDistance, (grams.size() - 1) / GRAMS_PER_EDIT);
+
+    Map<String, Long> best = new HashMap<>();
+    lock.readLock().lock();
+    try {
+      List<IntList> lists = new ArrayList<>();
+      for (String gram : grams) {
+        IntList list = postings.get(gram);
+        lists.add(list == null ? IntList.EMPTY : list);
+      }
+      // a match shares at least grams - 4d trigrams with the query, so it is on one of the shortest 4d + 1 lists
+      lists.sort(Comparator.comparingInt(list -> list.size));
+      int needed = lists.size() - GRAMS_PER_EDIT * maxDistance;
+      int listsToRead = Math.min(lists.size(), GRAMS_PER_EDIT * maxDistance + 1);
+
+      // count how many of the query's trigrams each candidate has. The short lists are read in full, the long ones
+      // are only probed for the candidates the short ones found, posting lists are kept sorted by id
+      Counts counts = COUNTS.get();
+      counts.reset(keys.size());
+      for (int l = 0; l < listsToRead; l++) {
+        IntList list = lists.get(l);
+        for (int i = 0; i < list.size; i++) { counts.increment(list.values[i]); }
+      }
+      // walk the candidates in id order through each long list, galloping ahead so a probe costs about the log of
+      // the gap to the next candidate instead of the log of the whole list
+      int[] candidates = Arrays.copyOf(counts.keyIds, counts.touched);
+      int candidateCount = candidates.length;
+      Arrays.sort(candidates);
+      for (int l = listsToRead; l < lists.size(); l++) {
+        IntList list = lists.get(l);
+        int remaining = lists.size() - l - 1;
+        int position = 0;
+        int kept = 0;
+        for (int c = 0; c < candidateCount; c++) {
+          int keyId = candidates[c];
+          position = gallop(list, position, keyId);
+          if (position < list.size && list.values[position] == keyId) { counts.counts[keyId]++; }
+          // drop candidates that can't reach the count a match needs even if they are on every list left
+          if (counts.counts[keyId] + remaining >= needed) { candidates[kept++] = keyId; }
+        }
+        candidateCount = kept;
+      }
+
+      for (int c = 0; c < candidateCount; c++) {
+        int keyId = candidates[c];
+        if (counts.counts[keyId] < needed) { continue; }
+        Map<String, KeyValue> values = keyValues.get(keyId);
+        if (values.isEmpty()) { continue; }
+        int distance = getPrefixDistance(normalized, keys.get(keyId), maxDistance);
+        if (distance > maxDistance) { continue; }
+        for (Map.Entry<String, KeyValue> entry : values.entrySet()) {
+          long score = getScore(distance, entry.getValue().fromStart > 0, popularity.getOrDefault(entry.getKey(), 0),
+                  entry.getKey().length());
+          best.merge(entry.getKey(), score, Math::min);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    // bounded heap with the worst of the best k on top
+    PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(k + 1,
+            (a, b) -> Long.compare(b.getValue(), a.getValue()));
+    for (Map.Entry<String, Long> entry : best.entrySet()) {
+      heap.add(entry);
+      if (heap.size() > k) { heap.poll(); }
+    }
+    List<String> results = new ArrayList<>(heap.size());
+    while (!heap.isEmpty()) { results.add(heap.poll().getKey()); }
+    Collections.reverse(results);
+    return results;
+  }
+
+  /**
+   * @return the first position at or after from whose value is at least keyId
+   */
+  private static int gallop(IntList list, int from, int keyId) {
+    int step = 1;
+    int low = from;
+    int high = from;
+    while (high < list.size && list.values[high] < keyId) {
+      low = high + 1;
+      high += step;
+      step <<= 1;
+    }
+    high = Math.min(high, list.size);
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (list.values[middle] < keyId) { low = middle + 1; }
+      else { high = middle; }
+    }
+    return low;
+  }
+
+  /**
+   * @param length length of the normalized query
+   * @return how many edits a match may be away. Short queries have too few trigrams to allow any
+   */
+  static int getMaxDistance(int length) {
+    if (length <= 4) { return 0; }
+    if (length <= 8) { return 1; }
+    return 2;
+  }
+
+  /**
+   * Lower is better: edit distance first, then matches at the start of the name, then more popular values, then
+   * shorter values.
+   */
+  private static long getScore(int distance, boolean fromStart, int popularity, int length) {
+    long inversePopularity = (1 << 20) - 1 - Math.min(popularity, (1 << 20) - 1);
+    return ((long) distance << 42) | ((fromStart ? 0L : 1L) << 41) | (inversePopularity << 20)
+            | Math.min(length, (1 << 20) - 1);
+  }
+
+  /**
+   * Edit distance between the query and the closest prefix of the key, counting a swap of two neighbouring letters as
+   * one edit since that is the most common typo. Returns maxDistance + 1 once it is clear the distance is larger than
+   * maxDistance.
+   */
+  static int getPrefixDistance(String query, String key, int maxDistance) {
+    int m = query.length();
+    // a prefix longer than this is already too far away
+    int n = Math.min(key.length(), m + maxDistance);
+    int[] beforePrevious = new int[n + 1];
+    int[] previous = new int[n + 1];
+    int[] current = new int[n + 1];
+    for (int j = 0; j <= n; j++) { previous[j] = j; }
+    int previousRowMin = 0;
+    for (int i = 1; i <= m; i++) {
+      current[0] = i;
+      int rowMin = current[0];
+      char c = query.charAt(i - 1);
+      for (int j = 1; j <= n; j++) {
+        char k = key.charAt(j - 1);
+        int cost = c == k ? 0 : 1;
+        current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+        if (i > 1 && j > 1 && c == key.charAt(j - 2) && query.charAt(i - 2) == k) {
+          current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+        }
+        rowMin = Math.min(rowMin, current[j]);
+      }
+      // a swap reaches back two rows, so both have to be out of range
+      if (rowMin > maxDistance && previousRowMin > maxDistance) { return maxDistance + 1; }
+      previousRowMin = rowMin;
+      int[] swap = beforePrevious;
+      beforePrevious = previous;
+      previous = current;
+      current = swap;
+    }
+    int distance = Integer.MAX_VALUE;
+    for (int j = 0; j <= n; j++) { distance = Math.min(distance, previous[j]); }
+    return distance;
+  }
+
+  private static Set<String> getTrigrams(String text) {
+    String padded = "" + PAD + PAD + text;
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i + 3 <= padded.length(); i++) {
+      grams.add(padded.substring(i, i + 3));
+    }
+    return grams;
+  }
+
+  private int getKeyId(String key) {
+    Integer existing = keyIds.get(key);
+    if (existing != null) { return existing; }
+    int keyId;
+    if (freeKeyIds.size > 0) {
+      keyId = freeKeyIds.values[--freeKeyIds.size];
+      keys.set(keyId, key);
+    } else {
+      keyId = keys.size();
+      keys.add(key);
+      keyValues.add(new HashMap<>());
+    }
+    keyIds.put(key, keyId);
+    for (String gram : getTrigrams(key.substring(0, Math.min(key.length(), INDEXED_CHARS)))) {
+      postings.computeIfAbsent(gram, g -> new IntList()).insert(keyId);
+    }
+    return keyId;
+  }
+
+  private void releaseKeyId(String key, int keyId) {
+    keyIds.remove(key);
+    keys.set(keyId, null);
+    for (String gram : getTrigrams(key.substring(0, Math.min(key.length(), INDEXED_CHARS)))) {
+      IntList list = postings.get(gram);
+      if (list == null) { continue; }
+      list.delete(keyId);
+      if (list.size == 0) { postings.remove(gram); }
+    }
+    freeKeyIds.add(keyId);
+  }
+
+  // reused between searches on the same thread so counting candidates doesn't allocate
+  private static final ThreadLocal<Counts> COUNTS = ThreadLocal.withInitial(Counts::new);
+
+  /**
+   * Trigram counts by key id, along with the ids that were counted so only those need clearing.
+   */
+  private static class Counts {
+    int[] counts = new int[0];
+    int[] keyIds = new int[16];
+    int touched;
+
+    void reset(int keys) {
+      for (int c = 0; c < touched; c++) { counts[keyIds[c]] = 0; }
+      touched = 0;
+      if (counts.length < keys) { counts = new int[Math.max(keys, counts.length * 2)]; }
+    }
+
+    void increment(int keyId) {
+      if (counts[keyId]++ == 0) {
+        if (touched == keyIds.length) { keyIds = Arrays.copyOf(keyIds, touched * 2); }
+        keyIds[touched++] = keyId;
+      }
+    }
+  }
+
+  private static class KeyValue {
+    int fromStart;
+    int fromMiddle;
+  }
+
+  /**
+   * A growable list of ints, posting lists hold millions of them so boxing adds up.
+   */
+  private static class IntList {
+    static final IntList EMPTY = new IntList();
+
+    int[] values = new int[4];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) { values = Arrays.copyOf(values, size * 2); }
+      values[size++] = value;
+    }
+
+    /**
+     * Adds a value keeping the list sorted. New ids are the largest so far, so this is usually an append.
+     */
+    void insert(int value) {
+      if (size == 0 || values[size - 1] < value) {
+        add(value);
+        return;
+      }
+      int position = Arrays.binarySearch(values, 0, size, value);
+      if (position >= 0) { return; }
+      position = -position - 1;
+      if (size == values.length) { values = Arrays.copyOf(values, size * 2); }
+      System.arraycopy(values, position, values, position + 1, size - position);
+      values[position] = value;
+      size++;
+    }
+
+    void delete(int value) {
+      int position = Arrays.binarySearch(values, 0, size, value);
+      if (position < 0) { return; }
+      System.arraycopy(values, position + 1, values, position, size - position - 1);
+      size--;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+/**
+ * The facet values a faceted search is narrowed down to. Any list may be left out.
+ */
+public class FacetFilter extends JSession {
+  private List<String> tags;
+  private List<String> ratingCategories;
+  private List<String> decades;
+  // whether a movie needs every listed tag or rating category, rather than any one of them
+  private boolean matchAll;
+
+  public FacetFilter() {}
+
+  public List<String> getTags() { return tags; }
+  public void setTags(List<String> tags) { this.tags = tags; }
+
+  public List<String> getRatingCategories() { return ratingCategories; }
+  public void setRatingCategories(List<String> ratingCategories) { this.ratingCategories = ratingCategories; }
+
+  public List<String> getDecades() { return decades; }
+  public void setDecades(List<String> decades) { this.decades = decades; }
+
+  public boolean isMatchAll() { return matchAll; }
+  public void setMatchAll(boolean matchAll) { this.matchAll = matchAll; }
+}
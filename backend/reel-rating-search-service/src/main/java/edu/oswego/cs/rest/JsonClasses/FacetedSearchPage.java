@@ -0,0 +1,23 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+/**
+ * One page of ranked search results with the facet counts over all of them.
+ */
+public class FacetedSearchPage extends SearchPage {
+  private List<FacetCount> tags;
+  private List<FacetCount> ratingCategories;
+  private List<FacetCount> decades;
+
+  public FacetedSearchPage() {}
+
+  public List<FacetCount> getTags() { return tags; }
+  public void setTags(List<FacetCount> tags) { this.tags = tags; }
+
+  public List<FacetCount> getRatingCategories() { return ratingCategories; }
+  public void setRatingCategories(List<FacetCount> ratingCategories) { this.ratingCategories = ratingCategories; }
+
+  public List<FacetCount> getDecades() { return decades; }
+  public void setDecades(List<FacetCount> decades) { this.decades = decades; }
+}
@@ -0,0 +1,37 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+/**
+ * State of one of the Mongo indexes the search service relies on.
+ */
+public class IndexStatus {
+  private String collection;
+  private String name;
+  private String state;
+  private String error;
+  private Long progressDone;
+  private Long progressTotal;
+  private Long sizeBytes;
+
+  public IndexStatus() {}
+
+  public String getCollection() { return collection; }
+  public void setCollection(String collection) { this.collection = collection; }
+
+  public String getName() { return name; }
+  public void setName(String name) { this.name = name; }
+
+  public String getState() { return state; }
+  public void setState(String state) { this.state = state; }
+
+  public String getError() { return error; }
+  public void setError(String error) { this.error = error; }
+
+  public Long getProgressDone() { return progressDone; }
+  public void setProgressDone(Long progressDone) { this.progressDone = progressDone; }
+
+  public Long getProgressTotal() { return progressTotal; }
+  public void setProgressTotal(Long progressTotal) { this.progressTotal = progressTotal; }
+
+  public Long getSizeBytes() { return sizeBytes; }
+  public void setSizeBytes(Long sizeBytes) { this.sizeBytes = sizeBytes; }
+}
@@ -0,0 +1,13 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+/**
+ * Narrows a review search down to the reviews of one movie. The movie may be left out to search every review.
+ */
+public class ReviewSearchFilter extends JSession {
+  private String movieId;
+
+  public ReviewSearchFilter() {}
+
+  public String getMovieId() { return movieId; }
+  public void setMovieId(String movieId) { this.movieId = movieId; }
+}
@@ -0,0 +1,34 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+/**
+ * A review that matched a search, with the part of its text that matched best.
+ */
+public class ReviewSearchHit {
+  private String reviewId;
+  private String movieId;
+  private String username;
+  private double score;
+  private String snippet;
+  // start and end offsets into the snippet of each matched word, in pairs
+  private int[] highlights;
+
+  public ReviewSearchHit() {}
+
+  public String getReviewId() { return reviewId; }
+  public void setReviewId(String reviewId) { this.reviewId = reviewId; }
+
+  public String getMovieId() { return movieId; }
+  public void setMovieId(String movieId) { this.movieId = movieId; }
+
+  public String getUsername() { return username; }
+  public void setUsername(String username) { this.username = username; }
+
+  public double getScore() { return score; }
+  public void setScore(double score) { this.score = score; }
+
+  public String getSnippet() { return snippet; }
+  public void setSnippet(String snippet) { this.snippet = snippet; }
+
+  public int[] getHighlights() { return highlights; }
+  public void setHighlights(int[] highlights) { this.highlights = highlights; }
+}
@@ -0,0 +1,27 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+/**
+ * One page of ranked review search results.
+ */
+public class ReviewSearchPage {
+  private List<ReviewSearchHit> reviews;
+  private int page;
+  private int pageSize;
+  private int total;
+
+  public ReviewSearchPage() {}
+
+  public List<ReviewSearchHit> getReviews() { return reviews; }
+  public void setReviews(List<ReviewSearchHit> reviews) { this.reviews = reviews; }
+
+  public int getPage() { return page; }
+  public void setPage(int page) { this.page = page; }
+
+  public int getPageSize() { return pageSize; }
+  public void setPageSize(int pageSize) { this.pageSize = pageSize; }
+
+  public int getTotal() { return total; }
+  public void setTotal(int total) { this.total = total; }
+}
@@ -0,0 +1,27 @@
+package edu.oswego.cs.rest.JsonClasses;
+
+import java.util.List;
+
+/**
+ * One page of ranked search results.
+ */
+public class SearchPage {
+  private List<Movie> movies;
+  private int page;
+  private int pageSize;
+  private int total;
+
+  public SearchPage() {}
+
+  public List<Movie> getMovies() { return movies; }
+  public void setMovies(List<Movie> movies) { this.movies = movies; }
+
+  public int getPage() { return page; }
+  public void setPage(int page) { this.page = page; }
+
+  public int getPageSize() { return pageSize; }
+  public void setPageSize(int pageSize) { this.pageSize = pageSize; }
+
+  public int getTotal() { return total; }
+  public void setTotal(int total) { this.total = total; }
+}
@@ -0,0 +1,232 @@
+package edu.oswego.cs.rest;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A PrefixIndex that can be changed one name at a time. Reads go to a compact, immutable base index plus a small
+ * overlay of names added since the base was built and the ids of the base's (name, value) pairs removed from it. Once
+ * the overlay grows past a threshold the base is rebuilt from the names held in memory, never from the database.
+ *
+ * <p>The same name can point at the same value more than once, for example two movies with the same title, so every
+ * (name, value) pair is reference counted and only leaves the index when its last reference is removed.</p>
+ *
+ * <p>Writes are synchronized and meant to come from a single thread. Reads don't take any locks.</p>
+ */
+public class LivePrefixIndex {
+
+  // rebuild the base once this many keys are in the overlay
+  private static final int COMPACT_THRESHOLD = 4096;
+
+  private volatile Base base = new Base(new PrefixIndex.Builder().build());
+  // keys added since the base was built, joined to the name they came from and their value with NUL characters so
+  // two names sharing a key and value stay apart, mapped to their rank
+  private final ConcurrentSkipListMap<String, Integer> added = new ConcurrentSkipListMap<>();
+  // every (normalized name, value) pair in the index and how many times it was added
+  private final Map<String, Integer> references = new HashMap<>();
+  private boolean loading = true;
+
+  /**
+   * Adds a name that completes to the given value.
+   * @param name name to index
+   * @param value value returned when the name matches
+   */
+  public synchronized void add(String name, String value) {
+    String normalized = Analyzer.NAME.normalize(name);
+    if (normalized.isEmpty() || value == null) { return; }
+    if (references.merge(normalized + '\u0000' + value, 1, Integer::sum) > 1 || loading) { return; }
+    // it was in the base and got removed, so just bring it back
+    int pair = base.index.getPairId(normalized, value);
+    if (pair >= 0 && base.removed.remove(pair)) { return; }
+    for (String key : PrefixIndex.getKeys(normalized)) {
+      added.put(getEntry(key, normalized, value), PrefixIndex.getRank(key.length() == normalized.length(), value));
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Removes one reference to a name that completes to the given value.
+   * @param name name that was indexed
+   * @param value value it completed to
+   */
+  public synchronized void remove(String name, String value) {
+    String normalized = Analyzer.NAME.normalize(name);
+    if (normalized.isEmpty() || value == null) { return; }
+    String pair = normalized + '\u0000' + value;
+    Integer count = references.get(pair);
+    if (count == null) { return; }
+    if (count > 1) {
+      references.put(pair, count - 1);
+      return;
+    }
+    references.remove(pair);
+    if (loading) { return; }
+    // it was only in the overlay, otherwise hide it in the base
+    if (added.containsKey(getEntry(normalized, normalized, value))) {
+      for (String key : PrefixIndex.getKeys(normalized)) {
+        added.remove(getEntry(key, normalized, value));
+      }
+    } else {
+      int pairId = base.index.getPairId(normalized, value);
+      if (pairId >= 0) { base.removed.add(pairId); }
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Builds the base once the initial names have been added. Until then added names are only counted.
+   */
+  public synchronized void finishLoading() {
+    loading = false;
+    compact();
+  }
+
+  /**
+   * Returns the best k distinct values that have a key starting with the query.
+   * @param query text typed so far
+   * @param k most values to return
+   * @return up to k values ordered best first
+   */
+  public List<String> complete(String query, int k) {
+    String prefix = Analyzer.NAME.normalize(query);
+    if (prefix.isEmpty() || k <= 0) { return new ArrayList<>(); }
+    PrefixIndex.TopK topK = new PrefixIndex.TopK(k);
+    Base current = base;
+    current.index.collect(prefix, topK, current.removed);
+    for (Map.Entry<String, Integer> entry : added.tailMap(prefix).entrySet()) {
+      String key = entry.getKey();
+      if (!key.startsWith(prefix)) { break; }
+      topK.offer(getValue(key), entry.getValue());
+    }
+    return topK.getValues();
+  }
+
+  /**
+   * Collects every key starting with the query so a longer query can be answered by filtering them.
+   * @param query text typed so far
+   * @param max most keys to collect
+   * @return the matching keys, or null if there are more than max of them
+   */
+  public Candidates candidates(String query, int max) {
+    String prefix = Analyzer.NAME.normalize(query);
+    Base current = base;
+    // the tail of the skip list is read twice, bounded by the compaction threshold
+    if (current.index.count(prefix) + added.subMap(prefix, prefix + Character.MAX_VALUE).size() > max) {
+      return null;
+    }
+    Candidates candidates = new Candidates(prefix);
+    current.index.forEach(prefix, current.removed, candidates::add);
+    for (Map.Entry<String, Integer> entry : added.tailMap(prefix).entrySet()) {
+      String key = entry.getKey();
+      if (!key.startsWith(prefix)) { break; }
+      candidates.add(key.substring(0, key.indexOf('\u0000')), getValue(key), entry.getValue());
+    }
+    return candidates;
+  }
+
+  /**
+   * A snapshot of the keys starting with one prefix, along with their values and ranks.
+   */
+  public static class Candidates {
+    private final String prefix;
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+    private final List<Integer> ranks = new ArrayList<>();
+
+    private Candidates(String prefix) {
+      this.prefix = prefix;
+    }
+
+    private void add(String key, String value, int rank) {
+      keys.add(key);
+      values.add(value);
+      ranks.add(rank);
+    }
+
+    /**
+     * @return the normalized prefix every key starts with
+     */
+    public String getPrefix() { return prefix; }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() { return keys.size(); }
+
+    /**
+     * @param query text typed so far
+     * @return true if every key matching the query is one of these candidates
+     */
+    public boolean covers(String query) {
+      return Analyzer.NAME.normalize(query).startsWith(prefix);
+    }
+
+    /**
+     * Filters the candidates down to a longer query without going back to the index.
+     * @param query text typed so far, must be covered by these candidates
+     * @return the candidates that still match
+     */
+    public Candidates narrow(String query) {
+      String longer = Analyzer.NAME.normalize(query);
+      if (longer.equals(prefix)) { return this; }
+      Candidates narrowed = new Candidates(longer);
+      for (int i = 0; i < keys.size(); i++) {
+        if (keys.get(i).startsWith(longer)) {
+          narrowed.add(keys.get(i), values.get(i), ranks.get(i));
+        }
+      }
+      return narrowed;
+    }
+
+    /**
+     * @param k most values to return
+     * @return the best k distinct values, best first
+     */
+    public List<String> complete(int k) {
+      if (prefix.isEmpty() || k <= 0) { return new ArrayList<>(); }
+      PrefixIndex.TopK topK = new PrefixIndex.TopK(k);
+      for (int i = 0; i < keys.size(); i++) {
+        topK.offer(values.get(i), ranks.get(i));
+      }
+      return topK.getValues();
+    }
+  }
+
+  private static String getEntry(String key, String normalizedName, String value) {
+    return key + '\u0000' + normalizedName + '\u0000' + value;
+  }
+
+  private static String getValue(String entry) {
+    return entry.substring(entry.indexOf('\u0000', entry.indexOf('\u0000') + 1) + 1);
+  }
+
+  private void compactIfNeeded() {
+    if (added.size() + base.removed.size() > COMPACT_THRESHOLD) {
+      compact();
+    }
+  }
+
+  private void compact() {
+    PrefixIndex.Builder builder = new PrefixIndex.Builder();
+    for (String pair : references.keySet()) {
+      int separator = pair.indexOf('\u0000');
+      builder.add(pair.substring(0, separator), pair.substring(separator + 1));
+    }
+    base = new Base(builder.build());
+    added.clear();
+  }
+
+  /**
+   * The base index along with the ids of its pairs that have been removed. They are swapped together because the
+   * ids only mean something in the index they came from.
+   */
+  private static class Base {
+    final PrefixIndex index;
+    final Set<Integer> removed = ConcurrentHashMap.newKeySet();
+
+    Base(PrefixIndex index) {
+      this.index = index;
+    }
+  }
+}
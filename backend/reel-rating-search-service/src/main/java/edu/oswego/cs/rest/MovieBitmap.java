@@ -0,0 +1,344 @@
+package edu.oswego.cs.rest;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of movie ordinals. Ordinals are split into chunks of 65536 by their high 16 bits. Each chunk stores
+ * its low 16 bits either as a sorted char array, while it holds up to 4096 of them, or as a 65536 bit bitmap once it
+ * is denser than that. Either way a chunk never takes more than 8KB, a tag on a handful of movies takes a few bytes,
+ * and intersecting two sets only touches the chunks they share.
+ *
+ * <p>Not thread safe, FacetIndex guards its bitmaps with its lock.</p>
+ */
+public class MovieBitmap {
+
+  // past this many values an array chunk takes more room than a bitmap chunk
+  private static final int ARRAY_MAX = 4096;
+  private static final int BITMAP_WORDS = 65536 / 64;
+
+  // high 16 bits of each chunk, sorted, and the chunks themselves
+  private char[] keys = new char[0];
+  private Chunk[] chunks = new Chunk[0];
+  private int chunkCount = 0;
+
+  /**
+   * The low 16 bits of the values in one chunk. Exactly one of values and words is in use.
+   */
+  private static class Chunk {
+    char[] values;
+    long[] words;
+    int cardinality;
+
+    static Chunk ofArray(char[] values, int cardinality) {
+      Chunk chunk = new Chunk();
+      chunk.values = values;
+      chunk.cardinality = cardinality;
+      return chunk;
+    }
+
+    static Chunk ofWords(long[] words) {
+      Chunk chunk = new Chunk();
+      chunk.words = words;
+      for (long word : words) { chunk.cardinality += Long.bitCount(word); }
+      return chunk.cardinality <= ARRAY_MAX ? chunk.toArray() : chunk;
+    }
+
+    boolean contains(char low) {
+      if (words != null) { return (words[low >>> 6] & (1L << low)) != 0; }
+      return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+    }
+
+    boolean add(char low) {
+      if (words != null) {
+        long bit = 1L << low;
+        if ((words[low >>> 6] & bit) != 0) { return false; }
+        words[low >>> 6] |= bit;
+        cardinality++;
+        return true;
+      }
+      int position = Arrays.binarySearch(values, 0, cardinality, low);
+      if (position >= 0) { return false; }
+      position = -position - 1;
+      if (cardinality == ARRAY_MAX) {
+        toWords();
+        return add(low);
+      }
+      if (cardinality == values.length) { values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2 + 4)); }
+      System.arraycopy(values, position, values, position + 1, cardinality - position);
+      values[position] = low;
+      cardinality++;
+      return true;
+    }
+
+    boolean remove(char low) {
+      if (words != null) {
+        long bit = 1L << low;
+        if ((words[low >>> 6] & bit) == 0) { return false; }
+        words[low >>> 6] &= ~bit;
+        if (--cardinality <= ARRAY_MAX / 2) { toArrayInPlace(); }
+        return true;
+      }
+      int position = Arrays.binarySearch(values, 0, cardinality, low);
+      if (position < 0) { return false; }
+      System.arraycopy(values, position + 1, values, position, cardinality - position - 1);
+      cardinality--;
+      return true;
+    }
+
+    private void toWords() {
+      words = new long[BITMAP_WORDS];
+      for (int i = 0; i < cardinality; i++) { words[values[i] >>> 6] |= 1L << values[i]; }
+      values = null;
+    }
+
+    private void toArrayInPlace() {
+      Chunk array = toArray();
+      values = array.values;
+      words = null;
+    }
+
+    private Chunk toArray() {
+      char[] array = new char[cardinality];
+      int i = 0;
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        long word = words[w];
+        while (word != 0) {
+          array[i++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return ofArray(array, cardinality);
+    }
+
+    long[] asWords() {
+      if (words != null) { return words; }
+      long[] result = new long[BITMAP_WORDS];
+      for (int i = 0; i < cardinality; i++) { result[values[i] >>> 6] |= 1L << values[i]; }
+      return result;
+    }
+
+    int andCardinality(Chunk other) {
+      if (words != null && other.words != null) {
+        int count = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) { count += Long.bitCount(words[w] & other.words[w]); }
+        return count;
+      }
+      if (words != null || other.words != null) {
+        Chunk array = words == null ? this : other;
+        Chunk bitmap = words == null ? other : this;
+        int count = 0;
+        for (int i = 0; i < array.cardinality; i++) { if (bitmap.contains(array.values[i])) { count++; } }
+        return count;
+      }
+      Chunk small = cardinality <= other.cardinality ? this : other;
+      Chunk large = small == this ? other : this;
+      int count = 0;
+      if (small.cardinality * 16 < large.cardinality) {
+        // a rare tag against a big result set, look each value up instead of walking the big one
+        int from = 0;
+        for (int i = 0; i < small.cardinality && from < large.cardinality; i++) {
+          int position = Arrays.binarySearch(large.values, from, large.cardinality, small.values[i]);
+          if (position >= 0) {
+            count++;
+            from = position + 1;
+          } else {
+            from = -position - 1;
+          }
+        }
+        return count;
+      }
+      for (int i = 0, j = 0; i < cardinality && j < other.cardinality; ) {
+        if (values[i] < other.values[j]) { i++; }
+        else if (values[i] > other.values[j]) { j++; }
+        else { count++; i++; j++; }
+      }
+      return count;
+    }
+
+    Chunk and(Chunk other) {
+      if (words != null && other.words != null) {
+        long[] result = new long[BITMAP_WORDS];
+        for (int w = 0; w < BITMAP_WORDS; w++) { result[w] = words[w] & other.words[w]; }
+        return ofWords(result);
+      }
+      Chunk array = words == null ? this : other;
+      Chunk probe = array == this ? other : this;
+      char[] result = new char[Math.min(array.cardinality, probe.cardinality)];
+      int count = 0;
+      for (int i = 0; i < array.cardinality; i++) {
+        if (probe.contains(array.values[i])) { result[count++] = array.values[i]; }
+      }
+      return ofArray(result, count);
+    }
+
+    Chunk or(Chunk other) {
+      if (words != null || other.words != null || cardinality + other.cardinality > ARRAY_MAX) {
+        long[] result = asWords().clone();
+        if (other.words != null) {
+          for (int w = 0; w < BITMAP_WORDS; w++) { result[w] |= other.words[w]; }
+        } else {
+          for (int i = 0; i < other.cardinality; i++) { result[other.values[i] >>> 6] |= 1L << other.values[i]; }
+        }
+        return ofWords(result);
+      }
+      char[] result = new char[cardinality + other.cardinality];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < cardinality || j < other.cardinality) {
+        if (j == other.cardinality || (i < cardinality && values[i] < other.values[j])) { result[count++] = values[i++]; }
+        else if (i == cardinality || values[i] > other.values[j]) { result[count++] = other.values[j++]; }
+        else { result[count++] = values[i++]; j++; }
+      }
+      return ofArray(result, count);
+    }
+
+    void forEach(int high, IntConsumer consumer) {
+      if (words == null) {
+        for (int i = 0; i < cardinality; i++) { consumer.accept(high | values[i]); }
+        return;
+      }
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        long word = words[w];
+        while (word != 0) {
+          consumer.accept(high | (w << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the ordinal was not already in the set
+   */
+  public boolean add(int ordinal) {
+    char high = (char) (ordinal >>> 16);
+    int position = findChunk(high);
+    if (position < 0) {
+      position = -position - 1;
+      if (chunkCount == keys.length) {
+        keys = Arrays.copyOf(keys, chunkCount * 2 + 1);
+        chunks = Arrays.copyOf(chunks, chunkCount * 2 + 1);
+      }
+      System.arraycopy(keys, position, keys, position + 1, chunkCount - position);
+      System.arraycopy(chunks, position, chunks, position + 1, chunkCount - position);
+      keys[position] = high;
+      chunks[position] = Chunk.ofArray(new char[4], 0);
+      chunkCount++;
+    }
+    return chunks[position].add((char) ordinal);
+  }
+
+  /**
+   * @return true if the ordinal was in the set
+   */
+  public boolean remove(int ordinal) {
+    int position = findChunk((char) (ordinal >>> 16));
+    if (position < 0 || !chunks[position].remove((char) ordinal)) { return false; }
+    if (chunks[position].cardinality == 0) {
+      System.arraycopy(keys, position + 1, keys, position, chunkCount - position - 1);
+      System.arraycopy(chunks, position + 1, chunks, position, chunkCount - position - 1);
+      chunks[--chunkCount] = null;
+    }
+    return true;
+  }
+
+  public boolean contains(int ordinal) {
+    int position = findChunk((char) (ordinal >>> 16));
+    return position >= 0 && chunks[position].contains((char) ordinal);
+  }
+
+  public int cardinality() {
+    int count = 0;
+    for (int i = 0; i < chunkCount; i++) { count += chunks[i].cardinality; }
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return chunkCount == 0;
+  }
+
+  /**
+   * @return the size of the intersection, without building it
+   */
+  public int andCardinality(MovieBitmap other) {
+    int count = 0;
+    for (int i = 0, j = 0; i < chunkCount && j < other.chunkCount; ) {
+      if (keys[i] < other.keys[j]) { i++; }
+      else if (keys[i] > other.keys[j]) { j++; }
+      else { count += chunks[i++].andCardinality(other.chunks[j++]); }
+    }
+    return count;
+  }
+
+  /**
+   * @return a copy with every chunk stored as a bitmap, so intersecting it with many small sets is one word lookup per
+   * value of the small set. Costs 8KB a chunk, meant for a set that is about to be counted against every facet value
+   */
+  public MovieBitmap toDense() {
+    MovieBitmap result = new MovieBitmap();
+    for (int i = 0; i < chunkCount; i++) {
+      Chunk chunk = new Chunk();
+      chunk.words = chunks[i].words == null ? chunks[i].asWords() : chunks[i].words.clone();
+      chunk.cardinality = chunks[i].cardinality;
+      result.append(keys[i], chunk);
+    }
+    return result;
+  }
+
+  /**
+   * @return a new set holding the ordinals in both sets
+   */
+  public MovieBitmap and(MovieBitmap other) {
+    MovieBitmap result = new MovieBitmap();
+    for (int i = 0, j = 0; i < chunkCount && j < other.chunkCount; ) {
+      if (keys[i] < other.keys[j]) { i++; }
+      else if (keys[i] > other.keys[j]) { j++; }
+      else {
+        Chunk chunk = chunks[i++].and(other.chunks[j++]);
+        if (chunk.cardinality > 0) { result.append(keys[i - 1], chunk); }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return a new set holding the ordinals in either set
+   */
+  public MovieBitmap or(MovieBitmap other) {
+    MovieBitmap result = new MovieBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < chunkCount || j < other.chunkCount) {
+      if (j == other.chunkCount || (i < chunkCount && keys[i] < other.keys[j])) {
+        result.append(keys[i], chunks[i++].or(Chunk.ofArray(new char[0], 0)));
+      } else if (i == chunkCount || keys[i] > other.keys[j]) {
+        result.append(other.keys[j], other.chunks[j++].or(Chunk.ofArray(new char[0], 0)));
+      } else {
+        result.append(keys[i], chunks[i++].or(other.chunks[j++]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Calls the consumer with every ordinal in ascending order.
+   */
+  public void forEach(IntConsumer consumer) {
+    for (int i = 0; i < chunkCount; i++) { chunks[i].forEach(keys[i] << 16, consumer); }
+  }
+
+  private void append(char high, Chunk chunk) {
+    if (chunkCount == keys.length) {
+      keys = Arrays.copyOf(keys, chunkCount * 2 + 1);
+      chunks = Arrays.copyOf(chunks, chunkCount * 2 + 1);
+    }
+    keys[chunkCount] = high;
+    chunks[chunkCount++] = chunk;
+  }
+
+  private int findChunk(char high) {
+    return Arrays.binarySearch(keys, 0, chunkCount, high);
+  }
+}
@@ -0,0 +1,271 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Gives every movie a small int ordinal, so in-memory indexes can hold movies in int arrays and bitmaps instead of
+ * 24 character hex strings. Ordinals are handed out from a counter and recorded in the movieOrdinals collection as
+ * {_id: movie ObjectId, ordinal}, so they are the same after a restart and the same for any service that reads the
+ * collection. An ordinal is never reused, a deleted movie just leaves a gap.
+ *
+ * <p>In memory each movie costs its 12 byte ObjectId in an int array indexed by ordinal plus a slot in an open
+ * addressing table, about 20 bytes in total, instead of a String and a boxed Integer in a HashMap.</p>
+ */
+@ApplicationScoped
+public class MovieOrdinals {
+
+  private static final String COUNTER_ID = "movieOrdinal";
+  private static final int DUPLICATE_KEY = 11000;
+  private static final int INTERN_BATCH = 10000;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // the ObjectId of each ordinal as three ints, all zero for an ordinal that isn't known here
+  private int[] ids = new int[3 * 1024];
+  // ordinal + 1 of each movie, hashed by ObjectId, 0 for an empty slot. Never more than half full
+  private int[] slots = new int[2048];
+  private int size = 0;
+  private int maxOrdinal = -1;
+  private boolean loaded = false;
+
+  /**
+   * Reads every ordinal handed out so far. Called once before the indexes are loaded.
+   */
+  public void load() {
+    if (isLoaded()) { return; }
+    // read in batches without the lock, so searches mapping ordinals back to ids don't wait on Mongo
+    List<Document> batch = new ArrayList<>();
+    for (Document document : getOrdinalCollection().find()) {
+      batch.add(document);
+      if (batch.size() == INTERN_BATCH) {
+        putAll(batch);
+        batch.clear();
+      }
+    }
+    putAll(batch);
+    lock.writeLock().lock();
+    try {
+      loaded = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private boolean isLoaded() {
+    lock.readLock().lock();
+    try {
+      return loaded;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param movieId movie hex id
+   * @return the movie's ordinal, or -1 if it doesn't have one yet
+   */
+  public int find(String movieId) {
+    if (!ObjectId.isValid(movieId)) { return -1; }
+    int a = parse(movieId, 0);
+    int b = parse(movieId, 8);
+    int c = parse(movieId, 16);
+    lock.readLock().lock();
+    try {
+      int slot = findSlot(a, b, c);
+      return slot < 0 ? slots[-slot - 1] - 1 : -1;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Can take a few round trips to Mongo, so callers hand out ordinals before taking a lock of their own and look them
+   * up with find while holding it.
+   * @param movieId movie hex id
+   * @return the movie's ordinal, handing out a new one if it doesn't have one yet
+   */
+  public int getOrdinal(String movieId) {
+    int ordinal = find(movieId);
+    if (ordinal >= 0) { return ordinal; }
+    intern(List.of(movieId));
+    return find(movieId);
+  }
+
+  /**
+   * Makes sure every movie has an ordinal, with one round trip for the ones already handed out and one each for the
+   * counter and the inserts of the rest. Mongo is only talked to without the lock held, the lock is taken just to
+   * publish what was read, so lookups never wait on a round trip. Two callers interning the same movie at once both
+   * end up with the ordinal that made it into the collection.
+   * @param movieIds movie hex ids, invalid ones are skipped
+   */
+  public void intern(Collection<String> movieIds) {
+    List<ObjectId> missing = new ArrayList<>();
+    for (String movieId : movieIds) {
+      if (ObjectId.isValid(movieId) && find(movieId) < 0) { missing.add(new ObjectId(movieId)); }
+    }
+    if (missing.isEmpty()) { return; }
+    MongoCollection<Document> collection = getOrdinalCollection();
+    // another service may have handed some of them out already
+    List<Document> known = collection.find(Filters.in("_id", missing)).into(new ArrayList<>());
+    putAll(known);
+    Set<ObjectId> found = new HashSet<>();
+    for (Document document : known) { found.add(document.getObjectId("_id")); }
+    missing.removeIf(found::contains);
+    if (missing.isEmpty()) { return; }
+
+    Document counter = DatabaseController.getMovieDatabase().getCollection("counters").findOneAndUpdate(
+            Filters.eq("_id", COUNTER_ID), Updates.inc("next", missing.size()),
+            new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    int first = counter.getInteger("next") - missing.size();
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < missing.size(); i++) {
+      documents.add(new Document("_id", missing.get(i)).append("ordinal", first + i));
+    }
+    try {
+      collection.insertMany(documents, new InsertManyOptions().ordered(false));
+      putAll(documents);
+    } catch (MongoBulkWriteException e) {
+      // a movie interned elsewhere in the meantime keeps that ordinal, the one counted for it here goes unused
+      if (e.getWriteErrors().stream().anyMatch(error -> error.getCode() != DUPLICATE_KEY)) { throw e; }
+      putAll(collection.find(Filters.in("_id", missing)).into(new ArrayList<>()));
+    }
+  }
+
+  /**
+   * Publishes ordinals read from or written to the collection.
+   */
+  private void putAll(List<Document> documents) {
+    if (documents.isEmpty()) { return; }
+    lock.writeLock().lock();
+    try {
+      for (Document document : documents) { put(document.getObjectId("_id"), document.getInteger("ordinal")); }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Makes sure every movie in the movies collection has an ordinal, reading only their ids.
+   */
+  public void internAllMovies() {
+    List<String> batch = new ArrayList<>();
+    for (Document movie : new DatabaseController().getMovieCollection().find().projection(Projections.include("_id"))) {
+      batch.add(movie.getObjectId("_id").toHexString());
+      if (batch.size() == INTERN_BATCH) {
+        intern(batch);
+        batch.clear();
+      }
+    }
+    intern(batch);
+  }
+
+  /**
+   * @param ordinal ordinal handed out earlier
+   * @return the movie's hex id, or null if the ordinal isn't known
+   */
+  public String getMovieId(int ordinal) {
+    lock.readLock().lock();
+    try {
+      if (ordinal < 0 || ordinal > maxOrdinal) { return null; }
+      int a = ids[ordinal * 3];
+      int b = ids[ordinal * 3 + 1];
+      int c = ids[ordinal * 3 + 2];
+      if (a == 0 && b == 0 && c == 0) { return null; }
+      char[] hex = new char[24];
+      toHex(a, hex, 0);
+      toHex(b, hex, 8);
+      toHex(c, hex, 16);
+      return new String(hex);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return one more than the highest ordinal known, the length an array indexed by ordinal needs
+   */
+  public int getLimit() {
+    lock.readLock().lock();
+    try {
+      return maxOrdinal + 1;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void put(ObjectId id, int ordinal) {
+    byte[] bytes = id.toByteArray();
+    int a = readInt(bytes, 0);
+    int b = readInt(bytes, 4);
+    int c = readInt(bytes, 8);
+    int slot = findSlot(a, b, c);
+    if (slot >= 0) {
+      slots[slot] = ordinal + 1;
+      size++;
+    }
+    if (ordinal * 3 + 3 > ids.length) { ids = Arrays.copyOf(ids, Math.max(ordinal * 3 + 3, ids.length * 2)); }
+    ids[ordinal * 3] = a;
+    ids[ordinal * 3 + 1] = b;
+    ids[ordinal * 3 + 2] = c;
+    maxOrdinal = Math.max(maxOrdinal, ordinal);
+    if (size * 2 > slots.length) { resize(); }
+  }
+
+  /**
+   * @return minus one minus the slot holding the movie, or the empty slot it would go in
+   */
+  private int findSlot(int a, int b, int c) {
+    int mask = slots.length - 1;
+    int slot = hash(a, b, c) & mask;
+    while (slots[slot] != 0) {
+      int ordinal = slots[slot] - 1;
+      if (ids[ordinal * 3] == a && ids[ordinal * 3 + 1] == b && ids[ordinal * 3 + 2] == c) { return -slot - 1; }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    int[] old = slots;
+    slots = new int[old.length * 2];
+    for (int entry : old) {
+      if (entry == 0) { continue; }
+      int ordinal = entry - 1;
+      slots[findSlot(ids[ordinal * 3], ids[ordinal * 3 + 1], ids[ordinal * 3 + 2])] = entry;
+    }
+  }
+
+  private static int hash(int a, int b, int c) {
+    // the first int is a timestamp and the last a counter, mix all three so ids made close together spread out
+    int h = a * 0x9E3779B1 + b * 0x85EBCA77 + c * 0xC2B2AE3D;
+    return h ^ (h >>> 16);
+  }
+
+  private static int parse(String hex, int from) {
+    return Integer.parseUnsignedInt(hex, from, from + 8, 16);
+  }
+
+  private static int readInt(byte[] bytes, int from) {
+    return (bytes[from] & 0xff) << 24 | (bytes[from + 1] & 0xff) << 16 | (bytes[from + 2] & 0xff) << 8
+            | (bytes[from + 3] & 0xff);
+  }
+
+  private static void toHex(int value, char[] hex, int from) {
+    for (int i = 7; i >= 0; i--) {
+      hex[from + i] = Character.forDigit(value & 0xf, 16);
+      value >>>= 4;
+    }
+  }
+
+  private static MongoCollection<Document> getOrdinalCollection() {
+    return DatabaseController.getMovieDatabase().getCollection("movieOrdinals");
+  }
+}
@@ -0,0 +1,376 @@
+package edu.oswego.cs.rest;
+
+import java.util.*;
+
+/**
+ * Compact, immutable prefix index used for autocomplete. Every name is added once for each word it contains, starting
+ * at that word, so "star w" and "wars" both complete to "Star Wars". Each normalized name is stored once and a key is
+ * just the name and the offset of its word, kept in one sorted int array. A query is a binary search for the range of
+ * keys with the prefix.
+ *
+ * <p>A short prefix can match a large part of the index, so the range is never scanned. A minimum tree over the
+ * ranks of the keys hands out the keys of a range best rank first, and a query stops as soon as nothing left in the
+ * range can beat the k values it has.</p>
+ *
+ * <p>A key can point at a different value than the text it was built from, for example a director's name pointing
+ * at the title of the movie they directed. Every distinct (name, value) pair has an id, which is what LivePrefixIndex
+ * uses to hide pairs removed since the index was built.</p>
+ */
+public class PrefixIndex {
+
+  // distinct normalized names, and for each (name, value) pair its name and value
+  private final String[] names;
+  private final int[] pairNames;
+  private final int[] pairValues;
+  private final String[] values;
+  // for each key in sorted order its pair and the offset of its word in the pair's name
+  private final int[] keyPairs;
+  private final int[] keyOffsets;
+  // for each key a precomputed rank, lower is better. Matches at the start of the name come first, then shorter names
+  private final int[] ranks;
+  // minimum tree over the ranks. Leaf i is at leaves + i and every node holds the key with the best rank below it
+  private final int leaves;
+  private final int[] bestKeys;
+
+  private PrefixIndex(String[] names, int[] pairNames, int[] pairValues, String[] values, int[] keyPairs,
+                      int[] keyOffsets, int[] ranks) {
+    this.names = names;
+    this.pairNames = pairNames;
+    this.pairValues = pairValues;
+    this.values = values;
+    this.keyPairs = keyPairs;
+    this.keyOffsets = keyOffsets;
+    this.ranks = ranks;
+    int leaves = 1;
+    while (leaves < ranks.length) { leaves <<= 1; }
+    this.leaves = leaves;
+    this.bestKeys = new int[leaves * 2];
+    Arrays.fill(bestKeys, -1);
+    for (int i = 0; i < ranks.length; i++) { bestKeys[leaves + i] = i; }
+    for (int node = leaves - 1; node > 0; node--) {
+      bestKeys[node] = better(bestKeys[node * 2], bestKeys[node * 2 + 1]);
+    }
+  }
+
+  /**
+   * @return the number of keys in the index
+   */
+  public int size() { return keyPairs.length; }
+
+  /**
+   * Returns the best k distinct values that have a key starting with the query.
+   * @param query text typed so far, normalized the same way as the keys
+   * @param k most values to return
+   * @return up to k values ordered best first
+   */
+  public List<String> complete(String query, int k) {
+    String prefix = Analyzer.NAME.normalize(query);
+    if (prefix.isEmpty() || k <= 0) { return new ArrayList<>(); }
+    TopK topK = new TopK(k);
+    collect(prefix, topK, Collections.emptySet());
+    return topK.getValues();
+  }
+
+  /**
+   * Offers the values with a key starting with the prefix to topK, best rank first, until no remaining key can get
+   * into it. Ties go to the key that sorts first.
+   * @param prefix normalized prefix
+   * @param topK collects the best values
+   * @param removed ids of pairs that should be skipped
+   */
+  void collect(String prefix, TopK topK, Set<Integer> removed) {
+    int low = lowerBound(prefix);
+    int high = upperBound(prefix);
+    if (low >= high) { return; }
+    // each entry is a range of keys along with its best key, ordered by that key's rank
+    PriorityQueue<int[]> ranges = new PriorityQueue<>((a, b) ->
+            ranks[a[0]] != ranks[b[0]] ? Integer.compare(ranks[a[0]], ranks[b[0]]) : Integer.compare(a[0], b[0]));
+    ranges.add(new int[] { best(low, high), low, high });
+    while (!ranges.isEmpty()) {
+      int[] range = ranges.poll();
+      int key = range[0];
+      if (!topK.accepts(ranks[key])) { return; }
+      if (!removed.contains(keyPairs[key])) {
+        topK.offer(values[pairValues[keyPairs[key]]], ranks[key]);
+      }
+      if (range[1] < key) { ranges.add(new int[] { best(range[1], key), range[1], key }); }
+      if (key + 1 < range[2]) { ranges.add(new int[] { best(key + 1, range[2]), key + 1, range[2] }); }
+    }
+  }
+
+  /**
+   * Calls the consumer with every key starting with the prefix, in key order.
+   * @param prefix normalized prefix
+   * @param removed ids of pairs that should be skipped
+   * @param consumer called with the key, its value, and its rank
+   */
+  void forEach(String prefix, Set<Integer> removed, EntryConsumer consumer) {
+    for (int i = lowerBound(prefix), high = upperBound(prefix); i < high; i++) {
+      if (removed.contains(keyPairs[i])) { continue; }
+      consumer.accept(names[pairNames[keyPairs[i]]].substring(keyOffsets[i]), values[pairValues[keyPairs[i]]],
+              ranks[i]);
+    }
+  }
+
+  /**
+   * @param prefix normalized prefix
+   * @return the number of keys starting with the prefix, found with two binary searches
+   */
+  int count(String prefix) {
+    return upperBound(prefix) - lowerBound(prefix);
+  }
+
+  /**
+   * @param normalizedName a normalized name
+   * @param value value the name completes to
+   * @return the id of the (name, value) pair, or -1 if it isn't in the index
+   */
+  int getPairId(String normalizedName, String value) {
+    // the key for the whole name sorts with the other keys equal to it, one per value
+    for (int i = lowerBound(normalizedName); i < keyPairs.length && compare(i, normalizedName) == 0; i++) {
+      int pair = keyPairs[i];
+      if (keyOffsets[i] == 0 && values[pairValues[pair]].equals(value)) { return pair; }
+    }
+    return -1;
+  }
+
+  interface EntryConsumer {
+    void accept(String key, String value, int rank);
+  }
+
+  /**
+   * @param normalizedName a normalized name
+   * @return the offset of every word in the name, each one the start of a key
+   */
+  static List<Integer> getKeyOffsets(String normalizedName) {
+    List<Integer> offsets = new ArrayList<>();
+    for (int start = 0; start < normalizedName.length(); start++) {
+      if (start == 0 || normalizedName.charAt(start - 1) == ' ') {
+        offsets.add(start);
+      }
+    }
+    return offsets;
+  }
+
+  /**
+   * @param normalizedName a normalized name
+   * @return one key per word in the name, starting at that word
+   */
+  static List<String> getKeys(String normalizedName) {
+    List<String> keys = new ArrayList<>();
+    for (int offset : getKeyOffsets(normalizedName)) {
+      keys.add(normalizedName.substring(offset));
+    }
+    return keys;
+  }
+
+  /**
+   * @param fromStart true if the key starts at the beginning of the name
+   * @param value value the key completes to
+   * @return the rank of the key, lower is better
+   */
+  static int getRank(boolean fromStart, String value) {
+    // whole name matches rank ahead of matches in the middle, then shorter names rank ahead of longer ones
+    return (fromStart ? 0 : 1 << 16) + Math.min(value.length(), (1 << 16) - 1);
+  }
+
+  /**
+   * @return the key with the better rank, the earlier one on a tie. -1 stands for no key
+   */
+  private int better(int a, int b) {
+    if (a < 0) { return b; }
+    if (b < 0) { return a; }
+    return ranks[b] < ranks[a] || (ranks[b] == ranks[a] && b < a) ? b : a;
+  }
+
+  /**
+   * @return the key with the best rank in [low, high)
+   */
+  private int best(int low, int high) {
+    int best = -1;
+    for (low += leaves, high += leaves; low < high; low >>= 1, high >>= 1) {
+      if ((low & 1) == 1) { best = better(best, bestKeys[low++]); }
+      if ((high & 1) == 1) { best = better(bestKeys[--high], best); }
+    }
+    return best;
+  }
+
+  /**
+   * Compares a key to a string the way String.compareTo would, without cutting the key out of its name.
+   */
+  private int compare(int key, String other) {
+    String name = names[pairNames[keyPairs[key]]];
+    int offset = keyOffsets[key];
+    int length = Math.min(name.length() - offset, other.length());
+    for (int i = 0; i < length; i++) {
+      char a = name.charAt(offset + i);
+      char b = other.charAt(i);
+      if (a != b) { return a - b; }
+    }
+    return (name.length() - offset) - other.length();
+  }
+
+  /**
+   * @return the first key not less than the prefix
+   */
+  private int lowerBound(String prefix) {
+    int low = 0;
+    int high = keyPairs.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compare(middle, prefix) < 0) { low = middle + 1; }
+      else { high = middle; }
+    }
+    return low;
+  }
+
+  /**
+   * @return the first key after the ones starting with the prefix
+   */
+  private int upperBound(String prefix) {
+    // every key from the lower bound on is at least the prefix, and the ones starting with it come first
+    int low = lowerBound(prefix);
+    int high = keyPairs.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (names[pairNames[keyPairs[middle]]].startsWith(prefix, keyOffsets[middle])) { low = middle + 1; }
+      else { high = middle; }
+    }
+    return low;
+  }
+
+  /**
+   * Collects names and the values they complete to, then sorts them into a PrefixIndex.
+   */
+  public static class Builder {
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> valueIds = new HashMap<>();
+    private final Set<String> pairs = new HashSet<>();
+    private final List<Integer> pairNames = new ArrayList<>();
+    private final List<Integer> pairValues = new ArrayList<>();
+    private final List<Integer> keyPairs = new ArrayList<>();
+    private final List<Integer> keyOffsets = new ArrayList<>();
+
+    /**
+     * Adds a name that completes to itself.
+     * @param name name to index
+     * @return this builder
+     */
+    public Builder add(String name) {
+      return add(name, name);
+    }
+
+    /**
+     * Adds a name that completes to the given value. The same value can be added under many names, adding the same
+     * name and value twice doesn't do anything.
+     * @param name name to index, for example an actor's name
+     * @param value value returned when the name matches, for example a movie title
+     * @return this builder
+     */
+    public Builder add(String name, String value) {
+      String normalized = Analyzer.NAME.normalize(name);
+      if (normalized.isEmpty() || value == null || !pairs.add(normalized + '\u0000' + value)) { return this; }
+      int nameId = nameIds.computeIfAbsent(normalized, n -> {
+        names.add(n);
+        return names.size() - 1;
+      });
+      int valueId = valueIds.computeIfAbsent(value, v -> {
+        values.add(v);
+        return values.size() - 1;
+      });
+      int pair = pairNames.size();
+      pairNames.add(nameId);
+      pairValues.add(valueId);
+      for (int offset : getKeyOffsets(normalized)) {
+        keyPairs.add(pair);
+        keyOffsets.add(offset);
+      }
+      return this;
+    }
+
+    public PrefixIndex build() {
+      String[] names = this.names.toArray(new String[0]);
+      int[] pairNames = this.pairNames.stream().mapToInt(Integer::intValue).toArray();
+      Integer[] order = new Integer[keyPairs.size()];
+      for (int i = 0; i < order.length; i++) { order[i] = i; }
+      Arrays.sort(order, (a, b) -> {
+        String nameA = names[pairNames[keyPairs.get(a)]];
+        String nameB = names[pairNames[keyPairs.get(b)]];
+        int offsetA = keyOffsets.get(a);
+        int offsetB = keyOffsets.get(b);
+        int length = Math.min(nameA.length() - offsetA, nameB.length() - offsetB);
+        for (int i = 0; i < length; i++) {
+          char charA = nameA.charAt(offsetA + i);
+          char charB = nameB.charAt(offsetB + i);
+          if (charA != charB) { return charA - charB; }
+        }
+        return (nameA.length() - offsetA) - (nameB.length() - offsetB);
+      });
+
+      int[] pairValues = this.pairValues.stream().mapToInt(Integer::intValue).toArray();
+      int[] sortedPairs = new int[order.length];
+      int[] sortedOffsets = new int[order.length];
+      int[] sortedRanks = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        int pair = keyPairs.get(order[i]);
+        sortedPairs[i] = pair;
+        sortedOffsets[i] = keyOffsets.get(order[i]);
+        sortedRanks[i] = getRank(sortedOffsets[i] == 0, values.get(pairValues[pair]));
+      }
+      return new PrefixIndex(names, pairNames, pairValues, values.toArray(new String[0]), sortedPairs, sortedOffsets,
+              sortedRanks);
+    }
+  }
+
+  /**
+   * Keeps the k best distinct values offered to it, best first, in two small parallel arrays.
+   */
+  static class TopK {
+    private final String[] bestValues;
+    private final int[] bestRanks;
+    private int found = 0;
+
+    TopK(int k) {
+      bestValues = new String[k];
+      bestRanks = new int[k];
+    }
+
+    /**
+     * @return false if a value with this rank can't get in anymore
+     */
+    boolean accepts(int rank) {
+      return found < bestValues.length || bestRanks[found - 1] > rank;
+    }
+
+    void offer(String value, int rank) {
+      int k = bestValues.length;
+      // skip values we already have with a better rank
+      int existing = -1;
+      for (int j = 0; j < found; j++) {
+        if (bestValues[j].equals(value)) { existing = j; break; }
+      }
+      if (existing >= 0) {
+        if (bestRanks[existing] <= rank) { return; }
+        System.arraycopy(bestValues, existing + 1, bestValues, existing, found - existing - 1);
+        System.arraycopy(bestRanks, existing + 1, bestRanks, existing, found - existing - 1);
+        found--;
+      }
+      if (found == k && bestRanks[k - 1] <= rank) { return; }
+      // insertion sort into place
+      int position = found == k ? k - 1 : found++;
+      while (position > 0 && bestRanks[position - 1] > rank) {
+        bestValues[position] = bestValues[position - 1];
+        bestRanks[position] = bestRanks[position - 1];
+        position--;
+      }
+      bestValues[position] = value;
+      bestRanks[position] = rank;
+    }
+
+    List<String> getValues() {
+      return new ArrayList<>(Arrays.asList(bestValues).subList(0, found));
+    }
+  }
+}
@@ -0,0 +1,573 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Projections;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over the text of individual reviews, ranked with BM25, for finding the reviews that mention
+ * something rather than the movies. Every public review with a movie is one document. Its posting lists are the same
+ * encoded TextSearchIndex.Postings, doc ids are handed out per review and reused once a review is removed.
+ *
+ * <p>Each review keeps its words in order as varint encoded term ids with the offsets they were found at, not the text.
+ * The snippet window is placed from those alone, and only the texts of the reviews on the requested page are read, in
+ * one query, once the lock is released. A review whose text changed length since it was indexed is tokenized again
+ * so its highlights still line up. The reviews of each movie are also kept as a set of doc ids, so a search within
+ * one movie reads just that movie's reviews when that is cheaper than the posting lists. It is loaded from Mongo or a
+ * SearchSnapshot once and then kept current by SearchChangeStream.</p>
+ */
+@ApplicationScoped
+public class ReviewSearchIndex {
+
+  /**
+   * A review, how well it matched, and the part of it that matched best.
+   */
+  public static class Hit {
+    private final String reviewId;
+    private final String movieId;
+    private final String username;
+    private final double score;
+    private final String snippet;
+    // start and end pairs of the matched words, as offsets into the snippet
+    private final int[] highlights;
+
+    Hit(String reviewId, String movieId, String username, double score, String snippet, int[] highlights) {
+      this.reviewId = reviewId;
+      this.movieId = movieId;
+      this.username = username;
+      this.score = score;
+      this.snippet = snippet;
+      this.highlights = highlights;
+    }
+
+    public String getReviewId() { return reviewId; }
+    public String getMovieId() { return movieId; }
+    public String getUsername() { return username; }
+    public double getScore() { return score; }
+    public String getSnippet() { return snippet; }
+    public int[] getHighlights() { return highlights; }
+  }
+
+  /**
+   * One page of hits along with how many reviews matched in total.
+   */
+  public static class Page {
+    private final List<Hit> hits;
+    private final int total;
+
+    Page(List<Hit> hits, int total) {
+      this.hits = hits;
+      this.total = total;
+    }
+
+    public List<Hit> getHits() { return hits; }
+    public int getTotal() { return total; }
+  }
+
+  // reviews whose long text is fetched together during a rebuild
+  private static final int REVIEW_BATCH = 1000;
+  // words in a snippet, the window is placed where it covers the most query words
+  private static final int SNIPPET_WORDS = 30;
+  private static final String ELLIPSIS = "...";
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+
+  @Inject
+  MovieOrdinals movieOrdinals;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile boolean ready = false;
+  // replaced whole by rebuild and readSnapshot, changed in place by the change stream
+  private Contents contents = new Contents();
+
+  /**
+   * Reads every review once and swaps in a freshly built index. Searches keep using the old one until then. Only
+   * called at startup and when the change stream can't resume.
+   */
+  public void rebuild() {
+    DatabaseController dbc = new DatabaseController();
+    Contents fresh = new Contents();
+    List<Document> batch = new ArrayList<>();
+    for (Document review : dbc.getReviewCollection().find().projection(
+            Projections.include("movieId", "username", "reviewDescription", "hasBody", "privacy"))) {
+      batch.add(review);
+      if (batch.size() == REVIEW_BATCH) { applyReviewBatch(dbc, fresh, batch); }
+    }
+    applyReviewBatch(dbc, fresh, batch);
+    swap(fresh);
+  }
+
+  private void swap(Contents fresh) {
+    lock.writeLock().lock();
+    try {
+      contents = fresh;
+      ready = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true once the index has been loaded
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Brings the index in line with the current state of a review.
+   * @param id review id
+   * @param review the review as it is now with its full text, or null if it was deleted
+   */
+  public void applyReview(String id, Document review) {
+    lock.writeLock().lock();
+    try {
+      contents.applyReview(id, review);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Ranks reviews against the query with BM25 and cuts a snippet out of each one on the page.
+   * @param query free text
+   * @param movieId only search the reviews of this movie, or null for every review
+   * @param page zero based page number
+   * @param pageSize hits per page
+   * @return the requested page of hits, best first
+   */
+  public Page search(String query, String movieId, int page, int pageSize) {
+    List<String> terms = new ArrayList<>(new LinkedHashSet<>(Analyzer.TEXT.tokenize(query)));
+    int wanted = (page + 1) * pageSize;
+    if (terms.isEmpty() || pageSize <= 0 || page < 0) { return new Page(new ArrayList<>(), 0); }
+    int movieOrdinal = movieId == null ? -1 : movieOrdinals.find(movieId);
+    if (movieId != null && movieOrdinal < 0) { return new Page(new ArrayList<>(), 0); }
+
+    List<PageHit> pageHits = new ArrayList<>();
+    int total;
+    lock.readLock().lock();
+    try {
+      Contents current = contents;
+      List<Doc> docs = current.docs;
+      List<TextSearchIndex.Postings> postings = current.postings;
+      int docCount = current.reviewDocIds.size();
+      double averageLength = docCount == 0 ? 1 : (double) current.totalLength / docCount;
+      TextSearchIndex.Scores scores = SCORES.get();
+      scores.reset(docs.size());
+      // term id to its position in the query, and the idf of each position
+      Map<Integer, Integer> queryTerms = new HashMap<>();
+      double[] idfs = new double[terms.size()];
+      long postingCount = 0;
+      for (int q = 0; q < terms.size(); q++) {
+        Integer termId = current.termIds.get(terms.get(q));
+        TextSearchIndex.Postings list = termId == null || termId >= postings.size() ? null : postings.get(termId);
+        if (list == null || list.df == 0) { continue; }
+        queryTerms.put(termId, q);
+        idfs[q] = Math.log(1 + (docCount - list.df + 0.5) / (list.df + 0.5));
+        postingCount += list.df;
+      }
+
+      MovieBitmap movieDocs = movieOrdinal < 0 ? null : current.movieDocs.get(movieOrdinal);
+      if (movieOrdinal >= 0 && movieDocs == null) { return new Page(new ArrayList<>(), 0); }
+      if (movieDocs != null && movieDocs.cardinality() * averageLength <= postingCount) {
+        // reading the movie's own reviews is less work than walking the posting lists past every other movie
+        int[] tfs = new int[terms.size()];
+        movieDocs.forEach(docId -> {
+          Doc doc = docs.get(docId);
+          Arrays.fill(tfs, 0);
+          countQueryWords(doc.words, queryTerms, tfs);
+          double norm = K1 * (1 - B + B * doc.length / averageLength);
+          for (int q = 0; q < tfs.length; q++) {
+            if (tfs[q] > 0) { scores.add(docId, idfs[q] * tfs[q] * (K1 + 1) / (tfs[q] + norm)); }
+          }
+        });
+      } else {
+        for (Map.Entry<Integer, Integer> term : queryTerms.entrySet()) {
+          double idf = idfs[term.getValue()];
+          postings.get(term.getKey()).forEach((doc, tf) -> {
+            // filtered here so the reviews of other movies are never scored
+            if (movieOrdinal >= 0 && docs.get(doc).movieOrdinal != movieOrdinal) { return; }
+            double norm = K1 * (1 - B + B * docs.get(doc).length / averageLength);
+            scores.add(doc, idf * tf * (K1 + 1) / (tf + norm));
+          });
+        }
+      }
+
+      // bounded heap with the worst of the best on top, ties go to the lower doc id
+      PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(1, Math.min(wanted, 1024)),
+              (a, b) -> scores.scores[a[0]] != scores.scores[b[0]]
+                      ? Double.compare(scores.scores[a[0]], scores.scores[b[0]]) : Integer.compare(b[0], a[0]));
+      for (int t = 0; t < scores.touched; t++) {
+        heap.add(new int[] {scores.docs[t]});
+        if (heap.size() > wanted) { heap.poll(); }
+      }
+      int[] best = new int[heap.size()];
+      for (int i = best.length - 1; i >= 0; i--) { best[i] = heap.poll()[0]; }
+      // only the reviews on the requested page get a snippet, their words are copied out so the text can be read
+      // without the lock
+      for (int i = Math.min(best.length, page * pageSize); i < best.length; i++) {
+        Doc doc = docs.get(best[i]);
+        pageHits.add(new PageHit(doc.reviewId, movieOrdinals.getMovieId(doc.movieOrdinal), doc.username,
+                scores.scores[best[i]], doc.textLength, decodeWords(doc, queryTerms)));
+      }
+      total = scores.touched;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    List<String> reviewIds = new ArrayList<>();
+    for (PageHit hit : pageHits) { reviewIds.add(hit.reviewId); }
+    Map<String, String> texts = new DatabaseController().getReviewTexts(reviewIds);
+    List<Hit> hits = new ArrayList<>();
+    for (PageHit hit : pageHits) {
+      String text = texts.get(hit.reviewId);
+      // removed since it was scored, the change stream is about to drop it
+      if (text == null) { continue; }
+      int[] words = text.length() == hit.textLength ? hit.words : tokenizeQueryWords(text, terms);
+      hits.add(snippet(hit, text, words));
+    }
+    return new Page(hits, total);
+  }
+
+  /**
+   * Writes the terms, the reviews with their words, and the posting lists. The text itself stays in Mongo.
+   */
+  public void writeSnapshot(SearchSnapshot.Output out) throws IOException {
+    lock.readLock().lock();
+    try {
+      Contents current = contents;
+      Map<String, Integer> termIds = current.termIds;
+      String[] terms = new String[termIds.size()];
+      termIds.forEach((term, termId) -> terms[termId] = term);
+      out.writeInt(terms.length);
+      for (String term : terms) { out.writeString(term); }
+
+      out.writeInt(current.docs.size());
+      for (Doc doc : current.docs) {
+        out.writeBoolean(doc != null);
+        if (doc == null) { continue; }
+        out.writeString(doc.reviewId);
+        out.writeString(movieOrdinals.getMovieId(doc.movieOrdinal));
+        out.writeString(doc.username);
+        out.writeInt(doc.textLength);
+        out.writeInt(doc.length);
+        out.writeBytes(doc.words, doc.words.length);
+      }
+
+      out.writeInt(current.postings.size());
+      for (TextSearchIndex.Postings list : current.postings) {
+        out.writeBoolean(list != null);
+        if (list != null) { list.writeTo(out); }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Builds an index from what writeSnapshot wrote and swaps it in. The posting lists keep pointing into the snapshot's
+   * buffer.
+   */
+  public void readSnapshot(SearchSnapshot.Input in) {
+    Contents fresh = new Contents();
+    int termCount = in.readInt();
+    for (int termId = 0; termId < termCount; termId++) { fresh.termIds.put(in.readString(), termId); }
+
+    int docCount = in.readInt();
+    for (int docId = 0; docId < docCount; docId++) {
+      if (!in.readBoolean()) {
+        fresh.docs.add(null);
+        fresh.freeDocIds.add(docId);
+        continue;
+      }
+      Doc doc = new Doc();
+      doc.reviewId = in.readString();
+      String movieId = in.readString();
+      doc.movieOrdinal = movieOrdinals.find(movieId);
+      if (doc.movieOrdinal < 0) {
+        throw new IllegalStateException("movie ordinals changed since the snapshot, " + movieId);
+      }
+      doc.username = in.readString();
+      doc.textLength = in.readInt();
+      doc.length = in.readInt();
+      ByteBuffer words = in.readBytes();
+      doc.words = new byte[words.remaining()];
+      words.get(doc.words);
+      fresh.docs.add(doc);
+      fresh.reviewDocIds.put(doc.reviewId, docId);
+      fresh.addMovieDoc(doc.movieOrdinal, docId);
+      fresh.totalLength += doc.length;
+    }
+
+    for (int i = in.readInt(); i > 0; i--) {
+      fresh.postings.add(in.readBoolean() ? TextSearchIndex.Postings.readFrom(in) : null);
+    }
+    swap(fresh);
+  }
+
+  /**
+   * Indexes reviews read during a rebuild, with the full text of the long ones read in one query, then clears the
+   * batch.
+   */
+  private static void applyReviewBatch(DatabaseController dbc, Contents contents, List<Document> batch) {
+    dbc.fillReviewBodies(batch);
+    for (Document review : batch) { contents.applyReview(review.getObjectId("_id").toHexString(), review); }
+    batch.clear();
+  }
+
+  /**
+   * Everything the index holds. rebuild and readSnapshot fill a fresh one without holding the lock and swap it in.
+   */
+  private class Contents {
+    final Map<String, Integer> termIds = new HashMap<>();
+    // postings by term id
+    final List<TextSearchIndex.Postings> postings = new ArrayList<>();
+    // null where the doc id is free
+    final List<Doc> docs = new ArrayList<>();
+    final Map<String, Integer> reviewDocIds = new HashMap<>();
+    final ArrayDeque<Integer> freeDocIds = new ArrayDeque<>();
+    // movie ordinal to the doc ids of its reviews, MovieBitmap works for any set of ints
+    final Map<Integer, MovieBitmap> movieDocs = new HashMap<>();
+    long totalLength = 0;
+
+    void addMovieDoc(int movieOrdinal, int docId) {
+      movieDocs.computeIfAbsent(movieOrdinal, m -> new MovieBitmap()).add(docId);
+    }
+
+    void removeMovieDoc(int movieOrdinal, int docId) {
+      MovieBitmap docIds = movieDocs.get(movieOrdinal);
+      if (docIds != null && docIds.remove(docId) && docIds.isEmpty()) { movieDocs.remove(movieOrdinal); }
+    }
+
+    void applyReview(String id, Document review) {
+      Integer oldDocId = reviewDocIds.remove(id);
+      if (oldDocId != null) {
+        Doc old = docs.get(oldDocId);
+        countWords(old.words).forEach((termId, tf) -> postings.get(termId).set(oldDocId, tf, 0));
+        totalLength -= old.length;
+        removeMovieDoc(old.movieOrdinal, oldDocId);
+        docs.set(oldDocId, null);
+        freeDocIds.add(oldDocId);
+      }
+      // same reviews as the review field of TextSearchIndex
+      if (review == null || "private".equals(review.getString("privacy")) || review.getString("movieId") == null) {
+        return;
+      }
+      // only looked up, a review of a movie that was never handed an ordinal is left out
+      int movieOrdinal = movieOrdinals.find(review.getString("movieId"));
+      String text = review.getString("reviewDescription");
+      if (movieOrdinal < 0 || text == null) { return; }
+
+      Doc doc = new Doc();
+      doc.reviewId = id;
+      doc.movieOrdinal = movieOrdinal;
+      doc.username = review.getString("username");
+      doc.textLength = text.length();
+      ByteArrayOutputStream words = new ByteArrayOutputStream();
+      int[] previousEnd = {0};
+      Analyzer.TEXT.tokenize(text, (term, start, end) -> {
+        writeVarint(words, termIds.computeIfAbsent(term, t -> termIds.size()));
+        writeVarint(words, start - previousEnd[0]);
+        writeVarint(words, end - start);
+        previousEnd[0] = end;
+        doc.length++;
+      });
+      if (doc.length == 0) { return; }
+      doc.words = words.toByteArray();
+
+      int docId = freeDocIds.isEmpty() ? docs.size() : freeDocIds.poll();
+      if (docId == docs.size()) { docs.add(doc); }
+      else { docs.set(docId, doc); }
+      reviewDocIds.put(id, docId);
+      addMovieDoc(movieOrdinal, docId);
+      totalLength += doc.length;
+      countWords(doc.words).forEach((termId, tf) -> {
+        while (postings.size() <= termId) { postings.add(null); }
+        if (postings.get(termId) == null) { postings.set(termId, new TextSearchIndex.Postings()); }
+        postings.get(termId).set(docId, 0, tf);
+      });
+    }
+  }
+
+  /**
+   * @return query position, start, and end of every word of the review, the position is -1 for the words that aren't
+   *         in the query
+   */
+  private static int[] decodeWords(Doc doc, Map<Integer, Integer> queryTerms) {
+    int[] words = new int[doc.length * 3];
+    int[] position = {0};
+    int previousEnd = 0;
+    for (int i = 0; i < doc.length; i++) {
+      words[i * 3] = queryTerms.getOrDefault(readVarint(doc.words, position), -1);
+      words[i * 3 + 1] = previousEnd + readVarint(doc.words, position);
+      words[i * 3 + 2] = words[i * 3 + 1] + readVarint(doc.words, position);
+      previousEnd = words[i * 3 + 2];
+    }
+    return words;
+  }
+
+  /**
+   * Same as decodeWords, for a text that changed since it was indexed.
+   */
+  private static int[] tokenizeQueryWords(String text, List<String> terms) {
+    List<int[]> found = new ArrayList<>();
+    Analyzer.TEXT.tokenize(text, (term, start, end) -> found.add(new int[] {terms.indexOf(term), start, end}));
+    int[] words = new int[found.size() * 3];
+    for (int i = 0; i < found.size(); i++) { System.arraycopy(found.get(i), 0, words, i * 3, 3); }
+    return words;
+  }
+
+  /**
+   * Adds how many times each query term appears among the encoded words to tfs, indexed by query position.
+   */
+  private static void countQueryWords(byte[] words, Map<Integer, Integer> queryTerms, int[] tfs) {
+    int[] position = {0};
+    while (position[0] < words.length) {
+      Integer q = queryTerms.get(readVarint(words, position));
+      if (q != null) { tfs[q]++; }
+      // skip the gap and the length
+      readVarint(words, position);
+      readVarint(words, position);
+    }
+  }
+
+  /**
+   * Cuts the window of SNIPPET_WORDS words that holds the most different query words, then the most matches, out of
+   * the review's text.
+   * @param words query position, start, and end of every word of the text
+   */
+  private static Hit snippet(PageHit hit, String text, int[] words) {
+    int count = words.length / 3;
+    if (count == 0) { return new Hit(hit.reviewId, hit.movieId, hit.username, hit.score, "", new int[0]); }
+
+    Map<Integer, Integer> inWindow = new HashMap<>();
+    int matches = 0;
+    int bestFrom = 0;
+    int bestDistinct = -1;
+    int bestMatches = -1;
+    for (int i = 0; i < count; i++) {
+      if (words[i * 3] >= 0) {
+        inWindow.merge(words[i * 3], 1, Integer::sum);
+        matches++;
+      }
+      int from = i - SNIPPET_WORDS + 1;
+      if (from > 0) {
+        int leaving = words[(from - 1) * 3];
+        if (leaving >= 0) {
+          if (inWindow.merge(leaving, -1, Integer::sum) == 0) { inWindow.remove(leaving); }
+          matches--;
+        }
+      }
+      if (inWindow.size() > bestDistinct || (inWindow.size() == bestDistinct && matches > bestMatches)) {
+        bestDistinct = inWindow.size();
+        bestMatches = matches;
+        bestFrom = Math.max(0, from);
+      }
+    }
+    // the window ends on its last match, move it so the matches sit in the middle. A changed text may have none
+    if (bestMatches > 0) {
+      int first = bestFrom;
+      while (words[first * 3] < 0) { first++; }
+      int last = Math.min(count, bestFrom + SNIPPET_WORDS) - 1;
+      while (words[last * 3] < 0) { last--; }
+      bestFrom = Math.max(0, Math.min(first - (SNIPPET_WORDS - (last - first + 1)) / 2, count - SNIPPET_WORDS));
+    }
+    int bestTo = Math.min(count, bestFrom + SNIPPET_WORDS) - 1;
+
+    // a snippet that reaches either end of the review keeps the punctuation there, less the whitespace
+    int start = bestFrom == 0 ? 0 : words[bestFrom * 3 + 1];
+    int end = bestTo == count - 1 ? text.length() : words[bestTo * 3 + 2];
+    while (Character.isWhitespace(text.charAt(start))) { start++; }
+    while (Character.isWhitespace(text.charAt(end - 1))) { end--; }
+    String prefix = bestFrom > 0 ? ELLIPSIS : "";
+    String snippet = prefix + text.substring(start, end) + (bestTo < count - 1 ? ELLIPSIS : "");
+    int shift = prefix.length() - start;
+    int[] highlights = new int[Math.max(0, bestMatches) * 2];
+    int h = 0;
+    for (int i = bestFrom; i <= bestTo && h < highlights.length; i++) {
+      if (words[i * 3] < 0) { continue; }
+      highlights[h++] = words[i * 3 + 1] + shift;
+      highlights[h++] = words[i * 3 + 2] + shift;
+    }
+    return new Hit(hit.reviewId, hit.movieId, hit.username, hit.score, snippet, highlights);
+  }
+
+  /**
+   * @return term id to how many times it appears among the encoded words
+   */
+  private static Map<Integer, Integer> countWords(byte[] words) {
+    Map<Integer, Integer> counts = new HashMap<>();
+    int[] position = {0};
+    while (position[0] < words.length) {
+      counts.merge(readVarint(words, position), 1, Integer::sum);
+      // skip the gap and the length
+      readVarint(words, position);
+      readVarint(words, position);
+    }
+    return counts;
+  }
+
+  /**
+   * Reads the varint at position[0] and moves position[0] past it.
+   */
+  private static int readVarint(byte[] bytes, int[] position) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do { b = bytes[position[0]++]; value |= (b & 0x7f) << shift; shift += 7; } while (b < 0);
+    return value;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static class Doc {
+    String reviewId;
+    int movieOrdinal;
+    String username;
+    // length of the text that was indexed, the text itself is read from Mongo for the reviews on a page
+    int textLength;
+    // words indexed
+    int length;
+    // term id, gap from the end of the previous word, and length of every word, varint encoded
+    byte[] words;
+  }
+
+  /**
+   * A review on the requested page, with what is needed to cut its snippet once the text has been read.
+   */
+  private static class PageHit {
+    final String reviewId;
+    final String movieId;
+    final String username;
+    final double score;
+    final int textLength;
+    final int[] words;
+
+    PageHit(String reviewId, String movieId, String username, double score, int textLength, int[] words) {
+      this.reviewId = reviewId;
+      this.movieId = movieId;
+      this.username = username;
+      this.score = score;
+      this.textLength = textLength;
+      this.words = words;
+    }
+  }
+
+  // reused between searches on the same thread so scoring doesn't allocate an array per query
+  private static final ThreadLocal<TextSearchIndex.Scores> SCORES =
+          ThreadLocal.withInitial(TextSearchIndex.Scores::new);
+}
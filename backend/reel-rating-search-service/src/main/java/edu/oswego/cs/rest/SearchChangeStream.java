@@ -0,0 +1,250 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps AutoCompleteIndex, TextSearchIndex, FacetIndex, and ReviewSearchIndex current by following a Mongo change
+ * stream over the movie, actor, tag, rating, and review collections. The movie, actor, rating, and review services all
+ * write to the same database, so this sees their writes within a second without any of them having to notify search.
+ *
+ * <p>The indexes are saved with the resume token of the last applied event by SearchSnapshot, so a restart loads the
+ * snapshot and only replays what changed since. The collections are only read in full when there is no snapshot or
+ * its token has fallen off the oplog, never on a timer. Change streams need a replica set, a single node one is
+ * enough.</p>
+ */
+@ApplicationScoped
+public class SearchChangeStream {
+
+  private static final long RETRY_MS = 1000;
+  // the saved token is no longer in the oplog
+  private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+  private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+  @Inject
+  AutoCompleteIndex autoCompleteIndex;
+
+  @Inject
+  TextSearchIndex textSearchIndex;
+
+  @Inject
+  FacetIndex facetIndex;
+
+  @Inject
+  ReviewSearchIndex reviewSearchIndex;
+
+  @Inject
+  MovieOrdinals movieOrdinals;
+
+  @Inject
+  SearchSnapshot searchSnapshot;
+
+  private volatile BsonDocument resumeToken;
+  // cleared if the follower thread ever stops, the indexes would go stale without anyone noticing
+  private volatile boolean following = true;
+  // the indexes have to be read in full before following the stream
+  private boolean needsLoad = true;
+  // something was applied since the last snapshot
+  private boolean changed = false;
+
+  /**
+   * Starts following the change stream in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    Thread follower = new Thread(this::follow, "search-change-stream");
+    follower.setDaemon(true);
+    follower.start();
+  }
+
+  /**
+   * @return false once the follower thread has stopped and the indexes no longer take in changes
+   */
+  public boolean isFollowing() {
+    return following;
+  }
+
+  /**
+   * @return the resume token of the last event applied to the indexes, or null before the first one
+   */
+  public BsonDocument getResumeToken() {
+    return resumeToken;
+  }
+
+  private void follow() {
+    try {
+      followUntilInterrupted();
+    } finally {
+      following = false;
+    }
+  }
+
+  private void followUntilInterrupted() {
+    boolean snapshotTried = false;
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        // the indexes refer to movies by ordinal, so those are read before a snapshot or the collections
+        movieOrdinals.load();
+        if (!snapshotTried) {
+          snapshotTried = true;
+          resumeToken = searchSnapshot.load();
+          needsLoad = resumeToken == null;
+        }
+        followStream();
+      } catch (MongoCommandException e) {
+        if (e.getErrorCode() == CHANGE_STREAM_HISTORY_LOST || e.getErrorCode() == CHANGE_STREAM_FATAL_ERROR) {
+          restartFromScratch();
+        } else {
+          e.printStackTrace();
+          pause();
+        }
+      } catch (MongoException e) {
+        e.printStackTrace();
+        pause();
+      } catch (RuntimeException e) {
+        // a bug in a rebuild must not end the thread, the next pass reopens the stream where it left off
+        e.printStackTrace();
+        pause();
+      }
+    }
+  }
+
+  /**
+   * Loads the indexes if they need it, then applies events until the stream has to be reopened.
+   */
+  private void followStream() {
+    try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = open()) {
+      if (needsLoad) {
+        // take the position before reading so nothing written during the load is missed, replaying a change the
+        // load already saw is harmless since every event carries the whole document
+        resumeToken = cursor.getResumeToken();
+        // hand out any missing ordinals in a few batches rather than one round trip per movie during the loads
+        movieOrdinals.internAllMovies();
+        autoCompleteIndex.rebuild();
+        textSearchIndex.rebuild();
+        facetIndex.rebuild();
+        reviewSearchIndex.rebuild();
+        needsLoad = false;
+        changed = true;
+      }
+      while (true) {
+        ChangeStreamDocument<Document> event = cursor.tryNext();
+        if (event == null) {
+          // tryNext waits at most maxAwaitTime, the token still moves forward on an idle stream
+          if (cursor.getResumeToken() != null) { resumeToken = cursor.getResumeToken(); }
+          saveSnapshot();
+          continue;
+        }
+        if (event.getOperationType() == OperationType.INVALIDATE
+                || event.getOperationType() == OperationType.DROP_DATABASE) {
+          restartFromScratch();
+          return;
+        }
+        try {
+          apply(event);
+        } catch (MongoException e) {
+          // the event is applied again once the stream is reopened
+          throw e;
+        } catch (RuntimeException e) {
+          // a malformed document would fail every time it is replayed, so it is skipped rather than stopping the
+          // indexes from following everything after it
+          e.printStackTrace();
+        }
+        resumeToken = event.getResumeToken();
+        changed = true;
+        saveSnapshot();
+      }
+    }
+  }
+
+  private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open() {
+    var stream = DatabaseController.getMovieDatabase()
+            .watch(List.of(Aggregates.match(Filters.in("ns.coll", "movies", "actors", "tags", "ratings", "reviews"))))
+            .fullDocument(FullDocument.UPDATE_LOOKUP)
+            .maxAwaitTime(500, TimeUnit.MILLISECONDS);
+    if (resumeToken != null) {
+      stream = stream.resumeAfter(resumeToken);
+    }
+    return stream.cursor();
+  }
+
+  private void apply(ChangeStreamDocument<Document> event) {
+    if (event.getNamespace() == null || event.getDocumentKey() == null) { return; }
+    BsonValue id = event.getDocumentKey().get("_id");
+    if (id == null || !id.isObjectId()) { return; }
+    String hexId = id.asObjectId().getValue().toHexString();
+    // a missing full document on an update means it was deleted before the lookup ran
+    Document document = event.getOperationType() == OperationType.DELETE ? null : event.getFullDocument();
+    switch (event.getNamespace().getCollectionName()) {
+      case "movies":
+        autoCompleteIndex.applyMovie(hexId, document);
+        textSearchIndex.applyMovie(hexId, document);
+        facetIndex.applyMovie(hexId, document);
+        break;
+      case "actors":
+        autoCompleteIndex.applyActor(hexId, document);
+        break;
+      case "tags":
+        autoCompleteIndex.applyTag(hexId, document);
+        break;
+      case "ratings":
+        autoCompleteIndex.applyRating(hexId, document);
+        break;
+      case "reviews":
+        // the body of a long review is written before the review, so it is there to read
+        if (document != null) { new DatabaseController().fillReviewBodies(List.of(document)); }
+        textSearchIndex.applyReview(hexId, document);
+        reviewSearchIndex.applyReview(hexId, document);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Forgets the saved position so the next pass reloads everything, used when the stream can't be resumed. The old
+   * indexes keep answering until the new ones are swapped in.
+   */
+  private void restartFromScratch() {
+    resumeToken = null;
+    needsLoad = true;
+  }
+
+  /**
+   * Snapshots the indexes if they changed and the last snapshot is old enough. Runs between events, so the indexes
+   * are exactly as of the resume token.
+   */
+  private void saveSnapshot() {
+    if (!changed || !searchSnapshot.isDue()) { return; }
+    try {
+      searchSnapshot.write(resumeToken);
+      changed = false;
+    } catch (RuntimeException e) {
+      // a restart without the snapshot is only slower, isDue holds off the next try for an interval
+      e.printStackTrace();
+    }
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(RETRY_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
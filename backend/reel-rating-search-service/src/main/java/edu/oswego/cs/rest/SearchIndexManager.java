@@ -0,0 +1,244 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import edu.oswego.cs.rest.JsonClasses.IndexStatus;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Owns the Mongo indexes the search service depends on. Index definitions are declared once here and reconciled
+ * against the database in the background when the application starts, so search requests never send a createIndexes
+ * command themselves. The service reports ready through the MicroProfile readiness check once every index is built.
+ * Definitions that fail, for example because Mongo isn't reachable yet, are tried again with a growing delay.
+ *
+ * <p>A collection can only have one text index. A text index under another name is left alone and reported as the
+ * error of the definition that needs its place, unless <code>SEARCH_REPLACE_TEXT_INDEXES</code> is true, in which case
+ * it is dropped.</p>
+ */
+@ApplicationScoped
+public class SearchIndexManager {
+
+  public enum State { PENDING, BUILDING, READY, FAILED }
+
+  /**
+   * An index the search service needs on one of the collections.
+   */
+  public static class IndexDefinition {
+    private final String collection;
+    private final String name;
+    private final Bson keys;
+    private final boolean text;
+
+    public IndexDefinition(String collection, String name, Bson keys, boolean text) {
+      this.collection = collection;
+      this.name = name;
+      this.keys = keys;
+      this.text = text;
+    }
+
+    public String getCollection() { return collection; }
+    public String getName() { return name; }
+  }
+
+  // the names match the ones Mongo picked when these used to be created by the search methods, so existing
+  // deployments reconcile without a rebuild
+  private static final List<IndexDefinition> DEFINITIONS = List.of(
+          new IndexDefinition("movies", "title_text", Indexes.text("title"), true),
+          new IndexDefinition("actors", "name_text", Indexes.text("name"), true),
+          new IndexDefinition("tags", "tagName_text", Indexes.text("tagName"), true),
+          new IndexDefinition("ratings", "ratingName_text", Indexes.text("ratingName"), true),
+          // the tag and rating name searches look movies up by the names attached to them
+          new IndexDefinition("movies", "tagNames_1", Indexes.ascending("tagNames"), false),
+          new IndexDefinition("movies", "ratingCategoryNames_1", Indexes.ascending("ratingCategoryNames"), false)
+  );
+
+  private static final boolean REPLACE_TEXT_INDEXES =
+          Boolean.parseBoolean(getEnvOrDefault("SEARCH_REPLACE_TEXT_INDEXES", "false"));
+  private static final long FIRST_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60000;
+
+  private final Map<String, State> states = new ConcurrentHashMap<>();
+  private final Map<String, String> errors = new ConcurrentHashMap<>();
+
+  public SearchIndexManager() {
+    for (IndexDefinition definition : DEFINITIONS) {
+      states.put(getKey(definition), State.PENDING);
+    }
+  }
+
+  /**
+   * Starts reconciling the indexes in the background as soon as the application is up.
+   */
+  public void onStart(@Observes @Initialized(ApplicationScoped.class) Object context) {
+    Thread builder = new Thread(this::reconcileUntilReady, "search-index-builder");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  /**
+   * Reconciles until every declared index is built, waiting twice as long after each pass that left one failed.
+   */
+  void reconcileUntilReady() {
+    long retryMs = FIRST_RETRY_MS;
+    while (!reconcile()) {
+      try {
+        Thread.sleep(retryMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+    }
+  }
+
+  /**
+   * Creates every declared index that is not built yet.
+   * @return true if every declared index is now built
+   */
+  boolean reconcile() {
+    MongoDatabase database = DatabaseController.getMovieDatabase();
+    for (IndexDefinition definition : DEFINITIONS) {
+      String key = getKey(definition);
+      if (states.get(key) == State.READY) { continue; }
+      try {
+        MongoCollection<Document> collection = database.getCollection(definition.collection);
+        boolean exists = false;
+        String otherTextIndex = null;
+        for (Document index : collection.listIndexes()) {
+          String name = index.getString("name");
+          if (name.equals(definition.name)) {
+            exists = true;
+          } else if (definition.text && index.get("key", Document.class).containsKey("_fts")) {
+            otherTextIndex = name;
+          }
+        }
+        if (otherTextIndex != null) {
+          if (!REPLACE_TEXT_INDEXES) {
+            // someone else's index, it is only dropped when asked to. Tried again in case it is dropped by hand
+            errors.put(key, "the collection already has the text index " + otherTextIndex
+                    + ", drop it or set SEARCH_REPLACE_TEXT_INDEXES=true");
+            states.put(key, State.FAILED);
+            continue;
+          }
+          collection.dropIndex(otherTextIndex);
+        }
+        if (!exists) {
+          states.put(key, State.BUILDING);
+          collection.createIndex(definition.keys, new IndexOptions().name(definition.name).background(true));
+        }
+        errors.remove(key);
+        states.put(key, State.READY);
+      } catch (MongoException e) {
+        e.printStackTrace();
+        errors.put(key, e.getMessage());
+        states.put(key, State.FAILED);
+      }
+    }
+    return isReady();
+  }
+
+  /**
+   * @return true once every declared index has been built
+   */
+  public boolean isReady() {
+    return states.values().stream().allMatch(state -> state == State.READY);
+  }
+
+  /**
+   * Reports the state of every declared index along with the progress of any build still running and the size of
+   * the index on disk.
+   * @return one IndexStatus per declared index
+   */
+  public List<IndexStatus> getIndexStatuses() {
+    MongoDatabase database = DatabaseController.getMovieDatabase();
+    Map<String, Document> buildProgress = getBuildProgress();
+    Map<String, Document> indexSizes = new HashMap<>();
+    List<IndexStatus> statuses = new ArrayList<>();
+    for (IndexDefinition definition : DEFINITIONS) {
+      String key = getKey(definition);
+      IndexStatus status = new IndexStatus();
+      status.setCollection(definition.collection);
+      status.setName(definition.name);
+      status.setState(states.get(key).name());
+      status.setError(errors.get(key));
+
+      Document progress = buildProgress.get(key);
+      if (progress != null) {
+        status.setProgressDone(((Number) progress.get("done")).longValue());
+        status.setProgressTotal(((Number) progress.get("total")).longValue());
+      }
+
+      Document sizes = indexSizes.computeIfAbsent(definition.collection, name -> getIndexSizes(database, name));
+      Object size = sizes.get(definition.name);
+      if (size != null) {
+        status.setSizeBytes(((Number) size).longValue());
+      }
+      statuses.add(status);
+    }
+    return statuses;
+  }
+
+  /**
+   * @return the progress of running index builds, keyed by collection and index name the same way as the states
+   */
+  private static Map<String, Document> getBuildProgress() {
+    Map<String, Document> progress = new HashMap<>();
+    try {
+      DatabaseController.getAdminDatabase().aggregate(Arrays.asList(
+              new Document("$currentOp", new Document()),
+              Aggregates.match(Filters.and(
+                      Filters.exists("command.createIndexes"),
+                      Filters.exists("progress")))
+      )).forEach(op -> {
+        Document command = op.get("command", Document.class);
+        // one createIndexes command can build several indexes, they share its progress
+        for (Document index : command.getList("indexes", Document.class, List.of())) {
+          progress.put(command.getString("createIndexes") + "." + index.getString("name"),
+                  op.get("progress", Document.class));
+        }
+      });
+    } catch (MongoException e) {
+      // $currentOp needs extra privileges on secured deployments, progress is only informational
+      e.printStackTrace();
+    }
+    return progress;
+  }
+
+  /**
+   * @return the size in bytes of every index on the collection, keyed by index name
+   */
+  private static Document getIndexSizes(MongoDatabase database, String collectionName) {
+    try {
+      Document stats = database.getCollection(collectionName).aggregate(List.of(
+              new Document("$collStats", new Document("storageStats", new Document())))).first();
+      if (stats == null) { return new Document(); }
+      Document indexSizes = stats.get("storageStats", Document.class).get("indexSizes", Document.class);
+      return indexSizes == null ? new Document() : indexSizes;
+    } catch (MongoException e) {
+      // $collStats needs extra privileges on secured deployments too, sizes are only informational
+      e.printStackTrace();
+      return new Document();
+    }
+  }
+
+  private static String getKey(IndexDefinition definition) {
+    return definition.collection + "." + definition.name;
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
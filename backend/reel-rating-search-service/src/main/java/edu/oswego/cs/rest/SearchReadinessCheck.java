@@ -0,0 +1,42 @@
+package edu.oswego.cs.rest;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+/**
+ * Keeps the search service out of rotation until the indexes its searches rely on are built, both the Mongo ones and
+ * the in-memory autocomplete, full text, facet, and review search ones. Takes it back out if the change stream that
+ * keeps the in-memory ones current stops.
+ */
+@Readiness
+@ApplicationScoped
+public class SearchReadinessCheck implements HealthCheck {
+
+  @Inject
+  SearchIndexManager searchIndexManager;
+
+  @Inject
+  AutoCompleteIndex autoCompleteIndex;
+
+  @Inject
+  TextSearchIndex textSearchIndex;
+
+  @Inject
+  FacetIndex facetIndex;
+
+  @Inject
+  ReviewSearchIndex reviewSearchIndex;
+
+  @Inject
+  SearchChangeStream searchChangeStream;
+
+  @Override
+  public HealthCheckResponse call() {
+    return HealthCheckResponse.named("search-indexes").status(searchIndexManager.isReady() && autoCompleteIndex.isReady()
+            && textSearchIndex.isReady() && facetIndex.isReady() && reviewSearchIndex.isReady()
+            && searchChangeStream.isFollowing()).build();
+  }
+}
@@ -2,6 +2,7 @@ package edu.oswego.cs.rest;
 
 import edu.oswego.cs.rest.JsonClasses.*;
 import jakarta.enterprise.context.RequestScoped;
+import jakarta.inject.Inject;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
@@ -18,7 +19,10 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import com.ibm.websphere.security.jwt.JwtConsumer;
@@ -32,6 +36,33 @@ public class SearchService {
 
   String AuthServiceUrl = System.getenv("AUTH_SERVICE_URL");
 
+  @Inject
+  SearchIndexManager searchIndexManager;
+
+  @Inject
+  AutoCompleteIndex autoCompleteIndex;
+
+  @Inject
+  TextSearchIndex textSearchIndex;
+
+  @Inject
+  FacetIndex facetIndex;
+
+  @Inject
+  ReviewSearchIndex reviewSearchIndex;
+
+  // movies per page of full text search results
+  private static final int TEXT_SEARCH_PAGE_SIZE = 20;
+
+  // reviews per page of review search results
+  private static final int REVIEW_SEARCH_PAGE_SIZE = 20;
+
+  // most values listed per facet of a faceted search
+  private static final int FACET_VALUES = 20;
+
+  // most movies a fuzzy search returns
+  private static final int FUZZY_RESULTS = 20;
+
   /**
    * gets the username of the client request. Also authenticates the client using a JWT.
    * TODO double check if the above is correct
@@ -174,4 +205,174 @@ public class SearchService {
     return Response.ok(movies).build();
   }
 
-}
\ No newline at end of file
+  /*
+   * Fuzzy Search Endpoints
+   *
+   * fuzzySearchByMovieName
+   * fuzzySearchByMovieDirector
+   * fuzzySearchByMovieCast
+   */
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/movie/fuzzySearchByMovieName/{name}")
+  public Response fuzzySearchByMovieName(@Context HttpServletRequest request, @PathParam("name") String name, JSession jsession) throws Exception {
+    return fuzzySearch(jsession, AutoCompleteIndex.Field.TITLE, name);
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/movie/fuzzySearchByMovieDirector/{director}")
+  public Response fuzzySearchByMovieDirector(@Context HttpServletRequest request, @PathParam("director") String director, JSession jsession) throws Exception {
+    return fuzzySearch(jsession, AutoCompleteIndex.Field.DIRECTOR, director);
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/movie/fuzzySearchByMovieCast/{actorName}")
+  public Response fuzzySearchByMovieCast(@Context HttpServletRequest request, @PathParam("actorName") String actorName, JSession jsession) throws Exception {
+    return fuzzySearch(jsession, AutoCompleteIndex.Field.CAST, actorName);
+  }
+
+  private Response fuzzySearch(JSession jsession, AutoCompleteIndex.Field field, String query) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    // the fuzzy indexes live in memory and are only there once the service has loaded them
+    if (!autoCompleteIndex.isReady()) { return Response.status(Response.Status.SERVICE_UNAVAILABLE).build(); }
+    DatabaseController dbc = new DatabaseController();
+    List<String> titles = autoCompleteIndex.searchFuzzy(field, query, FUZZY_RESULTS);
+    List<Movie> movies = DatabaseController.enrichMoviePreviews(dbc.getMoviePreviewsByTitles(titles));
+    return Response.ok(movies).build();
+  }
+
+  /*
+   * Full Text Search Endpoints
+   *
+   * fullTextSearch
+   * facetedSearch
+   * reviewSearch
+   */
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/movie/fullTextSearch/{query}/{page}")
+  public Response fullTextSearch(@Context HttpServletRequest request, @PathParam("query") String query, @PathParam("page") int page, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    if (page < 0) { return Response.status(Response.Status.BAD_REQUEST).build(); }
+    if (!textSearchIndex.isReady()) { return Response.status(Response.Status.SERVICE_UNAVAILABLE).build(); }
+    TextSearchIndex.Page hits = textSearchIndex.search(query, page, TEXT_SEARCH_PAGE_SIZE);
+    List<String> movieIds = new ArrayList<>();
+    hits.getHits().forEach(hit -> movieIds.add(hit.getMovieId()));
+    // only the movies on this page are read from Mongo and enriched
+    DatabaseController dbc = new DatabaseController();
+    SearchPage searchPage = new SearchPage();
+    searchPage.setMovies(DatabaseController.enrichMoviePreviews(dbc.getMoviePreviewsByIds(movieIds)));
+    searchPage.setPage(page);
+    searchPage.setPageSize(TEXT_SEARCH_PAGE_SIZE);
+    searchPage.setTotal(hits.getTotal());
+    return Response.ok(searchPage).build();
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/movie/facetedSearch/{query}/{page}")
+  public Response facetedSearch(@Context HttpServletRequest request, @PathParam("query") String query, @PathParam("page") int page, FacetFilter facetFilter) throws Exception {
+    String sessionId = facetFilter.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    if (page < 0) { return Response.status(Response.Status.BAD_REQUEST).build(); }
+    if (!textSearchIndex.isReady() || !facetIndex.isReady()) {
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    }
+    Map<FacetIndex.Facet, Collection<String>> wanted = new EnumMap<>(FacetIndex.Facet.class);
+    if (facetFilter.getTags() != null) { wanted.put(FacetIndex.Facet.TAG, facetFilter.getTags()); }
+    if (facetFilter.getRatingCategories() != null) {
+      wanted.put(FacetIndex.Facet.RATING_CATEGORY, facetFilter.getRatingCategories());
+    }
+    // a movie only has one decade, so asking for several always means any of them
+    MovieBitmap allowed = wanted.isEmpty() ? null : facetIndex.filter(null, wanted, facetFilter.isMatchAll());
+    if (facetFilter.getDecades() != null && !facetFilter.getDecades().isEmpty()) {
+      allowed = facetIndex.filter(allowed, Map.of(FacetIndex.Facet.DECADE, facetFilter.getDecades()), false);
+    }
+
+    // the search collects every movie it keeps, the facets are counted over those and not just this page
+    MovieBitmap matched = new MovieBitmap();
+    TextSearchIndex.Page hits = textSearchIndex.search(query, page, TEXT_SEARCH_PAGE_SIZE,
+            facetIndex.collect(allowed, matched));
+    List<String> movieIds = new ArrayList<>();
+    hits.getHits().forEach(hit -> movieIds.add(hit.getMovieId()));
+    DatabaseController dbc = new DatabaseController();
+    FacetedSearchPage searchPage = new FacetedSearchPage();
+    searchPage.setMovies(DatabaseController.enrichMoviePreviews(dbc.getMoviePreviewsByIds(movieIds)));
+    searchPage.setPage(page);
+    searchPage.setPageSize(TEXT_SEARCH_PAGE_SIZE);
+    searchPage.setTotal(hits.getTotal());
+    searchPage.setTags(getFacetCounts(matched, FacetIndex.Facet.TAG));
+    searchPage.setRatingCategories(getFacetCounts(matched, FacetIndex.Facet.RATING_CATEGORY));
+    searchPage.setDecades(getFacetCounts(matched, FacetIndex.Facet.DECADE));
+    return Response.ok(searchPage).build();
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/review/search/{query}/{page}")
+  public Response reviewSearch(@Context HttpServletRequest request, @PathParam("query") String query, @PathParam("page") int page, ReviewSearchFilter reviewSearchFilter) throws Exception {
+    String sessionId = reviewSearchFilter.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    if (page < 0) { return Response.status(Response.Status.BAD_REQUEST).build(); }
+    if (!reviewSearchIndex.isReady()) { return Response.status(Response.Status.SERVICE_UNAVAILABLE).build(); }
+    String movieId = reviewSearchFilter.getMovieId();
+    if (movieId != null && movieId.isEmpty()) { movieId = null; }
+    // the index places the snippets, only the texts of the reviews on the page are read from Mongo
+    ReviewSearchIndex.Page hits = reviewSearchIndex.search(query, movieId, page, REVIEW_SEARCH_PAGE_SIZE);
+    List<ReviewSearchHit> reviews = new ArrayList<>();
+    for (ReviewSearchIndex.Hit hit : hits.getHits()) {
+      ReviewSearchHit review = new ReviewSearchHit();
+      review.setReviewId(hit.getReviewId());
+      review.setMovieId(hit.getMovieId());
+      review.setUsername(hit.getUsername());
+      review.setScore(hit.getScore());
+      review.setSnippet(hit.getSnippet());
+      review.setHighlights(hit.getHighlights());
+      reviews.add(review);
+    }
+    ReviewSearchPage searchPage = new ReviewSearchPage();
+    searchPage.setReviews(reviews);
+    searchPage.setPage(page);
+    searchPage.setPageSize(REVIEW_SEARCH_PAGE_SIZE);
+    searchPage.setTotal(hits.getTotal());
+    return Response.ok(searchPage).build();
+  }
+
+  private List<FacetCount> getFacetCounts(MovieBitmap movies, FacetIndex.Facet facet) {
+    List<FacetCount> counts = new ArrayList<>();
+    facetIndex.count(movies, facet, FACET_VALUES).forEach((value, count) -> counts.add(new FacetCount(value, count)));
+    return counts;
+  }
+
+  /*
+   * Index Endpoints
+   *
+   * getIndexStatus
+   */
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/search/getIndexStatus")
+  public Response getIndexStatus(@Context HttpServletRequest request, JSession jsession) throws Exception {
+    String sessionId = jsession.getJSESSIONID();
+    String requesterUsername = getUsername(sessionId);
+    if (requesterUsername == null) { return Response.status(Response.Status.UNAUTHORIZED).build(); }
+    List<IndexStatus> statuses = searchIndexManager.getIndexStatuses();
+    return Response.ok(statuses).build();
+  }
+
+}
@@ -0,0 +1,259 @@
+package edu.oswego.cs.rest;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.BsonDocument;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves AutoCompleteIndex, TextSearchIndex, FacetIndex, and ReviewSearchIndex to a single file together with the
+ * change stream resume token they are current as of, so a restart only has to replay what changed since instead of
+ * reading every collection again.
+ *
+ * <p>The file is a header followed by the token and the index contents. The header holds a CRC32 of everything after
+ * it, and a file that is truncated, from another format version, fails the check, or is too large to map as one
+ * buffer is ignored. On startup the file is memory-mapped. The prefix and fuzzy indexes are rebuilt on the heap from
+ * it, while the text indexes' posting lists and term counts are left as slices of the mapping, so they stay in the
+ * page cache until they are next changed.</p>
+ *
+ * <p>Snapshots are written by SearchChangeStream between events, which keeps the indexes and the token consistent.
+ * A new file is written next to the old one and moved over it, so a crash mid-write leaves the previous snapshot.
+ * Snapshots are only taken when SEARCH_SNAPSHOT_PATH is set.</p>
+ */
+@ApplicationScoped
+public class SearchSnapshot {
+
+  private static final int MAGIC = 0x52525353;
+  // bump whenever what the indexes write changes, older files are then ignored and the indexes read from Mongo
+  private static final int FORMAT = 8;
+  // magic, format, checksum, and payload length
+  private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+  // the payload is read through a single ByteBuffer, which can't go past 2 GB
+  private static final long MAX_PAYLOAD_BYTES = Integer.MAX_VALUE;
+
+  private static final String PATH = System.getenv("SEARCH_SNAPSHOT_PATH");
+  // at most one snapshot this often, and only if something changed
+  private static final long INTERVAL_MS = Long.parseLong(getEnvOrDefault("SEARCH_SNAPSHOT_INTERVAL_MS", "300000"));
+
+  @Inject
+  AutoCompleteIndex autoCompleteIndex;
+
+  @Inject
+  TextSearchIndex textSearchIndex;
+
+  @Inject
+  FacetIndex facetIndex;
+
+  @Inject
+  ReviewSearchIndex reviewSearchIndex;
+
+  private long writtenAt = 0;
+
+  /**
+   * @return true if SEARCH_SNAPSHOT_PATH is set
+   */
+  public boolean isEnabled() {
+    return PATH != null && !PATH.isEmpty();
+  }
+
+  /**
+   * @return true if the last snapshot is old enough for another
+   */
+  public boolean isDue() {
+    return isEnabled() && System.currentTimeMillis() - writtenAt >= INTERVAL_MS;
+  }
+
+  /**
+   * Fills the indexes from the snapshot file.
+   * @return the resume token the indexes are now current as of, or null if there is no usable snapshot, in which case
+   * the indexes are untouched
+   */
+  public BsonDocument load() {
+    if (!isEnabled() || !Files.isRegularFile(Paths.get(PATH))) { return null; }
+    try (FileChannel channel = FileChannel.open(Paths.get(PATH), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_BYTES) { return null; }
+      if (channel.size() - HEADER_BYTES > MAX_PAYLOAD_BYTES) {
+        throw new IOException("search snapshot " + PATH + " is " + channel.size() + " bytes, more than a snapshot can "
+                + "map, ignoring it");
+      }
+      // the mapping stays valid after the channel is closed and even after the file is replaced
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (mapped.getInt() != MAGIC || mapped.getInt() != FORMAT) { return null; }
+      long checksum = mapped.getLong();
+      long length = mapped.getLong();
+      if (length != channel.size() - HEADER_BYTES) { return null; }
+      CRC32 crc = new CRC32();
+      crc.update(mapped.slice(HEADER_BYTES, (int) length));
+      if (crc.getValue() != checksum) { return null; }
+
+      Input in = new Input(mapped.slice(HEADER_BYTES, (int) length));
+      BsonDocument token = BsonDocument.parse(in.readString());
+      autoCompleteIndex.readSnapshot(in);
+      textSearchIndex.readSnapshot(in);
+      facetIndex.readSnapshot(in);
+      reviewSearchIndex.readSnapshot(in);
+      writtenAt = System.currentTimeMillis();
+      return token;
+    } catch (IOException | RuntimeException e) {
+      // a snapshot that can't be read is only a slower start
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Writes the indexes as they are now. Must be called from the thread that applies changes to them.
+   * @param token resume token of the last change applied to the indexes
+   */
+  public void write(BsonDocument token) {
+    if (!isEnabled() || token == null) { return; }
+    writtenAt = System.currentTimeMillis();
+    Path path = Paths.get(PATH);
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      if (path.getParent() != null) { Files.createDirectories(path.getParent()); }
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        channel.position(HEADER_BYTES);
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+        Output out = new Output(checked);
+        out.writeString(token.toJson());
+        autoCompleteIndex.writeSnapshot(out);
+        textSearchIndex.writeSnapshot(out);
+        facetIndex.writeSnapshot(out);
+        reviewSearchIndex.writeSnapshot(out);
+        out.flush();
+        if (channel.size() - HEADER_BYTES > MAX_PAYLOAD_BYTES) {
+          throw new IOException("search snapshot is " + channel.size() + " bytes, more than a snapshot can map, "
+                  + "keeping the previous one");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(FORMAT).putLong(checked.getChecksum().getValue())
+                .putLong(channel.size() - HEADER_BYTES).flip();
+        channel.write(header, 0);
+        channel.force(true);
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * What the indexes write their contents to.
+   */
+  static class Output {
+    private final DataOutputStream out;
+
+    Output(OutputStream out) {
+      this.out = new DataOutputStream(out);
+    }
+
+    void writeInt(int value) throws IOException {
+      out.writeInt(value);
+    }
+
+    void writeLong(long value) throws IOException {
+      out.writeLong(value);
+    }
+
+    void writeBoolean(boolean value) throws IOException {
+      out.writeBoolean(value);
+    }
+
+    /**
+     * Writes a string that may be null.
+     */
+    void writeString(String value) throws IOException {
+      if (value == null) {
+        out.writeInt(-1);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    void writeBytes(byte[] bytes, int length) throws IOException {
+      out.writeInt(length);
+      out.write(bytes, 0, length);
+    }
+
+    /**
+     * Writes ints so that Input.readInts can hand them back as a view of the file.
+     */
+    void writeInts(IntBuffer values) throws IOException {
+      out.writeInt(values.limit() * 4);
+      for (int i = 0; i < values.limit(); i++) { out.writeInt(values.get(i)); }
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads back what Output wrote, straight from the mapped file.
+   */
+  static class Input {
+    private final ByteBuffer buffer;
+
+    Input(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    int readInt() {
+      return buffer.getInt();
+    }
+
+    long readLong() {
+      return buffer.getLong();
+    }
+
+    boolean readBoolean() {
+      return buffer.get() != 0;
+    }
+
+    String readString() {
+      int length = buffer.getInt();
+      if (length < 0) { return null; }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the next bytes as a view of the file rather than a copy
+     */
+    ByteBuffer readBytes() {
+      int length = buffer.getInt();
+      ByteBuffer bytes = buffer.slice(buffer.position(), length);
+      buffer.position(buffer.position() + length);
+      return bytes;
+    }
+
+    /**
+     * @return the next ints as a view of the file rather than a copy
+     */
+    IntBuffer readInts() {
+      return readBytes().asIntBuffer();
+    }
+  }
+
+  private static String getEnvOrDefault(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
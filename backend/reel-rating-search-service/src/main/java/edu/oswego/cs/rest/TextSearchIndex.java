@@ -0,0 +1,636 @@
+package edu.oswego.cs.rest;
+
+import com.mongodb.client.model.Projections;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * In-memory inverted index over movie titles, plot summaries, and review text, ranked with BM25. Every movie is one
+ * document with three fields, and all of a movie's reviews count as a single review field. Posting lists therefore
+ * never hold more entries than there are movies, however many reviews get written.
+ *
+ * <p>Each posting list is stored as varint encoded doc id gaps and term frequencies, plus a small map of changes
+ * made since it was last encoded. The list is re-encoded once that map grows. It is loaded from Mongo or a
+ * SearchSnapshot once and then kept current by SearchChangeStream. Lists loaded from a snapshot are read straight from
+ * the mapped file until they are first re-encoded.</p>
+ *
+ * <p>Updates need to know which terms a document and a review held before. That forward data is kept as sorted term
+ * id and count pairs in int arrays rather than maps, and after a snapshot load it too stays a view of the mapped file
+ * until the field changes.</p>
+ */
+@ApplicationScoped
+public class TextSearchIndex {
+
+  /**
+   * The fields a movie is indexed under and how much a match in each counts.
+   */
+  public enum Field {
+    TITLE(3.0), SUMMARY(1.0), REVIEW(0.5);
+
+    private final double boost;
+
+    Field(double boost) { this.boost = boost; }
+  }
+
+  /**
+   * A movie and how well it matched.
+   */
+  public static class Hit {
+    private final String movieId;
+    private final double score;
+
+    Hit(String movieId, double score) {
+      this.movieId = movieId;
+      this.score = score;
+    }
+
+    public String getMovieId() { return movieId; }
+    public double getScore() { return score; }
+  }
+
+  /**
+   * One page of hits along with how many movies matched in total.
+   */
+  public static class Page {
+    private final List<Hit> hits;
+    private final int total;
+
+    Page(List<Hit> hits, int total) {
+      this.hits = hits;
+      this.total = total;
+    }
+
+    public List<Hit> getHits() { return hits; }
+    public int getTotal() { return total; }
+  }
+
+  // reviews whose long text is fetched together during a rebuild
+  private static final int REVIEW_BATCH = 1000;
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+  private static final IntBuffer NO_TERMS = IntBuffer.allocate(0);
+
+  @Inject
+  MovieOrdinals movieOrdinals;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile boolean ready = false;
+  // replaced whole by rebuild and readSnapshot, changed in place by the change stream
+  private Contents contents = new Contents();
+
+  /**
+   * Reads every movie and review once and swaps in a freshly built index. Searches keep using the old one until
+   * then. Only called at startup and when the change stream can't resume.
+   */
+  public void rebuild() {
+    DatabaseController dbc = new DatabaseController();
+    Contents fresh = new Contents();
+    for (Document movie : dbc.getMovieCollection().find()
+            .projection(Projections.include("title", "plotSummary"))) {
+      fresh.applyMovie(movie.getObjectId("_id").toHexString(), movie);
+    }
+    List<Document> batch = new ArrayList<>();
+    for (Document review : dbc.getReviewCollection().find()
+            .projection(Projections.include("movieId", "reviewDescription", "hasBody", "privacy"))) {
+      batch.add(review);
+      if (batch.size() == REVIEW_BATCH) { applyReviewBatch(dbc, fresh, batch); }
+    }
+    applyReviewBatch(dbc, fresh, batch);
+    swap(fresh);
+  }
+
+  private void swap(Contents fresh) {
+    lock.writeLock().lock();
+    try {
+      contents = fresh;
+      ready = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the terms, documents, and posting lists. Changes waiting to be encoded are merged into the written lists.
+   */
+  public void writeSnapshot(SearchSnapshot.Output out) throws IOException {
+    lock.readLock().lock();
+    try {
+      Contents current = contents;
+      Map<String, Integer> termIds = current.termIds;
+      List<Doc> docs = current.docs;
+      // term ids are assigned in order, so writing the terms by id is enough to give them the same ids again
+      String[] terms = new String[termIds.size()];
+      termIds.forEach((term, termId) -> terms[termId] = term);
+      out.writeInt(terms.length);
+      for (String term : terms) { out.writeString(term); }
+
+      out.writeInt(docs.size());
+      for (int docId = 0; docId < docs.size(); docId++) {
+        Doc doc = docs.get(docId);
+        out.writeBoolean(doc != null);
+        if (doc == null) { continue; }
+        // written so a load can tell the ordinals still mean the same movies
+        out.writeString(movieOrdinals.getMovieId(docId));
+        out.writeBoolean(doc.hasMovie);
+        for (int f = 0; f < doc.terms.length; f++) {
+          out.writeInt(doc.lengths[f]);
+          out.writeInts(doc.terms[f]);
+        }
+      }
+
+      out.writeInt(current.reviews.size());
+      for (Map.Entry<String, IndexedReview> review : current.reviews.entrySet()) {
+        out.writeString(review.getKey());
+        out.writeInt(review.getValue().docId);
+        out.writeInts(review.getValue().terms);
+      }
+
+      out.writeInt(current.movieCount);
+      for (int f = 0; f < current.totalLengths.length; f++) {
+        out.writeLong(current.totalLengths[f]);
+        out.writeInt(current.docsWithField[f]);
+      }
+
+      for (List<Postings> lists : current.postings) {
+        out.writeInt(lists.size());
+        for (Postings list : lists) {
+          out.writeBoolean(list != null);
+          if (list != null) { list.writeTo(out); }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Builds an index from what writeSnapshot wrote and swaps it in, in place of reading Mongo. The posting lists and
+   * the terms of every document and review keep pointing into the snapshot's buffer.
+   */
+  public void readSnapshot(SearchSnapshot.Input in) {
+    Contents fresh = new Contents();
+    int termCount = in.readInt();
+    for (int termId = 0; termId < termCount; termId++) { fresh.termIds.put(in.readString(), termId); }
+
+    int docCount = in.readInt();
+    for (int docId = 0; docId < docCount; docId++) {
+      if (!in.readBoolean()) {
+        fresh.docs.add(null);
+        continue;
+      }
+      String movieId = in.readString();
+      if (movieOrdinals.find(movieId) != docId) {
+        throw new IllegalStateException("movie ordinals changed since the snapshot, " + movieId);
+      }
+      Doc doc = new Doc();
+      doc.hasMovie = in.readBoolean();
+      for (int f = 0; f < doc.terms.length; f++) {
+        doc.lengths[f] = in.readInt();
+        doc.terms[f] = in.readInts();
+      }
+      fresh.docs.add(doc);
+    }
+
+    for (int i = in.readInt(); i > 0; i--) {
+      String id = in.readString();
+      int docId = in.readInt();
+      fresh.reviews.put(id, new IndexedReview(docId, in.readInts()));
+    }
+
+    fresh.movieCount = in.readInt();
+    for (int f = 0; f < fresh.totalLengths.length; f++) {
+      fresh.totalLengths[f] = in.readLong();
+      fresh.docsWithField[f] = in.readInt();
+    }
+
+    for (List<Postings> lists : fresh.postings) {
+      for (int i = in.readInt(); i > 0; i--) {
+        lists.add(in.readBoolean() ? Postings.readFrom(in) : null);
+      }
+    }
+    swap(fresh);
+  }
+
+  /**
+   * @return true once the index has been loaded
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Brings the title and summary fields in line with the current state of a movie.
+   * @param id movie id
+   * @param movie the movie as it is now, or null if it was deleted
+   */
+  public void applyMovie(String id, Document movie) {
+    // a new movie's ordinal may need a round trip, done before the lock so searches don't wait on it
+    if (movie != null) { movieOrdinals.getOrdinal(id); }
+    lock.writeLock().lock();
+    try {
+      contents.applyMovie(id, movie);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes reviews read during a rebuild, with the full text of the long ones read in one query, then clears the
+   * batch.
+   */
+  private static void applyReviewBatch(DatabaseController dbc, Contents contents, List<Document> batch) {
+    dbc.fillReviewBodies(batch);
+    for (Document review : batch) { contents.applyReview(review.getObjectId("_id").toHexString(), review); }
+    batch.clear();
+  }
+
+  /**
+   * Brings the review field of the review's movie in line with the current state of a review.
+   * @param id review id
+   * @param review the review as it is now, or null if it was deleted
+   */
+  public void applyReview(String id, Document review) {
+    lock.writeLock().lock();
+    try {
+      contents.applyReview(id, review);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Ranks movies against the query with BM25, summing the boosted score of every field.
+   * @param query free text
+   * @param page zero based page number
+   * @param pageSize hits per page
+   * @return the requested page of hits, best first
+   */
+  public Page search(String query, int page, int pageSize) {
+    return search(query, page, pageSize, ordinal -> true);
+  }
+
+  /**
+   * Ranks movies against the query like search, skipping the ones the filter rejects. They aren't counted in the
+   * total either.
+   * @param filter called once with the MovieOrdinals ordinal of every matching movie, in no particular order
+   */
+  public Page search(String query, int page, int pageSize, IntPredicate filter) {
+    List<String> terms = new ArrayList<>(new LinkedHashSet<>(Analyzer.TEXT.tokenize(query)));
+    int wanted = (page + 1) * pageSize;
+    if (terms.isEmpty() || pageSize <= 0 || page < 0) { return new Page(new ArrayList<>(), 0); }
+
+    lock.readLock().lock();
+    try {
+      Contents current = contents;
+      List<Doc> docs = current.docs;
+      Scores scores = SCORES.get();
+      scores.reset(docs.size());
+      for (String term : terms) {
+        Integer termId = current.termIds.get(term);
+        if (termId == null) { continue; }
+        for (Field field : Field.values()) {
+          Postings list = current.getPostings(field, termId);
+          if (list == null || list.df == 0) { continue; }
+          int f = field.ordinal();
+          double averageLength = current.docsWithField[f] == 0 ? 1
+                  : (double) current.totalLengths[f] / current.docsWithField[f];
+          double idf = Math.log(1 + (current.movieCount - list.df + 0.5) / (list.df + 0.5));
+          double weight = field.boost * idf;
+          list.forEach((doc, tf) -> {
+            double norm = K1 * (1 - B + B * docs.get(doc).lengths[f] / averageLength);
+            scores.add(doc, weight * tf * (K1 + 1) / (tf + norm));
+          });
+        }
+      }
+
+      // bounded heap with the worst of the best on top, ties go to the lower doc id
+      PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(1, Math.min(wanted, 1024)),
+              (a, b) -> scores.scores[a[0]] != scores.scores[b[0]]
+                      ? Double.compare(scores.scores[a[0]], scores.scores[b[0]]) : Integer.compare(b[0], a[0]));
+      int total = 0;
+      for (int t = 0; t < scores.touched; t++) {
+        int doc = scores.docs[t];
+        // reviews can arrive before their movie, those aren't searchable yet
+        if (!docs.get(doc).hasMovie || !filter.test(doc)) { continue; }
+        total++;
+        heap.add(new int[] {doc});
+        if (heap.size() > wanted) { heap.poll(); }
+      }
+      List<Hit> hits = new ArrayList<>(heap.size());
+      while (!heap.isEmpty()) {
+        int doc = heap.poll()[0];
+        hits.add(new Hit(movieOrdinals.getMovieId(doc), scores.scores[doc]));
+      }
+      Collections.reverse(hits);
+      int from = Math.min(hits.size(), page * pageSize);
+      return new Page(new ArrayList<>(hits.subList(from, hits.size())), total);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Everything the index holds. rebuild and readSnapshot fill a fresh one without holding the lock and swap it in.
+   */
+  private class Contents {
+    final Map<String, Integer> termIds = new HashMap<>();
+    // postings by field, then term id
+    final List<List<Postings>> postings = new ArrayList<>();
+    // doc ids are movie ordinals, null where the ordinal has nothing indexed
+    final List<Doc> docs = new ArrayList<>();
+    // review id to what it added to its movie's review field
+    final Map<String, IndexedReview> reviews = new HashMap<>();
+    final long[] totalLengths = new long[Field.values().length];
+    final int[] docsWithField = new int[Field.values().length];
+    int movieCount = 0;
+
+    Contents() {
+      for (Field ignored : Field.values()) { postings.add(new ArrayList<>()); }
+    }
+
+    void applyMovie(String id, Document movie) {
+      int docId = getDocId(id);
+      if (docId < 0) { return; }
+      Doc doc = docs.get(docId);
+      if (doc.hasMovie != (movie != null)) { movieCount += movie != null ? 1 : -1; }
+      doc.hasMovie = movie != null;
+      setField(docId, Field.TITLE, movie == null ? NO_TERMS : countTerms(movie.getString("title")));
+      setField(docId, Field.SUMMARY, movie == null ? NO_TERMS : countTerms(movie.getString("plotSummary")));
+    }
+
+    void applyReview(String id, Document review) {
+      IndexedReview old = reviews.remove(id);
+      if (old != null) {
+        setField(old.docId, Field.REVIEW, merge(docs.get(old.docId).terms[Field.REVIEW.ordinal()], old.terms, -1));
+      }
+      if (review == null || "private".equals(review.getString("privacy")) || review.getString("movieId") == null) {
+        return;
+      }
+      IntBuffer reviewTerms = countTerms(review.getString("reviewDescription"));
+      int docId = getDocId(review.getString("movieId"));
+      if (docId < 0) { return; }
+      setField(docId, Field.REVIEW, merge(docs.get(docId).terms[Field.REVIEW.ordinal()], reviewTerms, 1));
+      reviews.put(id, new IndexedReview(docId, reviewTerms));
+    }
+
+    /**
+     * Replaces the terms of one field of a document, updating only the posting lists whose count changed.
+     */
+    void setField(int docId, Field field, IntBuffer terms) {
+      int f = field.ordinal();
+      Doc doc = docs.get(docId);
+      List<Postings> lists = postings.get(f);
+      int[] length = {0};
+      join(doc.terms[f], terms, (termId, oldTf, newTf) -> {
+        length[0] += newTf;
+        if (oldTf == newTf) { return; }
+        while (lists.size() <= termId) { lists.add(null); }
+        if (lists.get(termId) == null) { lists.set(termId, new Postings()); }
+        lists.get(termId).set(docId, oldTf, newTf);
+      });
+      if (doc.lengths[f] > 0) { docsWithField[f]--; }
+      if (length[0] > 0) { docsWithField[f]++; }
+      totalLengths[f] += length[0] - doc.lengths[f];
+      doc.lengths[f] = length[0];
+      doc.terms[f] = terms;
+    }
+
+    Postings getPostings(Field field, int termId) {
+      List<Postings> lists = postings.get(field.ordinal());
+      return termId < lists.size() ? lists.get(termId) : null;
+    }
+
+    /**
+     * Only looks the ordinal up, so it never waits on Mongo while the lock is held. Reviews of a movie that was never
+     * handed one, an unknown or deleted movie, are left out.
+     * @return the movie's ordinal with a Doc in place for it, or -1 if the movie has no ordinal
+     */
+    int getDocId(String movieId) {
+      int ordinal = movieOrdinals.find(movieId);
+      if (ordinal < 0) { return -1; }
+      while (docs.size() <= ordinal) { docs.add(null); }
+      if (docs.get(ordinal) == null) { docs.set(ordinal, new Doc()); }
+      return ordinal;
+    }
+
+    /**
+     * @return term id and count pairs ordered by term id
+     */
+    IntBuffer countTerms(String text) {
+      Map<Integer, Integer> counts = new TreeMap<>();
+      for (String term : Analyzer.TEXT.tokenize(text)) {
+        int termId = termIds.computeIfAbsent(term, t -> termIds.size());
+        counts.merge(termId, 1, Integer::sum);
+      }
+      int[] terms = new int[counts.size() * 2];
+      int i = 0;
+      for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+        terms[i++] = entry.getKey();
+        terms[i++] = entry.getValue();
+      }
+      return IntBuffer.wrap(terms);
+    }
+  }
+
+  /**
+   * Adds or subtracts the counts of b to those of a, both term id and count pairs ordered by term id.
+   * @param sign 1 to add, -1 to subtract
+   * @return the result in the same form, without the terms whose count dropped to zero
+   */
+  private static IntBuffer merge(IntBuffer a, IntBuffer b, int sign) {
+    int[] merged = new int[a.limit() + b.limit()];
+    int[] size = {0};
+    join(a, b, (termId, countA, countB) -> {
+      int count = countA + sign * countB;
+      if (count <= 0) { return; }
+      merged[size[0]++] = termId;
+      merged[size[0]++] = count;
+    });
+    return IntBuffer.wrap(Arrays.copyOf(merged, size[0]));
+  }
+
+  /**
+   * Walks two lists of term id and count pairs ordered by term id together, calling the consumer once for every term
+   * in either with a count of zero for the list that doesn't have it.
+   */
+  private static void join(IntBuffer a, IntBuffer b, TermCountsConsumer consumer) {
+    int i = 0;
+    int j = 0;
+    while (i < a.limit() || j < b.limit()) {
+      if (j >= b.limit() || (i < a.limit() && a.get(i) < b.get(j))) {
+        consumer.accept(a.get(i), a.get(i + 1), 0);
+        i += 2;
+      } else if (i >= a.limit() || b.get(j) < a.get(i)) {
+        consumer.accept(b.get(j), 0, b.get(j + 1));
+        j += 2;
+      } else {
+        consumer.accept(a.get(i), a.get(i + 1), b.get(j + 1));
+        i += 2;
+        j += 2;
+      }
+    }
+  }
+
+  private static class Doc {
+    boolean hasMovie;
+    final int[] lengths = new int[Field.values().length];
+    // term id and count pairs of each field, needed to work out which postings change on an update
+    final IntBuffer[] terms = new IntBuffer[Field.values().length];
+
+    Doc() {
+      Arrays.fill(terms, NO_TERMS);
+    }
+  }
+
+  private static class IndexedReview {
+    final int docId;
+    // term id and count pairs the review added to its movie's review field
+    final IntBuffer terms;
+
+    IndexedReview(int docId, IntBuffer terms) {
+      this.docId = docId;
+      this.terms = terms;
+    }
+  }
+
+  interface PostingConsumer {
+    void accept(int doc, int tf);
+  }
+
+  interface TermCountsConsumer {
+    void accept(int termId, int countA, int countB);
+  }
+
+  /**
+   * Doc ids and term frequencies in doc id order, varint encoded as gaps, plus the changes made since the last
+   * encoding. A term frequency of zero in the changes means the doc was removed.
+   */
+  static class Postings {
+    // a heap array once encoded here, a slice of the mapped file when loaded from a snapshot
+    private ByteBuffer data = ByteBuffer.allocate(0);
+    private final TreeMap<Integer, Integer> changes = new TreeMap<>();
+    private int encoded = 0;
+    int df = 0;
+
+    void set(int doc, int oldTf, int newTf) {
+      if (oldTf == 0 && newTf > 0) { df++; }
+      if (oldTf > 0 && newTf == 0) { df--; }
+      changes.put(doc, newTf);
+      if (changes.size() > Math.max(32, encoded / 8)) { encode(); }
+    }
+
+    void forEach(PostingConsumer consumer) {
+      Iterator<Map.Entry<Integer, Integer>> pending = changes.entrySet().iterator();
+      Map.Entry<Integer, Integer> change = pending.hasNext() ? pending.next() : null;
+      int position = 0;
+      int doc = 0;
+      int length = data.limit();
+      while (position < length) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do { b = data.get(position++); value |= (b & 0x7f) << shift; shift += 7; } while (b < 0);
+        doc += value;
+        int tf = 0;
+        shift = 0;
+        do { b = data.get(position++); tf |= (b & 0x7f) << shift; shift += 7; } while (b < 0);
+        while (change != null && change.getKey() < doc) {
+          if (change.getValue() > 0) { consumer.accept(change.getKey(), change.getValue()); }
+          change = pending.hasNext() ? pending.next() : null;
+        }
+        if (change != null && change.getKey() == doc) {
+          if (change.getValue() > 0) { consumer.accept(doc, change.getValue()); }
+          change = pending.hasNext() ? pending.next() : null;
+        } else {
+          consumer.accept(doc, tf);
+        }
+      }
+      while (change != null) {
+        if (change.getValue() > 0) { consumer.accept(change.getKey(), change.getValue()); }
+        change = pending.hasNext() ? pending.next() : null;
+      }
+    }
+
+    private void encode() {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      encoded = encodeTo(out);
+      data = ByteBuffer.wrap(out.toByteArray());
+      changes.clear();
+    }
+
+    /**
+     * Encodes the list with its changes applied, without changing it.
+     * @return how many docs were written
+     */
+    private int encodeTo(ByteArrayOutputStream out) {
+      int[] previous = {0};
+      int[] count = {0};
+      forEach((doc, tf) -> {
+        writeVarint(out, doc - previous[0]);
+        writeVarint(out, tf);
+        previous[0] = doc;
+        count[0]++;
+      });
+      return count[0];
+    }
+
+    void writeTo(SearchSnapshot.Output out) throws IOException {
+      ByteArrayOutputStream encoding = new ByteArrayOutputStream();
+      out.writeInt(encodeTo(encoding));
+      out.writeInt(df);
+      out.writeBytes(encoding.toByteArray(), encoding.size());
+    }
+
+    static Postings readFrom(SearchSnapshot.Input in) {
+      Postings list = new Postings();
+      list.encoded = in.readInt();
+      list.df = in.readInt();
+      list.data = in.readBytes();
+      return list;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+  }
+
+  // reused between searches on the same thread so scoring doesn't allocate an array per query
+  private static final ThreadLocal<Scores> SCORES = ThreadLocal.withInitial(Scores::new);
+
+  /**
+   * Accumulated scores by doc id, along with the docs that were scored so only those need clearing.
+   */
+  static class Scores {
+    double[] scores = new double[0];
+    int[] docs = new int[16];
+    int touched;
+
+    void reset(int size) {
+      for (int t = 0; t < touched; t++) { scores[docs[t]] = 0; }
+      touched = 0;
+      if (scores.length < size) { scores = new double[Math.max(size, scores.length * 2)]; }
+    }
+
+    void add(int doc, double score) {
+      if (scores[doc] == 0) {
+        if (touched == docs.length) { docs = Arrays.copyOf(docs, touched * 2); }
+        docs[touched++] = doc;
+      }
+      scores[doc] += score;
+    }
+  }
+}
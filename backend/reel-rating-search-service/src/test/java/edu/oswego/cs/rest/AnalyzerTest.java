@@ -0,0 +1,68 @@
+package edu.oswego.cs.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnalyzerTest {
+
+  @Test
+  void normalizesCaseAccentsPunctuationAndWhitespace() {
+    assertEquals("spiderman far from home", Analyzer.NAME.normalize("Spider-Man: Far From Home"));
+    assertEquals("amelie ecole", Analyzer.NAME.normalize("  Amélie \t ÉCOLE  "));
+    assertEquals("walle", Analyzer.NAME.normalize("WALL·E"));
+    assertEquals("", Analyzer.NAME.normalize(null));
+    assertEquals("", Analyzer.NAME.normalize(" -- "));
+  }
+
+  @Test
+  void returnsNormalTextAsIs() {
+    String normal = "star wars 1977";
+    assertSame(normal, Analyzer.NAME.normalize(normal));
+  }
+
+  @Test
+  void nameAnalyzerKeepsEveryWordWhole() {
+    assertEquals(List.of("the", "stars"), Analyzer.NAME.tokenize("The Stars"));
+  }
+
+  @Test
+  void textAnalyzerDropsStopWordsAndStemsPlurals() {
+    assertEquals(List.of("hero", "story", "star"), Analyzer.TEXT.tokenize("Heroes and Stories of the Stars"));
+    assertEquals(List.of("bus", "glass", "cat", "its"), Analyzer.TEXT.tokenize("bus glass cats its"));
+    assertEquals(List.of(), Analyzer.TEXT.tokenize(null));
+  }
+
+  @Test
+  void stemsOnlyPluralEndings() {
+    assertEquals("story", Analyzer.stem("stories"));
+    assertEquals("hero", Analyzer.stem("heroes"));
+    assertEquals("star", Analyzer.stem("stars"));
+    assertEquals("boss", Analyzer.stem("boss"));
+    assertEquals("virus", Analyzer.stem("virus"));
+    assertEquals("gas", Analyzer.stem("gas"));
+    assertEquals("movie", Analyzer.stem("movie"));
+  }
+
+  @Test
+  void reportsWhereEachWordIsInTheOriginalText() {
+    String text = "(Heroes), the  Spider-Man's café!";
+    List<String> found = new ArrayList<>();
+    Analyzer.TEXT.tokenize(text, (term, start, end) -> found.add(term + "=" + text.substring(start, end)));
+    assertEquals(List.of("hero=Heroes", "spiderman=Spider-Man's", "cafe=café"), found);
+  }
+
+  @Test
+  void offsetsGiveTheSameWordsAsTokenize() {
+    String text = "It was the best of times, it was the worst of times; Stories of HEROES & villains...";
+    List<String> terms = new ArrayList<>();
+    Analyzer.TEXT.tokenize(text, (term, start, end) -> {
+      terms.add(term);
+      assertEquals(term, Analyzer.TEXT.tokenize(text.substring(start, end)).get(0));
+    });
+    assertEquals(Analyzer.TEXT.tokenize(text), terms);
+  }
+}
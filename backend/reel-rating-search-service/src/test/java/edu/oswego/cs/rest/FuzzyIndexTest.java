@@ -0,0 +1,82 @@
+package edu.oswego.cs.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FuzzyIndexTest {
+
+  @Test
+  void findsTitlesDespiteTypos() {
+    FuzzyIndex index = new FuzzyIndex();
+    index.add("Interstellar", "Interstellar");
+    index.add("Inception", "Inception");
+    // a wrong letter, a swapped pair, a missing letter
+    assertEquals(List.of("Interstellar"), index.search("intersteller", 5));
+    assertEquals(List.of("Interstellar"), index.search("intresteller", 5));
+    assertEquals(List.of("Inception"), index.search("incepton", 5));
+    // a typed prefix only has to be close to the start of a key
+    assertEquals(List.of("Interstellar"), index.search("intersr", 5));
+  }
+
+  @Test
+  void shortQueriesMustMatchExactly() {
+    FuzzyIndex index = new FuzzyIndex();
+    index.add("Heat", "Heat");
+    assertEquals(List.of("Heat"), index.search("heat", 5));
+    assertEquals(List.of(), index.search("heal", 5));
+  }
+
+  @Test
+  void ranksByDistanceThenStartOfNameThenPopularityThenLength() {
+    Map<String, Integer> popularity = new HashMap<>();
+    FuzzyIndex index = new FuzzyIndex(popularity);
+    index.add("Gladiator", "Gladiator");
+    index.add("Gladiators", "Gladiators");
+    index.add("The Gladiator", "The Gladiator");
+    index.add("Gladiatrix", "Gladiatrix");
+    assertEquals(List.of("Gladiator", "Gladiators", "The Gladiator", "Gladiatrix"), index.search("gladiator", 10));
+
+    // popularity only breaks ties between equally close matches
+    popularity.put("Gladiators", 40);
+    popularity.put("Gladiator", 3);
+    assertEquals(List.of("Gladiators", "Gladiator", "The Gladiator", "Gladiatrix"), index.search("gladiator", 10));
+    popularity.put("Gladiatrix", 1000);
+    assertEquals("Gladiatrix", index.search("gladiator", 10).get(3));
+  }
+
+  @Test
+  void removesOnlyTheLastReference() {
+    FuzzyIndex index = new FuzzyIndex();
+    index.add("Solaris", "Solaris");
+    index.add("Solaris", "Solaris");
+    index.remove("Solaris", "Solaris");
+    assertEquals(List.of("Solaris"), index.search("solarsi", 5));
+    index.remove("Solaris", "Solaris");
+    assertEquals(List.of(), index.search("solarsi", 5));
+    index.remove("Solaris", "Solaris");
+    assertEquals(List.of(), index.search("solaris", 5));
+  }
+
+  @Test
+  void prefixDistanceCountsASwapAsOneEdit() {
+    assertEquals(0, FuzzyIndex.getPrefixDistance("star", "star wars", 2));
+    assertEquals(1, FuzzyIndex.getPrefixDistance("stra", "star wars", 2));
+    assertEquals(1, FuzzyIndex.getPrefixDistance("stat", "star wars", 2));
+    assertEquals(2, FuzzyIndex.getPrefixDistance("satr wras", "star wars", 2));
+    // anything past the limit is reported as one over it
+    assertEquals(2, FuzzyIndex.getPrefixDistance("xxxx", "star", 1));
+  }
+
+  @Test
+  void allowsMoreEditsForLongerQueries() {
+    assertEquals(0, FuzzyIndex.getMaxDistance(4));
+    assertEquals(1, FuzzyIndex.getMaxDistance(5));
+    assertEquals(1, FuzzyIndex.getMaxDistance(8));
+    assertEquals(2, FuzzyIndex.getMaxDistance(9));
+  }
+}
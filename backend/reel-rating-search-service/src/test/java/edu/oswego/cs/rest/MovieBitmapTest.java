@@ -0,0 +1,114 @@
+package edu.oswego.cs.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MovieBitmapTest {
+
+  @Test
+  void addsAndRemovesLikeASet() {
+    MovieBitmap bitmap = new MovieBitmap();
+    assertTrue(bitmap.isEmpty());
+    assertTrue(bitmap.add(5));
+    assertFalse(bitmap.add(5));
+    assertTrue(bitmap.add(70000));
+    assertTrue(bitmap.contains(5));
+    assertFalse(bitmap.contains(6));
+    assertEquals(2, bitmap.cardinality());
+    assertTrue(bitmap.remove(5));
+    assertFalse(bitmap.remove(5));
+    assertTrue(bitmap.remove(70000));
+    assertTrue(bitmap.isEmpty());
+  }
+
+  @Test
+  void switchesBetweenArrayAndBitmapChunksWithoutLosingValues() {
+    MovieBitmap bitmap = new MovieBitmap();
+    TreeSet<Integer> expected = new TreeSet<>();
+    // one chunk past the array limit and back under it
+    for (int i = 0; i < 6000; i++) {
+      bitmap.add(i * 7 % 65536);
+      expected.add(i * 7 % 65536);
+    }
+    assertEquals(toList(expected), toList(bitmap));
+    for (int i = 0; i < 5000; i++) {
+      bitmap.remove(i * 7 % 65536);
+      expected.remove(i * 7 % 65536);
+    }
+    assertEquals(toList(expected), toList(bitmap));
+    assertEquals(expected.size(), bitmap.cardinality());
+  }
+
+  @Test
+  void matchesASetUnderRandomChanges() {
+    Random random = new Random(11);
+    MovieBitmap bitmap = new MovieBitmap();
+    TreeSet<Integer> expected = new TreeSet<>();
+    for (int i = 0; i < 200000; i++) {
+      // a dense chunk, a sparse chunk, and values scattered over many chunks
+      int ordinal = switch (random.nextInt(3)) {
+        case 0 -> random.nextInt(20000);
+        case 1 -> 65536 + random.nextInt(65536);
+        default -> random.nextInt(1 << 24);
+      };
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(ordinal), bitmap.remove(ordinal));
+      } else {
+        assertEquals(expected.add(ordinal), bitmap.add(ordinal));
+      }
+    }
+    assertEquals(expected.size(), bitmap.cardinality());
+    assertEquals(toList(expected), toList(bitmap));
+    for (int i = 0; i < 1000; i++) {
+      int ordinal = random.nextInt(1 << 24);
+      assertEquals(expected.contains(ordinal), bitmap.contains(ordinal));
+    }
+  }
+
+  @Test
+  void intersectsAndUnitesAcrossChunkKinds() {
+    Random random = new Random(3);
+    for (int round = 0; round < 20; round++) {
+      MovieBitmap a = new MovieBitmap();
+      MovieBitmap b = new MovieBitmap();
+      Set<Integer> setA = new TreeSet<>();
+      Set<Integer> setB = new TreeSet<>();
+      int sizeA = random.nextInt(10000);
+      int sizeB = random.nextInt(10000);
+      for (int i = 0; i < sizeA; i++) {
+        int ordinal = random.nextInt(3 * 65536);
+        a.add(ordinal);
+        setA.add(ordinal);
+      }
+      for (int i = 0; i < sizeB; i++) {
+        int ordinal = random.nextInt(2 * 65536) + 65536;
+        b.add(ordinal);
+        setB.add(ordinal);
+      }
+      Set<Integer> both = new TreeSet<>(setA);
+      both.retainAll(setB);
+      Set<Integer> either = new TreeSet<>(setA);
+      either.addAll(setB);
+      assertEquals(new ArrayList<>(both), toList(a.and(b)));
+      assertEquals(new ArrayList<>(both), toList(b.and(a)));
+      assertEquals(new ArrayList<>(either), toList(a.or(b)));
+      assertEquals(both.size(), a.andCardinality(b));
+      assertEquals(both.size(), a.toDense().andCardinality(b));
+      assertEquals(both.size(), b.andCardinality(a.toDense()));
+      assertEquals(new ArrayList<>(setA), toList(a.toDense()));
+    }
+  }
+
+  private static List<Integer> toList(Collection<Integer> values) {
+    return new ArrayList<>(values);
+  }
+
+  private static List<Integer> toList(MovieBitmap bitmap) {
+    List<Integer> values = new ArrayList<>();
+    bitmap.forEach(values::add);
+    return values;
+  }
+}
@@ -0,0 +1,117 @@
+package edu.oswego.cs.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrefixIndexTest {
+
+  @Test
+  void completesFromTheStartOfAnyWord() {
+    PrefixIndex index = new PrefixIndex.Builder().add("Star Wars").add("Starship Troopers").build();
+    assertEquals(List.of("Star Wars"), index.complete("star w", 10));
+    assertEquals(List.of("Star Wars"), index.complete("wars", 10));
+    assertEquals(List.of("Starship Troopers"), index.complete("troop", 10));
+    assertEquals(List.of(), index.complete("ars", 10));
+  }
+
+  @Test
+  void ranksWholeNameMatchesFirstThenShorterValues() {
+    PrefixIndex index = new PrefixIndex.Builder()
+            .add("The Matrix Reloaded").add("Matrix Revisited").add("The Matrix").add("Matrix").build();
+    assertEquals(List.of("Matrix", "Matrix Revisited", "The Matrix", "The Matrix Reloaded"),
+            index.complete("matrix", 10));
+    assertEquals(List.of("Matrix", "Matrix Revisited"), index.complete("MATRIX", 2));
+  }
+
+  @Test
+  void returnsEachValueOnceWithItsBestKey() {
+    // a director's name and the title itself both point at the title
+    PrefixIndex index = new PrefixIndex.Builder()
+            .add("Alien", "Alien").add("Ridley Scott", "Alien").add("Ridley Scott", "Gladiator").build();
+    assertEquals(List.of("Alien", "Gladiator"), index.complete("ridley", 10));
+    assertEquals(List.of("Alien"), index.complete("ali", 10));
+    assertEquals(List.of(), index.complete("", 10));
+    assertEquals(List.of(), index.complete("ali", 0));
+  }
+
+  @Test
+  void stopsAtTheTopKWithTheSameAnswerAsAFullScan() {
+    Random random = new Random(7);
+    String[] words = {"star", "stars", "start", "war", "wars", "the", "return", "a", "an", "red", "rev"};
+    PrefixIndex.Builder builder = new PrefixIndex.Builder();
+    Map<String, Set<String>> namesByValue = new HashMap<>();
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder name = new StringBuilder();
+      for (int w = random.nextInt(4); w >= 0; w--) { name.append(words[random.nextInt(words.length)]).append(' '); }
+      String value = "v" + random.nextInt(800);
+      builder.add(name.toString(), value);
+      namesByValue.computeIfAbsent(value, v -> new HashSet<>()).add(Analyzer.NAME.normalize(name.toString()));
+    }
+    PrefixIndex index = builder.build();
+    for (String prefix : List.of("s", "st", "star", "w", "re", "the r", "a", "zzz")) {
+      // best rank of every value with a key starting with the prefix
+      Map<String, Integer> best = new HashMap<>();
+      namesByValue.forEach((value, names) -> {
+        for (String name : names) {
+          for (String key : PrefixIndex.getKeys(name)) {
+            if (key.startsWith(prefix)) {
+              best.merge(value, PrefixIndex.getRank(key.length() == name.length(), value), Math::min);
+            }
+          }
+        }
+      });
+      for (int k : new int[] {1, 5, 50, 1000}) {
+        List<String> completed = index.complete(prefix, k);
+        assertEquals(Math.min(k, best.size()), completed.size(), prefix);
+        assertEquals(completed.size(), new HashSet<>(completed).size(), prefix);
+        int last = Integer.MIN_VALUE;
+        for (String value : completed) {
+          int rank = best.get(value);
+          assertTrue(rank >= last, prefix);
+          last = rank;
+        }
+        for (Map.Entry<String, Integer> entry : best.entrySet()) {
+          if (!completed.contains(entry.getKey())) { assertTrue(entry.getValue() >= last, prefix); }
+        }
+      }
+    }
+  }
+
+  @Test
+  void liveIndexHidesRemovedPairsById() {
+    LivePrefixIndex index = new LivePrefixIndex();
+    index.add("Zoo A", "v7");
+    index.add("A", "v7");
+    index.add("Apple", "v8");
+    index.finishLoading();
+    assertEquals(List.of("v7", "v8"), index.complete("a", 10));
+
+    // the other name pointing at v7 keeps it in
+    index.remove("A", "v7");
+    assertEquals(List.of("v8", "v7"), index.complete("a", 10));
+    index.remove("Zoo A", "v7");
+    assertEquals(List.of("v8"), index.complete("a", 10));
+
+    // added back after being hidden in the base, then added and removed only in the overlay
+    index.add("A", "v7");
+    index.add("Avocado", "v9");
+    assertEquals(List.of("v7", "v8", "v9"), index.complete("a", 10));
+    index.remove("Avocado", "v9");
+    assertEquals(List.of("v7", "v8"), index.complete("a", 10));
+  }
+
+  @Test
+  void liveIndexCountsReferences() {
+    LivePrefixIndex index = new LivePrefixIndex();
+    index.finishLoading();
+    index.add("Heat", "Heat");
+    index.add("Heat", "Heat");
+    index.remove("Heat", "Heat");
+    assertEquals(List.of("Heat"), index.complete("he", 10));
+    index.remove("Heat", "Heat");
+    assertEquals(List.of(), index.complete("he", 10));
+  }
+}